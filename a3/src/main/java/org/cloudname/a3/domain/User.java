@@ -9,6 +9,8 @@ import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 
 import org.joda.time.DateTime;
 
@@ -23,6 +25,12 @@ import org.joda.time.DateTime;
  * @author borud
  */
 public class User {
+    // ObjectMapper is expensive to create and thread safe, so the
+    // reader and writer are built once.
+    static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ObjectReader reader = objectMapper.reader(User.class);
+    private static final ObjectWriter writer = objectMapper.typedWriter(User.class);
+
     private String username;
     private String password;
     private String oldPassword;
@@ -169,7 +177,7 @@ public class User {
      */
     public String toJson() {
         try {
-            return new ObjectMapper().writeValueAsString(this);
+            return writer.writeValueAsString(this);
         } catch (IOException e) {
             return null;
         }
@@ -179,7 +187,7 @@ public class User {
      * Create a User instance from a JSON string.
      */
     public static User fromJson(String json) throws IOException {
-        return new ObjectMapper().readValue(json, User.class);
+        return reader.readValue(json);
     }
 
     @Override
@@ -1,7 +1,7 @@
 package org.cloudname.a3.domain;
 
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
 
 import java.util.Map;
 import java.util.Set;
@@ -23,6 +23,10 @@ import java.io.IOException;
  * @author borud
  */
 public class UserDB {
+    // Shares the ObjectMapper of User.
+    private static final ObjectReader reader = User.objectMapper.reader(User[].class);
+    private static final ObjectWriter writer = User.objectMapper.defaultPrettyPrintingWriter();
+
     private Map<String, User> userMap;
     private int version;
 
@@ -105,16 +109,13 @@ public class UserDB {
         };
 
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.configure(SerializationConfig.Feature.INDENT_OUTPUT, true);
-
             List<User> users = new ArrayList<User>(userMap.values());
 
             // I am not particularly fond of the fact that
             // Collections.sort() does not have a version that returns
             // a list but that it only operates on Lists in-place.
             Collections.sort(users, userCmp);
-            return mapper.writeValueAsString(users.toArray());
+            return writer.writeValueAsString(users.toArray());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -129,7 +130,7 @@ public class UserDB {
      */
     public static UserDB fromJson(String json) {
         try {
-            User[] users = new ObjectMapper().readValue(json, User[].class);
+            User[] users = reader.readValue(json);
             HashMap<String, User> m = new HashMap<String, User>();
             for (User user : users) {
                 m.put(user.getUsername(), user);
@@ -1,5 +1,7 @@
 package org.cloudname;
 
+import java.util.List;
+
 /**
  * The main interface for interacting with Cloudname.
  *
@@ -22,6 +24,17 @@ public interface Cloudname {
      */
     public ServiceHandle claim(Coordinate coordinate);
 
+    /**
+     * Claims many coordinates together, e.g. the shards hosted by a process. This works like
+     * claiming each of them, but the claims are sent together and the coordinates share the
+     * handling of the connection, so losing the connection does not make each of them retry on
+     * its own.
+     *
+     * @param coordinates of the services we wish to claim.
+     * @return a ServiceHandle for each coordinate, in the same order.
+     */
+    public List<ServiceHandle> claim(List<Coordinate> coordinates);
+
     /**
      * Get a resolver instance.
      */
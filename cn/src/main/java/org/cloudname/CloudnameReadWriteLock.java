@@ -0,0 +1,28 @@
+package org.cloudname;
+
+/**
+ * A pair of CloudnameLocks on the same name: the read lock can be held by many at a time as long
+ * as nobody holds the write lock, which is exclusive. Like the other locks they are handed out in
+ * the order they are asked for, so a waiting writer is not starved by new readers.
+ *
+ * Usage example:
+ *
+ * CloudnameReadWriteLock lock = serviceHandle.getCloudnameReadWriteLock(CloudnameLock.Scope.SERVICE, "table");
+ *
+ * if (lock.readLock().tryLock(TIMEOUT_MS)) {
+ *     readTable();
+ *     lock.readLock().release();
+ * }
+ */
+public interface CloudnameReadWriteLock {
+
+    /**
+     * @return the shared lock.
+     */
+    public CloudnameLock readLock();
+
+    /**
+     * @return the exclusive lock, which is the same lock as the CloudnameLock of the same name.
+     */
+    public CloudnameLock writeLock();
+}
@@ -1,9 +1,7 @@
 package org.cloudname;
 
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 
@@ -43,8 +41,10 @@ public class Coordinate {
     private final String service;
     private final int instance;
 
-    // TODO(borud): allow for numbers in service, user and cell.  Just
-    //   not the first character.
+    private static final JsonCodec<Coordinate> codec = JsonCodec.forType(Coordinate.class);
+
+    // Kept for code matching coordinates itself.  parse() and the
+    // constructor use ExpressionTokenizer instead.
     public static final Pattern coordinatePattern
         = Pattern.compile("^(\\d+)\\." // instance
                           + "([a-z][a-z0-9-_]*)\\." // service
@@ -83,13 +83,12 @@ public class Coordinate {
         }
 
         // If the coordinate was created by the parse() method the
-        // coordinate has already been parsed using the
-        // coordinatePattern so no validation is required.  If the
-        // coordinate was defined using the regular constructor we
-        // need to validate the parts.  And we do this by re-using the
-        // coordinatePattern.
+        // parts have already been checked by the tokenizer so no
+        // validation is required.
         if (validate) {
-            if (! coordinatePattern.matcher(asString()).matches()) {
+            if (! (ExpressionTokenizer.isName(service)
+                   && ExpressionTokenizer.isName(user)
+                   && ExpressionTokenizer.isName(cell))) {
                 throw new IllegalArgumentException("Invalid coordinate: '" + asString() + "'");
             }
         }
@@ -105,15 +104,19 @@ public class Coordinate {
      *   is not a valid coordinate.
      */
     public static Coordinate parse(String s) {
-        Matcher m = coordinatePattern.matcher(s);
-        if (! m.matches()) {
+        ExpressionTokenizer tokens = new ExpressionTokenizer(s, 4);
+        if (tokens.getTokenCount() != 4
+            || tokens.getNumber(0) < 0
+            || ! tokens.is(1, ExpressionTokenizer.NAME)
+            || ! tokens.is(2, ExpressionTokenizer.NAME)
+            || ! tokens.is(3, ExpressionTokenizer.NAME)) {
             throw new IllegalArgumentException("Malformed coordinate: " + s);
         }
 
-        int instance = Integer.parseInt(m.group(1));
-        String service = m.group(2);
-        String user = m.group(3);
-        String cell = m.group(4);
+        int instance = tokens.getNumber(0);
+        String service = tokens.getToken(1);
+        String user = tokens.getToken(2);
+        String cell = tokens.getToken(3);
 
         return new Coordinate(instance, service, user, cell, false);
     }
@@ -166,19 +169,23 @@ public class Coordinate {
 
     @Override
     public int hashCode() {
-        return asString().hashCode();
+        int hash = instance;
+        hash = 31 * hash + service.hashCode();
+        hash = 31 * hash + user.hashCode();
+        hash = 31 * hash + cell.hashCode();
+        return hash;
     }
 
     public String toJson() {
         try {
-            return new ObjectMapper().writeValueAsString(this);
+            return codec.toJson(this);
         } catch (IOException e) {
             return null;
         }
     }
 
     public static Coordinate fromJson(String json) throws IOException {
-        return new ObjectMapper().readValue(json, Coordinate.class);
+        return codec.fromJson(json);
     }
 
 }
@@ -1,6 +1,5 @@
 package org.cloudname;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 
@@ -35,6 +34,8 @@ public class Endpoint {
     private final String protocol;
     private final String endpointData;
 
+    private static final JsonCodec<Endpoint> codec = JsonCodec.forType(Endpoint.class);
+
     @JsonCreator
     public Endpoint(@JsonProperty("coordinate") Coordinate coordinate,
                     @JsonProperty("name") String name,
@@ -75,21 +76,52 @@ public class Endpoint {
         return endpointData;
     }
 
+    /**
+     * Same as {@link #equals(Object)}.
+     */
     public boolean equalsEndpoint(Endpoint endpoint) {
-       return endpoint.toJson().equals(toJson());
+       return equals(endpoint);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (null == o || getClass() != o.getClass()) {
+            return false;
+        }
+        Endpoint e = (Endpoint) o;
+        return port == e.port
+                && equalOrBothNull(coordinate, e.coordinate)
+                && equalOrBothNull(name, e.name)
+                && equalOrBothNull(host, e.host)
+                && equalOrBothNull(protocol, e.protocol)
+                && equalOrBothNull(endpointData, e.endpointData);
+    }
+
+    @Override
     public int hashCode() {
-        return toJson().hashCode();
+        int hash = (coordinate == null ? 0 : coordinate.hashCode());
+        hash = 31 * hash + (name == null ? 0 : name.hashCode());
+        hash = 31 * hash + (host == null ? 0 : host.hashCode());
+        hash = 31 * hash + port;
+        hash = 31 * hash + (protocol == null ? 0 : protocol.hashCode());
+        hash = 31 * hash + (endpointData == null ? 0 : endpointData.hashCode());
+        return hash;
+    }
+
+    private static boolean equalOrBothNull(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     public static Endpoint fromJson(String json) throws IOException {
-        return new ObjectMapper().readValue(json, Endpoint.class);
+        return codec.fromJson(json);
     }
     
     public String toJson() {
         try {
-            return new ObjectMapper().writeValueAsString(this);
+            return codec.toJson(this);
         } catch (IOException e) {
             return null;
         }
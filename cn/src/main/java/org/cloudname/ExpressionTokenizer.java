@@ -0,0 +1,132 @@
+package org.cloudname;
+
+/**
+ * Splits coordinate and resolver expressions, e.g. {@code 0.service.user.cell} or
+ * {@code endpoint.all.service.user.cell}, into the tokens between the dots. The kind of each
+ * token is worked out in the same pass, so the parsers only have to check the kinds instead of
+ * matching the expression against a regex for each form it can have.
+ */
+public final class ExpressionTokenizer {
+
+    /**
+     * The token is one or more digits.
+     */
+    public static final int NUMBER = 1;
+
+    /**
+     * The token is a letter followed by letters, digits, '-' and '_'. Only lower case letters.
+     */
+    public static final int NAME = 2;
+
+    /**
+     * The token is a NAME without digits.
+     */
+    public static final int NAME_WITHOUT_DIGITS = 4;
+
+    private static final int ALL_KINDS = NUMBER | NAME | NAME_WITHOUT_DIGITS;
+
+    private final String expression;
+    private final int[] starts;
+    private final int[] kinds;
+    private final int tokenCount;
+
+    /**
+     * Tokenizes the expression.
+     * @param maxTokens expressions with more tokens than this have a token count of -1.
+     */
+    public ExpressionTokenizer(String expression, int maxTokens) {
+        this.expression = expression;
+        // One extra start for the end of the expression.
+        starts = new int[maxTokens + 1];
+        kinds = new int[maxTokens];
+
+        int count = 0;
+        int kind = ALL_KINDS;
+        int start = 0;
+        for (int i = 0; i <= expression.length(); i++) {
+            if (i == expression.length() || expression.charAt(i) == '.') {
+                if (count == maxTokens) {
+                    count = -1;
+                    break;
+                }
+                starts[count] = start;
+                kinds[count] = (i == start) ? 0 : kind;
+                count++;
+                kind = ALL_KINDS;
+                start = i + 1;
+                continue;
+            }
+            kind &= kindOf(expression.charAt(i), i == start);
+        }
+        if (count > 0) {
+            starts[count] = expression.length() + 1;
+        }
+        tokenCount = count;
+    }
+
+    /**
+     * The kinds a token can still be after having this character.
+     */
+    private static int kindOf(char c, boolean first) {
+        if (c >= 'a' && c <= 'z') {
+            return NAME | NAME_WITHOUT_DIGITS;
+        }
+        if (c >= '0' && c <= '9') {
+            return first ? NUMBER : (NUMBER | NAME);
+        }
+        if (c == '-' || c == '_') {
+            return first ? 0 : (NAME | NAME_WITHOUT_DIGITS);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of tokens, or -1 if there are too many.
+     */
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * @return true if the token is of the kind, e.g. {@link #NAME}.
+     */
+    public boolean is(int index, int kind) {
+        return (kinds[index] & kind) != 0;
+    }
+
+    public String getToken(int index) {
+        return expression.substring(starts[index], starts[index + 1] - 1);
+    }
+
+    /**
+     * Returns the value of a {@link #NUMBER} token.
+     * @return the value, or -1 if the token is not a number or does not fit in an int.
+     */
+    public int getNumber(int index) {
+        if (! is(index, NUMBER)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = starts[index]; i < starts[index + 1] - 1; i++) {
+            value = value * 10 + (expression.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return true if the string is a {@link #NAME}.
+     */
+    public static boolean isName(String value) {
+        if (value == null || value.length() == 0) {
+            return false;
+        }
+        int kind = ALL_KINDS;
+        for (int i = 0; i < value.length(); i++) {
+            kind &= kindOf(value.charAt(i), i == 0);
+        }
+        return (kind & NAME) != 0;
+    }
+}
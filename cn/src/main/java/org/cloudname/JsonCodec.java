@@ -0,0 +1,115 @@
+package org.cloudname;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.type.TypeReference;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads and writes a type as JSON. An ObjectMapper is expensive to create and it caches the
+ * serializers it builds, so Cloudname shares one, and the reader and writer of each type are
+ * built once. Codecs are thread safe and cached, so get them with {@link #forType} and keep them.
+ *
+ * Writing to a stream does not build a string first, so a ByteArrayOutputStream that is reset
+ * and reused can take the JSON of many values.
+ */
+public final class JsonCodec<T> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Codecs by Class or by the java.lang.reflect.Type of a TypeReference.
+     */
+    private static final ConcurrentMap<Object, JsonCodec<?>> codecByType =
+            new ConcurrentHashMap<Object, JsonCodec<?>>();
+
+    private final ObjectReader reader;
+    private final ObjectWriter writer;
+
+    private JsonCodec(ObjectReader reader, ObjectWriter writer) {
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    /**
+     * Returns the codec for a class, e.g. {@code JsonCodec.forType(Coordinate.class)}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JsonCodec<T> forType(Class<T> type) {
+        JsonCodec<?> codec = codecByType.get(type);
+        if (codec == null) {
+            codecByType.putIfAbsent(type,
+                    new JsonCodec<T>(objectMapper.reader(type), objectMapper.typedWriter(type)));
+            codec = codecByType.get(type);
+        }
+        return (JsonCodec<T>) codec;
+    }
+
+    /**
+     * Returns the codec for a generic type, e.g.
+     * {@code JsonCodec.forType(new TypeReference<Map<String, Endpoint>>() {})}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JsonCodec<T> forType(TypeReference<T> type) {
+        JsonCodec<?> codec = codecByType.get(type.getType());
+        if (codec == null) {
+            codecByType.putIfAbsent(type.getType(),
+                    new JsonCodec<T>(objectMapper.reader(type), objectMapper.typedWriter(type)));
+            codec = codecByType.get(type.getType());
+        }
+        return (JsonCodec<T>) codec;
+    }
+
+    /**
+     * The factory of the shared ObjectMapper. Parsers and generators created by it can read and
+     * write objects.
+     */
+    public static JsonFactory getJsonFactory() {
+        return objectMapper.getJsonFactory();
+    }
+
+    public T fromJson(String json) throws IOException {
+        return reader.<T>readValue(json);
+    }
+
+    public T fromJson(byte[] data) throws IOException {
+        return reader.<T>readValue(data);
+    }
+
+    /**
+     * Reads the next value from a parser, e.g. when there are several values in a row.
+     */
+    public T read(JsonParser parser) throws IOException {
+        return reader.<T>readValue(parser);
+    }
+
+    public String toJson(T value) throws IOException {
+        return writer.writeValueAsString(value);
+    }
+
+    /**
+     * Writes the value as UTF-8 encoded JSON to the stream. The stream is not closed.
+     */
+    public void write(T value, OutputStream out) throws IOException {
+        JsonGenerator generator = objectMapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        writer.writeValue(generator, value);
+        generator.close();
+    }
+
+    /**
+     * Writes the value to a generator, e.g. when writing several values in a row.
+     */
+    public void write(T value, JsonGenerator generator) throws IOException {
+        writer.writeValue(generator, value);
+    }
+}
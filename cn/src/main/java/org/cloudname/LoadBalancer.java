@@ -0,0 +1,345 @@
+package org.cloudname;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Picks endpoints for requests using feedback from the client. The endpoints are kept current
+ * with a ResolverListener, and the client reports the latency and outcome of each request with
+ * {@link #report}. The LoadBalancer keeps an exponentially weighted moving average (EWMA) of the
+ * latency of each endpoint. Endpoints failing many requests in a row are ejected for a while.
+ *
+ * {@link #pick()} takes two endpoints at random and returns the one with the lower cost, which is
+ * the average latency times the number of outstanding requests plus one. Picking reads an array
+ * that is replaced when the endpoints change, so it takes no locks and does not allocate.
+ *
+ * Every endpoint returned by pick() should be reported, otherwise it looks like it has requests
+ * outstanding. Use an expression with the "all" strategy so the LoadBalancer gets all the
+ * endpoints, e.g. "http.all.service.user.cell".
+ */
+public class LoadBalancer implements Resolver.ResolverListener {
+
+    private static final Logger log = Logger.getLogger(LoadBalancer.class.getName());
+
+    /**
+     * Marks an endpoint without any latency reported.
+     */
+    private static final long NO_LATENCY = Double.doubleToLongBits(-1.0);
+
+    /**
+     * The state of an endpoint, updated without locks.
+     */
+    private static final class EndpointState {
+        private final Endpoint endpoint;
+        private final AtomicLong latencyBits = new AtomicLong(NO_LATENCY);
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger ejections = new AtomicInteger();
+        private volatile long ejectedUntilMs = 0;
+
+        EndpointState(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        double getLatencyMs() {
+            return Double.longBitsToDouble(latencyBits.get());
+        }
+
+        boolean isEjected(long nowMs) {
+            return ejectedUntilMs > nowMs;
+        }
+
+        /**
+         * New endpoints have no latency, they get requests until they have one.
+         */
+        double getCost() {
+            return Math.max(getLatencyMs(), 0.0) * (outstanding.get() + 1);
+        }
+    }
+
+    private static final EndpointState[] NO_ENDPOINTS = new EndpointState[0];
+
+    /**
+     * Configures and creates a LoadBalancer.
+     */
+    public static class Builder {
+        private final Resolver resolver;
+        private final String expression;
+        private double latencyWeight = 0.2;
+        private int failuresBeforeEjection = 5;
+        private long ejectionTimeMs = 30000;
+        private int maxEjectedPercent = 50;
+
+        /**
+         * @param resolver keeps the endpoints current.
+         * @param expression the endpoints to balance between, e.g. "http.all.service.user.cell".
+         */
+        public Builder(Resolver resolver, String expression) {
+            this.resolver = resolver;
+            this.expression = expression;
+        }
+
+        /**
+         * How much a new latency counts in the average, between 0 and 1. Default is 0.2.
+         */
+        public Builder setLatencyWeight(double latencyWeight) {
+            if (latencyWeight <= 0.0 || latencyWeight > 1.0) {
+                throw new IllegalArgumentException("Latency weight must be in (0, 1]: " + latencyWeight);
+            }
+            this.latencyWeight = latencyWeight;
+            return this;
+        }
+
+        /**
+         * Number of failures in a row before an endpoint is ejected. Default is 5.
+         */
+        public Builder setFailuresBeforeEjection(int failuresBeforeEjection) {
+            this.failuresBeforeEjection = failuresBeforeEjection;
+            return this;
+        }
+
+        /**
+         * How long an endpoint is ejected the first time. An endpoint ejected again before it has
+         * succeeded is ejected for longer. Default is 30 seconds.
+         */
+        public Builder setEjectionTimeMs(long ejectionTimeMs) {
+            this.ejectionTimeMs = ejectionTimeMs;
+            return this;
+        }
+
+        /**
+         * At most this share of the endpoints are ejected at a time. Default is 50.
+         */
+        public Builder setMaxEjectedPercent(int maxEjectedPercent) {
+            this.maxEjectedPercent = maxEjectedPercent;
+            return this;
+        }
+
+        /**
+         * Creates the LoadBalancer and starts listening to the resolver.
+         */
+        public LoadBalancer build() throws CloudnameException {
+            LoadBalancer loadBalancer = new LoadBalancer(this);
+            resolver.addResolverListener(expression, loadBalancer);
+            return loadBalancer;
+        }
+    }
+
+    private final Resolver resolver;
+    private final double latencyWeight;
+    private final int failuresBeforeEjection;
+    private final long ejectionTimeMs;
+    private final int maxEjectedPercent;
+    private final Random random = new Random();
+
+    /**
+     * The endpoints to pick from, replaced as a whole when they change.
+     */
+    private volatile EndpointState[] states = NO_ENDPOINTS;
+
+    /**
+     * The same endpoints for looking up reports, replaced together with states.
+     */
+    private volatile Map<Endpoint, EndpointState> stateByEndpoint = Collections.emptyMap();
+
+    private LoadBalancer(Builder builder) {
+        this.resolver = builder.resolver;
+        this.latencyWeight = builder.latencyWeight;
+        this.failuresBeforeEjection = builder.failuresBeforeEjection;
+        this.ejectionTimeMs = builder.ejectionTimeMs;
+        this.maxEjectedPercent = builder.maxEjectedPercent;
+    }
+
+    /**
+     * Picks an endpoint for a request. The outcome should be reported with {@link #report}.
+     * @return the endpoint or null if there are no endpoints.
+     */
+    public Endpoint pick() {
+        EndpointState[] currentStates = states;
+        int count = currentStates.length;
+        if (count == 0) {
+            return null;
+        }
+        EndpointState picked;
+        if (count == 1) {
+            picked = currentStates[0];
+        } else {
+            long nowMs = System.currentTimeMillis();
+            int first = random.nextInt(count);
+            int second = (first + 1 + random.nextInt(count - 1)) % count;
+            EndpointState firstState = findAvailable(currentStates, first, nowMs);
+            EndpointState secondState = findAvailable(currentStates, second, nowMs);
+            picked = (secondState.getCost() < firstState.getCost()) ? secondState : firstState;
+        }
+        picked.outstanding.incrementAndGet();
+        return picked.endpoint;
+    }
+
+    /**
+     * Returns the first endpoint from the index that is not ejected. If all are ejected, which can
+     * only happen if the ejections have not expired yet, the endpoint at the index is returned.
+     */
+    private static EndpointState findAvailable(EndpointState[] currentStates, int index, long nowMs) {
+        for (int i = 0; i < currentStates.length; i++) {
+            EndpointState state = currentStates[(index + i) % currentStates.length];
+            if (! state.isEjected(nowMs)) {
+                return state;
+            }
+        }
+        return currentStates[index];
+    }
+
+    /**
+     * Reports the outcome of a request to an endpoint returned by {@link #pick()}. Reports on
+     * endpoints that are gone are ignored.
+     * @param latencyMs how long the request took.
+     * @param success false if the request failed in a way that might be the fault of the endpoint.
+     */
+    public void report(Endpoint endpoint, long latencyMs, boolean success) {
+        EndpointState state = stateByEndpoint.get(endpoint);
+        if (state == null) {
+            return;
+        }
+        if (state.outstanding.decrementAndGet() < 0) {
+            // Reported more than picked.
+            state.outstanding.set(0);
+        }
+        updateLatency(state, latencyMs, success);
+        if (success) {
+            state.consecutiveFailures.set(0);
+            state.ejections.set(0);
+            return;
+        }
+        if (state.consecutiveFailures.incrementAndGet() >= failuresBeforeEjection) {
+            eject(state);
+        }
+    }
+
+    private void updateLatency(EndpointState state, long latencyMs, boolean success) {
+        while (true) {
+            long oldBits = state.latencyBits.get();
+            double oldLatency = Double.longBitsToDouble(oldBits);
+            double latency = latencyMs;
+            if (! success) {
+                // An endpoint failing fast should not attract requests.
+                latency = Math.max(latency, 2 * oldLatency);
+            }
+            double newLatency = (oldBits == NO_LATENCY)
+                    ? latency : oldLatency + latencyWeight * (latency - oldLatency);
+            if (state.latencyBits.compareAndSet(oldBits, Double.doubleToLongBits(newLatency))) {
+                return;
+            }
+        }
+    }
+
+    private void eject(EndpointState state) {
+        long nowMs = System.currentTimeMillis();
+        synchronized (this) {
+            if (state.isEjected(nowMs)) {
+                return;
+            }
+            int ejected = 0;
+            for (EndpointState other : states) {
+                if (other.isEjected(nowMs)) {
+                    ejected++;
+                }
+            }
+            if ((ejected + 1) * 100 > states.length * maxEjectedPercent) {
+                log.fine("Not ejecting " + state.endpoint + ", too many endpoints ejected.");
+                return;
+            }
+            int ejections = state.ejections.incrementAndGet();
+            state.ejectedUntilMs = nowMs + ejectionTimeMs * Math.min(ejections, 10);
+            state.consecutiveFailures.set(0);
+        }
+        log.info("Ejected endpoint " + state.endpoint + " after " + failuresBeforeEjection + " failures.");
+    }
+
+    /**
+     * @return true if the endpoint is ejected.
+     */
+    public boolean isEjected(Endpoint endpoint) {
+        EndpointState state = stateByEndpoint.get(endpoint);
+        return state != null && state.isEjected(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the average latency of the endpoint, or -1 if it has none or is unknown.
+     */
+    public double getLatencyMs(Endpoint endpoint) {
+        EndpointState state = stateByEndpoint.get(endpoint);
+        return state == null ? -1.0 : state.getLatencyMs();
+    }
+
+    /**
+     * @return number of endpoints to pick from.
+     */
+    public int getEndpointCount() {
+        return states.length;
+    }
+
+    /**
+     * Stops listening to the resolver. The endpoints are kept.
+     */
+    public void close() {
+        resolver.removeResolverListener(this);
+    }
+
+    /**
+     * Implements Resolver.ResolverListener.
+     */
+    @Override
+    public void endpointEvent(Event event, Endpoint endpoint) {
+        switch (event) {
+            case NEW_ENDPOINT:
+                addEndpoint(endpoint);
+                break;
+            case REMOVED_ENDPOINT:
+                removeEndpoint(endpoint);
+                break;
+            case LOST_CONNECTION:
+                log.info("Lost connection, endpoints might get stale.");
+                break;
+            case CONNECTION_OK:
+                break;
+        }
+    }
+
+    private synchronized void addEndpoint(Endpoint endpoint) {
+        if (stateByEndpoint.containsKey(endpoint)) {
+            return;
+        }
+        EndpointState[] newStates = new EndpointState[states.length + 1];
+        System.arraycopy(states, 0, newStates, 0, states.length);
+        newStates[states.length] = new EndpointState(endpoint);
+        setStates(newStates);
+    }
+
+    private synchronized void removeEndpoint(Endpoint endpoint) {
+        if (! stateByEndpoint.containsKey(endpoint)) {
+            return;
+        }
+        EndpointState[] newStates = new EndpointState[states.length - 1];
+        int i = 0;
+        for (EndpointState state : states) {
+            if (! state.endpoint.equals(endpoint)) {
+                newStates[i++] = state;
+            }
+        }
+        setStates(newStates);
+    }
+
+    private void setStates(EndpointState[] newStates) {
+        Map<Endpoint, EndpointState> newStateByEndpoint = new HashMap<Endpoint, EndpointState>();
+        for (EndpointState state : newStates) {
+            newStateByEndpoint.put(state.endpoint, state);
+        }
+        stateByEndpoint = Collections.unmodifiableMap(newStateByEndpoint);
+        states = newStates;
+    }
+}
@@ -2,6 +2,7 @@ package org.cloudname;
 
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * This interface defines how we resolve endpoints in Cloudname. The client has to keep a reference to this Resolver
@@ -21,6 +22,14 @@ public interface Resolver {
      */
     public List<Endpoint> resolve(String expression) throws CloudnameException;
 
+    /**
+     * Resolve an expression to a list of endpoints without blocking. The future gives the same list as
+     * {@link #resolve(String)} would, or fails with a CloudnameException as cause of the ExecutionException.
+     *
+     * @param expression The expression to resolve, see {@link #resolve(String)}.
+     */
+    public Future<List<Endpoint>> resolveAsync(String expression);
+
 
     /**
      * Implement this interface to get dynamic information about what endpoints that are available.
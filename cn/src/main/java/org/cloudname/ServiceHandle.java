@@ -3,6 +3,7 @@ package org.cloudname;
 import org.cloudname.zk.ZkCloudnameLock;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * The service handle -- the interface through which services
@@ -20,57 +21,68 @@ public interface ServiceHandle {
     public boolean waitForCoordinateOkSeconds(int seconds) throws InterruptedException;
 
     /**
-     * Set the status of this service.
+     * Set the status of this service. The write to storage is asynchronous, errors writing it,
+     * such as the coordinate not existing, are reported by the future from {@link #flush}.
      *
      * @param status the new status.
-     * @throws CoordinateMissingException if coordinate does not exist.
-     * @throws CloudnameException if coordinate is not claimed, connection to storage is down, or problems
-     * with ZooKeeper.
+     * @throws CloudnameException if coordinate is not claimed or connection to storage is down. The
+     * change is still applied locally and written once the coordinate is claimed again.
      */
     public void setStatus(ServiceStatus status) throws CoordinateMissingException, CloudnameException;
 
     /**
      * Publish a named endpoint.  If the endpoint already exists an
      * exception will be thrown.  If you want to republish a named
-     * endpoint you first have to remove it.
+     * endpoint you first have to remove it. The write to storage is asynchronous, errors writing
+     * it, such as the coordinate not existing, are reported by the future from {@link #flush}.
      *
      * @param endpoint the endpoint data.
-     * @throws CoordinateMissingException if coordinate does not exist.
-     * @throws CloudnameException if coordinate is not claimed, connection to storage is down, or problems
-     * with ZooKeeper.
+     * @throws CloudnameException if coordinate is not claimed or connection to storage is down. The
+     * change is still applied locally and written once the coordinate is claimed again.
      */
     public void putEndpoint(Endpoint endpoint) throws CoordinateMissingException, CloudnameException;
 
     /**
-     * Same as putEndpoints, but takes a list.
+     * Same as putEndpoint, but takes a list. The write to storage is asynchronous, errors writing
+     * it are reported by the future from {@link #flush}.
      *
      * @param endpoints the endpoints data.
-     * @throws CloudnameException if coordinate is not claimed, connection to storage is down, or problems
-     * with ZooKeeper.
-     * @throws CoordinateMissingException if coordinate does not exist.
+     * @throws CloudnameException if coordinate is not claimed or connection to storage is down. The
+     * change is still applied locally and written once the coordinate is claimed again.
      */
     public void putEndpoints(List<Endpoint> endpoints) throws CoordinateMissingException, CloudnameException;
 
     /**
-     * Remove a published endpoint.
+     * Remove a published endpoint. The write to storage is asynchronous, errors writing it, such
+     * as the coordinate not existing, are reported by the future from {@link #flush}.
      *
      * @param name the name of the endpoint we wish to remove.
-     * @throws CoordinateMissingException if coordinate does not exist.
-     * @throws CloudnameException if coordinate is not claimed, connection to storage is down, or problems
-     * with ZooKeeper.
+     * @throws CloudnameException if coordinate is not claimed or connection to storage is down. The
+     * change is still applied locally and written once the coordinate is claimed again.
      */
     public void removeEndpoint(String name) throws CoordinateMissingException, CloudnameException;
 
     /**
-     * Same as removeEndpoint() but takes a list of names.
+     * Same as removeEndpoint() but takes a list of names. The write to storage is asynchronous,
+     * errors writing it are reported by the future from {@link #flush}.
      *
-     * @throws CloudnameException if coordinate is not claimed, connection to storage is down, or problems
-     * with ZooKeeper.
-     * @throws CoordinateMissingException if coordinate does not exist.
-     * @throws CoordinateMissingException if coordinate does not exist.
+     * @param names the names of the endpoints we wish to remove.
+     * @throws CloudnameException if coordinate is not claimed or connection to storage is down. The
+     * change is still applied locally and written once the coordinate is claimed again.
      */
     public void removeEndpoints(List<String> names) throws CoordinateMissingException, CloudnameException;
 
+    /**
+     * The changes made by setStatus, putEndpoints and removeEndpoints are applied locally and
+     * written in the background, several changes in one write. This writes the changes made so
+     * far without waiting.
+     *
+     * @return a future completed when storage has acknowledged the changes. It fails with
+     * CoordinateMissingException if the coordinate does not exist, or CloudnameException on
+     * problems with storage.
+     */
+    public Future<Void> flush();
+
 
     /**
      * Register a ConfigListener which will be called whenever there
@@ -114,5 +126,25 @@ public interface ServiceHandle {
     // TODO (acidmoose): Revisit api for creating CloudnameLock object.
     // Should perhaps be a default Scope set to Scope.SERVICE.
     public CloudnameLock getCloudnameLock(CloudnameLock.Scope scope, String lockName);
+
+    /**
+     * Get a CloudnameReadWriteLock object. Its write lock is the same lock as the one from
+     * getCloudnameLock() with the same scope and name.
+     * @param scope The scope of the coordinate you want to place the lock on.
+     * @param lockName The String identifying the lock across the level selected.
+     * @return CloudnameReadWriteLock
+     */
+    public CloudnameReadWriteLock getCloudnameReadWriteLock(CloudnameLock.Scope scope, String lockName);
+
+    /**
+     * Get a counting semaphore as a CloudnameLock object, which up to permits objects can hold at a
+     * time. All users of a semaphore must agree on the number of permits, and the name should not
+     * be used for other locks.
+     * @param scope The scope of the coordinate you want to place the semaphore on.
+     * @param lockName The String identifying the semaphore across the level selected.
+     * @param permits The number of holders at a time, at least 1.
+     * @return CloudnameLock
+     */
+    public CloudnameLock getCloudnameSemaphore(CloudnameLock.Scope scope, String lockName, int permits);
 }
 
@@ -1,6 +1,5 @@
 package org.cloudname;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 
@@ -17,6 +16,8 @@ public class ServiceStatus {
     private final ServiceState state;
     private final String message;
 
+    private static final JsonCodec<ServiceStatus> codec = JsonCodec.forType(ServiceStatus.class);
+
     /**
      * @param state the state of the service
      * @param message a human readable message
@@ -38,12 +39,12 @@ public class ServiceStatus {
     }
 
     public static ServiceStatus fromJson(String json) throws IOException {
-        return new ObjectMapper().readValue(json, ServiceStatus.class);
+        return codec.fromJson(json);
     }
 
     public String toJson() {
         try {
-            return new ObjectMapper().writeValueAsString(this);
+            return codec.toJson(this);
         } catch (IOException e) {
             return null;
         }
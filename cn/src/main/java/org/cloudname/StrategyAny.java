@@ -19,13 +19,23 @@ public class StrategyAny implements ResolverStrategy {
     // numbers.
     private int sortSeed = (int) System.nanoTime() / 1000;
     
+    private final Comparator<Endpoint> seedOrder = new Comparator<Endpoint>() {
+        @Override
+        public int compare(Endpoint endpointA, Endpoint endpointB) {
+            int instanceA = endpointA.getCoordinate().getInstance() ^ sortSeed;
+            int instanceB = endpointB.getCoordinate().getInstance() ^ sortSeed;
+            return (instanceA > instanceB ? -1 : (instanceA == instanceB ? 0 : 1));
+        }
+    };
+
     /**
-     * Returns a list of the first endpoint if any, else returns the empty list.
+     * Returns a list of the first endpoint if any, else returns the empty list. The resolver
+     * orders what filter() keeps, so the list is never sorted when resolving.
      */
     @Override
     public List<Endpoint> filter(List<Endpoint> endpoints) {
         if (endpoints.size() > 0) {
-            List<Endpoint> retVal = new ArrayList<Endpoint>();
+            List<Endpoint> retVal = new ArrayList<Endpoint>(1);
             retVal.add(endpoints.get(0));
             return retVal;
         }
@@ -35,18 +45,14 @@ public class StrategyAny implements ResolverStrategy {
 
     /**
      * We return a list that is sorted differently for different clients. In this way only a few
-     * clients are touched when an endpoint is added/removed.
+     * clients are touched when an endpoint is added/removed. A list of one endpoint, e.g. from
+     * filter(), is returned as it is.
      */
     @Override
     public List<Endpoint> order(List<Endpoint> endpoints) {
-        Collections.sort(endpoints, new Comparator<Endpoint>() {
-            @Override
-            public int compare(Endpoint endpointA, Endpoint endpointB) {
-                int instanceA = endpointA.getCoordinate().getInstance() ^ sortSeed;
-                int instanceB = endpointB.getCoordinate().getInstance() ^ sortSeed;
-                return (instanceA > instanceB ? -1 : (instanceA == instanceB ? 0 : 1));
-            }
-        });
+        if (endpoints.size() > 1) {
+            Collections.sort(endpoints, seedOrder);
+        }
         return endpoints;
     }
 
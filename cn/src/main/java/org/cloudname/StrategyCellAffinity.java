@@ -0,0 +1,69 @@
+package org.cloudname;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A strategy that prefers endpoints in a given cell, e.g. the cell of the client, and only selects
+ * endpoints in other cells when there are none in that cell. Among the preferred endpoints, another
+ * table strategy does the selection.
+ *
+ * A resolver expression only covers one cell, so this strategy is for selecting among endpoints
+ * gathered from several cells, e.g. with {@link Resolver#getEndpoints}.
+ */
+public class StrategyCellAffinity extends TableStrategy {
+
+    private final String cell;
+    private final TableStrategy strategy;
+
+    private static class AffinityTable extends Table {
+        private final Table preferredTable;
+
+        AffinityTable(Endpoint[] endpoints, Table preferredTable) {
+            super(endpoints);
+            this.preferredTable = preferredTable;
+        }
+    }
+
+    /**
+     * @param cell the cell to prefer.
+     * @param strategy selects among the preferred endpoints. It keeps its state, e.g. the loads of
+     *     {@link StrategyPowerOfTwoChoices}, but it should not be used for anything else.
+     */
+    public StrategyCellAffinity(String cell, TableStrategy strategy) {
+        this.cell = cell;
+        this.strategy = strategy;
+    }
+
+    @Override
+    protected Table buildTable(Endpoint[] endpoints, Table previous) {
+        List<Endpoint> inCell = new ArrayList<Endpoint>();
+        for (Endpoint endpoint : endpoints) {
+            if (cell.equals(endpoint.getCoordinate().getCell())) {
+                inCell.add(endpoint);
+            }
+        }
+        // The endpoints are ordered, so are the ones in the cell.
+        Endpoint[] preferred = inCell.isEmpty() ? endpoints : inCell.toArray(new Endpoint[inCell.size()]);
+        Table previousPreferred = previous == null ? null : ((AffinityTable) previous).preferredTable;
+        return new AffinityTable(endpoints, strategy.buildTable(preferred, previousPreferred));
+    }
+
+    @Override
+    protected void tableDropped(Table table) {
+        strategy.tableDropped(((AffinityTable) table).preferredTable);
+    }
+
+    @Override
+    protected Endpoint select(Table table, String key) {
+        return strategy.select(((AffinityTable) table).preferredTable, key);
+    }
+
+    /**
+     * The name of the strategy is "cellaffinity".
+     */
+    @Override
+    public String getName() {
+        return "cellaffinity";
+    }
+}
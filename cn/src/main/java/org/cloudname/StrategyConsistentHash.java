@@ -0,0 +1,137 @@
+package org.cloudname;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A strategy that maps request keys to endpoints so that the same key goes to the same endpoint,
+ * and only a small part of the keys move when an endpoint is added or removed. It uses the
+ * lookup table of Maglev hashing, so selecting is a single array lookup.
+ *
+ * When there is no key, e.g. in resolver expressions, a key picked when the strategy is created
+ * is used. Different clients then select different endpoints, but each client keeps selecting
+ * the same one.
+ */
+public class StrategyConsistentHash extends TableStrategy {
+
+    /**
+     * The lookup table has at least this many entries per endpoint, more entries spread the keys
+     * more evenly.
+     */
+    private static final int ENTRIES_PER_ENDPOINT = 100;
+
+    /**
+     * Keys move between all endpoints when the size of the table changes, so the size is picked from
+     * these primes and only changes when the number of endpoints has about doubled.
+     */
+    private static final int[] TABLE_SIZES = {
+            251, 509, 1021, 2039, 4093, 8191, 16381, 32749, 65521 };
+
+    private final String defaultKey = Long.toString(new Random().nextLong());
+
+    private static class LookupTable extends Table {
+        /**
+         * Index of the endpoint of each slot.
+         */
+        private final int[] lookup;
+
+        LookupTable(Endpoint[] endpoints, int[] lookup) {
+            super(endpoints);
+            this.lookup = lookup;
+        }
+    }
+
+    @Override
+    protected Table buildTable(Endpoint[] endpoints, Table previous) {
+        int size = getTableSize(endpoints.length);
+
+        // Each endpoint has its own permutation of the slots, given by an offset and a skip.
+        long[] offset = new long[endpoints.length];
+        long[] skip = new long[endpoints.length];
+        long[] next = new long[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            long hash = hash(endpoints[i].getCoordinate().asString() + "@" + endpoints[i].getName());
+            offset[i] = (hash >>> 1) % size;
+            skip[i] = (mix(hash) >>> 1) % (size - 1) + 1;
+        }
+
+        // The endpoints take turns claiming their next free slot in their permutation.
+        int[] lookup = new int[size];
+        Arrays.fill(lookup, -1);
+        int filled = 0;
+        while (true) {
+            for (int i = 0; i < endpoints.length; i++) {
+                int slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+                while (lookup[slot] >= 0) {
+                    next[i]++;
+                    slot = (int) ((offset[i] + next[i] * skip[i]) % size);
+                }
+                lookup[slot] = i;
+                next[i]++;
+                if (++filled == size) {
+                    return new LookupTable(endpoints, lookup);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Endpoint select(Table table, String key) {
+        LookupTable lookupTable = (LookupTable) table;
+        if (key == null) {
+            key = defaultKey;
+        }
+        long slot = (mix(key.hashCode()) >>> 1) % lookupTable.lookup.length;
+        return lookupTable.endpoints[lookupTable.lookup[(int) slot]];
+    }
+
+    /**
+     * The name of the strategy is "consistenthash".
+     */
+    @Override
+    public String getName() {
+        return "consistenthash";
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the string. Unlike String.hashCode() all bits are used, so
+     * offset and skip are not correlated.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int getTableSize(int endpointCount) {
+        for (int size : TABLE_SIZES) {
+            if (size >= endpointCount * ENTRIES_PER_ENDPOINT) {
+                return size;
+            }
+        }
+        return nextPrime(Math.max(TABLE_SIZES[TABLE_SIZES.length - 1], endpointCount));
+    }
+
+    private static int nextPrime(int value) {
+        int candidate = Math.max(value, 2);
+        while (! isPrime(candidate)) {
+            candidate++;
+        }
+        return candidate;
+    }
+
+    private static boolean isPrime(int value) {
+        if (value < 2) {
+            return false;
+        }
+        for (int divisor = 2; (long) divisor * divisor <= value; divisor++) {
+            if (value % divisor == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
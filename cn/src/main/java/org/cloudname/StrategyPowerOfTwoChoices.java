@@ -0,0 +1,107 @@
+package org.cloudname;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A strategy that picks two endpoints at random and selects the one with the lower load. The
+ * load is whatever the client reports with {@link #reportLoad}, e.g. the number of outstanding
+ * requests. This avoids the herding you get from always selecting the least loaded endpoint when
+ * the loads are a bit out of date.
+ *
+ * Without reported loads this is a random choice, so a client using it in resolver expressions
+ * gets the instance of the resolver with {@link org.cloudname.zk.ZkResolver#getStrategy} and
+ * reports to it.
+ */
+public class StrategyPowerOfTwoChoices extends TableStrategy {
+
+    /**
+     * The load of the endpoints of all the tables, the tables refer to the same counters. An
+     * endpoint belongs to one service, so each service only adds and removes its own.
+     */
+    private final ConcurrentMap<Endpoint, AtomicInteger> loadByEndpoint =
+            new ConcurrentHashMap<Endpoint, AtomicInteger>();
+
+    private final Random random = new Random();
+
+    private static class LoadTable extends Table {
+        private final AtomicInteger[] loads;
+
+        LoadTable(Endpoint[] endpoints, AtomicInteger[] loads) {
+            super(endpoints);
+            this.loads = loads;
+        }
+    }
+
+    /**
+     * Sets the load of an endpoint, ignored if the endpoint is not selected from.
+     */
+    public void reportLoad(Endpoint endpoint, int load) {
+        AtomicInteger counter = loadByEndpoint.get(endpoint);
+        if (counter != null) {
+            counter.set(load);
+        }
+    }
+
+    @Override
+    protected Table buildTable(Endpoint[] endpoints, Table previous) {
+        AtomicInteger[] loads = new AtomicInteger[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            loadByEndpoint.putIfAbsent(endpoints[i], new AtomicInteger());
+            loads[i] = loadByEndpoint.get(endpoints[i]);
+        }
+        LoadTable table = new LoadTable(endpoints, loads);
+        // Forget the endpoints of this service that are gone, other services keep theirs.
+        if (previous != null) {
+            for (Endpoint endpoint : previous.endpoints) {
+                if (! table.contains(endpoint)) {
+                    loadByEndpoint.remove(endpoint);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Forgets the loads of the endpoints of a table that is no longer used.
+     */
+    @Override
+    protected void tableDropped(Table table) {
+        for (Endpoint endpoint : table.endpoints) {
+            loadByEndpoint.remove(endpoint);
+        }
+    }
+
+    /**
+     * @return the number of endpoints with a load.
+     */
+    int getLoadCount() {
+        return loadByEndpoint.size();
+    }
+
+    @Override
+    protected Endpoint select(Table table, String key) {
+        LoadTable loadTable = (LoadTable) table;
+        int count = loadTable.endpoints.length;
+        if (count == 1) {
+            return loadTable.endpoints[0];
+        }
+        int first = random.nextInt(count);
+        // Pick a different second endpoint.
+        int second = (first + 1 + random.nextInt(count - 1)) % count;
+        if (loadTable.loads[second].get() < loadTable.loads[first].get()) {
+            return loadTable.endpoints[second];
+        }
+        return loadTable.endpoints[first];
+    }
+
+    /**
+     * The name of the strategy is "p2c".
+     */
+    @Override
+    public String getName() {
+        return "p2c";
+    }
+}
@@ -0,0 +1,31 @@
+package org.cloudname;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A strategy that selects the endpoints in turn. The counter is shared by all threads, so the
+ * requests are spread evenly no matter which thread makes them.
+ */
+public class StrategyRoundRobin extends TableStrategy {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    protected Table buildTable(Endpoint[] endpoints, Table previous) {
+        return new Table(endpoints);
+    }
+
+    @Override
+    protected Endpoint select(Table table, String key) {
+        int next = counter.getAndIncrement() & Integer.MAX_VALUE;
+        return table.endpoints[next % table.endpoints.length];
+    }
+
+    /**
+     * The name of the strategy is "roundrobin".
+     */
+    @Override
+    public String getName() {
+        return "roundrobin";
+    }
+}
@@ -0,0 +1,299 @@
+package org.cloudname;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Base class for strategies that select one endpoint using a lookup table. The table is built
+ * from the endpoints and is only rebuilt when the set of endpoints changes, so selecting an
+ * endpoint is cheap. Tables are immutable and replaced as a whole, so a strategy can be shared
+ * between threads.
+ *
+ * The strategies can be used in resolver expressions, where filter() returns the selected
+ * endpoint. A resolver shares one strategy between all expressions, so there is a table for each
+ * service and endpoint name. The resolver passes the endpoint lists of its cache to
+ * {@link #filterSnapshot(List)}, which are replaced rather than modified, so a table is reused by
+ * checking that it was built from the same list. Tables that have not been used for a while, e.g.
+ * of services that are no longer resolved, are dropped. They can also be used directly by calling
+ * {@link #update(List)} when the endpoints change, and {@link #select(String)} for each request.
+ * select() does not allocate.
+ */
+public abstract class TableStrategy implements ResolverStrategy {
+
+    /**
+     * Orders the endpoints of a table, so tables do not depend on the order endpoints are given in.
+     */
+    private static final Comparator<Endpoint> ENDPOINT_ORDER = new Comparator<Endpoint>() {
+        @Override
+        public int compare(Endpoint a, Endpoint b) {
+            int result = a.getCoordinate().asString().compareTo(b.getCoordinate().asString());
+            if (result != 0) {
+                return result;
+            }
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    /**
+     * Tables of filter() not used for this long are dropped.
+     */
+    static final long TABLE_IDLE_MS = 10 * 60 * 1000L;
+
+    /**
+     * An immutable lookup table. Strategies extend it with the data they need for selecting.
+     */
+    protected static class Table {
+        /**
+         * The endpoints, ordered by coordinate and name.
+         */
+        protected final Endpoint[] endpoints;
+
+        /**
+         * The same endpoints, for checking if the table is built from a list of endpoints.
+         */
+        private final Set<Endpoint> endpointSet;
+
+        /**
+         * The last list given to filterSnapshot() that the table was built from, or null.
+         */
+        private volatile List<Endpoint> snapshot = null;
+
+        /**
+         * When filter() last used the table.
+         */
+        private volatile long lastUsedMs = 0;
+
+        protected Table(Endpoint[] endpoints) {
+            this.endpoints = endpoints;
+            this.endpointSet = new HashSet<Endpoint>(Arrays.asList(endpoints));
+        }
+
+        /**
+         * Checks if the table was built from the endpoints without allocating anything. The
+         * endpoints of a service are distinct, so the same size and all of them in the table
+         * means the same endpoints.
+         */
+        boolean isBuiltFrom(List<Endpoint> endpoints) {
+            if (endpoints.size() != this.endpoints.length) {
+                return false;
+            }
+            for (int i = 0; i < endpoints.size(); i++) {
+                if (! endpointSet.contains(endpoints.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the endpoint is in the table.
+         */
+        protected boolean contains(Endpoint endpoint) {
+            return endpointSet.contains(endpoint);
+        }
+    }
+
+    /**
+     * The table of {@link #update(List)}.
+     */
+    private volatile Table table = null;
+
+    /**
+     * The tables used by filter(), by service and endpoint name.
+     */
+    private final ConcurrentMap<String, Table> tableByService = new ConcurrentHashMap<String, Table>();
+
+    /**
+     * When idle tables were last looked for.
+     */
+    private volatile long lastIdleCheckMs = System.currentTimeMillis();
+
+    /**
+     * Builds a table for the endpoints.
+     * @param endpoints ordered by coordinate and name, never empty.
+     * @param previous the table this one replaces, or null. Strategies with state for each endpoint
+     *     carry it over from this table.
+     */
+    protected abstract Table buildTable(Endpoint[] endpoints, Table previous);
+
+    /**
+     * Selects an endpoint from the table, must not allocate.
+     * @param key the key of the request, may be null. Only used by strategies that care about keys.
+     */
+    protected abstract Endpoint select(Table table, String key);
+
+    /**
+     * Called when a table of filter() is dropped since it has not been used for a while. Strategies
+     * with state for each endpoint forget the state of its endpoints. Does nothing by default.
+     */
+    protected void tableDropped(Table table) {
+    }
+
+    /**
+     * Sets the endpoints to select from. The table is only rebuilt if the endpoints have changed.
+     */
+    public void update(List<Endpoint> endpoints) {
+        getTable(endpoints);
+    }
+
+    /**
+     * Selects an endpoint among the endpoints of the last update.
+     * @param key the key of the request, may be null. Only used by strategies that care about keys.
+     * @return the endpoint or null if there are no endpoints.
+     */
+    public Endpoint select(String key) {
+        Table currentTable = table;
+        if (currentTable == null) {
+            return null;
+        }
+        return select(currentTable, key);
+    }
+
+    /**
+     * Returns a list of the selected endpoint, or the empty list if there are no endpoints.
+     */
+    @Override
+    public List<Endpoint> filter(List<Endpoint> endpoints) {
+        return filter(endpoints, false);
+    }
+
+    /**
+     * Like filter(), but the list must never be modified. The table is reused as long as it is
+     * given the same list, without looking at the endpoints, so this does not depend on the
+     * number of endpoints.
+     */
+    public List<Endpoint> filterSnapshot(List<Endpoint> snapshot) {
+        return filter(snapshot, true);
+    }
+
+    private List<Endpoint> filter(List<Endpoint> endpoints, boolean isSnapshot) {
+        List<Endpoint> selected = new ArrayList<Endpoint>(1);
+        if (endpoints.isEmpty()) {
+            // The table of the service is dropped when it has been unused for a while.
+            return selected;
+        }
+        selected.add(select(getTable(getServiceKey(endpoints.get(0)), endpoints, isSnapshot), null));
+        return selected;
+    }
+
+    /**
+     * Doesn't change ordering of endpoints, filter() has done the work.
+     */
+    @Override
+    public List<Endpoint> order(List<Endpoint> endpoints) {
+        return endpoints;
+    }
+
+    /**
+     * Returns the table for the endpoints, building it if the endpoints have changed.
+     * @return the table or null if there are no endpoints.
+     */
+    Table getTable(List<Endpoint> endpoints) {
+        Table currentTable = table;
+        if (endpoints.isEmpty()) {
+            table = null;
+            return null;
+        }
+        if (currentTable != null && currentTable.isBuiltFrom(endpoints)) {
+            return currentTable;
+        }
+        // Several threads might build the same table, that is harmless.
+        currentTable = buildTable(sort(endpoints), currentTable);
+        table = currentTable;
+        return currentTable;
+    }
+
+    /**
+     * Returns the table of a service, building it if the endpoints have changed.
+     * @param serviceKey from {@link #getServiceKey(Endpoint)}.
+     * @param endpoints the endpoints of the service, not empty.
+     */
+    Table getTable(String serviceKey, List<Endpoint> endpoints) {
+        return getTable(serviceKey, endpoints, false);
+    }
+
+    /**
+     * Like getTable(String, List), but when isSnapshot is true a table built from the same list
+     * is reused without comparing the endpoints.
+     */
+    private Table getTable(String serviceKey, List<Endpoint> endpoints, boolean isSnapshot) {
+        long nowMs = System.currentTimeMillis();
+        Table currentTable = tableByService.get(serviceKey);
+        if (currentTable == null || ! (isSnapshot && currentTable.snapshot == endpoints)) {
+            if (currentTable != null && currentTable.isBuiltFrom(endpoints)) {
+                if (isSnapshot) {
+                    // A new list with the same endpoints.
+                    currentTable.snapshot = endpoints;
+                }
+            } else {
+                currentTable = buildTable(sort(endpoints), currentTable);
+                currentTable.snapshot = isSnapshot ? endpoints : null;
+                tableByService.put(serviceKey, currentTable);
+            }
+        }
+        currentTable.lastUsedMs = nowMs;
+        if (nowMs - lastIdleCheckMs > TABLE_IDLE_MS) {
+            dropIdleTables(nowMs);
+        }
+        return currentTable;
+    }
+
+    /**
+     * Drops the tables of filter() that have not been used for {@link #TABLE_IDLE_MS}.
+     */
+    void dropIdleTables(long nowMs) {
+        lastIdleCheckMs = nowMs;
+        for (Map.Entry<String, Table> entry : tableByService.entrySet()) {
+            Table idleTable = entry.getValue();
+            if (nowMs - idleTable.lastUsedMs > TABLE_IDLE_MS
+                    && tableByService.remove(entry.getKey(), idleTable)) {
+                tableDropped(idleTable);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tables of filter().
+     */
+    int getTableCount() {
+        return tableByService.size();
+    }
+
+    /**
+     * The key of the table an endpoint is selected from by filter(). Resolver expressions cover
+     * one endpoint name of one service in one cell, so that is the key.
+     */
+    static String getServiceKey(Endpoint endpoint) {
+        Coordinate coordinate = endpoint.getCoordinate();
+        return endpoint.getName() + "." + coordinate.getService() + "." + coordinate.getUser()
+                + "." + coordinate.getCell();
+    }
+
+    /**
+     * @return the endpoints as an array ordered by coordinate and name.
+     */
+    static Endpoint[] sort(List<Endpoint> endpoints) {
+        Endpoint[] sorted = endpoints.toArray(new Endpoint[endpoints.size()]);
+        Arrays.sort(sorted, ENDPOINT_ORDER);
+        return sorted;
+    }
+
+    /**
+     * Spreads the bits of a hash code, the finalizer of MurmurHash3.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
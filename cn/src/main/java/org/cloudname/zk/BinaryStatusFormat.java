@@ -0,0 +1,156 @@
+package org.cloudname.zk;
+
+import org.cloudname.Coordinate;
+import org.cloudname.Endpoint;
+import org.cloudname.ServiceState;
+import org.cloudname.ServiceStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * The binary format of the data in status nodes. The first byte is the format version. JSON data
+ * always starts with a quote, so readers can tell the formats apart and read both while writers
+ * are moved from JSON to binary.
+ *
+ * Version 1 is the service state and message, followed by the number of endpoints and their
+ * coordinate, name, host, port, protocol and endpoint data. Numbers are unsigned varints. Strings
+ * are a varint holding the length in UTF-8 bytes plus one, or zero for null, followed by the bytes.
+ *
+ * @see ZkCoordinateData.Format
+ */
+final class BinaryStatusFormat {
+
+    static final byte VERSION_1 = 1;
+
+    private BinaryStatusFormat() {}
+
+    /**
+     * @return true if the data is in a binary format, any version.
+     */
+    static boolean isBinary(byte[] data) {
+        // JSON starts with a quote or white space, the versions are below that.
+        return data.length > 0 && data[0] >= 0 && data[0] < 0x09;
+    }
+
+    static byte[] encode(ServiceStatus serviceStatus, Map<String, Endpoint> endpointsByName) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 64 * endpointsByName.size());
+        out.write(VERSION_1);
+        writeString(out, serviceStatus.getState() == null ? null : serviceStatus.getState().name());
+        writeString(out, serviceStatus.getMessage());
+        writeVarint(out, endpointsByName.size());
+        for (Endpoint endpoint : endpointsByName.values()) {
+            writeString(out, endpoint.getCoordinate() == null ? null : endpoint.getCoordinate().asString());
+            writeString(out, endpoint.getName());
+            writeString(out, endpoint.getHost());
+            writeVarint(out, endpoint.getPort());
+            writeString(out, endpoint.getProtocol());
+            writeString(out, endpoint.getEndpointData());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes binary data.
+     * @param endpointsByName the endpoints are put here.
+     * @return the service status.
+     * @throws IOException if the data is not valid or the version is unknown.
+     */
+    static ServiceStatus decode(byte[] data, Map<String, Endpoint> endpointsByName) throws IOException {
+        if (data[0] != VERSION_1) {
+            throw new IOException("Unknown status format version: " + data[0]);
+        }
+        Reader reader = new Reader(data);
+        String state = reader.readString();
+        ServiceStatus serviceStatus;
+        try {
+            serviceStatus = new ServiceStatus(state == null ? null : ServiceState.valueOf(state),
+                    reader.readString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown service state: " + state);
+        }
+        int count = reader.readVarint();
+        for (int i = 0; i < count; i++) {
+            String coordinate = reader.readString();
+            Endpoint endpoint;
+            try {
+                endpoint = new Endpoint(coordinate == null ? null : Coordinate.parse(coordinate),
+                        reader.readString(), reader.readString(), reader.readVarint(),
+                        reader.readString(), reader.readString());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid coordinate: " + coordinate);
+            }
+            endpointsByName.put(endpoint.getName(), endpoint);
+        }
+        if (reader.position != data.length) {
+            throw new IOException("Trailing bytes in status data.");
+        }
+        return serviceStatus;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = value.getBytes(Util.CHARSET_NAME);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads from the data after the version byte.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int position = 1;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position >= data.length) {
+                    throw new IOException("Truncated status data.");
+                }
+                byte b = data[position++];
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in status data.");
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length < 0 || length > data.length - position) {
+                throw new IOException("Truncated status data.");
+            }
+            String value = new String(data, position, length, Util.CHARSET_NAME);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -4,10 +4,9 @@ import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.cloudname.*;
 
-import java.io.IOException;
-
-import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -21,7 +20,53 @@ import java.util.logging.Logger;
 public class ClaimedCoordinate implements Watcher, ZkUserInterface {
 
     public CloudnameLock getCloudnameLock(CloudnameLock.Scope scope, String lockName) {
-        return new ZkCloudnameLock(getZooKeeper(), coordinate, scope, lockName);
+        return registerLock(new ZkCloudnameLock(getZooKeeper(), coordinate, scope, lockName));
+    }
+
+    public CloudnameReadWriteLock getCloudnameReadWriteLock(CloudnameLock.Scope scope, String lockName) {
+        final CloudnameLock readLock = registerLock(new ZkCloudnameLock(
+                getZooKeeper(), coordinate, scope, lockName, ZkCloudnameLock.Kind.READ, 1));
+        final CloudnameLock writeLock = registerLock(new ZkCloudnameLock(
+                getZooKeeper(), coordinate, scope, lockName, ZkCloudnameLock.Kind.WRITE, 1));
+        return new CloudnameReadWriteLock() {
+            @Override
+            public CloudnameLock readLock() {
+                return readLock;
+            }
+
+            @Override
+            public CloudnameLock writeLock() {
+                return writeLock;
+            }
+        };
+    }
+
+    public CloudnameLock getCloudnameSemaphore(CloudnameLock.Scope scope, String lockName, int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("A semaphore needs at least one permit, not " + permits);
+        }
+        return registerLock(new ZkCloudnameLock(
+                getZooKeeper(), coordinate, scope, lockName, ZkCloudnameLock.Kind.PERMIT, permits));
+    }
+
+    /**
+     * The lock follows the connection of the coordinate, so it can tell its listeners when it is lost.
+     */
+    private ZkCloudnameLock registerLock(ZkCloudnameLock lock) {
+        locks.put(lock, 1);
+        return lock;
+    }
+
+    /**
+     * The locks made from this coordinate, weak since the clients let go of them when they are done.
+     */
+    private final Map<ZkCloudnameLock, Integer> locks =
+            Collections.synchronizedMap(new WeakHashMap<ZkCloudnameLock, Integer>());
+
+    private List<ZkCloudnameLock> getLocks() {
+        synchronized (locks) {
+            return new ArrayList<ZkCloudnameLock>(locks.keySet());
+        }
     }
 
     /**
@@ -58,6 +103,11 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
 
     private static final Logger log = Logger.getLogger(ClaimedCoordinate.class.getName());
 
+    /**
+     * How long to wait before trying to claim the coordinate again when out of sync.
+     */
+    private static final long RECLAIM_DELAY_MS = 2000;
+
     /**
      * The ZooKeeper instance we use. This is a dynamic variable and can be changed by functions in the ZkUserInterface.
      */
@@ -73,6 +123,50 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
      */
     private final String path;
 
+    /**
+     * The format the data is written to ZooKeeper in.
+     */
+    private final ZkCoordinateData.Format format;
+
+    /**
+     * Changes are written this long after the first change, so the changes made in the meantime
+     * go out in the same write. With no delay changes are written right away, and changes made
+     * while a write is in flight go out together when it is acknowledged.
+     */
+    private final long writeDelayMs;
+
+    /**
+     * Completed when the local changes not yet sent to ZooKeeper are written, null if there are none.
+     */
+    private ZkFuture<Void> pendingFlush = null;
+
+    /**
+     * Completed when the write sent to ZooKeeper is acknowledged, null if there is none in flight.
+     */
+    private ZkFuture<Void> inFlightFlush = null;
+
+    /**
+     * True while waiting for the write delay to pass.
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * True if the data has changed since the last claim was sent, so it must be written once the
+     * claim succeeds.
+     */
+    private boolean changedSinceClaim = false;
+
+    /**
+     * True once the watch is set after the last claim and the listeners have been told that the
+     * coordinate is ok.
+     */
+    private boolean claimConfirmed = false;
+
+    /**
+     * The group the coordinate was claimed in, null if it was claimed alone.
+     */
+    private final ZkClaimGroup group;
+
     /**
      * The endpoints and the status of the coordinate is stored here.
      */
@@ -84,18 +178,38 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
     private List<CoordinateListener> coordinateListenerList =
             Collections.synchronizedList(new ArrayList<CoordinateListener>());
 
-    /**
-     * A list of tracked configs for this coordinate.
-     */
-    private List<TrackedConfig> trackedConfigList =
-            Collections.synchronizedList(new ArrayList<TrackedConfig>());
-    
     /**
      * Constructor, the ZooKeeper instances is retrieved from implementing the ZkUserInterface so the object
      * is not ready to be used before the ZooKeeper instance is received.
      */
     public ClaimedCoordinate(Coordinate coordinate) {
+        this(coordinate, ZkCoordinateData.Format.JSON);
+    }
+
+    /**
+     * Like the constructor above, but the data is written in the given format.
+     */
+    public ClaimedCoordinate(Coordinate coordinate, ZkCoordinateData.Format format) {
+        this(coordinate, format, 0);
+    }
+
+    /**
+     * Like the constructor above, but changes are written at most once per writeDelayMs.
+     */
+    public ClaimedCoordinate(Coordinate coordinate, ZkCoordinateData.Format format, long writeDelayMs) {
+        this(coordinate, format, writeDelayMs, null);
+    }
+
+    /**
+     * Like the constructor above, but the coordinate is claimed as part of a group, which gets
+     * the ZooKeeper instance and reclaims the coordinates of the group together.
+     */
+    ClaimedCoordinate(Coordinate coordinate, ZkCoordinateData.Format format, long writeDelayMs,
+                      ZkClaimGroup group) {
         this.coordinate = coordinate;
+        this.format = format;
+        this.writeDelayMs = writeDelayMs;
+        this.group = group;
         path = ZkCoordinatePath.getStatusPath(coordinate);
     }
 
@@ -123,6 +237,9 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
         }
         sendEventToCoordinateListener(CoordinateListener.Event.NO_CONNECTION_TO_STORAGE,
                 "Got message from parent watcher.");
+        for (ZkCloudnameLock lock : getLocks()) {
+            lock.zooKeeperDown();
+        }
     }
     
     /**
@@ -131,13 +248,12 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
     @Override
     public void newZooKeeperInstance(ZooKeeper zk) {
         log.fine("ClaimedCoordinate: Got new ZeeKeeper, starting potential cleanup, path: " + path);
+        for (ZkCloudnameLock lock : getLocks()) {
+            lock.newZooKeeperInstance(zk);
+        }
         synchronized (this) {
             this.zk = zk;
-            
-            for (TrackedConfig trackedConfig : trackedConfigList) {
-                trackedConfig.newZooKeeperInstance(zk);
-            }
-            
+
             // We always start by assuming it is unclaimed.
             consistencyState = ConsistencyState.OUT_OF_SYNC;
 
@@ -151,7 +267,7 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
     
     /**
      * This class implements the logic for handling callbacks from ZooKeeper on claim.
-     * In general we could just ignore errors since we have a time based retry mechanism. However,
+     * In general we could just ignore errors since a failed claim is retried after RECLAIM_DELAY_MS. However,
      * we want to notify clients, and we need to update the consistencyState.
      */
     class ClaimCallback implements AsyncCallback.StringCallback {
@@ -173,45 +289,23 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
                         // This requires that the first version is 0, have not seen this documented but it should
                         // be a fair assumption and is verified by unit tests.
                         lastStatusVersion = 0;
-                        // We need to set this to synced or updateCoordinateData will complain.
-                        // updateCoordinateData will set it to out-of-sync in case of problems.
+                        // Writes are only sent while synced, a failed write sets it out of sync again.
                         consistencyState = ConsistencyState.SYNCED;
 
-                        try {
-                            claimedCoordinate.updateCoordinateData();
-                        } catch (CoordinateMissingException e) {
-                            log.fine("Problems writing config, coordinate missing.");
-                            claimedCoordinate.sendEventToCoordinateListener(
-                                    CoordinateListener.Event.NOT_OWNER,
-                                    "Can not write config after claim: " + returnCode.name());
-                            return;
-                        } catch (CloudnameException e) {
-                            log.fine("Problems writing config." + e.getMessage());
-                            claimedCoordinate.sendEventToCoordinateListener(
-                                    CoordinateListener.Event.NO_CONNECTION_TO_STORAGE,
-                                    "Can not write config after claim: " + returnCode.name());
-                            return;
+                        if (changedSinceClaim) {
+                            // The create wrote the data as it was when the claim was sent. The changes
+                            // made since are sent like any other write, and their flush completes
+                            // when that write is acknowledged.
+                            claimedCoordinate.completeInFlightFlush();
+                            claimedCoordinate.sendWrite();
+                        } else {
+                            // The changes waiting to be written were part of the data written.
+                            claimedCoordinate.completeFlushes();
                         }
                     }
 
-                    try {
-                        registerWatcher();
-                    } catch (CloudnameException e) {
-                        log.fine("Failed register watcher after claim. Going to state out of sync: " + e.getMessage());
-                        synchronized (this) {
-                            consistencyState = ConsistencyState.OUT_OF_SYNC;
-                            return;
-                        }
-                    } catch (InterruptedException e) {
-                        synchronized (this) {
-                            log.fine("Interrupted while setting up new watcher. Going to state out of sync.");
-                            consistencyState = ConsistencyState.OUT_OF_SYNC;
-                            return;
-                        }
-                    }
-                    // No exceptions, let's celebrate with a log message.
-                    log.info("Claimed processed ok, path: " + path);
-                    claimedCoordinate.sendEventToCoordinateListener(CoordinateListener.Event.COORDINATE_OK, "claimed");
+                    // The coordinate is reported as ok once the watch is set.
+                    claimedCoordinate.registerWatcher();
                     return;
                 
                 case NODEEXISTS:
@@ -229,12 +323,14 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
                     claimedCoordinate.sendEventToCoordinateListener(
                         CoordinateListener.Event.NOT_OWNER, "Node already exists.");
                     checkVersion = true;
+                    claimedCoordinate.scheduleReclaim();
                     return;
                 case NONODE:
                     log.info("Could not claim due to missing coordinate, path: " + path);
                     claimedCoordinate.sendEventToCoordinateListener(
                             CoordinateListener.Event.NOT_OWNER,
                             "No node on claiming coordinate: " + returnCode.name());
+                    claimedCoordinate.scheduleReclaim();
                     return;
 
                 default:
@@ -242,54 +338,73 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
                     claimedCoordinate.sendEventToCoordinateListener(
                             CoordinateListener.Event.NO_CONNECTION_TO_STORAGE,
                             "Could not reclaim coordinate. Return code: " + returnCode.name());
+                    claimedCoordinate.scheduleReclaim();
                     return;
             }
         }
     }
 
     /**
-     * This function is called externally now and then to let the object check it's state and try to resolve problems.
+     * Called by the ZkScheduler when a reclaim is due, tries to get back in sync. It runs on
+     * the scheduler thread, so ZooKeeper is only called asynchronously.
      */
     @Override
     public void timeEvent() {
         synchronized (this) {
-            for (TrackedConfig config : trackedConfigList) {
-                config.timeEvent();
-            }
-            if (consistencyState == ConsistencyState.SYNCED || zk == null || ! started) {
+            // When the connection is back, newZooKeeperInstance() reclaims.
+            if (consistencyState == ConsistencyState.SYNCED || zk == null || ! started
+                    || zk.getState() != ZooKeeper.States.CONNECTED) {
                 return;
             }
             if (checkVersion) {
-                try {
-                    Stat stat = new Stat();
-                    final byte[] serverData = getZooKeeper().getData(path, false, stat);
-                    final String serverDataString = new String(serverData, Util.CHARSET_NAME);
-                    final String ourDataString = zkCoordinateData.snapshot().serialize();
-                    if (getZooKeeper().getSessionId() == stat.getEphemeralOwner()) {
-                        getZooKeeper().delete(path, lastStatusVersion);
-                    }
-                } catch (InterruptedException e) {
-                    // Ignore this
-                } catch (KeeperException e) {
-                    // Ignore this
-                } catch (UnsupportedEncodingException e) {
-                    // Ignore this
-                }
+                checkVersion = false;
+                // The node might be an old claim of this session, it is deleted before claiming.
+                zk.exists(path, false, new StaleClaimCallback(), zk);
+                return;
             }
-            checkVersion = false;
             log.fine("We are out-of-sync, have a zookeeper connection, and are started, trying reclaim: " + path);
             claim(zk);
         }
     }
 
+    /**
+     * Deletes the node if it is owned by this session, and then claims. ZooKeeper handles the
+     * requests of a session in order, so the claim is sent right after the delete.
+     */
+    private class StaleClaimCallback implements AsyncCallback.StatCallback {
+        @Override
+        public void processResult(int rawReturnCode, String notUsed, Object ctx, Stat stat) {
+            ZooKeeper zkArg = (ZooKeeper) ctx;
+            synchronized (ClaimedCoordinate.this) {
+                if (zk != zkArg || consistencyState == ConsistencyState.SYNCED || ! started) {
+                    return;
+                }
+                if (rawReturnCode == KeeperException.Code.OK.intValue()
+                        && zkArg.getSessionId() == stat.getEphemeralOwner()) {
+                    zkArg.delete(path, lastStatusVersion, new AsyncCallback.VoidCallback() {
+                        @Override
+                        public void processResult(int rc, String path, Object ctx) {
+                            // A failed delete makes the claim fail, which schedules a reclaim.
+                        }
+                    }, null);
+                }
+                log.fine("We are out-of-sync, have a zookeeper connection, and are started, trying reclaim: "
+                        + path);
+                claim(zkArg);
+            }
+        }
+    }
+
 
     /**
      * Updates the ServiceStatus and persists it. Only allowed if we claimed the coordinate.
      * @param status The new value for serviceStatus.
      */
     public void updateStatus(ServiceStatus status) throws CloudnameException, CoordinateMissingException {
-        zkCoordinateData.setStatus(status);
-        updateCoordinateData();
+        synchronized (this) {
+            zkCoordinateData.setStatus(status);
+            coordinateDataChanged();
+        }
     }
 
     /**
@@ -297,8 +412,10 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
      * @param newEndpoints endpoints to be added.
      */
     public void putEndpoints(List<Endpoint> newEndpoints) throws CloudnameException, CoordinateMissingException {
-        zkCoordinateData.putEndpoints(newEndpoints);
-        updateCoordinateData();
+        synchronized (this) {
+            zkCoordinateData.putEndpoints(newEndpoints);
+            coordinateDataChanged();
+        }
     }
 
     /**
@@ -306,8 +423,164 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
      * @param names names of endpoints to be removed.
      */
     public void removeEndpoints(List<String> names) throws CloudnameException, CoordinateMissingException {
-        zkCoordinateData.removeEndpoints(names);
-        updateCoordinateData();
+        synchronized (this) {
+            zkCoordinateData.removeEndpoints(names);
+            coordinateDataChanged();
+        }
+    }
+
+    /**
+     * Writes the changes made so far without waiting for the write delay.
+     * @return a future completed when ZooKeeper has acknowledged the write. It fails with
+     *     CoordinateMissingException if the coordinate is gone, or CloudnameException on other
+     *     problems. While the coordinate is out of sync it completes when it has been reclaimed.
+     */
+    public Future<Void> flush() {
+        synchronized (this) {
+            if (pendingFlush != null) {
+                ZkFuture<Void> future = pendingFlush;
+                sendWrite();
+                return future;
+            }
+            if (inFlightFlush != null) {
+                return inFlightFlush;
+            }
+            return ZkFuture.completed(null);
+        }
+    }
+
+    /**
+     * Called with the monitor held after a local change, makes sure it gets written.
+     */
+    private void coordinateDataChanged() throws CloudnameException {
+        if (! started) {
+            throw new IllegalStateException("Not started yet: " + consistencyState.name());
+        }
+        if (pendingFlush == null) {
+            pendingFlush = new ZkFuture<Void>();
+        }
+        changedSinceClaim = true;
+        if (consistencyState == ConsistencyState.OUT_OF_SYNC) {
+            // The change is written when the coordinate is reclaimed.
+            throw new CloudnameException("No proper connection with zookeeper.");
+        }
+        if (writeScheduled || inFlightFlush != null) {
+            return;
+        }
+        if (writeDelayMs <= 0) {
+            sendWrite();
+            return;
+        }
+        writeScheduled = true;
+        ZkScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ClaimedCoordinate.this) {
+                    writeScheduled = false;
+                    sendWrite();
+                }
+            }
+        }, writeDelayMs);
+    }
+
+    /**
+     * Called with the monitor held when the coordinate goes out of sync, tries to reclaim it later.
+     */
+    private void setOutOfSync() {
+        consistencyState = ConsistencyState.OUT_OF_SYNC;
+        scheduleReclaim();
+    }
+
+    /**
+     * Tries to reclaim the coordinate later. A coordinate claimed in a group is reclaimed in the
+     * next reclaim pass of the group.
+     */
+    private void scheduleReclaim() {
+        if (group != null) {
+            group.scheduleReclaim(this);
+        } else {
+            ZkScheduler.scheduleTimeEvent(this, RECLAIM_DELAY_MS);
+        }
+    }
+
+    /**
+     * Called with the monitor held. Sends the local changes to ZooKeeper, unless a write is
+     * in flight or the coordinate is out of sync. The data is written with the version of the
+     * last write, so it fails if someone else has written to the node.
+     */
+    private void sendWrite() {
+        if (pendingFlush == null || inFlightFlush != null
+                || consistencyState != ConsistencyState.SYNCED || zk == null) {
+            return;
+        }
+        inFlightFlush = pendingFlush;
+        pendingFlush = null;
+        zk.setData(path, zkCoordinateData.snapshot().serialize(format), lastStatusVersion,
+                new WriteCallback(), inFlightFlush);
+    }
+
+    /**
+     * Called with the monitor held when all local data has been written by a claim.
+     */
+    private void completeFlushes() {
+        completeInFlightFlush();
+        if (pendingFlush != null) {
+            pendingFlush.set(null);
+            pendingFlush = null;
+        }
+    }
+
+    /**
+     * Called with the monitor held when the data of the write in flight has been written by a
+     * claim sent after it.
+     */
+    private void completeInFlightFlush() {
+        if (inFlightFlush != null) {
+            inFlightFlush.set(null);
+            inFlightFlush = null;
+        }
+    }
+
+    /**
+     * Handles the reply to a write, and sends the changes made in the meantime.
+     */
+    private class WriteCallback implements AsyncCallback.StatCallback {
+        @Override
+        public void processResult(int rawReturnCode, String notUsed, Object context, Stat stat) {
+            @SuppressWarnings("unchecked")
+            ZkFuture<Void> future = (ZkFuture<Void>) context;
+            KeeperException.Code returnCode = KeeperException.Code.get(rawReturnCode);
+            synchronized (ClaimedCoordinate.this) {
+                if (inFlightFlush != future) {
+                    // A claim has written the data since.
+                    return;
+                }
+                inFlightFlush = null;
+                if (returnCode == KeeperException.Code.OK) {
+                    lastStatusVersion = stat.getVersion();
+                    future.set(null);
+                    if (pendingFlush != null && ! writeScheduled) {
+                        sendWrite();
+                    }
+                    return;
+                }
+                setOutOfSync();
+            }
+            log.fine("Writing coordinate data failed with " + returnCode.name() + ", path: " + path);
+            switch (returnCode) {
+                case NONODE:
+                    future.setException(new CoordinateMissingException("Coordinate does not exist " + path));
+                    return;
+                case BADVERSION:
+                    future.setException(new CloudnameException("Coordinate data written by someone else."));
+                    sendEventToCoordinateListener(CoordinateListener.Event.COORDINATE_OUT_OF_SYNC,
+                            "Version mismatch on write.");
+                    return;
+                default:
+                    future.setException(new CloudnameException("ZooKeeper error writing coordinate data: "
+                            + returnCode.name(), KeeperException.create(returnCode, path)));
+            }
+        }
     }
 
     /**
@@ -315,7 +588,25 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
      * Requires that that this instance owns the claim to the coordinate.
      */
     public void releaseClaim() throws CloudnameException {
+        // The node is deleted with the version of the last write, so wait for a write in flight.
+        ZkFuture<Void> inFlight;
+        synchronized (this) {
+            inFlight = inFlightFlush;
+        }
+        if (inFlight != null && ! Util.isZooKeeperEventThread()) {
+            try {
+                inFlight.get();
+            } catch (InterruptedException e) {
+                throw new CloudnameException(e);
+            } catch (ExecutionException e) {
+                // The claim is released anyway.
+            }
+        }
         synchronized (this) {
+            if (pendingFlush != null) {
+                pendingFlush.setException(new CloudnameException("Claim released before changes were written."));
+                pendingFlush = null;
+            }
 
             try {
                 getZooKeeper().delete(path, lastStatusVersion);
@@ -324,6 +615,8 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
             } catch (KeeperException e) {
                 throw new CloudnameException(e);
             }
+            // Released, so there is nothing to reclaim.
+            started = false;
             zkCoordinateData = null;
             lastStatusVersion = -1;
         }
@@ -348,7 +641,7 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
         String message = "New listener added, resending current state.";
         synchronized (this) {
             coordinateListenerList.add(coordinateListener);
-            if (consistencyState == ConsistencyState.SYNCED) {
+            if (consistencyState == ConsistencyState.SYNCED && claimConfirmed) {
                 coordinateListener.onCoordinateEvent(CoordinateListener.Event.COORDINATE_OK, message);
             } else {
                 sendEventToCoordinateListener(CoordinateListener.Event.NO_CONNECTION_TO_STORAGE, "Not ok " +
@@ -357,24 +650,6 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
         }
     }
 
-
-    /**
-     * Registers a configlistener that will receive events when there are changes to the config node.
-     * Don't do any heavy lifting in the callback and don't call cloudname from the callback as this might create
-     * a deadlock.
-     * @param trackedConfig
-     */
-    public void registerTrackedConfig(TrackedConfig trackedConfig)  {
-
-        synchronized (this) {
-
-            trackedConfigList.add(trackedConfig);
-            if (zk != null) {
-                trackedConfig.newZooKeeperInstance(zk);
-            }
-        }
-    }
-
     /**
      * Handles event from ZooKeeper for this coordinate.
      * @param event
@@ -395,7 +670,7 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
                         // If we lost connection, we don't attempt to register another watcher as this might be
                         // blocking forever. Parent will try to reconnect (reclaim) later.
                         synchronized (this) {
-                            consistencyState = ConsistencyState.OUT_OF_SYNC;
+                            setOutOfSync();
                         }
                         sendEventToCoordinateListener(CoordinateListener.Event.NO_CONNECTION_TO_STORAGE,
                                 event.toString());
@@ -406,7 +681,7 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
             case NodeDeleted:
                 // If node is deleted, we have no node to place a new watcher so we stop watching.
                 synchronized (this) {
-                    consistencyState = ConsistencyState.OUT_OF_SYNC;
+                    setOutOfSync();
                 }
                 sendEventToCoordinateListener(CoordinateListener.Event.NOT_OWNER, event.toString());
                 return;
@@ -417,16 +692,18 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
                     try {
                         Stat stat = getZooKeeper().exists(path, this);
                         log.fine("Previous version is " + lastStatusVersion + " now is " + stat.getVersion());
-                        if (stat.getVersion() != lastStatusVersion) {
+                        // While a write is in flight, its reply is queued behind this event and
+                        // has the version. A write by someone else makes our write fail.
+                        if (inFlightFlush == null && stat.getVersion() != lastStatusVersion) {
                             log.info("Version mismatch, sending out of sync.");
-                            consistencyState = ConsistencyState.OUT_OF_SYNC;
+                            setOutOfSync();
                         }
                     } catch (KeeperException e) {
                         log.fine("Problems with zookeeper, sending consistencyState out of sync: " + e.getMessage());
-                        consistencyState = ConsistencyState.OUT_OF_SYNC;
+                        setOutOfSync();
                     } catch (InterruptedException e) {
                         log.fine("Got interrupted: " + e.getMessage());
-                        consistencyState = ConsistencyState.OUT_OF_SYNC;
+                        setOutOfSync();
                         return;
                     }
 
@@ -440,7 +717,7 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
             case NodeCreated:
                 // This should not happen..
                 synchronized (this) {
-                    consistencyState = ConsistencyState.OUT_OF_SYNC;
+                    setOutOfSync();
                 }
                 sendEventToCoordinateListener(CoordinateListener.Event.COORDINATE_OUT_OF_SYNC, event.toString());
                 return;
@@ -452,14 +729,11 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
      * @param zkArg we pass this parameter to avoid locking in this code.
      */
     private void claim(ZooKeeper zkArg) {
-        try {
-            zkArg.create(
-                    path, zkCoordinateData.snapshot().serialize().getBytes(Util.CHARSET_NAME),
-                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, new ClaimCallback(), this);
-        } catch (IOException e) {
-            // We don't care about this, the system will try to reclaim later.
-            log.info("Got IO exception on claim with new ZooKeeper instance " + e.getMessage());
-        }
+        changedSinceClaim = false;
+        claimConfirmed = false;
+        zkArg.create(
+                path, zkCoordinateData.snapshot().serialize(format),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, new ClaimCallback(), this);
     }
 
     /**
@@ -487,47 +761,37 @@ public class ClaimedCoordinate implements Watcher, ZkUserInterface {
     }
 
     /**
-     * Register a watcher for the coordinate.
+     * Registers a watcher for the coordinate after a claim, and tells the listeners that the
+     * coordinate is ok once it is set.
      */
-    private void registerWatcher() throws CloudnameException, InterruptedException {
+    private void registerWatcher() {
         log.fine("Register watcher for ZooKeeper..");
-        try {
-            getZooKeeper().exists(path, this);
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
+        ZooKeeper localZk = getZooKeeper();
+        if (localZk == null) {
+            return;
         }
+        localZk.exists(path, this, new WatchCallback(), null);
     }
 
     /**
-     * Creates the serialized value of the object and stores this in ZooKeeper under the path.
-     * It updates the lastStatusVersion. It does not set a watcher for the path.
+     * Handles the reply to setting the watch after a claim.
      */
-    private void updateCoordinateData() throws CoordinateMissingException, CloudnameException {
-        synchronized (this) {
-
-            if (! started) {
-                throw new IllegalStateException("Not started yet: " + consistencyState.name());
-            }
-            
-            if (consistencyState == ConsistencyState.OUT_OF_SYNC) {
-                throw new CloudnameException("No proper connection with zookeeper.");
+    private class WatchCallback implements AsyncCallback.StatCallback {
+        @Override
+        public void processResult(int rawReturnCode, String notUsed, Object context, Stat stat) {
+            KeeperException.Code returnCode = KeeperException.Code.get(rawReturnCode);
+            if (returnCode != KeeperException.Code.OK) {
+                log.fine("Failed register watcher after claim. Going to state out of sync: " + returnCode.name());
+                synchronized (ClaimedCoordinate.this) {
+                    setOutOfSync();
+                }
+                return;
             }
-
-            try {
-                Stat stat = getZooKeeper().setData(path,
-                        zkCoordinateData.snapshot().serialize().getBytes(Util.CHARSET_NAME),
-                        lastStatusVersion);
-                lastStatusVersion = stat.getVersion();
-            } catch (KeeperException.NoNodeException e) {
-                throw new CoordinateMissingException("Coordinate does not exist " + path);
-            } catch (KeeperException e) {
-                throw new CloudnameException("ZooKeeper errror in updateCoordinateData: " + e.getMessage(), e);
-            } catch (UnsupportedEncodingException e) {
-                throw new CloudnameException(e);
-            } catch (InterruptedException e) {
-                throw new CloudnameException(e);
-            } catch (IOException e) {
-                throw new CloudnameException(e);
+            // No exceptions, let's celebrate with a log message.
+            log.info("Claimed processed ok, path: " + path);
+            synchronized (ClaimedCoordinate.this) {
+                claimConfirmed = true;
+                sendEventToCoordinateListener(CoordinateListener.Event.COORDINATE_OK, "claimed");
             }
         }
     }
@@ -1,27 +1,35 @@
 package org.cloudname.zk;
 
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooKeeper;
-import org.cloudname.CloudnameException;
 import org.cloudname.Endpoint;
 import org.cloudname.Resolver;
+import org.cloudname.ResolverStrategy;
+import org.cloudname.StrategyAll;
 
 import java.util.*;
-import java.util.logging.Logger;
 
 /**
  * Class that is capable of tracking an expression. An expression can include many nodes.
  * The number of nodes is dynamic and can change over time.
- * For now, the implementation is rather simple. For single endpoints it does use feedback from ZooKeeper
- * watcher events. For keeping track of new nodes, it does a scan on regular intervals.
+ * The coordinates of the service are tracked by a TrackedService which is shared by all the expressions
+ * of the service. It notifies the expression when an instance the expression covers has changed, and the
+ * expression works out what endpoints to tell its client about. Snapshots carry the version of the ZooKeeper
+ * node, so finding out if an instance has changed is cheap, and unless the strategy picks among the endpoints
+ * only the endpoints of the changed instance are compared.
  * @author dybdahl
  */
-class DynamicExpression implements Watcher, TrackedCoordinate.ExpressionResolverNotify, ZkUserInterface {
+class DynamicExpression {
+
+    /**
+     * The snapshots of the instances the client has been told about. Snapshots are immutable, so a
+     * new snapshot with the same version means nothing has changed.
+     */
+    final private SortedMap<Integer, ZkCoordinateData.Snapshot> snapshotByInstance =
+            new TreeMap<Integer, ZkCoordinateData.Snapshot>();
 
     /**
      * Keeps track of what picture (what an expression has resolved to) is sent to the user so that
-     * we know when to send new events.
+     * we know when to send new events. Only used with strategies that pick among the endpoints, the
+     * picture is given by the snapshots otherwise.
      */
     final private Map<String, Endpoint> clientPicture = new HashMap<String, Endpoint>();
 
@@ -30,64 +38,44 @@ class DynamicExpression implements Watcher, TrackedCoordinate.ExpressionResolver
      */
     final private Resolver.ResolverListener clientCallback;
 
-    /**
-     * A path can be scheduled to be read later, i.e. if we think there are changes, we got error etc.
-     */
-    final private Map<String, Long> scheduledRefreshMsByPath = new HashMap<String, Long>();
-
     /**
      * This is the expression to dynamically resolved represented as ZkResolver.Parameters.
      */
     final private ZkResolver.Parameters parameters;
 
     /**
-     * When ZooKeeper reports an error about an path, when to try to read it again.
-     */
-    final private int RETRY_INTERVAL_ZOOKEEPER_ERROR_MS = 30000;      // 30 seconds
-
-    /**
-     * We wait a bit after a node has changed because in many cases there might be several updates, e.g. an
-     * application registers several endpoints, each causing an update.
-     */
-    final private int REFRESH_NODE_AFTER_CHANGE_MS = 2000;            // two seconds
-
-    /**
-     * Does a full scan with this interval.
+     * Strategy of the expression, null if the expression has an instance.
      */
-    protected static int TIME_BETWEEN_NODE_SCANNING_MS = 1 * 60 * 1000;  // one minute
+    private final ResolverStrategy strategy;
 
     /**
-     * A Map with all the coordinate we care about for now.
+     * True if the client is to know about all the endpoints. The client can then be told about the
+     * changes of one instance without looking at the others.
      */
-    final private Map<String, TrackedCoordinate> coordinateByPath =
-            new HashMap<String, TrackedCoordinate>();
+    private final boolean keepsAllEndpoints;
 
     /**
-     * We always add some random noise to when to do things so not all servers fire at the same time against
-     * ZooKeeper.
+     * Tracks the coordinates of the service of the expression.
      */
-    final private Random random = new Random();
-    
-    private static final Logger log = Logger.getLogger(DynamicExpression.class.getName());
-
-    /**
-     * The last time we did a full scan with the expression.
-     */
-    private long lastResolveMs = 0;
+    private final TrackedService trackedService;
 
     private boolean stopped = false;
-    private ZooKeeper zk = null;
-    private final ZkResolver zkResolver;
 
     /**
-     * Start getting notified about changes to expression.
-     * @param expression Coordinate expression.
+     * Start getting notified about changes to expression. The expression must be added to the
+     * TrackedService to get notified.
+     * @param parameters Coordinate expression.
      * @param clientCallback called on changes and initially.
+     * @param strategy strategy of the expression, null if the expression has an instance.
+     * @param trackedService tracks the service of the expression.
      */
-    public DynamicExpression(String expression, Resolver.ResolverListener clientCallback, ZkResolver zkResolver) {
+    public DynamicExpression(ZkResolver.Parameters parameters, Resolver.ResolverListener clientCallback,
+                             ResolverStrategy strategy, TrackedService trackedService) {
         this.clientCallback = clientCallback;
-        this.parameters = new ZkResolver.Parameters(expression);
-        this.zkResolver = zkResolver;
+        this.parameters = parameters;
+        this.strategy = strategy;
+        this.keepsAllEndpoints = (strategy == null || strategy instanceof StrategyAll);
+        this.trackedService = trackedService;
     }
 
     /**
@@ -96,142 +84,96 @@ class DynamicExpression implements Watcher, TrackedCoordinate.ExpressionResolver
     public void stop() {
         synchronized (this) {
             stopped = true;
-            coordinateByPath.clear();
         }
     }
 
-    private List<String> pullPathsToBeRefreshed() {
-        List<String> pathsToRefresh = new ArrayList<String>();
-        synchronized (this) {
-            Long nowMillis = System.currentTimeMillis();
-            for (Map.Entry<String, Long> entry : scheduledRefreshMsByPath.entrySet()) {
-                if (nowMillis - entry.getValue()  >  0) {
-                    pathsToRefresh.add(entry.getKey());
-                }
-            }
-            for (String path : pathsToRefresh) {
-                scheduledRefreshMsByPath.remove(path);
-            }
-        }
-        return pathsToRefresh;
+    /**
+     * @return the TrackedService of the expression.
+     */
+    public TrackedService getTrackedService() {
+        return trackedService;
+    }
+
+    /**
+     * @return true if changes to the instance might change what the expression resolves to.
+     */
+    public boolean coversInstance(int instance) {
+        return parameters.getInstance() < 0 || parameters.getInstance() == instance;
     }
 
     /**
-     * Method  from ZkUserInterface.
-     * The method will try to resolve the expression from time to time and check if there are paths that are
-     * scheduled for refresh.
+     * Called when the expression is added to a TrackedService that already has the coordinates loaded.
      */
-    @Override
-    public void timeEvent() {
-        // Is it time to check for new nodes?
-        if (timeToReresolve()) {
-            resolve();
-            notifyClient();
-            synchronized (this) {
-                lastResolveMs = System.currentTimeMillis();
+    public void serviceChanged() {
+        for (Integer instance : trackedService.getInstances()) {
+            if (coversInstance(instance)) {
+                instanceChanged(instance);
             }
         }
-        // Periodically check every node for changes.
-        List<String>  pathsToRefresh = pullPathsToBeRefreshed();
-        for (String path : pathsToRefresh) {
-            refreshPathWithWatcher(path);
-        }
     }
 
     /**
-     * Callback from zookeeper watcher.
+     * Called by the TrackedService when an instance covered by the expression has changed.
      */
-    @Override
-    public void process(WatchedEvent watchedEvent) {
+    public void instanceChanged(int instance) {
         synchronized (this) {
             if (stopped) {
                 return;
             }
+            ZkCoordinateData.Snapshot newSnapshot = trackedService.getSnapshot(instance);
+            ZkCoordinateData.Snapshot oldSnapshot;
+            if (newSnapshot == null) {
+                oldSnapshot = snapshotByInstance.remove(instance);
+            } else {
+                oldSnapshot = snapshotByInstance.put(instance, newSnapshot);
+            }
+            if (oldSnapshot == newSnapshot
+                    || (oldSnapshot != null && newSnapshot != null
+                        && oldSnapshot.getVersion() == newSnapshot.getVersion())) {
+                // Nothing has changed.
+                return;
+            }
+            if (keepsAllEndpoints) {
+                notifyClient(getEndpointsByName(oldSnapshot), getEndpointsByName(newSnapshot));
+            } else {
+                notifyClientWithStrategy();
+            }
         }
-        String path = watchedEvent.getPath();
-        Event.KeeperState state = watchedEvent.getState();
-        Event.EventType type = watchedEvent.getType();
-
-
-        switch (state) {
-            case Expired:
-            case AuthFailed:
-            case Disconnected:
-                // Something bad happened to the path, try again later.
-                scheduleRefresh(path, RETRY_INTERVAL_ZOOKEEPER_ERROR_MS);
-                break;
-        }
-        switch (type) {
-            case NodeChildrenChanged:
-            case None:
-            case NodeCreated:
-                scheduleRefresh(path, REFRESH_NODE_AFTER_CHANGE_MS);
-                break;
-            case NodeDeleted:
-                synchronized (this) {
-                    coordinateByPath.remove(path);
-                    notifyClient();
-                    scheduledRefreshMsByPath.remove(path);
-                    return;
-                }
-            case NodeDataChanged:
-                refreshPathWithWatcher(path);
-                break;
-        }
-
-    }
-
-    /**
-     * Implements interface TrackedCoordinate.ExpressionResolverNotify
-     */
-    @Override
-    public void stateChanged() {
-        notifyClient();
     }
 
     /**
-     * Method  from ZkUserInterface.
+     * Returns the endpoints of the snapshot the client should know about by endpoint name.
      */
-    @Override
-    public void zooKeeperDown() {
-
+    private Map<String, Endpoint> getEndpointsByName(ZkCoordinateData.Snapshot snapshot) {
+        if (snapshot == null) {
+            return Collections.emptyMap();
+        }
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        ZkResolver.addEndpoints(snapshot, endpoints, parameters.getEndpointName());
+        Map<String, Endpoint> endpointsByName = new HashMap<String, Endpoint>();
+        for (Endpoint endpoint : endpoints) {
+            endpointsByName.put(endpoint.getName(), endpoint);
+        }
+        return endpointsByName;
     }
 
     /**
-     * Method  from ZkUserInterface.
+     * Tells the client about the difference between the old and the new endpoints of one instance.
      */
-    @Override
-    public void newZooKeeperInstance(ZooKeeper zk) {
-        this.zk = zk;
-    }
-
-    private void resolve() {
-        List<Endpoint> endpoints = null;
-        synchronized (this) {
-            try {
-              endpoints = zkResolver.resolve(parameters.getExpression());
-            } catch (CloudnameException e) {
-                log.warning("Exception from cloudname: " + e.toString());
-                return;
+    private void notifyClient(Map<String, Endpoint> oldEndpointsByName, Map<String, Endpoint> newEndpointsByName) {
+        for (Map.Entry<String, Endpoint> entry : oldEndpointsByName.entrySet()) {
+            if (! newEndpointsByName.containsKey(entry.getKey())) {
+                clientCallback.endpointEvent(Resolver.ResolverListener.Event.REMOVED_ENDPOINT, entry.getValue());
             }
         }
-
-        Map<String, TrackedCoordinate> tempStatusAndEndpointsMap =
-                new HashMap<String, TrackedCoordinate>();
-
-        for (Endpoint endpoint : endpoints) {
-            String statusPath = ZkCoordinatePath.getStatusPath(endpoint.getCoordinate());
-
-            TrackedCoordinate trackedCoordinate = new TrackedCoordinate(this, statusPath);
-            trackedCoordinate.newZooKeeperInstance(zk);
-            tempStatusAndEndpointsMap.put(statusPath, trackedCoordinate);
-        }
-
-
-        synchronized (this) {
-            coordinateByPath.clear();
-            coordinateByPath.putAll(tempStatusAndEndpointsMap);
-            lastResolveMs = System.currentTimeMillis();
+        for (Map.Entry<String, Endpoint> entry : newEndpointsByName.entrySet()) {
+            Endpoint oldEndpoint = oldEndpointsByName.get(entry.getKey());
+            if (oldEndpoint == null) {
+                clientCallback.endpointEvent(Resolver.ResolverListener.Event.NEW_ENDPOINT, entry.getValue());
+            } else if (! oldEndpoint.equals(entry.getValue())) {
+                clientCallback.endpointEvent(Resolver.ResolverListener.Event.REMOVED_ENDPOINT, oldEndpoint);
+                clientCallback.endpointEvent(Resolver.ResolverListener.Event.NEW_ENDPOINT, entry.getValue());
+            }
         }
     }
 
@@ -239,89 +181,62 @@ class DynamicExpression implements Watcher, TrackedCoordinate.ExpressionResolver
         return endpoint.getCoordinate().asString() + "@" + endpoint.getName();
     }
 
-    private void notifyClient() {
-        synchronized (this) {
-            if (stopped) {
-                return;
-            }
-        }
-        // First generate a fresh list of endpoints.
+    /**
+     * Applies the strategy to the endpoints of all the instances and tells the client about the
+     * difference from what it has.
+     */
+    private void notifyClientWithStrategy() {
         List<Endpoint> newEndpoints = new ArrayList<Endpoint>();
-        synchronized (this) {
-            for (TrackedCoordinate trackedCoordinate : coordinateByPath.values()) {
-                if (trackedCoordinate.getCoordinatedata() != null) {
-                    ZkResolver.addEndpoints(
-                            trackedCoordinate.getCoordinatedata(), newEndpoints, parameters.getEndpointName());
-                }
+        for (ZkCoordinateData.Snapshot snapshot : snapshotByInstance.values()) {
+            ZkResolver.addEndpoints(snapshot, newEndpoints, parameters.getEndpointName());
+        }
+        // Endpoints the client already has go first, so a strategy picking among the
+        // endpoints keeps picking the same one while it is there.
+        List<Endpoint> endpointsInPicture = new ArrayList<Endpoint>();
+        List<Endpoint> otherEndpoints = new ArrayList<Endpoint>();
+        for (Endpoint endpoint : newEndpoints) {
+            if (clientPicture.containsKey(getEndpointKey(endpoint))) {
+                endpointsInPicture.add(endpoint);
+            } else {
+                otherEndpoints.add(endpoint);
             }
+        }
+        endpointsInPicture.addAll(otherEndpoints);
+        newEndpoints = strategy.order(strategy.filter(endpointsInPicture));
 
-            Map<String, Endpoint> newEndpointsByName = new HashMap<String, Endpoint>();
-            for (Endpoint endpoint : newEndpoints) {
-                newEndpointsByName.put(getEndpointKey(endpoint), endpoint);
-            }
+        Map<String, Endpoint> newEndpointsByName = new HashMap<String, Endpoint>();
+        for (Endpoint endpoint : newEndpoints) {
+            newEndpointsByName.put(getEndpointKey(endpoint), endpoint);
+        }
 
-            Iterator<Map.Entry<String, Endpoint>> it = clientPicture.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, Endpoint> endpointEntry = it.next();
-                String key = endpointEntry.getKey();
+        Iterator<Map.Entry<String, Endpoint>> it = clientPicture.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Endpoint> endpointEntry = it.next();
+            String key = endpointEntry.getKey();
 
-                if (! newEndpointsByName.containsKey(key)) {
-                    it.remove();
-                    clientCallback.endpointEvent(
-                            Resolver.ResolverListener.Event.REMOVED_ENDPOINT, endpointEntry.getValue());
-                }
+            if (! newEndpointsByName.containsKey(key)) {
+                it.remove();
+                clientCallback.endpointEvent(
+                        Resolver.ResolverListener.Event.REMOVED_ENDPOINT, endpointEntry.getValue());
             }
+        }
 
-            for (Endpoint endpoint : newEndpoints) {
-                String key = getEndpointKey(endpoint);
+        for (Endpoint endpoint : newEndpoints) {
+            String key = getEndpointKey(endpoint);
 
-                if (! clientPicture.containsKey(key)) {
+            if (! clientPicture.containsKey(key)) {
+                clientCallback.endpointEvent(
+                        Resolver.ResolverListener.Event.NEW_ENDPOINT, endpoint);
+                clientPicture.put(key, endpoint);
+            } else {
+                if (! clientPicture.get(key).equals(endpoint)) {
+                    clientCallback.endpointEvent(
+                            Resolver.ResolverListener.Event.REMOVED_ENDPOINT, clientPicture.get(key));
                     clientCallback.endpointEvent(
                             Resolver.ResolverListener.Event.NEW_ENDPOINT, endpoint);
                     clientPicture.put(key, endpoint);
-                } else {
-                    if (! clientPicture.get(key).equalsEndpoint(endpoint)) {
-                        clientCallback.endpointEvent(
-                                Resolver.ResolverListener.Event.REMOVED_ENDPOINT, clientPicture.get(key));
-                        clientCallback.endpointEvent(
-                                Resolver.ResolverListener.Event.NEW_ENDPOINT, endpoint);
-                        clientPicture.put(key, endpoint);
-                    }
                 }
             }
-
-        }
-    }
-
-    private void scheduleRefresh(String path, long delayMillis) {
-        // Randomize refreshes to avoid network peaks.
-        long delayMillisDistributed = (long) (delayMillis * (0.7 + random.nextDouble() * 0.6));
-        synchronized (this) {
-            long now = System.currentTimeMillis();
-            if (scheduledRefreshMsByPath.containsKey((path))) {
-                long oldSchedule = scheduledRefreshMsByPath.get(path);
-                if (oldSchedule < delayMillisDistributed + now) {
-                    return;
-                }
-            }
-            scheduledRefreshMsByPath.put(path, delayMillisDistributed + now);
-        }
-    }
-
-    private boolean timeToReresolve() {
-        synchronized (this) {
-            return lastResolveMs + TIME_BETWEEN_NODE_SCANNING_MS < System.currentTimeMillis();
-        }
-    }
-
-    private void refreshPathWithWatcher(String path) {
-        synchronized (this) {
-            TrackedCoordinate trackedCoordinate = coordinateByPath.get(path);
-            if (trackedCoordinate == null) {
-                // Endpoint has been removed while waiting for refresh.
-                return;
-            }
-            trackedCoordinate.newZooKeeperInstance(zk);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,6 @@
 package org.cloudname.zk;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -8,99 +9,233 @@ import org.apache.zookeeper.data.Stat;
 import org.cloudname.CloudnameException;
 import org.cloudname.ConfigListener;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 
 /**
- * This class keeps track of config for a coordinate.
+ * This class keeps track of the config of a coordinate. There is one instance per config node in
+ * the process, kept by the ZkConfigCache, with one watch on the node. A change is read once and
+ * passed on to all the listeners of the config.
+ *
+ * <p> The config is read again only when the watch fires, and a change is detected by comparing
+ * the zxid of the last modification from the Stat of the node, not the data. For a chunked config,
+ * see ZkChunkedConfig, only the chunks that changed are read.
  *
  * @author dybdahl
  */
 public class TrackedConfig implements Watcher, ZkUserInterface {
 
+    /**
+     * The config, null if we have none, if the node has no data or if it is chunked and not put
+     * together yet.
+     */
     private String configData = null;
-    private final ConfigListener configListener;
-    
+    /**
+     * The manifest of a chunked config, null if it is not chunked.
+     */
+    private ZkChunkedConfig.Manifest manifest = null;
+    /**
+     * The chunks of a chunked config by name, kept so that only new chunks are read on a change.
+     */
+    private Map<String, byte[]> chunkByName = Collections.emptyMap();
+    /**
+     * The zxid of the last modification of the data we have, -1 if we have none.
+     */
+    private long modifiedZxid = -1;
+    private final List<ConfigListener> configListeners = new CopyOnWriteArrayList<ConfigListener>();
+
     private static final Logger log = Logger.getLogger(TrackedConfig.class.getName());
     private ZooKeeper zk;
     private final String path;
 
-    private long lastAttemptToCheckIfPresent = 0;
     private boolean upToDate = false;
 
+    /**
+     * How long to wait before reading the config again when reading it failed.
+     */
+    private static final long RETRY_DELAY_MS = 10000;
+
     /**
      * Constructor, the ZooKeeper instances is retrieved from implementing the ZkUserInterface so the object
      * is not ready to be used before the ZooKeeper instance is received.
      * @param path is the path of the configuration of the coordinate.
      */
-    public TrackedConfig(String path, ConfigListener configListener) {
+    public TrackedConfig(String path) {
         this.path = path;
-        this.configListener = configListener;
     }
 
+    /**
+     * Like the constructor above, with a first listener.
+     */
+    public TrackedConfig(String path, ConfigListener configListener) {
+        this(path);
+        configListeners.add(configListener);
+    }
+
+    /**
+     * Adds a listener. If the config is already read, the listener gets it right away as an
+     * UPDATED event, otherwise it gets it when it is read.
+     */
+    public void addConfigListener(ConfigListener configListener) {
+        boolean read;
+        String data;
+        synchronized (this) {
+            configListeners.add(configListener);
+            read = upToDate;
+            data = getAssembledConfigData();
+        }
+        if (read) {
+            configListener.onConfigEvent(ConfigListener.Event.UPDATED, data == null ? "" : data);
+        }
+    }
+
+    /**
+     * Removes a listener.
+     */
+    public void removeConfigListener(ConfigListener configListener) {
+        configListeners.remove(configListener);
+    }
+
+    /**
+     * @return the number of listeners.
+     */
+    int getConfigListenerCount() {
+        return configListeners.size();
+    }
+
+    /**
+     * Stops tracking the config. The listeners are dropped, and the watch is left to fire
+     * without anything being read again.
+     */
+    void close() {
+        synchronized (this) {
+            zk = null;
+            upToDate = false;
+        }
+        configListeners.clear();
+    }
 
     @Override
     public void zooKeeperDown() {
-        log.severe("TrackedConfig: Got event ZooKeeper is down.");
+        log.fine("TrackedConfig: Got event ZooKeeper is down, path: " + path);
         synchronized (this) {
             zk = null;
             upToDate = false;
         }
     }
 
+    /**
+     * Reads the config again without waiting for the reply, so that a new ZooKeeper instance
+     * can be passed to all the configs of the process in one go.
+     */
     @Override
     public void newZooKeeperInstance(ZooKeeper zk) {
-        log.severe("TrackedConfig: Got new ZooKeeper!.");
+        log.fine("TrackedConfig: Got new ZooKeeper, path: " + path);
         synchronized (this) {
             this.zk = zk;
         }
-        try {
-            if (refreshConfigData()) {
-                configListener.onConfigEvent(ConfigListener.Event.UPDATED, configData);
-            }
-        } catch (CloudnameException e) {
-            log.severe("TrackedConfig: Got problems reloading config from zookeeper.");
-        }
+        refreshConfigDataAsync();
     }
 
     /**
-     * Everything is watch driven, so we don't need to do any periodic checks.
+     * Everything is watch driven, this is only called by the ZkScheduler when reading the config failed.
      */
     @Override
     public void timeEvent() {
         synchronized (this) {
-            if (upToDate || lastAttemptToCheckIfPresent > System.currentTimeMillis() - 10000) {
+            // When the connection is back, newZooKeeperInstance() reads the config.
+            if (upToDate || zk == null || zk.getState() != ZooKeeper.States.CONNECTED) {
                 return;
             }
-            lastAttemptToCheckIfPresent = System.currentTimeMillis();
         }
-        try {
-            if (refreshConfigData()) {
-                configListener.onConfigEvent(ConfigListener.Event.UPDATED, getConfigData());
+        refreshConfigDataAsync();
+    }
+
+    /**
+     * Reads the config again later, unless the connection is down, in which case it is read when
+     * we get a new ZooKeeper instance.
+     */
+    private void scheduleRetry() {
+        synchronized (this) {
+            if (zk == null) {
+                return;
+            }
+        }
+        ZkScheduler.scheduleTimeEvent(this, RETRY_DELAY_MS);
+    }
+
+    /**
+     * Returns current config. It is served from memory as long as the watch on the node is in
+     * place, otherwise it is read from ZooKeeper, which also sets the watch again. While there is
+     * no connection to ZooKeeper, the last config read, or seeded, is returned.
+     * @return config, null if the node has no data.
+     * @throws CloudnameException if the config is not in memory and can not be read.
+     */
+    public String getConfigData() throws CloudnameException {
+        synchronized (this) {
+            // Without a connection, the last config we know of is better than none.
+            if (upToDate || (zk == null && modifiedZxid != -1)) {
+                return getAssembledConfigData();
+            }
+        }
+        if (refreshConfigData()) {
+            notifyListeners(ConfigListener.Event.UPDATED);
+        }
+        synchronized (this) {
+            return getAssembledConfigData();
+        }
+    }
+
+    /**
+     * Sets the config to the last known good config, e.g. from a file at startup. It is served
+     * while there is no connection to ZooKeeper, and replaced when the config is read. The
+     * listeners get "" for a node without data, so an empty config is seeded as no data.
+     */
+    void seed(String config) {
+        synchronized (this) {
+            if (modifiedZxid != -1) {
+                return;
             }
-        } catch (CloudnameException e) {
-            // No worries, we try again later
+            configData = config.length() == 0 ? null : config;
+            // Older than any zxid, so the config read from ZooKeeper always replaces it.
+            modifiedZxid = 0;
         }
     }
 
     /**
-     * Returns current config.
-     * @return config
+     * A chunked config is put together when first asked for, not when it is read.
      */
-    public String getConfigData() {
+    private String getAssembledConfigData() {
         synchronized (this) {
+            if (configData == null && manifest != null) {
+                configData = ZkChunkedConfig.assemble(manifest, chunkByName);
+            }
             return configData;
         }
     }
 
+    private ZooKeeper getZooKeeper() {
+        synchronized (this) {
+            return zk;
+        }
+    }
+
     /**
      * Creates a string for debugging etc
      * @return serialized version of the instance data.
      */
     public String toString() {
-        return "Config: " + getConfigData();
+        synchronized (this) {
+            return "Config: " + getAssembledConfigData();
+        }
     }
 
 
@@ -109,101 +244,198 @@ public class TrackedConfig implements Watcher, ZkUserInterface {
      * @param event
      */
     @Override public void process(WatchedEvent event) {
-        log.severe("Got an event from ZooKeeper " + event.toString() + " path: " + path);
+        log.fine("Got an event from ZooKeeper " + event.toString() + " path: " + path);
 
         switch (event.getType()) {
             case None:
-                switch (event.getState()) {
-                    case SyncConnected:
-                        break;
-                    case Disconnected:
-                    case AuthFailed:
-                    case Expired:
-                    default:
+                if (event.getState() != Event.KeeperState.SyncConnected) {
+                    // If we lost connection, we don't attempt to register another watcher as this might
+                    // be blocking forever. Parent might try to reconnect.
+                    synchronized (this) {
                         upToDate = false;
-                        // If we lost connection, we don't attempt to register another watcher as this might
-                        // be blocking forever. Parent might try to reconnect.
-                        return;
+                    }
                 }
-                break;
+                return;
             case NodeDeleted:
-                synchronized (this) {
-                    upToDate = false;
-                    configData = null;
-                }
-                configListener.onConfigEvent(ConfigListener.Event.DELETED, "");
+                configDeleted();
+                refreshConfigDataAsync();
                 return;
             case NodeDataChanged:
-                try {
-                    if (refreshConfigData()) {
-                        configListener.onConfigEvent(ConfigListener.Event.UPDATED, getConfigData());
-                    }
-                } catch (CloudnameException e) {
-                    log.info("Problems reloading config after change, path; " + path + " " + e.getMessage());
-                }
+            case NodeCreated:
+                refreshConfigDataAsync();
                 return;
             case NodeChildrenChanged:
-            case NodeCreated:
-                break;
+                return;
+        }
+    }
+
+    /**
+     * Loads the config from ZooKeeper and sets the watch. In case of failure, we keep the old data.
+     *
+     * @return Returns true if data has changed.
+     */
+    private boolean refreshConfigData() throws CloudnameException {
+        ZooKeeper zk = getZooKeeper();
+        if (zk == null) {
+            throw new CloudnameException("No connection to storage.");
         }
-        // We are only interested in registering a watcher in a few cases. E.g. if the event is lost connection,
-        // registerWatcher does not make sense as it is blocking. In NodeDataChanged above, a watcher
-        // is registerred in refreshConfigData().
+        Stat stat = new Stat();
         try {
-            registerWatcher();
-        } catch (CloudnameException e) {
-            log.info("Got cloudname exception: " + e.getMessage());
-            return;
+            return updateConfigData(zk, zk.getData(path, this, stat), stat);
+        } catch (KeeperException e) {
+            throw new CloudnameException(e);
         } catch (InterruptedException e) {
-            log.info("Got interrupted exception: " + e.getMessage());
+            throw new CloudnameException(e);
+        }
+    }
+
+    /**
+     * Like refreshConfigData(), but the listeners are notified from the callback.
+     */
+    private void refreshConfigDataAsync() {
+        ZooKeeper zk = getZooKeeper();
+        if (zk == null) {
             return;
         }
+        zk.getData(path, this, dataCallback, null);
     }
 
+    private final AsyncCallback.DataCallback dataCallback = new AsyncCallback.DataCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            ZooKeeper currentZk = getZooKeeper();
+            switch (code) {
+                case OK:
+                    if (currentZk == null) {
+                        return;
+                    }
+                    try {
+                        if (updateConfigData(currentZk, data, stat)) {
+                            notifyListeners(ConfigListener.Event.UPDATED);
+                        }
+                    } catch (CloudnameException e) {
+                        // A chunk may be gone since a newer config was written, the watch tells.
+                        log.info("Problems reading config chunks, path: " + path + " " + e.getMessage());
+                        synchronized (TrackedConfig.this) {
+                            upToDate = false;
+                        }
+                        scheduleRetry();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return;
+                case NONODE:
+                    configDeleted();
+                    // Unlike getData(), exists() leaves a watch on a missing node, so we hear
+                    // when it is created.
+                    if (currentZk != null) {
+                        currentZk.exists(path, TrackedConfig.this, existsCallback, null);
+                    }
+                    return;
+                default:
+                    log.info("Problems reading config, path: " + path + " " + code);
+                    synchronized (TrackedConfig.this) {
+                        upToDate = false;
+                    }
+                    scheduleRetry();
+            }
+        }
+    };
+
+    private final AsyncCallback.StatCallback existsCallback = new AsyncCallback.StatCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.OK) {
+                // Created again before the watch was set.
+                refreshConfigDataAsync();
+            } else if (code != KeeperException.Code.NONODE) {
+                log.info("Problems watching config, path: " + path + " " + code);
+                scheduleRetry();
+            }
+        }
+    };
 
     /**
-     * Loads the config from ZooKeeper. In case of failure, we keep the old data.
-     *
-     * @return Returns true if data has changed.
+     * Keeps the data if it was modified since the data we have. For a chunked config, the chunks
+     * we do not have are read.
+     * @return true if it was.
      */
-    private boolean refreshConfigData() throws CloudnameException {
+    private boolean updateConfigData(ZooKeeper zk, byte[] data, Stat stat)
+            throws CloudnameException, InterruptedException {
+        ZkChunkedConfig.Manifest newManifest = null;
+        Map<String, byte[]> newChunkByName = Collections.emptyMap();
+        if (ZkChunkedConfig.isManifest(data)) {
+            newManifest = ZkChunkedConfig.Manifest.parse(data);
+            newChunkByName = new HashMap<String, byte[]>();
+            Set<String> missingNames = new HashSet<String>();
+            synchronized (this) {
+                for (String name : newManifest.getChunkNames()) {
+                    byte[] chunk = chunkByName.get(name);
+                    if (chunk == null) {
+                        missingNames.add(name);
+                    } else {
+                        newChunkByName.put(name, chunk);
+                    }
+                }
+            }
+            newChunkByName.putAll(ZkChunkedConfig.readChunks(zk, path, missingNames));
+        }
 
         synchronized (this) {
-            if (zk == null) {
-                throw new CloudnameException("No connection to storage.");
+            upToDate = true;
+            // The zxid grows with each change, so a reply older than the data we have is dropped.
+            if (stat.getMzxid() <= modifiedZxid) {
+                return false;
             }
-            String oldConfig = configData;
-            Stat stat = new Stat();
-            try {
-                byte[] data;
-
-                data = zk.getData(path, this, stat);
-                if (data == null) {
-                    configData = "";
-                } else {
+            modifiedZxid = stat.getMzxid();
+            manifest = newManifest;
+            chunkByName = newChunkByName;
+            if (newManifest != null) {
+                configData = null;
+            } else if (data == null) {
+                configData = null;
+            } else {
+                try {
                     configData = new String(data, Util.CHARSET_NAME);
+                } catch (UnsupportedEncodingException e) {
+                    throw new CloudnameException(e);
                 }
-                upToDate = true;
-                return oldConfig == null || ! oldConfig.equals(configData);
-            } catch (KeeperException e) {
-                throw new CloudnameException(e);
-            } catch (UnsupportedEncodingException e) {
-                throw new CloudnameException(e);
-            } catch (InterruptedException e) {
-                throw new CloudnameException(e);
-            } catch (IOException e) {
-                throw new CloudnameException(e);
             }
+            return true;
         }
     }
 
-    private void registerWatcher() throws CloudnameException, InterruptedException {
-        try {
-            synchronized (this) {
-                zk.exists(path, this);
+    /**
+     * Forgets the data, and tells the listeners if there was any.
+     */
+    private void configDeleted() {
+        synchronized (this) {
+            upToDate = false;
+            if (modifiedZxid == -1) {
+                return;
             }
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
+            configData = null;
+            manifest = null;
+            chunkByName = Collections.emptyMap();
+            modifiedZxid = -1;
+        }
+        for (ConfigListener configListener : configListeners) {
+            configListener.onConfigEvent(ConfigListener.Event.DELETED, "");
+        }
+    }
+
+    /**
+     * The listeners get "" for a node without data.
+     */
+    private void notifyListeners(ConfigListener.Event event) {
+        String data = getAssembledConfigData();
+        if (data == null) {
+            data = "";
+        }
+        for (ConfigListener configListener : configListeners) {
+            configListener.onConfigEvent(event, data);
         }
     }
-}
\ No newline at end of file
+}
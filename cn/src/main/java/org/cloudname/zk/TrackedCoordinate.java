@@ -18,13 +18,14 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
         void stateChanged();
     }
 
-    private ZkCoordinateData.Snapshot coordinateData = null;
+    private volatile ZkCoordinateData.Snapshot coordinateData = null;
     
     private static final Logger log = Logger.getLogger(TrackedCoordinate.class.getName());
     private ZooKeeper zk;
     private final String path;
     private final ExpressionResolverNotify client;
     private boolean needToReloadData = false;
+    private boolean stopped = false;
 
     /**
      * Constructor, the ZooKeeper instances is retrieved from implementing the ZkUserInterface so the object
@@ -76,6 +77,15 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
     }
 
 
+    /**
+     * Stop tracking the coordinate, watches that are already set will be ignored.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+    }
+
     public ZkCoordinateData.Snapshot getCoordinatedata() {
         return coordinateData;
     }
@@ -96,6 +106,11 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
      */
     @Override public void process(WatchedEvent event) {
         log.fine("Got an event from ZooKeeper " + event.toString() + " path: " + path);
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
 
         switch (event.getType()) {
             case None:
@@ -112,11 +127,7 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
                 }
                 break;
             case NodeDeleted:
-                synchronized (this) {
-                    coordinateData = new ZkCoordinateData().snapshot();
-                }
-                client.stateChanged();
-                return;
+            case NodeCreated:
             case NodeDataChanged:
                 try {
                     if (refreshCoordinateData()) {
@@ -127,7 +138,6 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
                 }
                 return;
             case NodeChildrenChanged:
-            case NodeCreated:
                 break;
         }
         try {
@@ -144,6 +154,7 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
 
     /**
      * Loads the coordinate from ZooKeeper. In case of failure, we keep the old data.
+     * If the coordinate is not claimed, the data is empty and we watch for it to be claimed.
      *
      * @return Returns true if data has changed.
      */
@@ -154,20 +165,37 @@ public class TrackedCoordinate implements Watcher, ZkUserInterface {
                 needToReloadData = true;
                 throw new CloudnameException("No connection to storage.");
             }
-            String oldDataSerialized = new String("");
-            if (null != coordinateData) {
-                oldDataSerialized = coordinateData.serialize();
+            ZkCoordinateData.Snapshot oldData = coordinateData;
+            try {
+                coordinateData = ZkCoordinateData.loadCoordinateData(path, zk, this).snapshot();
+            } catch (CloudnameException e) {
+                if (! (e.getCause() instanceof KeeperException.NoNodeException)) {
+                    throw e;
+                }
+                coordinateData = new ZkCoordinateData().snapshot();
+                try {
+                    if (registerWatcher()) {
+                        // Claimed since we tried to read it.
+                        return refreshCoordinateData();
+                    }
+                } catch (InterruptedException ie) {
+                    throw new CloudnameException(ie);
+                }
             }
-            coordinateData = ZkCoordinateData.loadCoordinateData(path, zk, this).snapshot();
             needToReloadData = false;
-            return (! oldDataSerialized.equals(coordinateData.toString()));
+            // The node gets a new version on every change, no need to compare the data.
+            return oldData == null || oldData.getVersion() != coordinateData.getVersion();
         }
     }
 
-    private void registerWatcher() throws CloudnameException, InterruptedException {
+    /**
+     * Sets an exists watch on the path.
+     * @return true if the path exists.
+     */
+    private boolean registerWatcher() throws CloudnameException, InterruptedException {
         try {
             synchronized (this) {
-                zk.exists(path, this);
+                return zk.exists(path, this) != null;
             }
         } catch (KeeperException e) {
             throw new CloudnameException(e);
@@ -0,0 +1,321 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of all the coordinates of a service. A child watch on the service keeps track of the
+ * instances, and there is a TrackedCoordinate with a watch on the status of each instance. Instances are
+ * tracked whether they are claimed or not, so a coordinate that gets claimed or starts running is picked
+ * up by its TrackedCoordinate.
+ *
+ * One TrackedService is shared by all the DynamicExpressions of the service, so there is only one set of
+ * watches no matter how many listeners there are. Changes are passed on to the expressions that cover the
+ * instance that changed. The expressions are reference counted, the owner stops the TrackedService when
+ * the last one is removed.
+ */
+class TrackedService implements Watcher, ZkUserInterface {
+
+    /**
+     * When ZooKeeper reports an error about the service, when to try to read it again.
+     */
+    final private int RETRY_INTERVAL_ZOOKEEPER_ERROR_MS = 30000;      // 30 seconds
+
+    /**
+     * The coordinates of the service by instance.
+     */
+    final private SortedMap<Integer, TrackedCoordinate> coordinateByInstance =
+            new TreeMap<Integer, TrackedCoordinate>();
+
+    /**
+     * The expressions getting notified about changes.
+     */
+    final private List<DynamicExpression> expressions = new ArrayList<DynamicExpression>();
+
+    /**
+     * We always add some random noise to when to do things so not all servers fire at the same time against
+     * ZooKeeper.
+     */
+    final private Random random = new Random();
+
+    private static final Logger log = Logger.getLogger(TrackedService.class.getName());
+
+    private final String cell;
+    private final String user;
+    private final String service;
+    private final String servicePath;
+
+    /**
+     * When the read scheduled after an error is due, zero if no read is scheduled.
+     */
+    private long scheduledRefreshMs = 0;
+
+    private boolean stopped = false;
+    private ZooKeeper zk = null;
+
+    /**
+     * The TrackedService is not doing anything before it gets a ZooKeeper instance.
+     */
+    public TrackedService(String cell, String user, String service) {
+        this.cell = cell;
+        this.user = user;
+        this.service = service;
+        this.servicePath = ZkCoordinatePath.coordinateWithoutInstanceAsPath(cell, user, service);
+    }
+
+    /**
+     * Adds an expression to be notified about changes.
+     */
+    public void addExpression(DynamicExpression expression) {
+        synchronized (this) {
+            expressions.add(expression);
+        }
+    }
+
+    /**
+     * Removes an expression.
+     * @return true if there are no more expressions, ie. the TrackedService can be stopped.
+     */
+    public boolean removeExpression(DynamicExpression expression) {
+        synchronized (this) {
+            expressions.remove(expression);
+            return expressions.isEmpty();
+        }
+    }
+
+    /**
+     * Stop tracking the service, watches that are already set will be ignored.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            for (TrackedCoordinate trackedCoordinate : coordinateByInstance.values()) {
+                trackedCoordinate.stop();
+            }
+            coordinateByInstance.clear();
+            expressions.clear();
+        }
+    }
+
+    /**
+     * @return the instances of the service, in order.
+     */
+    public List<Integer> getInstances() {
+        synchronized (this) {
+            return new ArrayList<Integer>(coordinateByInstance.keySet());
+        }
+    }
+
+    /**
+     * Returns the status snapshot of an instance.
+     * @return the snapshot or null if the instance does not exist or has not been loaded yet.
+     */
+    public ZkCoordinateData.Snapshot getSnapshot(int instance) {
+        TrackedCoordinate trackedCoordinate;
+        synchronized (this) {
+            trackedCoordinate = coordinateByInstance.get(instance);
+        }
+        if (trackedCoordinate == null) {
+            return null;
+        }
+        return trackedCoordinate.getCoordinatedata();
+    }
+
+    /**
+     * Method  from ZkUserInterface.
+     * Called by the ZkScheduler when the read scheduled after an error is due.
+     */
+    @Override
+    public void timeEvent() {
+        synchronized (this) {
+            // When the connection is back, newZooKeeperInstance() reads the service.
+            if (scheduledRefreshMs == 0 || zk == null || zk.getState() != ZooKeeper.States.CONNECTED) {
+                return;
+            }
+            scheduledRefreshMs = 0;
+        }
+        refreshInstances();
+    }
+
+    /**
+     * Callback from zookeeper watcher.
+     */
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+        switch (watchedEvent.getState()) {
+            case Expired:
+            case AuthFailed:
+            case Disconnected:
+                // Something bad happened to the path, try again later.
+                scheduleRefresh();
+                break;
+        }
+        if (watchedEvent.getType() == Event.EventType.None) {
+            return;
+        }
+        // We only watch the service, a change to the service means instances have come or gone.
+        refreshInstances();
+    }
+
+    /**
+     * Method  from ZkUserInterface.
+     */
+    @Override
+    public void zooKeeperDown() {
+
+    }
+
+    /**
+     * Method  from ZkUserInterface.
+     * Reads the instances and sets the watch on the service. On a new session the watches of the
+     * TrackedCoordinates are gone as well, so they are refreshed.
+     */
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        List<TrackedCoordinate> trackedCoordinates = new ArrayList<TrackedCoordinate>();
+        synchronized (this) {
+            if (zk != this.zk) {
+                trackedCoordinates.addAll(coordinateByInstance.values());
+            }
+            this.zk = zk;
+        }
+        if (zk == null) {
+            return;
+        }
+        for (TrackedCoordinate trackedCoordinate : trackedCoordinates) {
+            trackedCoordinate.newZooKeeperInstance(zk);
+        }
+        refreshInstances();
+    }
+
+    /**
+     * Reads the instances of the service, setting a child watch, and starts or stops tracking
+     * coordinates as instances come and go.
+     */
+    private void refreshInstances() {
+        ZooKeeper localZk;
+        synchronized (this) {
+            if (stopped || zk == null) {
+                return;
+            }
+            localZk = zk;
+        }
+
+        List<String> children;
+        try {
+            children = localZk.getChildren(servicePath, this);
+        } catch (KeeperException.NoNodeException e) {
+            // Watch for the service to be created.
+            try {
+                if (localZk.exists(servicePath, this) != null) {
+                    refreshInstances();
+                    return;
+                }
+            } catch (KeeperException ke) {
+                scheduleRefresh();
+                return;
+            } catch (InterruptedException ie) {
+                scheduleRefresh();
+                return;
+            }
+            children = new ArrayList<String>();
+        } catch (KeeperException e) {
+            log.info("Problems listing instances of " + servicePath + ": " + e.getMessage());
+            scheduleRefresh();
+            return;
+        } catch (InterruptedException e) {
+            scheduleRefresh();
+            return;
+        }
+        Set<Integer> instances = new HashSet<Integer>();
+        for (String child : children) {
+            try {
+                instances.add(Integer.parseInt(child));
+            } catch (NumberFormatException e) {
+                log.info("Ignoring non-instance node " + servicePath + "/" + child);
+            }
+        }
+
+        Map<Integer, TrackedCoordinate> newCoordinates = new HashMap<Integer, TrackedCoordinate>();
+        List<Integer> removedInstances = new ArrayList<Integer>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            Iterator<Map.Entry<Integer, TrackedCoordinate>> it = coordinateByInstance.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, TrackedCoordinate> entry = it.next();
+                if (! instances.contains(entry.getKey())) {
+                    entry.getValue().stop();
+                    it.remove();
+                    removedInstances.add(entry.getKey());
+                }
+            }
+            for (final Integer instance : instances) {
+                if (! coordinateByInstance.containsKey(instance)) {
+                    TrackedCoordinate trackedCoordinate = new TrackedCoordinate(
+                            new TrackedCoordinate.ExpressionResolverNotify() {
+                                @Override
+                                public void stateChanged() {
+                                    notifyExpressions(instance);
+                                }
+                            },
+                            ZkCoordinatePath.getStatusPath(cell, user, service, instance));
+                    coordinateByInstance.put(instance, trackedCoordinate);
+                    newCoordinates.put(instance, trackedCoordinate);
+                }
+            }
+        }
+        // Loads the data and sets the watch, calls stateChanged() if there is data.
+        for (TrackedCoordinate trackedCoordinate : newCoordinates.values()) {
+            trackedCoordinate.newZooKeeperInstance(localZk);
+        }
+        for (Integer instance : removedInstances) {
+            notifyExpressions(instance);
+        }
+    }
+
+    /**
+     * Tells the expressions covering the instance that it has changed.
+     */
+    private void notifyExpressions(int instance) {
+        List<DynamicExpression> expressionsToNotify = new ArrayList<DynamicExpression>();
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            for (DynamicExpression expression : expressions) {
+                if (expression.coversInstance(instance)) {
+                    expressionsToNotify.add(expression);
+                }
+            }
+        }
+        // Outside the lock, the expressions call back to get the snapshot.
+        for (DynamicExpression expression : expressionsToNotify) {
+            expression.instanceChanged(instance);
+        }
+    }
+
+    private void scheduleRefresh() {
+        // Randomize refreshes to avoid network peaks.
+        long delayMillisDistributed =
+                (long) (RETRY_INTERVAL_ZOOKEEPER_ERROR_MS * (0.7 + random.nextDouble() * 0.6));
+        synchronized (this) {
+            long refreshMs = System.currentTimeMillis() + delayMillisDistributed;
+            if (scheduledRefreshMs == 0 || refreshMs < scheduledRefreshMs) {
+                scheduledRefreshMs = refreshMs;
+            }
+        }
+        ZkScheduler.scheduleTimeEvent(this, delayMillisDistributed);
+    }
+}
@@ -2,14 +2,23 @@ package org.cloudname.zk;
 
 import org.cloudname.CloudnameException;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
 import org.apache.zookeeper.KeeperException;
 import org.cloudname.CoordinateMissingException;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Various ZooKeeper utilities.
@@ -17,9 +26,14 @@ import java.util.List;
  * @author borud
  */
 public final class Util {
+    private static final Logger log = Logger.getLogger(Util.class.getName());
+
     // Constants
     public static final String CHARSET_NAME = "UTF-8";
 
+    // The class of the thread ZooKeeper runs watchers and async callbacks on.
+    private static final String ZOOKEEPER_EVENT_THREAD_CLASS = "org.apache.zookeeper.ClientCnxn$EventThread";
+
     /**
      * Create a path in ZooKeeper.  We just start at the top and work
      * our way down.  Nodes that exist will throw an exception but we
@@ -30,25 +44,162 @@ public final class Util {
      */
     public static void mkdir(ZooKeeper zk, String path, List<ACL> acl)
             throws CloudnameException, InterruptedException {
+        createPipelined(zk, getPathLevels(path), acl);
+    }
+
+    /**
+     * Splits a path into the paths of its levels, e.g. "/a/b/c" into
+     * "/a", "/a/b" and "/a/b/c".
+     */
+    public static List<String> getPathLevels(String path) {
         if (path.startsWith("/")) {
             path = path.substring(1);
         }
+        List<String> paths = new ArrayList<String>();
+        StringBuilder incrementalPath = new StringBuilder(path.length() + 1);
+        for (String p : path.split("/")) {
+            incrementalPath.append('/').append(p);
+            paths.add(incrementalPath.toString());
+        }
+        return paths;
+    }
 
-        String[] parts = path.split("/");
+    /**
+     * Creates many persistent nodes with their data element set to
+     * null. All the requests are sent before waiting for any reply,
+     * so this takes about one round trip no matter how many paths
+     * there are. ZooKeeper handles the requests of a session in
+     * order, so parents listed before their children are in place
+     * when the children are created. Nodes that exist are left as
+     * they are. From the ZooKeeper event thread the requests are done
+     * one after another.
+     *
+     * ZooKeeper 3.3 has no multi(), so instead of a transaction the
+     * nodes created by this call are deleted again if any create
+     * fails. That is best effort: if the connection is lost, the
+     * deletes fail too and the nodes are left.
+     * @return for each path, true if it was created and false if it
+     * already existed.
+     * @throws CloudnameException if problems talking with ZooKeeper.
+     */
+    public static boolean[] createPipelined(ZooKeeper zk, List<String> paths, List<ACL> acl)
+            throws CloudnameException, InterruptedException {
+        return createPipelined(zk, paths, Collections.<byte[]>nCopies(paths.size(), null), acl);
+    }
 
-        String createPath = "";
-        for (String p : parts) {
-            // Sonar will complain about this.  Usually it would be
-            // right but in this case it isn't.
-            createPath += "/" + p;
-            try {
-                zk.create(createPath, null, acl, CreateMode.PERSISTENT);
-            } catch (KeeperException.NodeExistsException e) {
-                // This is okay.  Ignore.
-            } catch (KeeperException e) {
-                throw new CloudnameException(e);
+    /**
+     * Like the method above, but the nodes are created with the data
+     * given for each path.
+     */
+    public static boolean[] createPipelined(ZooKeeper zk, List<String> paths, List<byte[]> data, List<ACL> acl)
+            throws CloudnameException, InterruptedException {
+        final boolean[] created = new boolean[paths.size()];
+        if (isZooKeeperEventThread()) {
+            for (int i = 0; i < created.length; i++) {
+                try {
+                    zk.create(paths.get(i), data.get(i), acl, CreateMode.PERSISTENT);
+                    created[i] = true;
+                } catch (KeeperException.NodeExistsException e) {
+                    // This is okay.  Ignore.
+                } catch (KeeperException e) {
+                    rollBackCreates(zk, paths, created);
+                    throw new CloudnameException(e);
+                }
             }
+            return created;
+        }
+
+        final PipelineJoin join = new PipelineJoin(created.length, KeeperException.Code.NODEEXISTS);
+        for (int i = 0; i < created.length; i++) {
+            zk.create(paths.get(i), data.get(i), acl, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    // The callbacks run one at a time on the event thread,
+                    // and the latch publishes the writes to the waiter.
+                    created[(Integer) ctx] = rc == KeeperException.Code.OK.intValue();
+                    join.done(rc, path);
+                }
+            }, i);
+        }
+        try {
+            join.await();
+        } catch (CloudnameException e) {
+            rollBackCreates(zk, paths, created);
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * Deletes the nodes a failed createPipelined() did create, children
+     * before their parents.
+     */
+    private static void rollBackCreates(ZooKeeper zk, List<String> paths, boolean[] created)
+            throws InterruptedException {
+        List<String> createdPaths = new ArrayList<String>();
+        for (int i = created.length - 1; i >= 0; i--) {
+            if (created[i]) {
+                createdPaths.add(paths.get(i));
+            }
+        }
+        if (createdPaths.isEmpty()) {
+            return;
+        }
+        try {
+            if (deletePipelined(zk, createdPaths) < createdPaths.size()) {
+                log.warning("Could not roll back all of " + createdPaths + ", some are left.");
+            }
+        } catch (CloudnameException e) {
+            log.log(Level.WARNING, "Could not roll back " + createdPaths + ", they are left.", e);
+        }
+    }
+
+    /**
+     * Deletes many nodes, whatever their version. All the requests
+     * are sent before waiting for any reply and ZooKeeper handles them
+     * in order, so a list of levels from the bottom up is deleted in
+     * about one round trip. A node that is missing or has children is
+     * not an error; it is left as it is, and so are its parents since
+     * they then have children too.
+     * @return the number of paths deleted before the first that was not.
+     * @throws CloudnameException if problems talking with ZooKeeper.
+     */
+    public static int deletePipelined(ZooKeeper zk, List<String> paths)
+            throws CloudnameException, InterruptedException {
+        final boolean[] deleted = new boolean[paths.size()];
+        if (isZooKeeperEventThread()) {
+            for (int i = 0; i < deleted.length; i++) {
+                try {
+                    zk.delete(paths.get(i), -1);
+                    deleted[i] = true;
+                } catch (KeeperException.NoNodeException e) {
+                    // This is okay.  Ignore.
+                } catch (KeeperException.NotEmptyException e) {
+                    // This is okay.  Ignore.
+                } catch (KeeperException e) {
+                    throw new CloudnameException(e);
+                }
+            }
+        } else {
+            final PipelineJoin join = new PipelineJoin(
+                    deleted.length, KeeperException.Code.NONODE, KeeperException.Code.NOTEMPTY);
+            for (int i = 0; i < deleted.length; i++) {
+                zk.delete(paths.get(i), -1, new AsyncCallback.VoidCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx) {
+                        deleted[(Integer) ctx] = rc == KeeperException.Code.OK.intValue();
+                        join.done(rc, path);
+                    }
+                }, i);
+            }
+            join.await();
+        }
+
+        int deletedNodes = 0;
+        while (deletedNodes < deleted.length && deleted[deletedNodes]) {
+            deletedNodes++;
         }
+        return deletedNodes;
     }
 
     /**
@@ -133,36 +284,143 @@ public final class Util {
      */
     public static int deletePathKeepRootLevels(ZooKeeper zk, String path, int keepMinLevels)
             throws CloudnameException, CoordinateMissingException, InterruptedException {
-        if (path.startsWith("/")) {
-            path = path.substring(1);
+        // We are happy if only the first two deletions went through. The other deletions are just cleaning up if
+        // there are no more coordinates on the same rootPath.
+        List<String> paths = getPathLevels(path);
+        List<String> deletePaths = new ArrayList<String>();
+        for (int counter = paths.size() - 1; counter >= keepMinLevels; counter--) {
+            deletePaths.add(paths.get(counter));
         }
+        return deletePipelined(zk, deletePaths);
+    }
 
-        String[] parts = path.split("/");
+    /**
+     * Figures out if we are running in a watcher or an async callback. Async
+     * callbacks are run one at a time on this thread, so waiting here for an
+     * async operation to complete will never return.
+     * @return true if the current thread is the event thread of a ZooKeeper instance.
+     */
+    public static boolean isZooKeeperEventThread() {
+        return Thread.currentThread().getClass().getName().equals(ZOOKEEPER_EVENT_THREAD_CLASS);
+    }
 
-        // We are happy if only the first two deletions went through. The other deletions are just cleaning up if
-        // there are no more coordinates on the same rootPath.
-        int deletedNodes = 0;
-        List<String> paths = new ArrayList<String>();
-        String incrementalPath = "";
-        for (String p : parts) {
-            incrementalPath += "/" + p;
-            paths.add(incrementalPath);
+    /**
+     * Lists the sub nodes of many paths. All the requests are sent before
+     * waiting for any reply, so this takes about one round trip no matter
+     * how many paths there are. From the ZooKeeper event thread the requests
+     * are done one after another.
+     * @return the sub nodes by path, paths that do not exist are left out.
+     * @throws CloudnameException if problems talking with ZooKeeper.
+     */
+    public static Map<String, List<String>> getChildrenPipelined(ZooKeeper zk, Collection<String> paths)
+            throws CloudnameException, InterruptedException {
+        final Map<String, List<String>> childrenByPath = new ConcurrentHashMap<String, List<String>>();
+        if (isZooKeeperEventThread()) {
+            for (String path : paths) {
+                try {
+                    childrenByPath.put(path, zk.getChildren(path, false));
+                } catch (KeeperException.NoNodeException e) {
+                    // This is okay. Leave it out.
+                } catch (KeeperException e) {
+                    throw new CloudnameException(e);
+                }
+            }
+            return childrenByPath;
         }
 
-        for (int counter = paths.size() - 1; counter >= keepMinLevels; counter--) {
-            String deletePath = paths.get(counter);
-            int version = getVersionForDeletion(zk, deletePath);
-            if (hasChildren(zk, deletePath)) {
-                return deletedNodes;
+        final PipelineJoin join = new PipelineJoin(paths.size());
+        for (String path : paths) {
+            zk.getChildren(path, false, new AsyncCallback.ChildrenCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, List<String> children) {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        childrenByPath.put(path, children);
+                    }
+                    join.done(rc, path);
+                }
+            }, null);
+        }
+        join.await();
+        return childrenByPath;
+    }
+
+    /**
+     * Reads the data of many paths. All the requests are sent before
+     * waiting for any reply, so this takes about one round trip no matter
+     * how many paths there are. From the ZooKeeper event thread the requests
+     * are done one after another.
+     * @return the data by path, paths that do not exist are left out.
+     * @throws CloudnameException if problems talking with ZooKeeper.
+     */
+    public static Map<String, byte[]> getDataPipelined(ZooKeeper zk, Collection<String> paths)
+            throws CloudnameException, InterruptedException {
+        final Map<String, byte[]> dataByPath = new ConcurrentHashMap<String, byte[]>();
+        if (isZooKeeperEventThread()) {
+            for (String path : paths) {
+                try {
+                    dataByPath.put(path, zk.getData(path, false, null));
+                } catch (KeeperException.NoNodeException e) {
+                    // This is okay. Leave it out.
+                } catch (KeeperException e) {
+                    throw new CloudnameException(e);
+                }
+            }
+            return dataByPath;
+        }
+
+        final PipelineJoin join = new PipelineJoin(paths.size());
+        for (String path : paths) {
+            zk.getData(path, false, new AsyncCallback.DataCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                    if (rc == KeeperException.Code.OK.intValue() && data != null) {
+                        dataByPath.put(path, data);
+                    }
+                    join.done(rc, path);
+                }
+            }, null);
+        }
+        join.await();
+        return dataByPath;
+    }
+
+    /**
+     * Waits for a number of async operations and remembers the first error.
+     * A missing node, or the result codes given, are not considered errors.
+     */
+    private static class PipelineJoin {
+        private final CountDownLatch latch;
+        private final KeeperException.Code[] okCodes;
+        private volatile KeeperException error = null;
+
+        PipelineJoin(int operations, KeeperException.Code... okCodes) {
+            latch = new CountDownLatch(operations);
+            this.okCodes = okCodes.length == 0 ? new KeeperException.Code[] { KeeperException.Code.NONODE } : okCodes;
+        }
+
+        void done(int rc, String path) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK && !isOk(code) && error == null) {
+                error = KeeperException.create(code, path);
             }
-            try {
-                zk.delete(deletePath, version);
-            } catch (KeeperException e) {
-                throw new CloudnameException(e);
+            latch.countDown();
+        }
+
+        private boolean isOk(KeeperException.Code code) {
+            for (KeeperException.Code okCode : okCodes) {
+                if (code == okCode) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void await() throws CloudnameException, InterruptedException {
+            latch.await();
+            if (error != null) {
+                throw new CloudnameException(error);
             }
-            deletedNodes++;
         }
-        return deletedNodes;
     }
 
     // Should not be instantiated.
@@ -0,0 +1,437 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.cloudname.CloudnameException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Configs too large for one ZooKeeper node, which holds at most about 1 MB (jute.maxbuffer).
+ *
+ * <p> A large config is split into chunks where its content says so: a rolling hash of the last
+ * bytes picks the chunk boundaries, so inserting or removing text only moves the boundaries near
+ * the change. Each chunk is compressed and stored in a node below the config node, named by the
+ * SHA-1 hash of the chunk and the write that created it. The config node itself holds a manifest
+ * listing the names of the chunks in order. A chunk never changes: a reader keeps the chunks it
+ * has, and when the manifest changes it only reads the chunks it does not have. A local change
+ * to a large config is usually one or two new chunks.
+ *
+ * <p> Small configs are stored in the config node as before. A config is chunked if it is larger
+ * than MAX_PLAIN_SIZE, or if it starts like a manifest.
+ *
+ * <p> Writing a config reads the manifest, creates the new chunks, sets the manifest if it still
+ * has the version read, and then deletes the chunks of the old manifest that the new one does
+ * not use. Only chunks of the manifest read are reused, and no other writer can delete those
+ * without first changing the manifest, so a manifest that was set always has its chunks. A writer
+ * that loses the race deletes the chunks it created. A reader always finds the chunks of the
+ * manifest it read, or sees the manifest change.
+ */
+final class ZkChunkedConfig {
+
+    /**
+     * The first line of a manifest.
+     */
+    private static final String MANIFEST_HEADER = "cloudname-chunked-config 1\n";
+
+    private static final String CHUNK_PREFIX = "chunk-";
+
+    /**
+     * Uncompressed bytes per chunk, at least. Only the last chunk may be smaller.
+     */
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Uncompressed bytes per chunk, at most. Compressed it must fit in a ZooKeeper node.
+     */
+    static final int MAX_CHUNK_SIZE = 512 * 1024;
+
+    /**
+     * A chunk ends where the rolling hash has these bits zero, about every 256 KB after the
+     * minimum size.
+     */
+    private static final long BOUNDARY_MASK = (1L << 18) - 1;
+
+    /**
+     * A random value for each byte value, for the rolling hash. It must be the same in all
+     * writers, or they would not find the same boundaries.
+     */
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0x2545f4914f6cdd1dL;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64.
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * How many times a write with any version is tried when other writers get in between.
+     */
+    private static final int MAX_WRITE_ATTEMPTS = 5;
+
+    private static final Random random = new Random();
+
+    /**
+     * Configs larger than this, in bytes, are chunked.
+     */
+    static final int MAX_PLAIN_SIZE = 512 * 1024;
+
+    private static final byte[] MANIFEST_HEADER_BYTES = toBytes(MANIFEST_HEADER);
+
+    /**
+     * The content of a manifest: the length of the config, in bytes, and the names of its chunks.
+     * A name is the hash of the chunk, followed by a dash and the id of the write that created it.
+     */
+    static final class Manifest {
+        private final int length;
+        private final List<String> chunkNames;
+
+        Manifest(int length, List<String> chunkNames) {
+            this.length = length;
+            this.chunkNames = Collections.unmodifiableList(new ArrayList<String>(chunkNames));
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        List<String> getChunkNames() {
+            return chunkNames;
+        }
+
+        byte[] toBytes() {
+            StringBuilder manifest = new StringBuilder(MANIFEST_HEADER);
+            manifest.append(length).append('\n');
+            for (String name : chunkNames) {
+                manifest.append(name).append('\n');
+            }
+            return ZkChunkedConfig.toBytes(manifest.toString());
+        }
+
+        static Manifest parse(byte[] data) throws CloudnameException {
+            String[] lines;
+            try {
+                lines = new String(data, Util.CHARSET_NAME).substring(MANIFEST_HEADER.length()).split("\n");
+            } catch (UnsupportedEncodingException e) {
+                throw new CloudnameException(e);
+            }
+            try {
+                int length = Integer.parseInt(lines[0]);
+                return new Manifest(length, Arrays.asList(lines).subList(1, lines.length));
+            } catch (NumberFormatException e) {
+                throw new CloudnameException("Bad config manifest: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if the data of a config node is a manifest.
+     */
+    static boolean isManifest(byte[] data) {
+        return startsWith(data, MANIFEST_HEADER_BYTES);
+    }
+
+    /**
+     * @return the path of a chunk of the config at configPath.
+     */
+    static String getChunkPath(String configPath, String name) {
+        return configPath + "/" + CHUNK_PREFIX + name;
+    }
+
+    /**
+     * @return the hash of the content of a chunk, from its name.
+     */
+    static String getChunkHash(String name) {
+        int dash = name.indexOf('-');
+        return dash < 0 ? name : name.substring(0, dash);
+    }
+
+    /**
+     * Reads a config, putting together the chunks if it is chunked.
+     * @param stat is set to the Stat of the config node.
+     */
+    static String read(ZooKeeper zk, String configPath, Stat stat)
+            throws CloudnameException, InterruptedException {
+        byte[] data;
+        try {
+            data = zk.getData(configPath, false, stat);
+        } catch (KeeperException e) {
+            throw new CloudnameException(e);
+        }
+        if (data == null) {
+            return "";
+        }
+        if (! isManifest(data)) {
+            return toString(data);
+        }
+        Manifest manifest = Manifest.parse(data);
+        return assemble(manifest, readChunks(zk, configPath, manifest.getChunkNames()));
+    }
+
+    /**
+     * Reads chunks, all of them in about one round trip.
+     * @return the uncompressed chunks by name.
+     * @throws CloudnameException if a chunk is missing, e.g. since a newer config was written.
+     */
+    static Map<String, byte[]> readChunks(ZooKeeper zk, String configPath, Collection<String> names)
+            throws CloudnameException, InterruptedException {
+        Map<String, String> nameByPath = new HashMap<String, String>();
+        for (String name : names) {
+            nameByPath.put(getChunkPath(configPath, name), name);
+        }
+        Map<String, byte[]> dataByPath = Util.getDataPipelined(zk, nameByPath.keySet());
+        Map<String, byte[]> chunkByName = new HashMap<String, byte[]>();
+        for (Map.Entry<String, String> entry : nameByPath.entrySet()) {
+            byte[] compressed = dataByPath.get(entry.getKey());
+            if (compressed == null) {
+                throw new CloudnameException("Config chunk missing: " + entry.getKey());
+            }
+            byte[] chunk = decompress(compressed);
+            if (! hash(chunk, 0, chunk.length).equals(getChunkHash(entry.getValue()))) {
+                throw new CloudnameException("Config chunk does not match its hash: " + entry.getKey());
+            }
+            chunkByName.put(entry.getValue(), chunk);
+        }
+        return chunkByName;
+    }
+
+    /**
+     * Puts the chunks of a manifest together.
+     */
+    static String assemble(Manifest manifest, Map<String, byte[]> chunkByName) {
+        ByteArrayOutputStream config = new ByteArrayOutputStream(manifest.getLength());
+        for (String name : manifest.getChunkNames()) {
+            byte[] chunk = chunkByName.get(name);
+            config.write(chunk, 0, chunk.length);
+        }
+        return toString(config.toByteArray());
+    }
+
+    /**
+     * Writes a config, chunked if it is large, and deletes the chunks no longer used.
+     * @param version the version the config node must have, -1 for any version. With -1 the
+     *     write is still only done on top of the manifest read, and tried again if another
+     *     writer got in between.
+     */
+    static void write(ZooKeeper zk, String configPath, String config, int version)
+            throws CloudnameException, InterruptedException {
+        byte[] configBytes = toBytes(config);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                writeOnce(zk, configPath, configBytes, version);
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                if (version != -1 || attempt == MAX_WRITE_ATTEMPTS) {
+                    throw new CloudnameException(e);
+                }
+            } catch (KeeperException e) {
+                throw new CloudnameException(e);
+            }
+        }
+    }
+
+    private static void writeOnce(ZooKeeper zk, String configPath, byte[] configBytes, int version)
+            throws CloudnameException, InterruptedException, KeeperException {
+        Stat stat = new Stat();
+        byte[] oldData = zk.getData(configPath, false, stat);
+        if (version != -1 && version != stat.getVersion()) {
+            throw new KeeperException.BadVersionException(configPath);
+        }
+        List<String> oldNames = isManifest(oldData)
+                ? Manifest.parse(oldData).getChunkNames() : Collections.<String>emptyList();
+
+        if (configBytes.length <= MAX_PLAIN_SIZE && ! isManifest(configBytes)) {
+            zk.setData(configPath, configBytes, stat.getVersion());
+            deleteChunks(zk, configPath, oldNames);
+            return;
+        }
+
+        // The chunks of the old manifest are reused, the others are new to this write.
+        Map<String, String> nameByHash = new HashMap<String, String>();
+        for (String name : oldNames) {
+            nameByHash.put(getChunkHash(name), name);
+        }
+        String writeId = Long.toHexString(random.nextLong());
+        List<String> names = new ArrayList<String>();
+        List<String> newChunkPaths = new ArrayList<String>();
+        List<byte[]> newChunks = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset < configBytes.length) {
+            int length = getChunkLength(configBytes, offset);
+            String hash = hash(configBytes, offset, length);
+            String name = nameByHash.get(hash);
+            if (name == null) {
+                name = hash + "-" + writeId;
+                nameByHash.put(hash, name);
+                newChunkPaths.add(getChunkPath(configPath, name));
+                newChunks.add(compress(configBytes, offset, length));
+            }
+            names.add(name);
+            offset += length;
+        }
+        Util.createPipelined(zk, newChunkPaths, newChunks, Ids.OPEN_ACL_UNSAFE);
+        try {
+            zk.setData(configPath, new Manifest(configBytes.length, names).toBytes(), stat.getVersion());
+        } catch (KeeperException.BadVersionException e) {
+            // Another writer got in first, nobody refers to the new chunks.
+            Collections.reverse(newChunkPaths);
+            Util.deletePipelined(zk, newChunkPaths);
+            throw e;
+        }
+
+        Set<String> unused = new HashSet<String>(oldNames);
+        unused.removeAll(names);
+        deleteChunks(zk, configPath, unused);
+    }
+
+    /**
+     * Deletes the chunks of a manifest that has been replaced.
+     */
+    private static void deleteChunks(ZooKeeper zk, String configPath, Collection<String> names)
+            throws CloudnameException, InterruptedException {
+        List<String> chunkPaths = new ArrayList<String>();
+        for (String name : names) {
+            chunkPaths.add(getChunkPath(configPath, name));
+        }
+        Util.deletePipelined(zk, chunkPaths);
+    }
+
+    /**
+     * Finds where the chunk starting at offset ends: the first place after MIN_CHUNK_SIZE where the
+     * rolling hash of the bytes before it has the boundary bits zero. The hash only depends on the
+     * last 64 bytes, so the same content gives the same boundary wherever it is in the config.
+     * @return the length of the chunk.
+     */
+    static int getChunkLength(byte[] data, int offset) {
+        int remaining = data.length - offset;
+        if (remaining <= MIN_CHUNK_SIZE) {
+            return remaining;
+        }
+        int end = offset + Math.min(remaining, MAX_CHUNK_SIZE);
+        long rolling = 0;
+        // Start the hash 64 bytes early, so it is complete at the minimum size.
+        for (int i = offset + MIN_CHUNK_SIZE - 64; i < end; i++) {
+            rolling = (rolling << 1) + GEAR[data[i] & 0xff];
+            if (i >= offset + MIN_CHUNK_SIZE - 1 && (rolling & BOUNDARY_MASK) == 0) {
+                return i + 1 - offset;
+            }
+        }
+        return end - offset;
+    }
+
+    /**
+     * @return the paths of the chunks in a list of children of a config node.
+     */
+    static List<String> getChunkPaths(String configPath, List<String> children) {
+        List<String> chunkPaths = new ArrayList<String>();
+        for (String child : children) {
+            if (child.startsWith(CHUNK_PREFIX)) {
+                chunkPaths.add(configPath + "/" + child);
+            }
+        }
+        return chunkPaths;
+    }
+
+    private static String hash(byte[] data, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(data, offset, length);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (! deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) throws CloudnameException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(MAX_CHUNK_SIZE);
+        byte[] buffer = new byte[8192];
+        try {
+            while (! inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CloudnameException("Config chunk is truncated.");
+                }
+                chunk.write(buffer, 0, inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new CloudnameException(e);
+        } finally {
+            inflater.end();
+        }
+        return chunk.toByteArray();
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data == null || data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes(Util.CHARSET_NAME);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toString(byte[] data) {
+        try {
+            return new String(data, Util.CHARSET_NAME);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Should not be instantiated.
+    private ZkChunkedConfig() {}
+}
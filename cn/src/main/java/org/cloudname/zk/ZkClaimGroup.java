@@ -0,0 +1,120 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A group of coordinates claimed together, e.g. the shards hosted by a process. The group is the
+ * one ZkUserInterface of its coordinates: it gets the connection events and the ZooKeeper
+ * instance once and passes them on, and it has one scheduled reclaim pass for all of its
+ * coordinates instead of one time event per coordinate.
+ *
+ * <p> A claim is an async create, so a pass over the group sends the creates of all the
+ * coordinates out of sync before any reply is back. After a session expiry all the coordinates
+ * are reclaimed in about one round trip, and the coordinates failing to be reclaimed are
+ * retried together in the next pass. The group keeps track of which coordinates are waiting for
+ * a reclaim, so a pass only touches those, and it never blocks the scheduler thread.
+ *
+ * <p> Each coordinate still keeps its own claim state, since each status node can be lost or
+ * stolen on its own.
+ */
+final class ZkClaimGroup implements ZkUserInterface {
+    private static final Logger log = Logger.getLogger(ZkClaimGroup.class.getName());
+
+    /**
+     * How long to wait before the next reclaim pass when a coordinate is out of sync.
+     */
+    private static final long RECLAIM_DELAY_MS = 2000;
+
+    private final List<ClaimedCoordinate> claimedCoordinates = new ArrayList<ClaimedCoordinate>();
+
+    /**
+     * The coordinates waiting for the next reclaim pass.
+     */
+    private final Set<ClaimedCoordinate> outOfSync = new LinkedHashSet<ClaimedCoordinate>();
+
+    /**
+     * Adds a coordinate to the group, before the group is started.
+     */
+    void add(ClaimedCoordinate claimedCoordinate) {
+        synchronized (this) {
+            claimedCoordinates.add(claimedCoordinate);
+        }
+    }
+
+    /**
+     * @return the coordinates of the group.
+     */
+    List<ClaimedCoordinate> getClaimedCoordinates() {
+        synchronized (this) {
+            return Collections.unmodifiableList(new ArrayList<ClaimedCoordinate>(claimedCoordinates));
+        }
+    }
+
+    /**
+     * Claims all the coordinates of the group.
+     */
+    void start() {
+        for (ClaimedCoordinate claimedCoordinate : getClaimedCoordinates()) {
+            claimedCoordinate.start();
+        }
+    }
+
+    /**
+     * Asks for a coordinate to be reclaimed in the next pass. Asking again before the pass is due
+     * does not add another one.
+     */
+    void scheduleReclaim(ClaimedCoordinate claimedCoordinate) {
+        synchronized (this) {
+            outOfSync.add(claimedCoordinate);
+        }
+        ZkScheduler.scheduleTimeEvent(this, RECLAIM_DELAY_MS);
+    }
+
+    @Override
+    public void zooKeeperDown() {
+        for (ClaimedCoordinate claimedCoordinate : getClaimedCoordinates()) {
+            claimedCoordinate.zooKeeperDown();
+        }
+    }
+
+    /**
+     * Each coordinate sends its claim without waiting for the reply, so all of them are sent
+     * in one go.
+     */
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        synchronized (this) {
+            // All of them are reclaimed now.
+            outOfSync.clear();
+        }
+        List<ClaimedCoordinate> coordinates = getClaimedCoordinates();
+        log.fine("Reclaiming " + coordinates.size() + " coordinates due to new zookeeper.");
+        for (ClaimedCoordinate claimedCoordinate : coordinates) {
+            claimedCoordinate.newZooKeeperInstance(zk);
+        }
+    }
+
+    /**
+     * The reclaim pass over the coordinates waiting for it. Each of them sends its claim without
+     * waiting for the reply.
+     */
+    @Override
+    public void timeEvent() {
+        List<ClaimedCoordinate> coordinates;
+        synchronized (this) {
+            coordinates = new ArrayList<ClaimedCoordinate>(outOfSync);
+            outOfSync.clear();
+        }
+        log.fine("Reclaim pass over " + coordinates.size() + " coordinates.");
+        for (ClaimedCoordinate claimedCoordinate : coordinates) {
+            claimedCoordinate.timeEvent();
+        }
+    }
+}
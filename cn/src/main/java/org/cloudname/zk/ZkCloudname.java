@@ -6,11 +6,12 @@ import org.cloudname.*;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
-import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.KeeperException;
 
-import java.io.UnsupportedEncodingException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -36,10 +37,15 @@ import java.io.IOException;
  *
  * @author borud
  */
-public final class ZkCloudname extends Thread implements Cloudname, Watcher {
+public final class ZkCloudname implements Cloudname, Watcher {
 
     private static final int SESSION_TIMEOUT = 5000;
 
+    /**
+     * How long to let ZooKeeper try to connect before closing and creating a new instance.
+     */
+    private static final long CONNECTING_TIMEOUT_MS = 20000;
+
     private static final Logger log = Logger.getLogger(ZkCloudname.class.getName());
 
     // Instance variables
@@ -58,73 +64,89 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
 
     private final String connectString;
 
-    private Boolean isClosed = false;
+    private final ZkCoordinateData.Format statusFormat;
+
+    private final long writeDelayMs;
+
+    private volatile boolean isClosed = false;
 
     // Latches that count down when ZooKeeper is connected
     private final CountDownLatch connectedSignal = new CountDownLatch(1);
 
-    private ZkResolver resolver = null;
+    private final ZkResolver resolver;
+
+    private final ZkConfigCache configCache = new ZkConfigCache();
 
-    private int connectingCounter = 0;
+    /**
+     * The last known good services and configs, null if not kept.
+     */
+    private ZkLastKnownGood lastKnownGood = null;
 
+    /**
+     * The resolver and the configs are there before we connect, so that with a last known
+     * good file they are served right away.
+     */
     private ZkCloudname(Builder builder) {
         connectString = builder.getConnectString();
-
-    }
-
-    @Override
-    public void run() {
-
-        while (true) {
-            ZooKeeper zk = getZk();
-            if (zk != null && zk.getState() != ZooKeeper.States.CONNECTED) {
-                log.fine("Not connected to ZooKeeper: " + zk.getState().name());
+        statusFormat = builder.getStatusFormat();
+        writeDelayMs = builder.getWriteDelayMs();
+        resolver =  new ZkResolver.Builder().addStrategy(new StrategyAll()).addStrategy(new StrategyAny())
+                .addStrategy(new StrategyRoundRobin()).addStrategy(new StrategyPowerOfTwoChoices())
+                .addStrategy(new StrategyConsistentHash()).build();
+        if (builder.getLastKnownGoodFile() != null) {
+            try {
+                lastKnownGood = ZkLastKnownGood.open(builder.getLastKnownGoodFile());
+                resolver.getCache().setLastKnownGood(lastKnownGood);
+                configCache.setLastKnownGood(lastKnownGood);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Could not open last known good file "
+                        + builder.getLastKnownGoodFile() + ", going without.", e);
             }
+        }
+        users.put(resolver, 1);
+        users.put(configCache, 1);
+    }
 
-            if (zk != null && zk.getState() == ZooKeeper.States.CONNECTED) {
-                connectingCounter = 0;
-            }
+    /**
+     * Checks the connection to ZooKeeper, scheduled when the connection is lost. If the
+     * session has expired, or ZooKeeper has been trying to connect for too long, a new
+     * ZooKeeper instance is created and checked again later.
+     */
+    private class ConnectionCheck implements Runnable {
+        private final ZooKeeper zk;
 
-            if (zk != null && zk.getState() == ZooKeeper.States.CONNECTING) {
-                connectingCounter++;
-                if (connectingCounter > 10) {
-                    log.fine("Long time in connecting, trying a close first.");
-                    try {
-                        zk.close();
-                        connectingCounter = 0;
-                    } catch (InterruptedException e) {
-                        log.fine("Interrupted while closing, exiting loop: " + e.getMessage());
-                        return;
-                    }
-                }
-            }
+        ConnectionCheck(ZooKeeper zk) {
+            this.zk = zk;
+        }
 
-            if (zk != null && zk.getState() == ZooKeeper.States.CLOSED) {
-                retryConnection();
-                try {
-                    // Wait a bit so the next reconnection does not happen to frequently.
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                    return;
-                }
-            }
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
+        @Override
+        public void run() {
+            if (isClosed || getZk() != zk) {
                 return;
             }
-            zk = getZk();
-            if (zk != null && zk.getState() == ZooKeeper.States.CONNECTED) {
-                for (ZkUserInterface user : users.keySet()) {
-                    user.timeEvent();
-                }
-            }
-
-            synchronized (isClosed) {
-                if (isClosed) {
+            switch (zk.getState()) {
+                case CONNECTED:
                     return;
-                }
+                case CONNECTING:
+                    log.fine("Long time in connecting, closing it in the background.");
+                    // Closing waits for ZooKeeper, so it would hold up the scheduler thread.
+                    ZkScheduler.runBlocking(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                zk.close();
+                            } catch (InterruptedException e) {
+                                log.fine("Interrupted while closing: " + e.getMessage());
+                            }
+                        }
+                    });
+                    break;
+                default:
+                    log.fine("Not connected to ZooKeeper: " + zk.getState().name());
+                    break;
             }
+            retryConnection();
+            ZkScheduler.schedule(new ConnectionCheck(getZk()), CONNECTING_TIMEOUT_MS);
         }
     }
 
@@ -149,10 +171,8 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
         }
-        resolver =  new ZkResolver.Builder().addStrategy(new StrategyAll()).addStrategy(new StrategyAny()).build();
-        users.put(resolver, 1);
         resolver.newZooKeeperInstance(getZk());
-        start();
+        configCache.newZooKeeperInstance(getZk());
         return this;
     }
 
@@ -194,6 +214,9 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         log.fine("Got event in ZkCloudname: " + event.toString());
         if (event.getState() == Event.KeeperState.Disconnected || event.getState() == Event.KeeperState.Expired) {
             notifyUsersConnectionDown();
+            // ZooKeeper reconnects by itself within a session, an expired session needs a new instance now.
+            ZkScheduler.schedule(new ConnectionCheck(getZk()),
+                    event.getState() == Event.KeeperState.Expired ? 0 : CONNECTING_TIMEOUT_MS);
         }
         
         // Initial connection to ZooKeeper is completed.
@@ -212,39 +235,73 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
      * Create a given coordinate in the ZooKeeper node tree.
      *
      * Just blindly creates the entire path.  Elements of the path may
-     * exist already, but it seems wasteful to
+     * exist already, so the creates of all the levels and the config
+     * node are sent in one go and take about one round trip.
      * @throws CoordinateExistsException if coordinate already exists-
      * @throws CloudnameException if problems with zookeeper connection.
      */
     @Override
     public void createCoordinate(Coordinate coordinate) throws CloudnameException, CoordinateExistsException {
-        // Create the root path for the coordinate.  We do this
-        // blindly, meaning that if the path already exists, then
-        // that's ok -- so a more correct name for this method would
-        // be ensureCoordinate(), but that might confuse developers.
-        String root = ZkCoordinatePath.getCoordinateRoot(coordinate);
+        if (! createCoordinates(Collections.singletonList(coordinate)).isEmpty()) {
+            throw new CoordinateExistsException(
+                    "Coordinate already created:" + ZkCoordinatePath.getCoordinateRoot(coordinate));
+        }
+    }
 
-        try {
-            if (Util.exist(getZk(), root)) {
-                throw new CoordinateExistsException("Coordinate already created:" +root);
-            }
-        } catch (InterruptedException e) {
-            throw new CloudnameException(e);
+    /**
+     * Creates many coordinates.  The creates of all of them are sent
+     * before waiting for any reply, so a batch of coordinates takes
+     * about one round trip.
+     *
+     * ZooKeeper 3.3 has no multi-op transactions, so if any create
+     * fails the nodes created by this call are deleted again before
+     * the exception is thrown.  If the connection is lost, the
+     * deletes may fail too and leave a coordinate without its config
+     * node.  Creating it again adds the missing config node, but
+     * still reports the coordinate as existing.
+     * @return the coordinates that already existed.
+     * @throws CloudnameException if problems with zookeeper connection.
+     */
+    public List<Coordinate> createCoordinates(List<Coordinate> coordinates) throws CloudnameException {
+        // For each coordinate: the levels of the root path, then the config node.
+        List<String> paths = new ArrayList<String>();
+        int[] rootIndexes = new int[coordinates.size()];
+        for (int i = 0; i < rootIndexes.length; i++) {
+            Coordinate coordinate = coordinates.get(i);
+            paths.addAll(Util.getPathLevels(ZkCoordinatePath.getCoordinateRoot(coordinate)));
+            rootIndexes[i] = paths.size() - 1;
+            paths.add(ZkCoordinatePath.getConfigPath(coordinate, null));
         }
 
+        boolean[] created;
         try {
-            Util.mkdir(getZk(), root, Ids.OPEN_ACL_UNSAFE);
+            log.fine("Creating " + coordinates.size() + " coordinates");
+            created = Util.createPipelined(getZk(), paths, Ids.OPEN_ACL_UNSAFE);
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
         }
 
-        // Create the nodes that represent subdirectories.
-        String configPath = ZkCoordinatePath.getConfigPath(coordinate, null);
+        List<Coordinate> existing = new ArrayList<Coordinate>();
+        for (int i = 0; i < rootIndexes.length; i++) {
+            if (! created[rootIndexes[i]]) {
+                existing.add(coordinates.get(i));
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Creates the coordinates read from a stream, one per line, with at
+     * most maxInFlight of them waiting for ZooKeeper at a time.  See
+     * {@link ZkCoordinateProvisioner}.
+     * @return the result of each non-blank line, in the order of the input.
+     * @throws IOException if the input could not be read.
+     * @throws CloudnameException if interrupted.
+     */
+    public List<ZkCoordinateProvisioner.Result> provisionCoordinates(BufferedReader input, int maxInFlight)
+            throws IOException, CloudnameException {
         try {
-            log.fine("Creating config node " + configPath);
-            getZk().create(configPath, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
+            return new ZkCoordinateProvisioner(getZk(), maxInFlight).provision(input);
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
         }
@@ -253,6 +310,8 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
     /**
      * Deletes a coordinate in the persistent service store. This includes deletion
      * of config. It will fail if the coordinate is claimed.
+     *
+     * The checks take one round trip and the deletes another.
      * @param coordinate the coordinate we wish to destroy.
      */
     @Override
@@ -262,32 +321,32 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         String configPath = ZkCoordinatePath.getConfigPath(coordinate, null);
         String rootPath = ZkCoordinatePath.getCoordinateRoot(coordinate);
 
+        // Do this early to raise the error before anything is deleted. However, there might be a race condition
+        // if someone claims while we delete configPath and instance (root) node.
+        Map<String, List<String>> childrenByPath;
         try {
-            if (! Util.exist(getZk(), rootPath)) {
-                throw new CoordinateMissingException("Coordinate not found: " + rootPath);
-            }
+            childrenByPath = Util.getChildrenPipelined(getZk(), Arrays.asList(rootPath, configPath));
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
         }
 
+        List<String> rootChildren = childrenByPath.get(rootPath);
+        if (rootChildren == null) {
+            throw new CoordinateMissingException("Coordinate not found: " + rootPath);
+        }
 
-        // Do this early to raise the error before anything is deleted. However, there might be a race condition
-
-        // if someone claims while we delete configPath and instance (root) node.
-        try {
-            if (Util.exist(getZk(), configPath) && Util.hasChildren(getZk(), configPath)) {
+        List<String> configChildren = childrenByPath.get(configPath);
+        List<String> chunkPaths = new ArrayList<String>();
+        if (configChildren != null) {
+            // The chunks of a large config go with the config.
+            chunkPaths = ZkChunkedConfig.getChunkPaths(configPath, configChildren);
+            if (configChildren.size() > chunkPaths.size()) {
                 throw new CoordinateDeletionException("Coordinate has config node.");
             }
-        } catch (InterruptedException e) {
-            throw new CloudnameException(e);
         }
 
-        try {
-            if (Util.exist(getZk(), statusPath)) {
-                throw new CoordinateDeletionException("Coordinate is claimed.");
-            }
-        } catch (InterruptedException e) {
-            throw new CloudnameException(e);
+        if (rootChildren.contains(statusPath.substring(rootPath.length() + 1))) {
+            throw new CoordinateDeletionException("Coordinate is claimed.");
         }
 
         // Delete config, the instance node, and continue with as much as possible.
@@ -295,6 +354,7 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         // We want to keep 3 levels of nodes (/cn/%CELL%/%USER%).
         int deletedNodes = 0;
         try {
+            Util.deletePipelined(getZk(), chunkPaths);
             deletedNodes = Util.deletePathKeepRootLevels(getZk(), configPath, 3);
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
@@ -319,17 +379,38 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         String statusPath = ZkCoordinatePath.getStatusPath(coordinate);
         log.fine("Claiming " + coordinate.asString() + " (" + statusPath + ")");
 
-        ClaimedCoordinate statusAndEndpoints = new ClaimedCoordinate(coordinate);
+        ClaimedCoordinate statusAndEndpoints = new ClaimedCoordinate(coordinate, statusFormat, writeDelayMs);
         users.put(statusAndEndpoints, 1 /* random number due to there is no weak hash set, only map */);
 
         // If we have come thus far we have succeeded in creating the
         // CN_STATUS_NAME node within the service coordinate directory
         // in ZooKeeper and we can give the client a ServiceHandle.
-        ZkServiceHandle handle = new ZkServiceHandle(statusAndEndpoints, coordinate);
+        ZkServiceHandle handle = new ZkServiceHandle(statusAndEndpoints, coordinate, configCache);
         statusAndEndpoints.newZooKeeperInstance(getZk());
         statusAndEndpoints.start();
         return handle;
     }
+
+    /**
+     * Claims the coordinates as one ZkClaimGroup, which is the only user registered for them.
+     */
+    @Override
+    public List<ServiceHandle> claim(List<Coordinate> coordinates) {
+        log.fine("Claiming " + coordinates.size() + " coordinates as a group");
+        ZkClaimGroup group = new ZkClaimGroup();
+        List<ServiceHandle> handles = new ArrayList<ServiceHandle>(coordinates.size());
+        for (Coordinate coordinate : coordinates) {
+            ClaimedCoordinate statusAndEndpoints =
+                    new ClaimedCoordinate(coordinate, statusFormat, writeDelayMs, group);
+            group.add(statusAndEndpoints);
+            handles.add(new ZkServiceHandle(statusAndEndpoints, coordinate, configCache));
+        }
+        // The coordinates refer to the group, so it lives as long as any of the handles.
+        users.put(group, 1);
+        group.newZooKeeperInstance(getZk());
+        group.start();
+        return handles;
+    }
     
     @Override
     public Resolver getResolver() {
@@ -344,59 +425,36 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         return zkCoordinateData.snapshot().getServiceStatus();
     }
 
+    /**
+     * A config larger than ZkChunkedConfig.MAX_PLAIN_SIZE is written compressed in chunks.
+     */
     @Override
     public void setConfig(Coordinate coordinate, final String newConfig, final String oldConfig) throws CoordinateMissingException, CloudnameException {
         String configPath = ZkCoordinatePath.getConfigPath(coordinate, null);
         int version = -1;
-        if (oldConfig != null) {
-            Stat stat = new Stat();
-            byte [] data = null;
-            try {
-                data = getZk().getData(configPath, false, stat);
-            } catch (KeeperException e) {
-                throw new CloudnameException(e);
-            } catch (InterruptedException e) {
-                throw new CloudnameException(e);
-            }
-            try {
-                String stringData = new String(data, Util.CHARSET_NAME);
-                if (! stringData.equals(oldConfig)) {
-                    throw new CloudnameException("Data did not match old config. Actual old " + stringData + " specified old " + oldConfig);
+        try {
+            if (oldConfig != null) {
+                Stat stat = new Stat();
+                String actualOldConfig = ZkChunkedConfig.read(getZk(), configPath, stat);
+                if (! actualOldConfig.equals(oldConfig)) {
+                    throw new CloudnameException("Data did not match old config. Actual old " + actualOldConfig + " specified old " + oldConfig);
                 }
-            } catch (UnsupportedEncodingException e) {
-                throw new CloudnameException(e);
+                version = stat.getVersion();
             }
-            version = stat.getVersion();
-        }
-        try {
-            getZk().setData(configPath, newConfig.getBytes(Util.CHARSET_NAME), version);
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
+            ZkChunkedConfig.write(getZk(), configPath, newConfig, version);
         } catch (InterruptedException e) {
             throw new CloudnameException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new CloudnameException(e);
         }
     }
 
 
+    /**
+     * The config is read from memory, except the first time and after it has changed, see
+     * ZkConfigCache.
+     */
     @Override
     public String getConfig(final Coordinate coordinate) throws CoordinateMissingException, CloudnameException {
-        String configPath = ZkCoordinatePath.getConfigPath(coordinate, null);
-        Stat stat = new Stat();
-        try {
-            byte[] data = getZk().getData(configPath, false, stat);
-            if (data == null) {
-                return null;
-            }
-            return new String(data, Util.CHARSET_NAME);
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
-        } catch (InterruptedException e) {
-            throw new CloudnameException(e);
-        } catch (UnsupportedEncodingException e) {
-            throw new CloudnameException(e);
-        }
+        return configCache.getConfig(coordinate);
     }
     
     /**
@@ -406,11 +464,12 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
         if (null == getZk()) {
             throw new IllegalStateException("Cannot releaseClaim(): Not connected to ZooKeeper");
         }
+        isClosed = true;
         getZk().close();
-        log.fine("ZooKeeper session closed for " + connectString);
-        synchronized (isClosed) {
-            isClosed = true;
+        if (lastKnownGood != null) {
+            lastKnownGood.close();
         }
+        log.fine("ZooKeeper session closed for " + connectString);
     }
 
     /**
@@ -426,6 +485,9 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
      */
     public static class Builder {
         private String connectString;
+        private ZkCoordinateData.Format statusFormat = ZkCoordinateData.Format.JSON;
+        private long writeDelayMs = 0;
+        private File lastKnownGoodFile = null;
 
         public Builder setConnectString(String connectString) {
             this.connectString = connectString;
@@ -445,6 +507,48 @@ public final class ZkCloudname extends Thread implements Cloudname, Watcher {
             return connectString;
         }
 
+        /**
+         * Sets the format claimed coordinates write their status in. Default is JSON, which
+         * older clients can read. Use BINARY when all clients resolving the services can
+         * read it.
+         */
+        public Builder setStatusFormat(ZkCoordinateData.Format statusFormat) {
+            this.statusFormat = statusFormat;
+            return this;
+        }
+
+        public ZkCoordinateData.Format getStatusFormat() {
+            return statusFormat;
+        }
+
+        /**
+         * Sets how long service handles wait after a change before writing it, so the changes
+         * made in the meantime go out in the same write. Default is 0, changes are written
+         * right away and changes made while a write is in flight go out together after it.
+         */
+        public Builder setWriteDelayMs(long writeDelayMs) {
+            this.writeDelayMs = writeDelayMs;
+            return this;
+        }
+
+        public long getWriteDelayMs() {
+            return writeDelayMs;
+        }
+
+        /**
+         * Sets a file to keep the last known good endpoints and configs in. They are served
+         * from it at startup, and while ZooKeeper can not be reached, until they are read from
+         * ZooKeeper. Default is no file.
+         */
+        public Builder setLastKnownGoodFile(File lastKnownGoodFile) {
+            this.lastKnownGoodFile = lastKnownGoodFile;
+            return this;
+        }
+
+        public File getLastKnownGoodFile() {
+            return lastKnownGoodFile;
+        }
+
         public ZkCloudname build() {
             if (connectString.isEmpty()) {
                 throw new RuntimeException("You need to specify connection string before you can build.");
@@ -1,5 +1,6 @@
 package org.cloudname.zk;
 
+import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
@@ -12,10 +13,15 @@ import org.cloudname.CloudnameLock;
 import org.cloudname.CloudnameLockListener;
 import org.cloudname.Coordinate;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -24,31 +30,117 @@ import java.util.logging.Logger;
  * Algorithm used can be viewed in full in the document called "ZooKeeper Recipes and Solutions" on the
  * official ZooKeeper site.
  *
- * In our words: We create an Ephemeral Sequential node on the scope provided for a coordinate. E.g Scope.SERVICE
- * on the coordinate 1.service.user.cell, with the lockName "MyLock", will result in a created node with
- * the path /cn/cell/user/service/locks/MyLock00000001. This node will exist until the lock is released
- * or ZooKeeper itself deletes it (connectionloss etc resulting in ephemeral node deletion). If the lock
- * node created has the lowest number, the lock is "acquired". The next lowest number in the list will be
- * notified when the lock is removed, if tryLock with a timeout is used and the timeout has not been reached.
+ * In our words: The locks live in a directory on the scope provided for a coordinate. E.g Scope.SERVICE
+ * on the coordinate 1.service.user.cell gives the directory /locks/cell/user/service/locks. To lock
+ * "MyLock", we create an Ephemeral Sequential node in it, e.g. /locks/cell/user/service/locks/MyLock0000000001.
+ * This node will exist until the lock is released or ZooKeeper itself deletes it (connectionloss etc resulting
+ * in ephemeral node deletion). The children of the directory are listed once, and the lock is acquired if no
+ * node of the same lock before ours stands in the way. Otherwise we watch only the node we wait for, and list
+ * the children again when it goes away. Each release wakes one waiter, and the waiters get the lock in the
+ * order they asked for it.
+ *
+ * There are three kinds of nodes:
+ * <ul>
+ * <li> write, named MyLock&lt;seq&gt;: an exclusive lock, held when there is no node before it. It waits for the
+ *      node just before it.
+ * <li> read, named read-MyLock-&lt;seq&gt;: a shared lock, held when there is no write node before it. It waits
+ *      for the last write node before it.
+ * <li> permit, named permit-MyLock-&lt;seq&gt;: a semaphore of a number of permits, held when there are fewer
+ *      permit nodes than that before it. The first waiter waits for all the holders, the others wait for the
+ *      node just before them, which sets its data when it gets a permit so that the next waiter becomes the
+ *      first.
+ * </ul>
+ * The exclusive lock and the write lock of a read/write lock with the same name are the same lock. A semaphore
+ * does not share its nodes with the locks of the same name.
+ *
+ * Write nodes are named as by older clients, which only had exclusive locks, so old and new clients exclude
+ * each other. Older clients do not see read nodes though, so until all clients are upgraded a read lock does
+ * not keep out an old client's exclusive lock. No directory is created per lock, so nothing is left behind
+ * when the locks are released.
+ *
+ * The listeners are told that the lock is lost if the connection to ZooKeeper goes down while it is held,
+ * or if the node is deleted by someone else. A node that could not be deleted since the connection was
+ * down is deleted when the connection is back.
  *
  * @author acidmoose
  */
-public class ZkCloudnameLock implements CloudnameLock {
+public class ZkCloudnameLock implements CloudnameLock, ZkUserInterface {
+
+    /**
+     * The kinds of lock nodes, see above.
+     */
+    enum Kind {
+        WRITE(""),
+        READ("read-"),
+        PERMIT("permit-");
+
+        private final String prefix;
+
+        Kind(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * @return the name of a node of this kind for lockName, without the sequence number.
+         */
+        String getNodePrefix(String lockName) {
+            if (this == WRITE) {
+                return lockName;
+            }
+            return prefix + lockName + "-";
+        }
+    }
+
+    /**
+     * The length of the number ZooKeeper appends to the name of a sequential node.
+     */
+    private static final int SEQUENCE_LENGTH = 10;
+
+    /**
+     * Orders the children of a lock directory by sequence number, the number is zero padded.
+     */
+    private static final Comparator<String> SEQUENCE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            return a.substring(a.length() - SEQUENCE_LENGTH).compareTo(b.substring(b.length() - SEQUENCE_LENGTH));
+        }
+    };
 
-    private final ZooKeeper zk;
-    private final Coordinate coordinate;
-    private final Scope scope;
-    private final String lockName;
+    private final Kind kind;
+    private final int permits;
+    private final String lockDirectoryPath;
+    /**
+     * The names of our nodes and of the write and read nodes of the same lock, without the sequence number.
+     */
+    private final String nodePrefix;
+    private final String writePrefix;
+    private final String readPrefix;
+
+    private final List<CloudnameLockListener> listeners = new CopyOnWriteArrayList<CloudnameLockListener>();
 
-    // This will be false if a lock is obtained, so that you can not lock twice with the same object.
+    // This will be true while a lock is obtained or waited for, so that you can not lock twice with the same object.
     private final AtomicBoolean isInUse = new AtomicBoolean(false);
-    private String absoluteLockPath;
-    private String lockPath;
+
+    /**
+     * Released by the watches on the nodes we wait for.
+     */
+    private final Semaphore wakeUps = new Semaphore(0);
+
+    private ZooKeeper zk;
+    /**
+     * Our node, null if we have none.
+     */
+    private String nodePath = null;
+    private boolean held = false;
+    /**
+     * Nodes we could not delete since the connection was down.
+     */
+    private final List<String> abandonedPaths = new ArrayList<String>();
 
     private static final Logger log = Logger.getLogger(ZkCloudnameLock.class.getName());
 
     /**
-     * Prepare a CloudnameLock object.
+     * Prepare an exclusive CloudnameLock object.
      * @param zk ZooKeeper instance to use.
      * @param coordinate The coordinate responsible for the lock.
      * @param scope The CloudnameLock.Level where the lock will be in place.
@@ -60,10 +152,31 @@ public class ZkCloudnameLock implements CloudnameLock {
         final Scope scope,
         final String lockName)
     {
+        this(zk, coordinate, scope, lockName, Kind.WRITE, 1);
+    }
+
+    /**
+     * Like the constructor above, for the given kind of lock.
+     * @param permits The number of holders of a PERMIT lock.
+     */
+    ZkCloudnameLock(
+        final ZooKeeper zk,
+        final Coordinate coordinate,
+        final Scope scope,
+        final String lockName,
+        final Kind kind,
+        final int permits)
+    {
+        if (kind == Kind.WRITE && lockName.endsWith("-")
+                && (lockName.startsWith(Kind.READ.prefix) || lockName.startsWith(Kind.PERMIT.prefix))) {
+            throw new IllegalArgumentException("Lock name " + lockName + " is taken by the nodes of another lock.");
+        }
         this.zk = zk;
-        this.coordinate = coordinate;
-        this.scope = scope;
-        this.lockName = lockName;
+        this.kind = kind;
+        this.permits = permits;
+        nodePrefix = kind.getNodePrefix(lockName);
+        writePrefix = Kind.WRITE.getNodePrefix(lockName);
+        readPrefix = Kind.READ.getNodePrefix(lockName);
 
         final StringBuilder path = new StringBuilder("/" + CloudnameLock.LOCK_FOLDER_NAME + "/" + coordinate.getCell());
         if (scope == Scope.USER || scope == Scope.SERVICE) {
@@ -75,247 +188,355 @@ public class ZkCloudnameLock implements CloudnameLock {
                 .append(coordinate.getService());
         }
         path.append("/" + CloudnameLock.LOCK_FOLDER_NAME);
-        lockPath = path.toString();
+        lockDirectoryPath = path.toString();
     }
 
     @Override
     public void addListener(CloudnameLockListener cloudnameLockListener) {
-        // TODO(acidmoose): Implement
+        listeners.add(cloudnameLockListener);
     }
 
     @Override
     public boolean tryLock() {
+        final long noTimeout = 0;
+        final boolean noWait = false;
+        return lock(noTimeout, noWait);
+    }
+
+    @Override
+    public boolean tryLock(int timeoutMs) {
+        final boolean wait = true;
+        return lock(timeoutMs, wait);
+    }
+
+    private boolean lock(long timeoutMs, boolean wait) {
         // This lock object is already in use
         if (!isInUse.compareAndSet(false, true)) {
             return false;
         }
-
-        final String path;
-        try {
-            path = createAndGetLockPath();
-        } catch (InterruptedException e) {
-            log.log(
-                java.util.logging.Level.WARNING,
-                "InterruptedException while trying to get lock path " + absoluteLockPath,
-                e);
-            return false;
-        } catch (KeeperException e) {
-            log.log(
-                java.util.logging.Level.WARNING,
-                "KeeperException while trying to get lock path " + absoluteLockPath,
-                e);
+        final ZooKeeper zk = getZooKeeper();
+        if (zk == null) {
+            log.info("No connection to ZooKeeper, can not lock " + lockDirectoryPath + "/" + nodePrefix);
+            isInUse.set(false);
             return false;
         }
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        wakeUps.drainPermits();
 
         try {
-            // Create lock.
-            absoluteLockPath = zk.create(
-                path,
-                null,
-                ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                CreateMode.EPHEMERAL_SEQUENTIAL);
-            log.log(
-                java.util.logging.Level.INFO,
-                "Created lock node with path: " + absoluteLockPath);
-
-            final long noTimeout = 0;
-            final boolean noWait = false;
-            return attemptToLock(noTimeout, noWait);
+            final String path = createNode(zk);
+            synchronized (this) {
+                nodePath = path;
+            }
+            log.fine("Created lock node with path: " + path);
+            final String name = path.substring(lockDirectoryPath.length() + 1);
+
+            boolean waited = false;
+            while (true) {
+                final List<String> children = getLockNodes(zk.getChildren(lockDirectoryPath, false));
+                final int index = children.indexOf(name);
+                if (index < 0) {
+                    log.info("Lock node " + path + " is gone while locking.");
+                    release();
+                    return false;
+                }
 
+                final List<String> nodesToWaitFor = getNodesToWaitFor(children, index);
+                if (nodesToWaitFor.isEmpty()) {
+                    return acquired(zk, path, waited);
+                }
+                if (!wait) {
+                    // You do not hold the lock and you do not want to wait. Clean up and return false.
+                    release();
+                    return false;
+                }
+                waited = true;
+
+                // A permit waiter behind another waiter also wakes when that one gets a permit.
+                final boolean waitForPermit = kind == Kind.PERMIT && index > permits;
+                boolean changed = false;
+                for (final String node : nodesToWaitFor) {
+                    final Stat stat = zk.exists(lockDirectoryPath + "/" + node, wakeUpWatcher);
+                    if (stat == null || (waitForPermit && stat.getVersion() != 0)) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    continue;
+                }
+
+                log.fine(path + " is waiting for " + nodesToWaitFor + ".");
+                final long remainingMs = deadline - System.currentTimeMillis();
+                if (remainingMs <= 0 || !wakeUps.tryAcquire(remainingMs, TimeUnit.MILLISECONDS)) {
+                    // Timed out while waiting for lock
+                    log.fine("Timed out while waiting for lock " + path + ".");
+                    release();
+                    return false;
+                }
+                wakeUps.drainPermits();
+                if (getZooKeeper() != zk) {
+                    log.info("Lost the connection to ZooKeeper while waiting for lock " + path + ".");
+                    release();
+                    return false;
+                }
+            }
         } catch (InterruptedException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "InterruptedException while trying to create lock " + absoluteLockPath,
-                e);
+            log.log(Level.INFO, "InterruptedException while trying to lock " + lockDirectoryPath + "/" + nodePrefix, e);
+            release();
+            Thread.currentThread().interrupt();
             return false;
         } catch (KeeperException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "KeeperException while trying to create lock " + absoluteLockPath,
-                e);
+            log.log(Level.INFO, "KeeperException while trying to lock " + lockDirectoryPath + "/" + nodePrefix, e);
+            release();
             return false;
         }
     }
 
-    @Override
-    public boolean tryLock(int timeoutMs) {
-        // This lock object is already in use
-        if (!isInUse.compareAndSet(false, true)) {
-            return false;
+    /**
+     * @return the nodes of this lock that matter to our kind, ordered by sequence number: the write and
+     * read nodes for a write or read lock, the permit nodes for a semaphore.
+     */
+    private List<String> getLockNodes(List<String> children) {
+        final List<String> nodes = new ArrayList<String>();
+        for (final String child : children) {
+            final boolean matches = kind == Kind.PERMIT
+                    ? isNode(child, nodePrefix)
+                    : isNode(child, writePrefix) || isNode(child, readPrefix);
+            if (matches) {
+                nodes.add(child);
+            }
         }
+        Collections.sort(nodes, SEQUENCE_ORDER);
+        return nodes;
+    }
 
-        final String path;
-        try {
-            path = createAndGetLockPath();
-        } catch (InterruptedException e) {
-            log.log(
-                java.util.logging.Level.WARNING,
-                "InterruptedException while trying to get lock path " + absoluteLockPath,
-                e);
-            return false;
-        } catch (KeeperException e) {
-            log.log(
-                java.util.logging.Level.WARNING,
-                "KeeperException while trying to get lock path " + absoluteLockPath,
-                e);
+    /**
+     * @return true if child is prefix followed by a sequence number, so that MyLock does not
+     * match the nodes of MyLock2.
+     */
+    private static boolean isNode(String child, String prefix) {
+        if (child.length() != prefix.length() + SEQUENCE_LENGTH || !child.startsWith(prefix)) {
             return false;
         }
+        for (int i = prefix.length(); i < child.length(); i++) {
+            if (!Character.isDigit(child.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        try {
-            // Create lock.
-            absoluteLockPath = zk.create(
-                path,
-                null,
-                ZooDefs.Ids.OPEN_ACL_UNSAFE,
-                CreateMode.EPHEMERAL_SEQUENTIAL);
-            log.log(
-                java.util.logging.Level.INFO,
-                "Created lock node with path: " + absoluteLockPath);
-
-            final boolean wait = true;
-            return attemptToLock(timeoutMs, wait);
-
-        } catch (InterruptedException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "InterruptedException while trying to create lock " + absoluteLockPath,
-                e);
-            return false;
-        } catch (KeeperException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "KeeperException while trying to create lock " + absoluteLockPath,
-                e);
-            return false;
+    /**
+     * @return the nodes that stand in the way of the node at index, none if we hold the lock.
+     */
+    private List<String> getNodesToWaitFor(List<String> children, int index) {
+        switch (kind) {
+            case WRITE:
+                if (index == 0) {
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(children.get(index - 1));
+            case READ:
+                for (int i = index - 1; i >= 0; i--) {
+                    if (isNode(children.get(i), writePrefix)) {
+                        return Collections.singletonList(children.get(i));
+                    }
+                }
+                return Collections.emptyList();
+            case PERMIT:
+                if (index < permits) {
+                    return Collections.emptyList();
+                }
+                if (index == permits) {
+                    return children.subList(0, permits);
+                }
+                return Collections.singletonList(children.get(index - 1));
         }
+        throw new IllegalStateException("Unknown lock kind " + kind);
     }
 
-    private boolean attemptToLock(long timeoutMs, boolean wait) throws InterruptedException, KeeperException {
-        log.log(
-            java.util.logging.Level.INFO,
-            "Attempting to lock " + absoluteLockPath + ".");
-        final long time = System.currentTimeMillis();
-        final CountDownLatch timeoutLatch = new CountDownLatch(1);
-        List<String> children = zk.getChildren(
-            getPathToLockNode(), // "-1" to remove the "/"
-            false);
-
-        // Check to see if you hold the lock (find the lock node with the next lower number)
-        boolean lockAcquired = true;
-        final int createdNumber = getNodeNumber(absoluteLockPath);
-        String nodeToWatch = "";
-        int nodeNumberToWatch = -1;
-        for (final String child : children) {
-            if (!child.startsWith(this.lockName)) {
-                continue;
-            }
-            final int childNumber = getNodeNumber(child);
-            if (childNumber < createdNumber && childNumber > nodeNumberToWatch) {
-                nodeNumberToWatch = childNumber;
-                nodeToWatch = child;
-                lockAcquired = false;
-            }
+    /**
+     * Watches our node, so that the listeners are told if it is deleted by someone else.
+     */
+    private boolean acquired(ZooKeeper zk, String path, boolean waited)
+            throws KeeperException, InterruptedException {
+        if (waited && kind == Kind.PERMIT && permits > 1) {
+            // Wakes the waiter behind us, which is now the first waiter.
+            zk.setData(path, new byte[0], -1);
         }
-        if (lockAcquired) {
-            // You hold the lock.
-            log.log(
-                java.util.logging.Level.INFO,
-                "Lock " + absoluteLockPath + " aquired.");
-            return true;
-        } if (!wait) {
-            // You do not hold the lock and you do not want to wait. Clean up and return false.
+        if (zk.exists(path, heldWatcher) == null) {
+            log.info("Lock node " + path + " is gone while locking.");
             release();
             return false;
         }
+        synchronized (this) {
+            held = true;
+        }
+        log.fine("Lock " + path + " acquired.");
+        return true;
+    }
 
-        String lockPathToWatch = getPathToLockNode() + "/" + nodeToWatch;
-        log.log(
-            java.util.logging.Level.INFO,
-            absoluteLockPath + " is waiting for " + lockPathToWatch + ".");
-        Stat stat = zk.exists(lockPathToWatch, new Watcher() {
-
-            @Override
-            public void process(WatchedEvent watchedEvent) {
-                if (watchedEvent.getType().equals(Event.EventType.NodeDeleted)) {
-                    log.log(
-                        java.util.logging.Level.INFO,
-                        "Lock node " + absoluteLockPath + " received event of lock removed event..");
-                    timeoutLatch.countDown();
-                }
+    @Override
+    public void release() {
+        final ZooKeeper zk;
+        final String path;
+        synchronized (this) {
+            zk = this.zk;
+            path = nodePath;
+            nodePath = null;
+            held = false;
+        }
+        if (path != null) {
+            if (zk == null) {
+                abandon(path);
+            } else {
+                deleteNode(zk, path);
             }
-        });
-        if (stat == null) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "Another service has released a lock.");
-            timeoutLatch.countDown();
+            log.fine("Released lock " + path);
         }
+        isInUse.set(false);
+    }
 
-        log.log(
-            java.util.logging.Level.INFO,
-            "Waiting for lock " + absoluteLockPath + ". Remaining time: " + timeoutMs + " ms.");
-        if ( ! timeoutLatch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
-            // Timed out while waiting for lock
-            log.log(java.util.logging.Level.INFO, "Timed out while waiting for lock.");
-            int anyVersion = -1;
-            zk.delete(absoluteLockPath, anyVersion);
+    /**
+     * The lock, or the wait for it, is given up. If the connection comes back within the session
+     * the node is still there, so it is deleted then.
+     */
+    @Override
+    public void zooKeeperDown() {
+        final boolean wasHeld;
+        synchronized (this) {
+            zk = null;
+            wasHeld = held;
+            held = false;
+            if (nodePath != null) {
+                abandonedPaths.add(nodePath);
+                nodePath = null;
+            }
+        }
+        // Wakes a waiting thread, which gives up.
+        wakeUps.release();
+        if (wasHeld) {
+            log.info("Lost the connection to ZooKeeper while holding lock " + lockDirectoryPath + "/" + nodePrefix);
             isInUse.set(false);
-            return false;
+            notifyLost();
         }
-
-        // The watched node has been deleted. Attempt to lock again with the remaining time left.
-        return attemptToLock(timeoutMs - (System.currentTimeMillis() - time), wait);
     }
 
-    private String getPathToLockNode() {
-        return absoluteLockPath.substring(0, absoluteLockPath.indexOf(lockName) - 1);
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        final List<String> paths;
+        synchronized (this) {
+            this.zk = zk;
+            paths = new ArrayList<String>(abandonedPaths);
+            abandonedPaths.clear();
+        }
+        for (final String path : paths) {
+            zk.delete(path, -1, deleteCallback, null);
+        }
     }
 
+    /**
+     * Everything is watch driven.
+     */
     @Override
-    public void release() {
+    public void timeEvent() {
+    }
+
+    private final Watcher wakeUpWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            // Connection state changes come through ZkUserInterface.
+            if (watchedEvent.getType() != Event.EventType.None) {
+                wakeUps.release();
+            }
+        }
+    };
+
+    private final Watcher heldWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (watchedEvent.getType() == Event.EventType.NodeDeleted) {
+                lockLost(watchedEvent.getPath());
+            }
+        }
+    };
+
+    private final AsyncCallback.VoidCallback deleteCallback = new AsyncCallback.VoidCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx) {
+            final KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                log.info("Could not delete abandoned lock node " + path + ": " + code);
+                abandon(path);
+            }
+        }
+    };
+
+    /**
+     * Our node was deleted while we held the lock, and not by release().
+     */
+    private void lockLost(String path) {
+        synchronized (this) {
+            if (!held || !path.equals(nodePath)) {
+                return;
+            }
+            held = false;
+            nodePath = null;
+        }
+        log.info("Lock node " + path + " was deleted while holding the lock.");
         isInUse.set(false);
+        notifyLost();
+    }
+
+    private void notifyLost() {
+        for (final CloudnameLockListener listener : listeners) {
+            listener.lost();
+        }
+    }
+
+    private void deleteNode(ZooKeeper zk, String path) {
         try {
             final int anyVersion = -1;
-            zk.delete(absoluteLockPath, anyVersion);
-            log.log(
-                java.util.logging.Level.INFO,
-                "Released lock " + absoluteLockPath);
-        } catch (InterruptedException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "InterruptedException while trying to release lock " + absoluteLockPath,
-                e);
+            zk.delete(path, anyVersion);
+        } catch (KeeperException.NoNodeException e) {
+            // Gone already.
         } catch (KeeperException e) {
-            log.log(
-                java.util.logging.Level.INFO,
-                "KeeperException while trying to release lock " + absoluteLockPath,
-                e);
+            log.log(Level.INFO, "KeeperException while trying to delete lock node " + path, e);
+            abandon(path);
+        } catch (InterruptedException e) {
+            log.log(Level.INFO, "InterruptedException while trying to delete lock node " + path, e);
+            abandon(path);
+            Thread.currentThread().interrupt();
         }
     }
 
-    /**
-     * Get the trailing number of a sequential ephemeral node. Node path looks like
-     * this "/cn/pathToLock/lockname000000001", and this method returns "000000001" in this case.
-     * Only use for finding the node number of the current lockname.
-     */
-    private int getNodeNumber(String node) {
-        //TODO (acidmoose): Consider replacing with regex
-        return Integer.parseInt(node.substring(node.indexOf(lockName) + lockName.length(), node.length()));
+    private void abandon(String path) {
+        synchronized (this) {
+            abandonedPaths.add(path);
+        }
+    }
+
+    private ZooKeeper getZooKeeper() {
+        synchronized (this) {
+            return zk;
+        }
     }
 
-    private String createAndGetLockPath() throws InterruptedException, KeeperException {
-        // Create locks if it does not exist
-        if (zk.exists(lockPath, false) == null) {
+    /**
+     * Creates our node, and the lock directory if it does not exist.
+     */
+    private String createNode(ZooKeeper zk) throws InterruptedException, KeeperException {
+        final String path = lockDirectoryPath + "/" + nodePrefix;
+        try {
+            return zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
             try {
-                Util.mkdir(zk, lockPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
-            } catch (CloudnameException e) {
-                log.log(
-                    java.util.logging.Level.INFO,
-                    "CloudnameException while trying to get lock path " + absoluteLockPath,
-                    e);
+                Util.mkdir(zk, lockDirectoryPath, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+            } catch (CloudnameException mkdirException) {
+                log.log(Level.INFO, "CloudnameException while trying to create " + lockDirectoryPath,
+                        mkdirException);
             }
+            return zk.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
         }
-
-        return lockPath + "/" + lockName;
     }
 }
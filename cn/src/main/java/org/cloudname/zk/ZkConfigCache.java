@@ -0,0 +1,197 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.cloudname.CloudnameException;
+import org.cloudname.ConfigListener;
+import org.cloudname.Coordinate;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The configs of the coordinates used in the process, one TrackedConfig per config node. Reading
+ * a config the first time sets a watch on the node, after that it is read from memory until it
+ * changes. All the listeners of a config share the one watch.
+ *
+ * <p> The cache is a ZkUserInterface and passes the connection events on to the configs. A config
+ * is only kept while it has listeners, e.g. of a service handle that is not closed. A config that
+ * is only read with getConfig() is dropped with the session, and read again when asked for.
+ *
+ * <p> With a {@link ZkLastKnownGood} file the configs read are also written to the file, and the
+ * configs in the file are served from startup, and whenever there is no connection to ZooKeeper,
+ * until they are read from ZooKeeper.
+ */
+final class ZkConfigCache implements ZkUserInterface {
+    /**
+     * The keys of the configs in the last known good file start with this.
+     */
+    private static final String CONFIG_KEY_PREFIX = "config:";
+
+    private final Map<String, TrackedConfig> configByPath = new HashMap<String, TrackedConfig>();
+    private ZooKeeper zk = null;
+    private ZkLastKnownGood lastKnownGood = null;
+
+    /**
+     * Writes the config to the last known good file as it changes.
+     */
+    private static class LastKnownGoodWriter implements ConfigListener {
+        private final ZkLastKnownGood lastKnownGood;
+        private final String key;
+
+        LastKnownGoodWriter(ZkLastKnownGood lastKnownGood, String path) {
+            this.lastKnownGood = lastKnownGood;
+            this.key = CONFIG_KEY_PREFIX + path;
+        }
+
+        @Override
+        public void onConfigEvent(Event event, String data) {
+            if (event == Event.DELETED) {
+                lastKnownGood.remove(key);
+                return;
+            }
+            try {
+                lastKnownGood.put(key, data.getBytes(Util.CHARSET_NAME));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Serves the configs in the file until they are read from ZooKeeper, and writes the configs
+     * read to the file. Call it before the cache is used.
+     */
+    void setLastKnownGood(ZkLastKnownGood lastKnownGood) {
+        synchronized (this) {
+            this.lastKnownGood = lastKnownGood;
+        }
+    }
+
+    /**
+     * @return the config of the coordinate, null if the config node has no data.
+     * @throws CloudnameException if it is not in memory and can not be read, e.g. if the
+     * coordinate does not exist.
+     */
+    String getConfig(Coordinate coordinate) throws CloudnameException {
+        return getTrackedConfig(coordinate).getConfigData();
+    }
+
+    /**
+     * Adds a listener to the config of the coordinate. Don't do any heavy lifting in the callback
+     * and don't call cloudname from the callback as this might create a deadlock.
+     */
+    void registerConfigListener(Coordinate coordinate, ConfigListener listener) {
+        getTrackedConfig(coordinate).addConfigListener(listener);
+    }
+
+    /**
+     * Removes a listener added with registerConfigListener(). The config is dropped when it has
+     * no listeners left.
+     */
+    void removeConfigListener(Coordinate coordinate, ConfigListener listener) {
+        String path = ZkCoordinatePath.getConfigPath(coordinate, null);
+        synchronized (this) {
+            TrackedConfig trackedConfig = configByPath.get(path);
+            if (trackedConfig == null) {
+                return;
+            }
+            trackedConfig.removeConfigListener(listener);
+            if (! hasListeners(trackedConfig)) {
+                configByPath.remove(path);
+                trackedConfig.close();
+            }
+        }
+    }
+
+    /**
+     * @return true if the config of the coordinate is kept.
+     */
+    boolean isTracked(Coordinate coordinate) {
+        synchronized (this) {
+            return configByPath.containsKey(ZkCoordinatePath.getConfigPath(coordinate, null));
+        }
+    }
+
+    /**
+     * Called with the monitor held.
+     * @return true if the config has listeners, the writer of the last known good file does not count.
+     */
+    private boolean hasListeners(TrackedConfig trackedConfig) {
+        return trackedConfig.getConfigListenerCount() > (lastKnownGood == null ? 0 : 1);
+    }
+
+    private TrackedConfig getTrackedConfig(Coordinate coordinate) {
+        String path = ZkCoordinatePath.getConfigPath(coordinate, null);
+        synchronized (this) {
+            TrackedConfig trackedConfig = configByPath.get(path);
+            if (trackedConfig == null) {
+                trackedConfig = newTrackedConfig(path);
+                // Under the lock so that it can not miss a new ZooKeeper instance.
+                if (zk != null) {
+                    trackedConfig.newZooKeeperInstance(zk);
+                }
+            }
+            return trackedConfig;
+        }
+    }
+
+    /**
+     * Called with the monitor held. The config is seeded from the last known good file.
+     */
+    private TrackedConfig newTrackedConfig(String path) {
+        TrackedConfig trackedConfig = new TrackedConfig(path);
+        if (lastKnownGood != null) {
+            byte[] config = lastKnownGood.get(CONFIG_KEY_PREFIX + path);
+            if (config != null) {
+                try {
+                    trackedConfig.seed(new String(config, Util.CHARSET_NAME));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            trackedConfig.addConfigListener(new LastKnownGoodWriter(lastKnownGood, path));
+        }
+        configByPath.put(path, trackedConfig);
+        return trackedConfig;
+    }
+
+    @Override
+    public void zooKeeperDown() {
+        synchronized (this) {
+            zk = null;
+            for (TrackedConfig trackedConfig : configByPath.values()) {
+                trackedConfig.zooKeeperDown();
+            }
+        }
+    }
+
+    /**
+     * The configs with listeners are read again without waiting for the replies, so they are all
+     * sent in one go. The others are dropped and read again when asked for.
+     */
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        synchronized (this) {
+            this.zk = zk;
+            Iterator<TrackedConfig> iterator = configByPath.values().iterator();
+            while (iterator.hasNext()) {
+                TrackedConfig trackedConfig = iterator.next();
+                if (hasListeners(trackedConfig)) {
+                    trackedConfig.newZooKeeperInstance(zk);
+                } else {
+                    iterator.remove();
+                    trackedConfig.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The configs schedule their own retries.
+     */
+    @Override
+    public void timeEvent() {
+    }
+}
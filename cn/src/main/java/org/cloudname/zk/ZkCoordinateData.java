@@ -6,12 +6,11 @@ import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.Stat;
 import org.cloudname.CloudnameException;
 import org.cloudname.Endpoint;
+import org.cloudname.JsonCodec;
 import org.cloudname.ServiceState;
 import org.cloudname.ServiceStatus;
-import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 
 import java.io.IOException;
@@ -32,6 +31,21 @@ import java.util.Set;
  *  @auther dybdahl
  */
 public final class ZkCoordinateData {
+    /**
+     * The formats the data can be serialized in. Data in either format can be deserialized,
+     * so clients can move to the binary format once all readers have been upgraded.
+     */
+    public enum Format {
+        /**
+         * The service status as a JSON string followed by a JSON map of the endpoints.
+         */
+        JSON,
+        /**
+         * Smaller and faster to parse, see {@link BinaryStatusFormat}.
+         */
+        BINARY
+    }
+
     /**
      * The status of the coordinate, is it running etc.
      */
@@ -43,15 +57,22 @@ public final class ZkCoordinateData {
      */
     private Map<String, Endpoint> endpointsByName = new HashMap<String, Endpoint>();
 
-    // Used for deserializing.
-    private ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * The modification zxid of the ZooKeeper node the data was loaded from, -1 if not loaded.
+     */
+    private long version = -1;
+
+    private static final JsonCodec<String> stringCodec = JsonCodec.forType(String.class);
+
+    private static final JsonCodec<Map<String, Endpoint>> endpointsCodec =
+            JsonCodec.forType(new TypeReference<Map<String, Endpoint>>() {});
 
     /**
      * Create a new immutable snapshot object.
      */
     public Snapshot snapshot() {
         synchronized (this) {
-            return new Snapshot(serviceStatus, endpointsByName);
+            return new Snapshot(serviceStatus, endpointsByName, version);
         }
     }
 
@@ -65,6 +86,16 @@ public final class ZkCoordinateData {
         }
     }
 
+    /**
+     * Sets the version, this should be the modification zxid (mzxid) of the node the data was read from.
+     */
+    ZkCoordinateData setVersion(long version) {
+        synchronized (this) {
+            this.version = version;
+            return this;
+        }
+    }
+
     /**
      * Adds new endpoints to the builder. It is not legal to add a new endpoint with an endpoint that already
      * exists.
@@ -100,20 +131,23 @@ public final class ZkCoordinateData {
     }
 
     /**
-     * Sets the state of the Dynamic object based on a serialized byte string.
+     * Sets the state of the Dynamic object based on a serialized byte string in any format.
      * Any old data is overwritten.
      * @throws IOException if something went wrong, should not happen on valid data.
      */
     public ZkCoordinateData deserialize(byte[] data) throws IOException {
         synchronized (this) {
-            String stringData = new String(data, Util.CHARSET_NAME);
-            JsonFactory jsonFactory = new JsonFactory();
-            JsonParser jp = jsonFactory.createJsonParser(stringData);
-            String statusString = objectMapper.readValue(jp, new TypeReference<String>() {});
+            if (BinaryStatusFormat.isBinary(data)) {
+                Map<String, Endpoint> newEndpointsByName = new HashMap<String, Endpoint>();
+                serviceStatus = BinaryStatusFormat.decode(data, newEndpointsByName);
+                endpointsByName = newEndpointsByName;
+                return this;
+            }
+            JsonParser jp = JsonCodec.getJsonFactory().createJsonParser(data);
+            String statusString = stringCodec.read(jp);
             serviceStatus = ServiceStatus.fromJson(statusString);
             endpointsByName.clear();
-            endpointsByName.putAll((Map<String, Endpoint>)objectMapper.readValue(jp,
-                    new TypeReference <Map<String, Endpoint>>() {}));
+            endpointsByName.putAll(endpointsCodec.read(jp));
         }
         return this;
     }
@@ -132,6 +166,8 @@ public final class ZkCoordinateData {
          */
         private final Map<String, Endpoint> endpointsByName;
 
+        private final long version;
+
         /**
          * Getter for status of coordinate.
          * @return the service status of the coordinate.
@@ -140,6 +176,16 @@ public final class ZkCoordinateData {
             return serviceStatus;
         }
 
+        /**
+         * The version is the modification zxid of the ZooKeeper node the data was loaded from. A node
+         * gets a new modification zxid on every change, so two snapshots of the same coordinate with
+         * the same version hold the same data.
+         * @return the version or -1 if the data was not loaded from ZooKeeper.
+         */
+        public long getVersion() {
+            return version;
+        }
+
         /**
          * Getter for endpoint of the coordinate given the endpoint name.
          * @param name of the endpoint.
@@ -177,9 +223,9 @@ public final class ZkCoordinateData {
             JsonGenerator generator;
 
             try {
-                generator = new JsonFactory(new ObjectMapper()).createJsonGenerator(stringWriter);
+                generator = JsonCodec.getJsonFactory().createJsonGenerator(stringWriter);
                 generator.writeString(serviceStatus.toJson());
-                generator.writeObject(endpointsByName);
+                endpointsCodec.write(endpointsByName, generator);
 
                 generator.flush();
             } catch (IOException e) {
@@ -188,12 +234,27 @@ public final class ZkCoordinateData {
             return new String(stringWriter.getBuffer());
         }
 
+        /**
+         * Returns the serialized data in the given format. It can be de-serialized by the inner class.
+         */
+        public byte[] serialize(Format format) {
+            if (format == Format.BINARY) {
+                return BinaryStatusFormat.encode(serviceStatus, endpointsByName);
+            }
+            try {
+                return serialize().getBytes(Util.CHARSET_NAME);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         /**
          * Private constructor, only ZkCoordinateData can build this.
          */
-        private Snapshot(ServiceStatus serviceStatus, Map<String, Endpoint> endpointsByName) {
+        private Snapshot(ServiceStatus serviceStatus, Map<String, Endpoint> endpointsByName, long version) {
             this.serviceStatus = serviceStatus;
             this.endpointsByName = endpointsByName;
+            this.version = version;
         }
     }
 
@@ -212,7 +273,7 @@ public final class ZkCoordinateData {
             } else {
                 data = zk.getData(statusPath, watcher, stat);
             }
-            return new ZkCoordinateData().deserialize(data);
+            return new ZkCoordinateData().deserialize(data).setVersion(stat.getMzxid());
         } catch (KeeperException e) {
             throw new CloudnameException(e);
         } catch (UnsupportedEncodingException e) {
@@ -0,0 +1,203 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.cloudname.Coordinate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Creates coordinates in bulk, e.g. when setting up a new cell with
+ * tens of thousands of coordinates.
+ *
+ * <p> The input is read one line at a time, so it can be of any size.
+ * The paths shared by the coordinates, /cn, the cells, users and
+ * services, are created the first time they are seen and never again.
+ * The coordinates are created with async requests, with at most
+ * maxInFlight of them waiting for a reply at any time.  ZooKeeper
+ * handles the requests of a session in order, so a parent is in place
+ * before the coordinates below it are created.
+ *
+ * <p> A failure does not stop the run.  The result of each line is
+ * returned at the end.
+ */
+public final class ZkCoordinateProvisioner {
+    private static final Logger log = Logger.getLogger(ZkCoordinateProvisioner.class.getName());
+
+    /**
+     * The result of one line of input.
+     */
+    public static final class Result {
+        private final int lineNumber;
+        private final String line;
+        private final Coordinate coordinate;
+        // Set from the ZooKeeper event thread, read once the run is done.
+        private volatile String error;
+
+        private Result(int lineNumber, String line, Coordinate coordinate, String error) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+            this.coordinate = coordinate;
+            this.error = error;
+        }
+
+        /**
+         * @return the line number in the input, starting at 1.
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        /**
+         * @return the coordinate of the line, or null if it could not be parsed.
+         */
+        public Coordinate getCoordinate() {
+            return coordinate;
+        }
+
+        public boolean isCreated() {
+            return error == null;
+        }
+
+        /**
+         * @return why the coordinate was not created, or null if it was.
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            if (isCreated()) {
+                return "line " + lineNumber + ": Created " + line;
+            }
+            return "line " + lineNumber + ": Could not create: " + line + " Got error: " + error;
+        }
+    }
+
+    private final ZooKeeper zk;
+    private final int maxInFlight;
+    private final Semaphore window;
+    private final Set<String> parentPaths = new HashSet<String>();
+
+    /**
+     * @param zk the ZooKeeper instance to create the coordinates in.
+     * @param maxInFlight the most coordinates to wait for replies for at a time.
+     */
+    ZkCoordinateProvisioner(ZooKeeper zk, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        this.zk = zk;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Creates the coordinates read from the input, one per line.  Blank
+     * lines are skipped.  Must not be called from the ZooKeeper event
+     * thread, which runs the callbacks this waits for.
+     * @return the result of each non-blank line, in the order of the input.
+     * @throws IOException if the input could not be read.  The coordinates
+     * created up to then are left in place.
+     */
+    public List<Result> provision(BufferedReader input) throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = input.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                Coordinate coordinate;
+                try {
+                    coordinate = Coordinate.parse(line);
+                } catch (IllegalArgumentException e) {
+                    results.add(new Result(lineNumber, line, null, e.getMessage()));
+                    continue;
+                }
+                Result result = new Result(lineNumber, line, coordinate, null);
+                results.add(result);
+                create(result);
+            }
+        } finally {
+            // Wait for the creates in flight.
+            window.acquire(maxInFlight);
+            window.release(maxInFlight);
+        }
+        return results;
+    }
+
+    private void create(Result result) throws InterruptedException {
+        String root = ZkCoordinatePath.getCoordinateRoot(result.getCoordinate());
+        List<String> levels = Util.getPathLevels(root);
+        for (String parent : levels.subList(0, levels.size() - 1)) {
+            if (parentPaths.add(parent)) {
+                zk.create(parent, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, parentCallback, null);
+            }
+        }
+
+        window.acquire();
+        zk.create(root, null, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, rootCallback, result);
+        zk.create(ZkCoordinatePath.getConfigPath(result.getCoordinate(), null), null,
+                Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, configCallback, result);
+    }
+
+    /**
+     * A parent that fails is only logged, the coordinates below it fail
+     * with a missing node and report it.
+     */
+    private final AsyncCallback.StringCallback parentCallback = new AsyncCallback.StringCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NODEEXISTS) {
+                log.warning("Could not create " + path + ": " + code);
+            }
+        }
+    };
+
+    private final AsyncCallback.StringCallback rootCallback = new AsyncCallback.StringCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.NODEEXISTS) {
+                ((Result) ctx).error = "Coordinate already created";
+            } else if (code != KeeperException.Code.OK) {
+                ((Result) ctx).error = KeeperException.create(code, path).getMessage();
+            }
+        }
+    };
+
+    /**
+     * The config node is created last, so its reply ends the coordinate.
+     */
+    private final AsyncCallback.StringCallback configCallback = new AsyncCallback.StringCallback() {
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            Result result = (Result) ctx;
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NODEEXISTS && result.isCreated()) {
+                result.error = KeeperException.create(code, path).getMessage();
+            }
+            window.release();
+        }
+    };
+}
@@ -0,0 +1,438 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.cloudname.CloudnameException;
+import org.cloudname.Endpoint;
+import org.cloudname.Resolver;
+import org.cloudname.ServiceState;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A watch driven in-memory index of all the endpoints in Cloudname, used by
+ * {@link ZkResolver#getEndpoints(Resolver.CoordinateDataFilter)}.
+ *
+ * <p> The index keeps the cells, users and services, each level
+ * kept current by child watches.  The instances of each service are kept
+ * by {@link ZkResolverCache}, which also indexes their endpoints by
+ * service state and endpoint name.  A query calls the filter once for
+ * each distinct cell, user, service, state and endpoint name and
+ * otherwise only looks at the endpoints it returns.  It never reads
+ * from ZooKeeper once the index is loaded.
+ *
+ * <p> The index is loaded the first time it is queried and kept current
+ * from then on.  The cache keeps the services of the index even when
+ * they are not read.  Like the cache, it is dropped on a new ZooKeeper
+ * session.
+ */
+final class ZkEndpointIndex implements ZkUserInterface {
+
+    private static final Logger log = Logger.getLogger(ZkEndpointIndex.class.getName());
+
+    // Depth of the paths in the tree, /cn is at depth zero.
+    private static final int USER_DEPTH = 2;
+
+    private static final SortedSet<String> NO_CHILDREN =
+            Collections.unmodifiableSortedSet(new TreeSet<String>());
+
+    private final ZkResolverCache cache;
+
+    private ZooKeeper zk = null;
+    private boolean connected = false;
+    private Tree tree = null;
+
+    /**
+     * @param cache the cache holding the instances of the services.
+     */
+    ZkEndpointIndex(ZkResolverCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts loading the index unless it is already loading or loaded.
+     * @return future completed when the index is loaded.
+     * @throws CloudnameException if the index is not loaded and the connection to ZooKeeper is down.
+     */
+    ZkFuture<Void> load() throws CloudnameException {
+        Tree newTree;
+        synchronized (this) {
+            if (tree != null) {
+                return tree.loadFuture;
+            }
+            if (zk == null || ! connected) {
+                throw new CloudnameException("Connection to ZooKeeper is down.");
+            }
+            tree = newTree = new Tree(zk);
+        }
+        // Outside the lock, a tree failing takes the locks in the opposite order.
+        newTree.start();
+        return newTree.loadFuture;
+    }
+
+    /**
+     * @return true if the index is loaded, ie. a query will not wait for ZooKeeper.
+     */
+    boolean isLoaded() {
+        synchronized (this) {
+            return tree != null && tree.loadFuture.isDone();
+        }
+    }
+
+    /**
+     * Returns the endpoints passing the filter. Waits for the index to load if needed.
+     * @throws CloudnameException if the index could not be loaded.
+     */
+    Set<Endpoint> getEndpoints(Resolver.CoordinateDataFilter filter)
+            throws CloudnameException, InterruptedException {
+        ZkFuture<Void> loaded = load();
+        try {
+            loaded.get();
+        } catch (ExecutionException e) {
+            throw (CloudnameException) e.getCause();
+        }
+
+        Tree localTree;
+        synchronized (this) {
+            localTree = tree;
+        }
+        if (localTree == null) {
+            throw new CloudnameException("Index dropped while loading.");
+        }
+
+        Set<ServiceState> states = EnumSet.noneOf(ServiceState.class);
+        for (ServiceState state : ServiceState.values()) {
+            if (filter.includeServiceState(state)) {
+                states.add(state);
+            }
+        }
+        Map<String, Boolean> includeByEndpointName = new HashMap<String, Boolean>();
+
+        Set<Endpoint> endpointsIncluded = new HashSet<Endpoint>();
+        String rootPath = ZkCoordinatePath.getCloudnameRoot();
+        for (String cell : localTree.getChildren(rootPath)) {
+            if (! filter.includeCell(cell)) {
+                continue;
+            }
+            String cellPath = rootPath + "/" + cell;
+            for (String user : localTree.getChildren(cellPath)) {
+                if (! filter.includeUser(user)) {
+                    continue;
+                }
+                String userPath = cellPath + "/" + user;
+                for (String service : localTree.getChildren(userPath)) {
+                    if (! filter.includeService(service)) {
+                        continue;
+                    }
+                    Map<ServiceState, Map<String, List<Endpoint>>> endpointsByStateAndName =
+                            getEndpointsByStateAndName(cell, user, service);
+                    for (ServiceState state : states) {
+                        Map<String, List<Endpoint>> endpointsByName = endpointsByStateAndName.get(state);
+                        if (endpointsByName == null) {
+                            continue;
+                        }
+                        for (Map.Entry<String, List<Endpoint>> entry : endpointsByName.entrySet()) {
+                            Boolean include = includeByEndpointName.get(entry.getKey());
+                            if (include == null) {
+                                include = filter.includeEndpointname(entry.getKey());
+                                includeByEndpointName.put(entry.getKey(), include);
+                            }
+                            if (include) {
+                                endpointsIncluded.addAll(entry.getValue());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return endpointsIncluded;
+    }
+
+    /**
+     * @param servicePath the path of the service, /cn/%cell%/%user%/%service%.
+     * @return true if the index is loaded, or loading, and has the service.
+     */
+    boolean containsService(String servicePath) {
+        Tree localTree;
+        synchronized (this) {
+            localTree = tree;
+        }
+        if (localTree == null) {
+            return false;
+        }
+        int end = servicePath.lastIndexOf('/');
+        return localTree.getChildren(servicePath.substring(0, end)).contains(servicePath.substring(end + 1));
+    }
+
+    /**
+     * Gets the endpoints of a service from the cache. The cache drops services
+     * on errors, if so we reload it.
+     */
+    private Map<ServiceState, Map<String, List<Endpoint>>> getEndpointsByStateAndName(
+            String cell, String user, String service) throws CloudnameException {
+        Map<ServiceState, Map<String, List<Endpoint>>> endpointsByStateAndName =
+                cache.getEndpointsByStateAndName(cell, user, service);
+        if (endpointsByStateAndName == null) {
+            cache.getSnapshots(cell, user, service, -1);
+            endpointsByStateAndName = cache.getEndpointsByStateAndName(cell, user, service);
+        }
+        if (endpointsByStateAndName == null) {
+            return Collections.emptyMap();
+        }
+        return endpointsByStateAndName;
+    }
+
+    @Override
+    public void zooKeeperDown() {
+        synchronized (this) {
+            connected = false;
+        }
+    }
+
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        Tree oldTree = null;
+        synchronized (this) {
+            if (this.zk != zk) {
+                // Watches do not survive a new session.
+                oldTree = tree;
+                tree = null;
+                this.zk = zk;
+            }
+            connected = (zk != null);
+        }
+        if (oldTree != null) {
+            oldTree.drop();
+        }
+    }
+
+    /**
+     * Everything is watch driven, so we don't need to do any periodic checks.
+     */
+    @Override
+    public void timeEvent() {
+    }
+
+    private void dropTree(Tree treeToDrop) {
+        synchronized (this) {
+            if (treeToDrop == null || tree != treeToDrop) {
+                return;
+            }
+            tree = null;
+        }
+        treeToDrop.drop();
+    }
+
+    /**
+     * The cells, users and services and the child watches keeping them current.
+     * Reads are issued with the async API and the replies are handled by the
+     * callback methods of this class, so nothing here waits for ZooKeeper.
+     */
+    private final class Tree implements Watcher, AsyncCallback.ChildrenCallback, AsyncCallback.StatCallback {
+        private final ZooKeeper zk;
+
+        /**
+         * Sub nodes of /cn, the cells and the users. The sets are never modified.
+         */
+        private final ConcurrentMap<String, SortedSet<String>> childrenByPath =
+                new ConcurrentHashMap<String, SortedSet<String>>();
+
+        private final ZkFuture<Void> loadFuture = new ZkFuture<Void>();
+
+        /**
+         * Number of reads we are waiting for. The initial load is done when
+         * this drops to zero. Not guarded by this since the cache completes
+         * service loads while holding its own locks.
+         */
+        private final AtomicInteger pendingReads = new AtomicInteger();
+
+        private boolean dropped = false;
+
+        Tree(ZooKeeper zk) {
+            this.zk = zk;
+        }
+
+        synchronized void start() {
+            listChildren(ZkCoordinatePath.getCloudnameRoot());
+        }
+
+        synchronized void drop() {
+            dropped = true;
+            loadFuture.setException(new CloudnameException("Index has been dropped."));
+        }
+
+        SortedSet<String> getChildren(String path) {
+            SortedSet<String> children = childrenByPath.get(path);
+            if (children == null) {
+                return NO_CHILDREN;
+            }
+            return children;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                // Connection state is handled through ZkUserInterface.
+                return;
+            }
+            synchronized (this) {
+                if (dropped) {
+                    return;
+                }
+                switch (event.getType()) {
+                    case NodeCreated:
+                    case NodeChildrenChanged:
+                        listChildren(event.getPath());
+                        break;
+                    default:
+                        // Deletion is handled by the child watch on the parent.
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Reply to getChildren().
+         */
+        @Override
+        public synchronized void processResult(int rc, String path, Object ctx, List<String> children) {
+            if (dropped) {
+                return;
+            }
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    break;
+                case NONODE:
+                    children = Collections.emptyList();
+                    if (path.equals(ZkCoordinatePath.getCloudnameRoot())) {
+                        // Watch for the root to be created.
+                        pendingReads.incrementAndGet();
+                        zk.exists(path, this, this, null);
+                    }
+                    break;
+                default:
+                    fail(KeeperException.create(KeeperException.Code.get(rc), path));
+                    return;
+            }
+
+            SortedSet<String> newChildren = Collections.unmodifiableSortedSet(new TreeSet<String>(children));
+            SortedSet<String> oldChildren = childrenByPath.put(path, newChildren);
+            if (oldChildren != null) {
+                for (String child : oldChildren) {
+                    if (! newChildren.contains(child)) {
+                        removeSubtree(path + "/" + child);
+                    }
+                }
+            }
+            boolean childrenAreServices = (getDepth(path) == USER_DEPTH);
+            for (String child : newChildren) {
+                if (oldChildren != null && oldChildren.contains(child)) {
+                    continue;
+                }
+                if (childrenAreServices) {
+                    loadService(path + "/" + child);
+                } else {
+                    listChildren(path + "/" + child);
+                }
+            }
+            readDone();
+        }
+
+        /**
+         * Reply to exists() on the root.
+         */
+        @Override
+        public synchronized void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (dropped) {
+                return;
+            }
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    // Created since we tried to read it.
+                    listChildren(path);
+                    break;
+                case NONODE:
+                    // The watch is set.
+                    break;
+                default:
+                    fail(KeeperException.create(KeeperException.Code.get(rc), path));
+                    return;
+            }
+            readDone();
+        }
+
+        /**
+         * Lists the sub nodes of a path and sets a child watch.
+         */
+        private void listChildren(String path) {
+            pendingReads.incrementAndGet();
+            zk.getChildren(path, this, this, null);
+        }
+
+        /**
+         * Makes sure the service is loaded in the cache. Errors are left to be
+         * handled when the service is queried.
+         */
+        private void loadService(String servicePath) {
+            // The path is /cn/%cell%/%user%/%service%.
+            String[] parts = servicePath.split("/");
+            pendingReads.incrementAndGet();
+            cache.getSnapshotsAsync(parts[2], parts[3], parts[4], -1).addListener(new Runnable() {
+                @Override
+                public void run() {
+                    readDone();
+                }
+            });
+        }
+
+        private void removeSubtree(String path) {
+            SortedSet<String> children = childrenByPath.remove(path);
+            if (children == null) {
+                return;
+            }
+            for (String child : children) {
+                removeSubtree(path + "/" + child);
+            }
+        }
+
+        private void readDone() {
+            if (pendingReads.decrementAndGet() == 0) {
+                // Has no effect after the first time.
+                loadFuture.set(null);
+            }
+        }
+
+        private void fail(Exception e) {
+            log.info("Problems reading Cloudname tree, dropping index: " + e.getMessage());
+            loadFuture.setException(new CloudnameException(e));
+            dropTree(this);
+        }
+
+        private int getDepth(String path) {
+            int depth = 0;
+            for (int i = ZkCoordinatePath.getCloudnameRoot().length(); i < path.length(); i++) {
+                if (path.charAt(i) == '/') {
+                    depth++;
+                }
+            }
+            return depth;
+        }
+    }
+}
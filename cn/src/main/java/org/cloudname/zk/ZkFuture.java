@@ -0,0 +1,143 @@
+package org.cloudname.zk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Future that is completed by ZooKeeper callbacks rather than by
+ * running a task. Listeners added with {@link #addListener} are run
+ * when the future completes, on the thread completing it, which is
+ * usually the ZooKeeper event thread. Listeners must therefore not
+ * block.
+ *
+ * <p> Waiting for a future from the ZooKeeper event thread will
+ * never return if the future is to be completed by a ZooKeeper
+ * callback, see {@link Util#isZooKeeperEventThread()}.
+ */
+final class ZkFuture<V> implements Future<V> {
+    private static final Logger log = Logger.getLogger(ZkFuture.class.getName());
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private V value = null;
+    private Throwable exception = null;
+    private List<Runnable> listeners = new ArrayList<Runnable>();
+
+    /**
+     * @return a future that is already completed with the value.
+     */
+    static <V> ZkFuture<V> completed(V value) {
+        ZkFuture<V> future = new ZkFuture<V>();
+        future.set(value);
+        return future;
+    }
+
+    /**
+     * Completes the future with a value. Only the first completion has any effect.
+     * @return true if this call completed the future.
+     */
+    boolean set(V value) {
+        synchronized (this) {
+            if (listeners == null) {
+                return false;
+            }
+            this.value = value;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * Completes the future with an exception, it is thrown from get() wrapped in an
+     * ExecutionException. Only the first completion has any effect.
+     * @return true if this call completed the future.
+     */
+    boolean setException(Throwable exception) {
+        synchronized (this) {
+            if (listeners == null) {
+                return false;
+            }
+            this.exception = exception;
+        }
+        complete();
+        return true;
+    }
+
+    /**
+     * Runs the listener when the future completes, or right away if it has completed.
+     */
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    private void complete() {
+        List<Runnable> listenersToRun;
+        synchronized (this) {
+            listenersToRun = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        for (Runnable listener : listenersToRun) {
+            runListener(listener);
+        }
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Listener of future threw exception.", e);
+        }
+    }
+
+    /**
+     * These futures are completed by ZooKeeper, so they can not be cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getValue();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (! done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getValue();
+    }
+
+    private synchronized V getValue() throws ExecutionException {
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,396 @@
+package org.cloudname.zk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The last known good data read from ZooKeeper, kept in a local file so that a process can
+ * resolve services and read configs right away when it starts, and while ZooKeeper can not be
+ * reached.
+ *
+ * <p> The file is memory-mapped and only appended to: each put or remove is a record at the end
+ * of the file, and the last record of a key wins. The header holds the end of the last complete
+ * record, which is updated after the record is written, so a process that dies while writing
+ * leaves the file as it was before the write. Each record has a checksum as well. When the file
+ * is mostly replaced records it is compacted, by writing the live records to a new file which
+ * replaces the old one.
+ *
+ * <p> Only one process writes to a file: the writer holds a lock on a lock file next to it, which
+ * is not replaced by compacting. A process that can not take the lock reads the file when it is
+ * opened and does not write to it.
+ *
+ * <p> A file that can not be read is not an error, the data is simply not there. The file is a
+ * cache, it is not forced to disk on every write.
+ */
+final class ZkLastKnownGood {
+    private static final Logger log = Logger.getLogger(ZkLastKnownGood.class.getName());
+
+    private static final byte[] MAGIC = toBytes("CNLKG001");
+
+    /**
+     * The magic and the end of the last complete record.
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * The key length, the value length, which is -1 for a remove, and the checksum.
+     */
+    private static final int RECORD_OVERHEAD = 12;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Files smaller than this are never compacted.
+     */
+    private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+    private final File file;
+    private final File lockFile;
+    private final Map<String, byte[]> valueByKey = new HashMap<String, byte[]>();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private int end;
+    private long liveBytes = 0;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    private ZkLastKnownGood(File file) {
+        this.file = file;
+        this.lockFile = new File(file.getPath() + ".lock");
+    }
+
+    /**
+     * Opens the file and reads the records in it, the file is created if it does not exist. If
+     * another process, or another instance in this process, has the file open for writing, the
+     * records are read and nothing is written.
+     * @throws IOException if the file can not be opened or created.
+     */
+    static ZkLastKnownGood open(File file) throws IOException {
+        ZkLastKnownGood lastKnownGood = new ZkLastKnownGood(file);
+        synchronized (lastKnownGood) {
+            if (lastKnownGood.lock()) {
+                lastKnownGood.map();
+                lastKnownGood.load();
+            } else {
+                log.warning(file + " is written by another process, reading it without writing.");
+                lastKnownGood.read();
+            }
+        }
+        return lastKnownGood;
+    }
+
+    /**
+     * @return true if this instance writes to the file.
+     */
+    synchronized boolean isWritable() {
+        return randomAccessFile != null;
+    }
+
+    /**
+     * @return the values by key.
+     */
+    synchronized Map<String, byte[]> getAll() {
+        return new HashMap<String, byte[]>(valueByKey);
+    }
+
+    /**
+     * @return the value of a key, or null if there is none.
+     */
+    synchronized byte[] get(String key) {
+        return valueByKey.get(key);
+    }
+
+    /**
+     * Sets the value of a key. Nothing is written if the value is the same as before.
+     */
+    synchronized void put(String key, byte[] value) {
+        byte[] oldValue = valueByKey.get(key);
+        if (oldValue != null && Arrays.equals(oldValue, value)) {
+            return;
+        }
+        append(key, value);
+    }
+
+    synchronized void remove(String key) {
+        if (valueByKey.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    /**
+     * Forces the data to disk and closes the file.
+     */
+    synchronized void close() {
+        if (randomAccessFile != null) {
+            buffer.force();
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                log.log(Level.INFO, "Could not close " + file, e);
+            }
+            randomAccessFile = null;
+        }
+        unlock();
+    }
+
+    /**
+     * Takes the lock on the lock file without waiting for it.
+     * @return true if the lock was taken.
+     */
+    private boolean lock() throws IOException {
+        lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by another instance in this process.
+            lock = null;
+        }
+        if (lock == null) {
+            unlock();
+            return false;
+        }
+        return true;
+    }
+
+    private void unlock() {
+        if (lockChannel == null) {
+            return;
+        }
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            lockChannel.close();
+        } catch (IOException e) {
+            log.log(Level.INFO, "Could not release " + lockFile, e);
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    /**
+     * Reads the records of a file that is written by another process, without writing to it.
+     */
+    private void read() throws IOException {
+        if (! file.exists()) {
+            return;
+        }
+        RandomAccessFile readFile = new RandomAccessFile(file, "r");
+        try {
+            if (readFile.length() >= HEADER_SIZE) {
+                buffer = readFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, readFile.length());
+                load();
+            }
+        } finally {
+            readFile.close();
+        }
+        buffer = null;
+    }
+
+    private void append(String key, byte[] value) {
+        if (randomAccessFile == null) {
+            return;
+        }
+        byte[] keyBytes = toBytes(key);
+        int recordSize = RECORD_OVERHEAD + keyBytes.length + (value == null ? 0 : value.length);
+        try {
+            ensureCapacity(end + recordSize);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not grow " + file + ", not writing to it any more.", e);
+            close();
+            return;
+        }
+        buffer.position(end);
+        writeRecord(keyBytes, value);
+        end = buffer.position();
+        buffer.putInt(MAGIC.length, end);
+
+        byte[] oldValue = value == null ? valueByKey.remove(key) : valueByKey.put(key, value);
+        if (oldValue != null) {
+            liveBytes -= RECORD_OVERHEAD + keyBytes.length + oldValue.length;
+        }
+        if (value != null) {
+            liveBytes += recordSize;
+        }
+        if (end > MIN_COMPACT_SIZE && end > 2 * (liveBytes + HEADER_SIZE)) {
+            compact();
+        }
+    }
+
+    private void writeRecord(byte[] keyBytes, byte[] value) {
+        CRC32 crc = new CRC32();
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value == null ? -1 : value.length);
+        buffer.put(keyBytes);
+        crc.update(keyBytes);
+        if (value != null) {
+            buffer.put(value);
+            crc.update(value);
+        }
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Reads the records up to the end in the header, or up to the first broken record.
+     */
+    private void load() {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                log.info("No last known good data in " + file + ", starting with an empty file.");
+                if (! buffer.isReadOnly()) {
+                    reset();
+                }
+                return;
+            }
+        }
+        int headerEnd = buffer.getInt(MAGIC.length);
+        buffer.position(HEADER_SIZE);
+        try {
+            while (buffer.position() < headerEnd) {
+                int keyLength = buffer.getInt();
+                int valueLength = buffer.getInt();
+                if (keyLength < 0 || valueLength < -1
+                        || buffer.position() + keyLength + Math.max(valueLength, 0) + 4 > headerEnd) {
+                    break;
+                }
+                byte[] keyBytes = new byte[keyLength];
+                buffer.get(keyBytes);
+                byte[] value = valueLength < 0 ? null : new byte[valueLength];
+                CRC32 crc = new CRC32();
+                crc.update(keyBytes);
+                if (value != null) {
+                    buffer.get(value);
+                    crc.update(value);
+                }
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                String key = new String(keyBytes, Util.CHARSET_NAME);
+                if (value == null) {
+                    valueByKey.remove(key);
+                } else {
+                    valueByKey.put(key, value);
+                }
+                end = buffer.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // A broken record, the ones before it are kept.
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        if (end < HEADER_SIZE) {
+            end = HEADER_SIZE;
+        }
+        if (buffer.isReadOnly()) {
+            return;
+        }
+        if (end < headerEnd) {
+            log.warning("Dropping a broken record at " + end + " in " + file);
+        }
+        buffer.putInt(MAGIC.length, end);
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            liveBytes += RECORD_OVERHEAD + toBytes(entry.getKey()).length + entry.getValue().length;
+        }
+    }
+
+    private void reset() {
+        buffer.position(0);
+        buffer.put(MAGIC);
+        end = HEADER_SIZE;
+        buffer.putInt(MAGIC.length, end);
+    }
+
+    /**
+     * Writes the live records to a new file, which replaces the old one.
+     */
+    private void compact() {
+        File compacted = new File(file.getPath() + ".tmp");
+        int size = HEADER_SIZE;
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            size += RECORD_OVERHEAD + toBytes(entry.getKey()).length + entry.getValue().length;
+        }
+        try {
+            RandomAccessFile compactedFile = new RandomAccessFile(compacted, "rw");
+            try {
+                compactedFile.setLength(0);
+                MappedByteBuffer compactedBuffer = compactedFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, Math.max(size * 2, INITIAL_CAPACITY));
+                MappedByteBuffer oldBuffer = buffer;
+                buffer = compactedBuffer;
+                reset();
+                buffer.position(HEADER_SIZE);
+                for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+                    writeRecord(toBytes(entry.getKey()), entry.getValue());
+                }
+                end = buffer.position();
+                buffer.putInt(MAGIC.length, end);
+                buffer.force();
+                oldBuffer.force();
+            } finally {
+                compactedFile.close();
+            }
+            randomAccessFile.close();
+            if (! compacted.renameTo(file)) {
+                throw new IOException("Could not rename " + compacted + " to " + file);
+            }
+            map();
+            buffer.putInt(MAGIC.length, end);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not compact " + file + ", not writing to it any more.", e);
+            try {
+                randomAccessFile.close();
+            } catch (IOException closeException) {
+                // Not writing to it anyway.
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    /**
+     * Maps the file, and creates it with an empty header if it is new.
+     */
+    private void map() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        boolean isNew = randomAccessFile.length() < HEADER_SIZE;
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(randomAccessFile.length(), INITIAL_CAPACITY));
+        if (isNew) {
+            reset();
+        }
+    }
+
+    /**
+     * Maps more of the file when needed, doubling the size so that appends are mostly in place.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (size <= buffer.capacity()) {
+            return;
+        }
+        long capacity = buffer.capacity();
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static byte[] toBytes(String string) {
+        try {
+            return string.getBytes(Util.CHARSET_NAME);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,13 +1,14 @@
 package org.cloudname.zk;
 
-import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooKeeper;
 import org.cloudname.*;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 
 /**
@@ -23,8 +24,14 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
 
     private Map<String, ResolverStrategy> strategies;
 
+    private final ZkResolverCache cache = new ZkResolverCache();
+
+    private final ZkEndpointIndex endpointIndex = new ZkEndpointIndex(cache);
+
     @Override
     public void zooKeeperDown() {
+        cache.zooKeeperDown();
+        endpointIndex.zooKeeperDown();
         synchronized (this) {
             this.zk = null;
             for (ResolverListener listener : dynamicAddressesByListener.keySet()) {
@@ -36,24 +43,40 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
     @Override
     public void newZooKeeperInstance(ZooKeeper zk) {
         log.fine("ZkResolver, new zeekeeper instance.");
+        cache.newZooKeeperInstance(zk);
+        endpointIndex.newZooKeeperInstance(zk);
         synchronized (this) {
             this.zk = zk;
             for (ResolverListener listener : dynamicAddressesByListener.keySet()) {
                 listener.endpointEvent(ResolverListener.Event.CONNECTION_OK, null);
             }
-            for (DynamicExpression expression : dynamicAddressesByListener.values()) {
-                expression.newZooKeeperInstance(zk);
+            for (TrackedService trackedService : trackedServiceByPath.values()) {
+                trackedService.newZooKeeperInstance(zk);
             }
         }
     }
 
 
     private Map<ResolverListener, DynamicExpression> dynamicAddressesByListener = new HashMap<ResolverListener, DynamicExpression>();
-    
+
+    /**
+     * One TrackedService per service with listeners, shared by the expressions of the service.
+     */
+    private Map<String, TrackedService> trackedServiceByPath = new HashMap<String, TrackedService>();
+
+    /**
+     * The tracked services schedule their own retries with the ZkScheduler.
+     */
     @Override
     public void timeEvent() {
-        for (DynamicExpression dynamicExpression : dynamicAddressesByListener.values()) {
-            dynamicExpression.timeEvent();
+    }
+
+    /**
+     * @return the number of services tracked for listeners.
+     */
+    int getTrackedServiceCount() {
+        synchronized (this) {
+            return trackedServiceByPath.size();
         }
     }
 
@@ -125,32 +148,99 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
 
 
     /**
-     * Inner class to keep track of parameters parsed from addressExpression.
+     * Inner class to keep track of parameters parsed from addressExpression. The
+     * expression is tokenized once and the forms are told apart by the kinds of the
+     * tokens, which accepts the same expressions as the patterns above.
      */
+    static class Parameters {
+        /**
+         * Most clients use a handful of expressions over and over, so parsed
+         * expressions are kept. Parameters are immutable, so they can be shared.
+         */
+        private static final int MAX_CACHED_PARAMETERS = 1000;
 
+        private static final Map<String, Parameters> parametersByExpression =
+                new LinkedHashMap<String, Parameters>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Parameters> eldest) {
+                        return size() > MAX_CACHED_PARAMETERS;
+                    }
+                };
+
+        private final String endpointName;
+        private final Integer instance;
+        private final String service;
+        private final String user;
+        private final String cell;
+        private final String strategy;
+        private final String expression;
+
+        /**
+         * Returns the parameters of an addressExpression, parsed or from the cache.
+         * @throws IllegalStateException if the expression can not be parsed.
+         */
+        public static Parameters parse(String addressExpression) {
+            synchronized (parametersByExpression) {
+                Parameters parameters = parametersByExpression.get(addressExpression);
+                if (parameters != null) {
+                    return parameters;
+                }
+            }
+            Parameters parameters = new Parameters(addressExpression);
+            synchronized (parametersByExpression) {
+                parametersByExpression.put(addressExpression, parameters);
+            }
+            return parameters;
+        }
 
-    static class Parameters {
-        private String endpointName = null;
-        private Integer instance = null;
-        private String service = null;
-        private String user = null;
-        private String cell = null;
-        private String strategy = null;
-        private String expression = null;
-        
         /**
          * Constructor that takes an addressExperssion and sets the inner variables.
          * @param addressExpression
          */
         public Parameters(String addressExpression) {
             this.expression = addressExpression;
-            if (! (trySetEndPointPattern(addressExpression) ||
-                   trySetStrategyPattern(addressExpression) ||
-                   trySetInstancePattern(addressExpression) ||
-                   trySetEndpointStrategyPattern(addressExpression))) {
+            ExpressionTokenizer tokens = new ExpressionTokenizer(addressExpression, 5);
+            int count = tokens.getTokenCount();
+            // The last three tokens are always service, user and cell.
+            if (count < 4 || ! (tokens.is(count - 3, ExpressionTokenizer.NAME)
+                                && tokens.is(count - 2, ExpressionTokenizer.NAME)
+                                && tokens.is(count - 1, ExpressionTokenizer.NAME))) {
                 throw new IllegalStateException("Could not parse addressExpression:" + addressExpression);
             }
+            service = tokens.getToken(count - 3);
+            user = tokens.getToken(count - 2);
+            cell = tokens.getToken(count - 1);
+
+            if (count == 4) {
+                // strategy.service.user.cell or instance.service.user.cell
+                endpointName = "";
+                if (tokens.is(0, ExpressionTokenizer.NAME)) {
+                    strategy = tokens.getToken(0);
+                    instance = -1;
+                } else if (tokens.getNumber(0) >= 0) {
+                    strategy = "";
+                    instance = tokens.getNumber(0);
+                } else {
+                    throw new IllegalStateException("Could not parse addressExpression:" + addressExpression);
+                }
+                return;
+            }
 
+            // endpoint.instance.service.user.cell or endpoint.strategy.service.user.cell,
+            // cells without digits only for the former.
+            if (! tokens.is(0, ExpressionTokenizer.NAME)) {
+                throw new IllegalStateException("Could not parse addressExpression:" + addressExpression);
+            }
+            endpointName = tokens.getToken(0);
+            if (tokens.getNumber(1) >= 0 && tokens.is(4, ExpressionTokenizer.NAME_WITHOUT_DIGITS)) {
+                strategy = "";
+                instance = tokens.getNumber(1);
+            } else if (tokens.is(1, ExpressionTokenizer.NAME)) {
+                strategy = tokens.getToken(1);
+                instance = -1;
+            } else {
+                throw new IllegalStateException("Could not parse addressExpression:" + addressExpression);
+            }
         }
 
         /**
@@ -208,64 +298,6 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
         public String getCell() {
             return cell;
         }
-
-        private boolean trySetEndPointPattern(String addressExperssion) {
-            Matcher m = endpointPattern.matcher(addressExperssion);
-            if (! m.matches()) {
-                return false;
-            }
-            endpointName = m.group(1);
-            instance = Integer.parseInt(m.group(2));
-            strategy = "";
-            service = m.group(3);
-            user = m.group(4);
-            cell = m.group(5);
-            return true;
-
-        }
-
-        private boolean trySetStrategyPattern(String addressExpression) {
-            Matcher m = strategyPattern.matcher(addressExpression);
-            if (! m.matches()) {
-                return false;
-            }
-            endpointName = "";
-            strategy = m.group(1);
-            service = m.group(2);
-            user = m.group(3);
-            cell = m.group(4);
-            instance = -1;
-            return true;
-        }
-
-        private boolean trySetInstancePattern(String addressExpression) {
-            Matcher m = instancePattern.matcher(addressExpression);
-            if (! m.matches()) {
-                return false;
-            }
-            endpointName = "";
-            instance = Integer.parseInt(m.group(1));
-            service = m.group(2);
-            user = m.group(3);
-            cell = m.group(4);
-            strategy = "";
-            return true;
-        }
-
-        private boolean trySetEndpointStrategyPattern(String addressExperssion) {
-            Matcher m = endpointStrategyPattern.matcher(addressExperssion);
-            if (! m.matches()) {
-                return false;
-            }
-            endpointName = m.group(1);
-            strategy = m.group(2);
-            service = m.group(3);
-            user = m.group(4);
-            cell = m.group(5);
-            instance = -1;
-            return true;
-        }
-
     }
 
     /**
@@ -274,39 +306,96 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
      */
     private ZkResolver(Builder builder) {
         this.strategies = builder.getStrategies();
+        cache.setEndpointIndex(endpointIndex);
     }
 
     
+    /**
+     * Returns the cache resolve() is served from, e.g. for reading its counters.
+     */
+    public ZkResolverCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the strategy used for a name in expressions, e.g. for reporting loads to "p2c".
+     * @return the strategy or null if there is none by that name.
+     */
+    public ResolverStrategy getStrategy(String name) {
+        return strategies.get(name);
+    }
+
+    /**
+     * Resolves from the watch driven cache, so ZooKeeper is only read the first time a
+     * service is resolved. While the connection to ZooKeeper is down, cached
+     * data is returned as is.
+     */
     @Override
     public List<Endpoint> resolve(String addressExpression) throws CloudnameException {
-        Parameters parameters = new Parameters(addressExpression);
+        Parameters parameters = Parameters.parse(addressExpression);
             // TODO(borud): add some comments on the decision logic.  I'm
             // not sure I am too fond of the check for negative values to
             // have some particular semantics.  That smells like a problem
             // waiting to happen.
 
-        ZooKeeper localZkPointer = getZooKeeper();
-        if (localZkPointer == null) {
-            throw new CloudnameException("No connection to ZooKeeper.");
-        }
-        List<Integer> instances = resolveInstances(parameters, localZkPointer);
-
-        List<Endpoint> endpoints = new ArrayList<Endpoint>();
-        for (Integer instance : instances) {
-            String statusPath = ZkCoordinatePath.getStatusPath(parameters.getCell(), parameters.getUser(),
-                    parameters.getService(), instance);
+        List<ZkCoordinateData.Snapshot> snapshots = cache.getSnapshots(parameters.getCell(),
+                parameters.getUser(), parameters.getService(), parameters.getInstance());
+        return selectEndpoints(parameters, snapshots);
+    }
 
+    /**
+     * Like resolve(), but if the service is not cached the future is completed by
+     * ZooKeeper callbacks instead of blocking the caller.
+     */
+    @Override
+    public Future<List<Endpoint>> resolveAsync(String addressExpression) {
+        final Parameters parameters = Parameters.parse(addressExpression);
+        final ZkFuture<List<ZkCoordinateData.Snapshot>> snapshots = cache.getSnapshotsAsync(parameters.getCell(),
+                parameters.getUser(), parameters.getService(), parameters.getInstance());
+        if (snapshots.isDone()) {
             try {
-                if (! Util.exist(getZooKeeper(), statusPath)) {
-                    continue;
-                }
+                return ZkFuture.completed(selectEndpoints(parameters, snapshots.get()));
             } catch (InterruptedException e) {
-                throw new CloudnameException(e);
+                // Can not happen, the future is done.
+            } catch (ExecutionException e) {
+                // Handled below.
+            }
+        }
 
+        final ZkFuture<List<Endpoint>> endpoints = new ZkFuture<List<Endpoint>>();
+        snapshots.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    endpoints.set(selectEndpoints(parameters, snapshots.get()));
+                } catch (ExecutionException e) {
+                    endpoints.setException(e.getCause());
+                } catch (InterruptedException e) {
+                    // Can not happen, the future is done.
+                    endpoints.setException(e);
+                }
             }
-            ZkCoordinateData zkCoordinateData = ZkCoordinateData.loadCoordinateData(statusPath, localZkPointer, null);
-            addEndpoints(zkCoordinateData.snapshot(), endpoints, parameters.getEndpointName());
+        });
+        return endpoints;
+    }
 
+    /**
+     * Picks the endpoints matching the parameters from the snapshots and applies the strategy.
+     */
+    private List<Endpoint> selectEndpoints(Parameters parameters, List<ZkCoordinateData.Snapshot> snapshots) {
+        ResolverStrategy tableStrategy = strategies.get(parameters.getStrategy());
+        if (tableStrategy instanceof TableStrategy && parameters.getInstance() < 0
+                && ! parameters.getEndpointName().equals("")) {
+            // The endpoint lists of the cache are replaced when they change, so the strategy
+            // reuses its table without looking at the endpoints.
+            List<Endpoint> running = getRunningEndpoints(parameters);
+            if (running != null) {
+                return tableStrategy.order(((TableStrategy) tableStrategy).filterSnapshot(running));
+            }
+        }
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        for (ZkCoordinateData.Snapshot snapshot : snapshots) {
+            addEndpoints(snapshot, endpoints, parameters.getEndpointName());
         }
         if (parameters.getStrategy().equals("")) {
           return endpoints;
@@ -315,6 +404,25 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
         return strategy.order(strategy.filter(endpoints));
     }
 
+    /**
+     * Returns the cached list of the running endpoints with the name of the parameters in
+     * all instances of the service. The list must not be modified.
+     * @return the endpoints, or null if the service is not cached.
+     */
+    private List<Endpoint> getRunningEndpoints(Parameters parameters) {
+        Map<ServiceState, Map<String, List<Endpoint>>> endpointsByStateAndName = cache.getEndpointsByStateAndName(
+                parameters.getCell(), parameters.getUser(), parameters.getService());
+        if (endpointsByStateAndName == null) {
+            return null;
+        }
+        Map<String, List<Endpoint>> endpointsByName = endpointsByStateAndName.get(ServiceState.RUNNING);
+        List<Endpoint> endpoints = endpointsByName == null ? null : endpointsByName.get(parameters.getEndpointName());
+        if (endpoints == null) {
+            return Collections.emptyList();
+        }
+        return endpoints;
+    }
+
     @Override
     public void removeResolverListener(ResolverListener listener) {
         synchronized (this) {
@@ -323,88 +431,155 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
                 throw new IllegalArgumentException("Do not have the listener in my list.");
             }
             expression.stop();
+            TrackedService trackedService = expression.getTrackedService();
+            if (trackedService.removeExpression(expression)) {
+                trackedServiceByPath.values().remove(trackedService);
+                trackedService.stop();
+            }
         }
         log.fine("Removed listener.");
     }
 
     /**
-     * The implementation does filter while listing out nodes. In this way paths that are not of
-     * interest are not traversed.
+     * The implementation queries a watch driven in-memory index of all endpoints, so apart
+     * from loading the index on the first call, this does not touch ZooKeeper.
      * @param filter class for filtering out endpoints
      * @return the endpoints that passes the filter
      */
     @Override
     public Set<Endpoint> getEndpoints(Resolver.CoordinateDataFilter filter)
             throws CloudnameException, InterruptedException {
+        if (! endpointIndex.isLoaded() && Util.isZooKeeperEventThread()) {
+            // The index is loaded by callbacks on this very thread, so we can not
+            // wait for it. Read without the index, it will be loaded shortly.
+            endpointIndex.load();
+            return readEndpoints(filter);
+        }
+        return endpointIndex.getEndpoints(filter);
+    }
+
+    /**
+     * Reads the endpoints directly from ZooKeeper. Does filter while listing out nodes so
+     * paths that are not of interest are not traversed. The tree is read one level at a time,
+     * and all the reads of a level are pipelined, so this takes five round trips to ZooKeeper
+     * no matter how many coordinates there are.
+     */
+    private Set<Endpoint> readEndpoints(Resolver.CoordinateDataFilter filter)
+            throws CloudnameException, InterruptedException {
+        ZooKeeper localZk = getZooKeeper();
+        String rootPath = ZkCoordinatePath.getCloudnameRoot();
 
-        final Set<Endpoint> endpointsIncluded = new HashSet<Endpoint>();
-        String cellPath = ZkCoordinatePath.getCloudnameRoot();
-        try {
-            List<String> cells = zk.getChildren(cellPath, false);
-            for (String cell : cells) {
-                if (! filter.includeCell(cell)) {
-                    continue;
+        List<String> cellPaths = new ArrayList<String>();
+        for (String cell : getChildren(localZk, Collections.singletonList(rootPath)).get(rootPath)) {
+            if (filter.includeCell(cell)) {
+                cellPaths.add(rootPath + "/" + cell);
+            }
+        }
+
+        List<String> userPaths = new ArrayList<String>();
+        Map<String, List<String>> usersByCellPath = getChildren(localZk, cellPaths);
+        for (String cellPath : cellPaths) {
+            for (String user : usersByCellPath.get(cellPath)) {
+                if (filter.includeUser(user)) {
+                    userPaths.add(cellPath + "/" + user);
                 }
-                String userPath = cellPath + "/" + cell;
-                List<String> users = zk.getChildren(userPath, false);
-                
-                for (String user : users) {
-                    if (! filter.includeUser(user)) {
-                        continue;
-                    }
-                    String servicePath = userPath + "/" + user;
-                    List<String> services = zk.getChildren(servicePath, false);
-
-                    for (String service : services) {
-                        if (! filter.includeService(service)) {
-                            continue;
-                        }
-                        String instancePath = servicePath + "/" + service;
-                        List<String> instances = zk.getChildren(instancePath, false);
-
-                        for (String instance : instances) {
-                            String statusPath = ZkCoordinatePath.getStatusPath(
-                                    cell, user, service, Integer.parseInt(instance));
-
-                            ZkCoordinateData zkCoordinateData = null;
-                            try {
-                                zkCoordinateData = ZkCoordinateData.loadCoordinateData(
-                                        statusPath, getZooKeeper(), null);
-                            } catch (CloudnameException e) {
-                                // This is ok, an unclaimed node will not have status data, we ignore it even
-                                // though there might also be other exception (this should be rare).
-                                // The advantage is that we don't need to check if the node exists and hence
-                                // reduce the load on zookeeper.
-                                continue;
-                            }
-                            Set<Endpoint> endpoints = zkCoordinateData.snapshot().getEndpoints();
-                            for (Endpoint endpoint : endpoints) {
-                                if (filter.includeEndpointname(endpoint.getName())) {
-                                    if (filter.includeServiceState(
-                                            zkCoordinateData.snapshot().getServiceStatus().getState())) {
-                                        endpointsIncluded.add(endpoint);
-                                    }
-                                }
-                            }
-                        }
-                    }
+            }
+        }
+
+        List<String> servicePaths = new ArrayList<String>();
+        Map<String, List<String>> servicesByUserPath = getChildren(localZk, userPaths);
+        for (String userPath : userPaths) {
+            for (String service : servicesByUserPath.get(userPath)) {
+                if (filter.includeService(service)) {
+                    servicePaths.add(userPath + "/" + service);
+                }
+            }
+        }
+
+        List<String> statusPaths = new ArrayList<String>();
+        Map<String, List<String>> instancesByServicePath = getChildren(localZk, servicePaths);
+        for (String servicePath : servicePaths) {
+            // The path is /cn/%cell%/%user%/%service%.
+            String[] parts = servicePath.split("/");
+            for (String instance : instancesByServicePath.get(servicePath)) {
+                statusPaths.add(ZkCoordinatePath.getStatusPath(
+                        parts[2], parts[3], parts[4], Integer.parseInt(instance)));
+            }
+        }
+
+        // An unclaimed coordinate has no status node, it is simply left out.
+        final Set<Endpoint> endpointsIncluded = new HashSet<Endpoint>();
+        for (byte[] data : Util.getDataPipelined(localZk, statusPaths).values()) {
+            ZkCoordinateData.Snapshot snapshot;
+            try {
+                snapshot = new ZkCoordinateData().deserialize(data).snapshot();
+            } catch (IOException e) {
+                log.info("Skipping status node that could not be parsed: " + e.getMessage());
+                continue;
+            }
+            if (! filter.includeServiceState(snapshot.getServiceStatus().getState())) {
+                continue;
+            }
+            for (Endpoint endpoint : snapshot.getEndpoints()) {
+                if (filter.includeEndpointname(endpoint.getName())) {
+                    endpointsIncluded.add(endpoint);
                 }
             }
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
         }
         return endpointsIncluded;
     }
 
+    /**
+     * Pipelined listing of sub nodes where paths that do not exist have no sub nodes.
+     */
+    private static Map<String, List<String>> getChildren(ZooKeeper zk, List<String> paths)
+            throws CloudnameException, InterruptedException {
+        Map<String, List<String>> childrenByPath = new HashMap<String, List<String>>(
+                Util.getChildrenPipelined(zk, paths));
+        for (String path : paths) {
+            if (! childrenByPath.containsKey(path)) {
+                childrenByPath.put(path, Collections.<String>emptyList());
+            }
+        }
+        return childrenByPath;
+    }
+
     @Override
     public void addResolverListener(String expression, ResolverListener listener) throws CloudnameException {
-        DynamicExpression dynamicExpression = new DynamicExpression(expression, listener, this);
-        dynamicExpression.newZooKeeperInstance(zk);
+        Parameters parameters = Parameters.parse(expression);
+        ResolverStrategy strategy = null;
+        if (! parameters.getStrategy().equals("")) {
+            strategy = strategies.get(parameters.getStrategy());
+            if (strategy == null) {
+                throw new IllegalArgumentException("Unknown strategy in expression: " + expression);
+            }
+        }
+        String servicePath = ZkCoordinatePath.coordinateWithoutInstanceAsPath(
+                parameters.getCell(), parameters.getUser(), parameters.getService());
+        TrackedService newTrackedService = null;
+        DynamicExpression dynamicExpression;
+        ZooKeeper localZk;
         synchronized (this) {
-            DynamicExpression previousExpression = dynamicAddressesByListener.put(listener, dynamicExpression);
-            if (previousExpression != null) {
+            if (dynamicAddressesByListener.containsKey(listener)) {
                 throw new IllegalArgumentException("It is not legal to register a listener twice.");
             }
+            TrackedService trackedService = trackedServiceByPath.get(servicePath);
+            if (trackedService == null) {
+                trackedService = newTrackedService = new TrackedService(
+                        parameters.getCell(), parameters.getUser(), parameters.getService());
+                trackedServiceByPath.put(servicePath, trackedService);
+            }
+            dynamicExpression = new DynamicExpression(parameters, listener, strategy, trackedService);
+            trackedService.addExpression(dynamicExpression);
+            dynamicAddressesByListener.put(listener, dynamicExpression);
+            localZk = zk;
+        }
+        if (newTrackedService != null) {
+            // Notifies the expression as the coordinates are loaded.
+            newTrackedService.newZooKeeperInstance(localZk);
+        } else {
+            // The service is already tracked, give the listener what we have.
+            dynamicExpression.serviceChanged();
         }
     }
 
@@ -421,33 +596,4 @@ public final class ZkResolver implements Resolver, ZkUserInterface {
             }
         }
     }
-
-    private List<Integer> resolveInstances(Parameters parameters, ZooKeeper zk) throws CloudnameException {
-        List<Integer> instances = new ArrayList<Integer>();
-        if (parameters.getInstance() > -1) {
-            instances.add(parameters.getInstance());
-        } else {
-            try {
-                instances = getInstances(zk,
-                        ZkCoordinatePath.coordinateWithoutInstanceAsPath(parameters.getCell(),
-                                parameters.getUser(), parameters.getService()));
-            } catch (InterruptedException e) {
-                throw new CloudnameException(e);
-            }
-        }
-        return instances;
-    }
-
-    private List<Integer> getInstances(ZooKeeper zk, String path) throws CloudnameException, InterruptedException {
-        List<Integer> paths = new ArrayList<Integer>();
-        try {
-            List<String> children = zk.getChildren(path, false /* watcher */);
-            for (String child : children) {
-                paths.add(Integer.parseInt(child));
-            }
-        } catch (KeeperException e) {
-            throw new CloudnameException(e);
-        }
-        return paths;
-    }
 }
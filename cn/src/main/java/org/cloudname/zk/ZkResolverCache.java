@@ -0,0 +1,861 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.cloudname.CloudnameException;
+import org.cloudname.Endpoint;
+import org.cloudname.ServiceState;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An in-process cache of the coordinate data needed by
+ * {@link ZkResolver#resolve(String)}.  The first resolve of a service
+ * reads the instances and their status nodes from ZooKeeper and leaves
+ * watches on them.  After that the service is served from memory and
+ * the watches keep the cached data current: a changed status node is
+ * re-read, a claim or release of a coordinate is picked up by an exists
+ * watch and a new or removed instance by a child watch on the service.
+ * A service that does not exist is cached as empty, with an exists
+ * watch on it.  For {@link ZkEndpointIndex} the endpoints of each
+ * service are also kept indexed by service state and endpoint name.
+ *
+ * <p> All reads use the async ZooKeeper API.  Reading a service is
+ * one round trip for the instances followed by one round trip for all
+ * status nodes at once, so it does not get slower with the number of
+ * instances.
+ *
+ * <p> A service that has not been read for {@link #SERVICE_IDLE_MS} is
+ * evicted, unless it is held by the {@link ZkEndpointIndex}.  Its
+ * watches are left to fire without being set again, and the next read
+ * loads it from ZooKeeper.
+ *
+ * <p> While the connection to ZooKeeper is down the cached data is still
+ * served, but such reads are counted as stale.  If we get a new
+ * ZooKeeper instance, ie. a new session, the watches are gone and the
+ * cache is emptied.
+ *
+ * <p> With a {@link ZkLastKnownGood} file the services loaded are also
+ * written to the file, and the services in the file are served, as
+ * stale, from startup.  Once there is a session they are read again in
+ * the background, and served as before until the new data is in.
+ */
+public final class ZkResolverCache implements ZkUserInterface {
+
+    private static final Logger log = Logger.getLogger(ZkResolverCache.class.getName());
+
+    /**
+     * Services not read for this long are evicted.
+     */
+    static final long SERVICE_IDLE_MS = 10 * 60 * 1000L;
+
+    private final ConcurrentMap<String, CachedService> serviceByPath =
+            new ConcurrentHashMap<String, CachedService>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+
+    private ZooKeeper zk = null;
+    private volatile boolean connected = false;
+
+    /**
+     * The keys of the services in the last known good file start with this.
+     */
+    private static final String SERVICE_KEY_PREFIX = "service:";
+
+    private volatile ZkLastKnownGood lastKnownGood = null;
+
+    /**
+     * The services of the index are not evicted.
+     */
+    private volatile ZkEndpointIndex endpointIndex = null;
+
+    /**
+     * Returns the status snapshots of the claimed coordinates of a
+     * service, ordered by instance number.  Loads the service from
+     * ZooKeeper if it is not cached.
+     * @param instance if not negative, only the snapshot of this instance is returned.
+     * @throws CloudnameException if the service is not cached and could not be read from ZooKeeper.
+     */
+    public List<ZkCoordinateData.Snapshot> getSnapshots(String cell, String user, String service, int instance)
+            throws CloudnameException {
+        ZkFuture<List<ZkCoordinateData.Snapshot>> future = getSnapshotsAsync(cell, user, service, instance);
+        if (! future.isDone() && Util.isZooKeeperEventThread()) {
+            // The future is completed by callbacks on this very thread, so we can
+            // not wait for it. Read without the cache, it will be loaded shortly.
+            return readSnapshots(cell, user, service, instance);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new CloudnameException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CloudnameException) {
+                throw (CloudnameException) e.getCause();
+            }
+            throw new CloudnameException(e.getCause());
+        }
+    }
+
+    /**
+     * Like {@link #getSnapshots} but does not block. The future fails with a
+     * CloudnameException if the service could not be read from ZooKeeper.
+     */
+    ZkFuture<List<ZkCoordinateData.Snapshot>> getSnapshotsAsync(
+            String cell, String user, String service, final int instance) {
+        String servicePath = ZkCoordinatePath.coordinateWithoutInstanceAsPath(cell, user, service);
+        CachedService cachedService = serviceByPath.get(servicePath);
+        if (cachedService != null) {
+            cachedService.touch();
+        }
+        if (cachedService != null && cachedService.isLoaded()) {
+            if (connected && ! cachedService.isStale()) {
+                hitCount.incrementAndGet();
+            } else {
+                staleHitCount.incrementAndGet();
+            }
+            return ZkFuture.completed(cachedService.getSnapshots(instance));
+        }
+
+        final ZkFuture<List<ZkCoordinateData.Snapshot>> result = new ZkFuture<List<ZkCoordinateData.Snapshot>>();
+        ZooKeeper localZk;
+        try {
+            localZk = getZooKeeper();
+        } catch (CloudnameException e) {
+            result.setException(e);
+            return result;
+        }
+        // An evicted service is replaced, it is only kept by those already waiting for it.
+        while (cachedService == null || cachedService.isEvicted()) {
+            CachedService newService = new CachedService(cell, user, service);
+            if (cachedService == null) {
+                cachedService = serviceByPath.putIfAbsent(servicePath, newService);
+            } else if (serviceByPath.replace(servicePath, cachedService, newService)) {
+                cachedService = null;
+            } else {
+                cachedService = serviceByPath.get(servicePath);
+                continue;
+            }
+            if (cachedService == null) {
+                cachedService = newService;
+                ZkScheduler.scheduleTimeEvent(this, SERVICE_IDLE_MS);
+            }
+        }
+        if (cachedService.startsLoad(localZk)) {
+            missCount.incrementAndGet();
+        }
+
+        final CachedService loadingService = cachedService;
+        final ZkFuture<Void> loaded = loadingService.load(localZk);
+        loaded.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loaded.get();
+                    result.set(loadingService.getSnapshots(instance));
+                } catch (ExecutionException e) {
+                    result.setException(e.getCause());
+                } catch (InterruptedException e) {
+                    // Can not happen, the future is done.
+                    result.setException(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the endpoints of a cached service by service state and endpoint name.
+     * Does not read from ZooKeeper.
+     * @return the endpoints or null if the service is not cached.
+     */
+    Map<ServiceState, Map<String, List<Endpoint>>> getEndpointsByStateAndName(
+            String cell, String user, String service) {
+        CachedService cachedService =
+                serviceByPath.get(ZkCoordinatePath.coordinateWithoutInstanceAsPath(cell, user, service));
+        if (cachedService == null || ! cachedService.isLoaded()) {
+            return null;
+        }
+        cachedService.touch();
+        return cachedService.getEndpointsByStateAndName();
+    }
+
+    /**
+     * @return number of reads served from memory while connected to ZooKeeper.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of reads that had to load the service from ZooKeeper. Reads waiting
+     *     for a load that is already in progress are not counted.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of reads served from memory while the connection
+     * to ZooKeeper was down, ie. with data that might be out of date.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    /**
+     * @return number of services in the cache.
+     */
+    public int size() {
+        return serviceByPath.size();
+    }
+
+    /**
+     * Drops all cached data, the next read of each service goes to ZooKeeper.
+     */
+    public void clear() {
+        for (CachedService cachedService : serviceByPath.values()) {
+            cachedService.evict();
+        }
+    }
+
+    /**
+     * Serves the services in the file until they are read from ZooKeeper, and writes the
+     * services read to the file.
+     */
+    void setLastKnownGood(ZkLastKnownGood lastKnownGood) {
+        this.lastKnownGood = lastKnownGood;
+        for (Map.Entry<String, byte[]> entry : lastKnownGood.getAll().entrySet()) {
+            if (! entry.getKey().startsWith(SERVICE_KEY_PREFIX)) {
+                continue;
+            }
+            String servicePath = entry.getKey().substring(SERVICE_KEY_PREFIX.length());
+            // The path is /cn/%cell%/%user%/%service%.
+            String[] parts = servicePath.split("/");
+            if (parts.length != 5) {
+                log.info("Ignoring last known good data of " + servicePath);
+                continue;
+            }
+            CachedService cachedService = new CachedService(parts[2], parts[3], parts[4]);
+            try {
+                cachedService.seed(decodeSnapshots(entry.getValue()));
+            } catch (IOException e) {
+                log.info("Ignoring last known good data of " + servicePath + ": " + e.getMessage());
+                continue;
+            }
+            if (serviceByPath.putIfAbsent(servicePath, cachedService) == null) {
+                ZkScheduler.scheduleTimeEvent(this, SERVICE_IDLE_MS);
+            }
+        }
+    }
+
+    /**
+     * The services of the index are kept while it holds them, so that it does not have
+     * to read them again.
+     */
+    void setEndpointIndex(ZkEndpointIndex endpointIndex) {
+        this.endpointIndex = endpointIndex;
+    }
+
+    /**
+     * Evicts the services that have not been read for {@link #SERVICE_IDLE_MS}, except
+     * those held by the endpoint index.
+     * @return when the next service is due to be evicted, or -1 if the cache is empty.
+     */
+    long evictIdleServices(long nowMs) {
+        ZkEndpointIndex localIndex = endpointIndex;
+        long nextEvictionMs = -1;
+        for (Map.Entry<String, CachedService> entry : serviceByPath.entrySet()) {
+            CachedService cachedService = entry.getValue();
+            long evictionMs = cachedService.getLastReadMs() + SERVICE_IDLE_MS;
+            if (evictionMs <= nowMs) {
+                if (localIndex == null || ! localIndex.containsService(entry.getKey())) {
+                    log.fine("Evicting unused service " + entry.getKey());
+                    cachedService.evict();
+                    continue;
+                }
+                evictionMs = nowMs + SERVICE_IDLE_MS;
+            }
+            if (nextEvictionMs == -1 || evictionMs < nextEvictionMs) {
+                nextEvictionMs = evictionMs;
+            }
+        }
+        return nextEvictionMs;
+    }
+
+    @Override
+    public void zooKeeperDown() {
+        connected = false;
+    }
+
+    @Override
+    public void newZooKeeperInstance(ZooKeeper zk) {
+        synchronized (this) {
+            if (this.zk != zk) {
+                // Watches do not survive a new session. The snapshots are served as stale
+                // until they are read again.
+                for (CachedService cachedService : serviceByPath.values()) {
+                    cachedService.markStale();
+                }
+                this.zk = zk;
+            }
+            connected = (zk != null);
+            if (zk == null) {
+                return;
+            }
+            // Loads started on an earlier session are started again on this one.
+            for (CachedService cachedService : serviceByPath.values()) {
+                if (cachedService.isStale() || ! cachedService.isLoaded()) {
+                    cachedService.load(zk);
+                }
+            }
+        }
+    }
+
+    private static byte[] encodeSnapshots(Map<Integer, ZkCoordinateData.Snapshot> snapshotByInstance) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(snapshotByInstance.size());
+            for (Map.Entry<Integer, ZkCoordinateData.Snapshot> entry : snapshotByInstance.entrySet()) {
+                byte[] data = entry.getValue().serialize(ZkCoordinateData.Format.BINARY);
+                out.writeInt(entry.getKey());
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Can not happen when writing to memory.
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<Integer, ZkCoordinateData.Snapshot> decodeSnapshots(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        Map<Integer, ZkCoordinateData.Snapshot> snapshotByInstance = new TreeMap<Integer, ZkCoordinateData.Snapshot>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int instance = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            snapshotByInstance.put(instance, new ZkCoordinateData().deserialize(data).snapshot());
+        }
+        return snapshotByInstance;
+    }
+
+    /**
+     * The data is kept current by watches, the time event only evicts services that are not
+     * read any more. It is scheduled again for as long as there are services.
+     */
+    @Override
+    public void timeEvent() {
+        long nowMs = System.currentTimeMillis();
+        long nextEvictionMs = evictIdleServices(nowMs);
+        if (nextEvictionMs != -1) {
+            ZkScheduler.scheduleTimeEvent(this, Math.max(0, nextEvictionMs - nowMs));
+        }
+    }
+
+    private ZooKeeper getZooKeeper() throws CloudnameException {
+        synchronized (this) {
+            if (zk == null || ! connected) {
+                throw new CloudnameException("Connection to ZooKeeper is down.");
+            }
+            return zk;
+        }
+    }
+
+    /**
+     * Reads the status snapshots of a service directly from ZooKeeper without
+     * setting any watches.
+     */
+    private List<ZkCoordinateData.Snapshot> readSnapshots(String cell, String user, String service, int instance)
+            throws CloudnameException {
+        ZooKeeper localZk = getZooKeeper();
+        String servicePath = ZkCoordinatePath.coordinateWithoutInstanceAsPath(cell, user, service);
+        Map<String, Integer> instanceByStatusPath = new TreeMap<String, Integer>();
+        try {
+            if (instance > -1) {
+                instanceByStatusPath.put(ZkCoordinatePath.getStatusPath(cell, user, service, instance), instance);
+            } else {
+                List<String> children = Util.getChildrenPipelined(
+                        localZk, Collections.singletonList(servicePath)).get(servicePath);
+                if (children != null) {
+                    for (String child : children) {
+                        int childInstance = Integer.parseInt(child);
+                        instanceByStatusPath.put(
+                                ZkCoordinatePath.getStatusPath(cell, user, service, childInstance), childInstance);
+                    }
+                }
+            }
+            Map<String, byte[]> dataByPath = Util.getDataPipelined(localZk, instanceByStatusPath.keySet());
+            Map<Integer, ZkCoordinateData.Snapshot> snapshotByInstance =
+                    new TreeMap<Integer, ZkCoordinateData.Snapshot>();
+            for (Map.Entry<String, byte[]> entry : dataByPath.entrySet()) {
+                snapshotByInstance.put(instanceByStatusPath.get(entry.getKey()),
+                        new ZkCoordinateData().deserialize(entry.getValue()).snapshot());
+            }
+            return new ArrayList<ZkCoordinateData.Snapshot>(snapshotByInstance.values());
+        } catch (InterruptedException e) {
+            throw new CloudnameException(e);
+        } catch (IOException e) {
+            throw new CloudnameException(e);
+        }
+    }
+
+    /**
+     * The cached instances of one service and the watches keeping them current.
+     * Reads are issued with the async API and the replies are handled by the
+     * callback methods of this class, so nothing here waits for ZooKeeper.
+     */
+    private final class CachedService implements Watcher, AsyncCallback.ChildrenCallback,
+            AsyncCallback.DataCallback, AsyncCallback.StatCallback {
+        private final String cell;
+        private final String user;
+        private final String service;
+        private final String servicePath;
+
+        /**
+         * Status of the claimed instances.
+         */
+        private final ConcurrentSkipListMap<Integer, ZkCoordinateData.Snapshot> snapshotByInstance =
+                new ConcurrentSkipListMap<Integer, ZkCoordinateData.Snapshot>();
+
+        /**
+         * The endpoints of the claimed instances by state and name. Rebuilt when the
+         * snapshots change, never modified.
+         */
+        private volatile Map<ServiceState, Map<String, List<Endpoint>>> endpointsByStateAndName =
+                Collections.emptyMap();
+
+        /**
+         * Set when the snapshots change, the endpoint index is rebuilt when all pending
+         * reads are done. Guarded by this.
+         */
+        private boolean snapshotsChanged = false;
+
+        /**
+         * All instances of the service, claimed or not. Guarded by this.
+         */
+        private final Set<Integer> instances = new HashSet<Integer>();
+
+        /**
+         * Number of reads we are waiting for. The initial load is done when
+         * this drops to zero. Guarded by this.
+         */
+        private int pendingReads = 0;
+
+        /**
+         * Incremented when a load starts or the snapshots are marked stale. Replies to reads
+         * issued before that are ignored. Guarded by this.
+         */
+        private int generation = 0;
+
+        private ZkFuture<Void> loadFuture = null;
+        private volatile boolean loaded = false;
+        /**
+         * True while the snapshots are not known to be current: last known good data not yet
+         * read from ZooKeeper, or snapshots kept when the connection was lost.
+         */
+        private volatile boolean stale = false;
+        private boolean evicted = false;
+        private ZooKeeper zk = null;
+        private volatile long lastReadMs = System.currentTimeMillis();
+
+        CachedService(String cell, String user, String service) {
+            this.cell = cell;
+            this.user = user;
+            this.service = service;
+            this.servicePath = ZkCoordinatePath.coordinateWithoutInstanceAsPath(cell, user, service);
+        }
+
+        boolean isLoaded() {
+            return loaded;
+        }
+
+        boolean isStale() {
+            return stale;
+        }
+
+        synchronized boolean isEvicted() {
+            return evicted;
+        }
+
+        void touch() {
+            lastReadMs = System.currentTimeMillis();
+        }
+
+        long getLastReadMs() {
+            return lastReadMs;
+        }
+
+        /**
+         * Serves the last known good snapshots until the service is loaded.
+         */
+        synchronized void seed(Map<Integer, ZkCoordinateData.Snapshot> snapshots) {
+            snapshotByInstance.putAll(snapshots);
+            rebuildEndpointIndex();
+            stale = true;
+            loaded = true;
+        }
+
+        /**
+         * Keeps serving the snapshots, if any, as stale until they are read again. Reads in
+         * progress are abandoned, the next load() starts over.
+         */
+        synchronized void markStale() {
+            if (! loaded) {
+                return;
+            }
+            stale = true;
+            generation++;
+            pendingReads = 0;
+            if (loadFuture != null) {
+                // The snapshots are there, so anyone waiting for a reload gets them.
+                loadFuture.set(null);
+                loadFuture = null;
+            }
+        }
+
+        List<ZkCoordinateData.Snapshot> getSnapshots(int instance) {
+            if (instance > -1) {
+                ZkCoordinateData.Snapshot snapshot = snapshotByInstance.get(instance);
+                if (snapshot == null) {
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(snapshot);
+            }
+            return new ArrayList<ZkCoordinateData.Snapshot>(snapshotByInstance.values());
+        }
+
+        Map<ServiceState, Map<String, List<Endpoint>>> getEndpointsByStateAndName() {
+            return endpointsByStateAndName;
+        }
+
+        /**
+         * @return true if load() will start reading the service, ie. no one else has
+         * on this ZooKeeper instance.
+         */
+        synchronized boolean startsLoad(ZooKeeper zk) {
+            return loadFuture == null || (this.zk != zk && ! loadFuture.isDone());
+        }
+
+        /**
+         * Starts loading the service unless it is already loading or loaded. A load still
+         * in progress on another ZooKeeper instance is started over on this one.
+         * @return future completed when the service is loaded.
+         */
+        synchronized ZkFuture<Void> load(ZooKeeper zk) {
+            if (! startsLoad(zk)) {
+                return loadFuture;
+            }
+            if (loadFuture == null) {
+                loadFuture = new ZkFuture<Void>();
+            }
+            if (evicted) {
+                loadFuture.setException(new CloudnameException("Cache has been cleared."));
+            } else {
+                this.zk = zk;
+                generation++;
+                pendingReads = 0;
+                refreshInstances();
+            }
+            return loadFuture;
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            loaded = false;
+            serviceByPath.remove(servicePath, this);
+            if (loadFuture != null) {
+                // Has no effect if the load completed.
+                loadFuture.setException(new CloudnameException("Cache has been cleared."));
+            }
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                // Connection state is handled through ZkUserInterface.
+                return;
+            }
+            String path = event.getPath();
+            synchronized (this) {
+                if (evicted) {
+                    return;
+                }
+                if (path.equals(servicePath)) {
+                    refreshInstances();
+                    return;
+                }
+                int instance;
+                try {
+                    instance = getInstance(path);
+                } catch (CloudnameException e) {
+                    log.info(e.getMessage());
+                    return;
+                }
+                if (instances.contains(instance)) {
+                    refreshInstance(instance);
+                }
+            }
+        }
+
+        /**
+         * Reply to getChildren() on the service.
+         */
+        @Override
+        public synchronized void processResult(int rc, String path, Object ctx, List<String> children) {
+            if (evicted || ((Read) ctx).generation != generation) {
+                return;
+            }
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    break;
+                case NONODE:
+                    // Watch for the service to be created.
+                    children = Collections.emptyList();
+                    pendingReads++;
+                    zk.exists(servicePath, this, this, new Read(generation, null));
+                    break;
+                default:
+                    fail(KeeperException.create(KeeperException.Code.get(rc), path));
+                    return;
+            }
+
+            Set<Integer> newInstances = new HashSet<Integer>();
+            for (String child : children) {
+                try {
+                    newInstances.add(Integer.parseInt(child));
+                } catch (NumberFormatException e) {
+                    log.info("Ignoring non-instance node " + servicePath + "/" + child);
+                }
+            }
+            instances.retainAll(newInstances);
+            if (snapshotByInstance.keySet().retainAll(newInstances)) {
+                snapshotsChanged = true;
+            }
+            for (Integer instance : newInstances) {
+                if (instances.add(instance)) {
+                    refreshInstance(instance);
+                }
+            }
+            readDone();
+        }
+
+        /**
+         * Reply to getData() on a status node.
+         */
+        @Override
+        public synchronized void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            if (evicted || ((Read) ctx).generation != generation) {
+                return;
+            }
+            Integer instance = ((Read) ctx).instance;
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    ZkCoordinateData.Snapshot oldSnapshot = snapshotByInstance.get(instance);
+                    if (oldSnapshot != null && oldSnapshot.getVersion() == stat.getMzxid()) {
+                        // Not changed since we read it.
+                        break;
+                    }
+                    if (instances.contains(instance)) {
+                        try {
+                            snapshotByInstance.put(instance,
+                                    new ZkCoordinateData().deserialize(data).setVersion(stat.getMzxid()).snapshot());
+                            snapshotsChanged = true;
+                        } catch (IOException e) {
+                            fail(e);
+                            return;
+                        }
+                    }
+                    break;
+                case NONODE:
+                    // Not claimed, watch for it to be claimed.
+                    if (snapshotByInstance.remove(instance) != null) {
+                        snapshotsChanged = true;
+                    }
+                    pendingReads++;
+                    zk.exists(path, this, this, new Read(generation, instance));
+                    break;
+                default:
+                    fail(KeeperException.create(KeeperException.Code.get(rc), path));
+                    return;
+            }
+            readDone();
+        }
+
+        /**
+         * Reply to exists() on the service or a status node.
+         */
+        @Override
+        public synchronized void processResult(int rc, String path, Object ctx, Stat stat) {
+            Read read = (Read) ctx;
+            if (evicted || read.generation != generation) {
+                return;
+            }
+            switch (KeeperException.Code.get(rc)) {
+                case OK:
+                    // Created since we tried to read it.
+                    if (read.instance == null) {
+                        refreshInstances();
+                    } else {
+                        refreshInstance(read.instance);
+                    }
+                    break;
+                case NONODE:
+                    // The watch is set.
+                    break;
+                default:
+                    fail(KeeperException.create(KeeperException.Code.get(rc), path));
+                    return;
+            }
+            readDone();
+        }
+
+        /**
+         * Reads the instances of the service and sets a child watch.
+         */
+        private void refreshInstances() {
+            pendingReads++;
+            zk.getChildren(servicePath, this, this, new Read(generation, null));
+        }
+
+        /**
+         * Reads the status of an instance and sets a data watch.
+         */
+        private void refreshInstance(int instance) {
+            pendingReads++;
+            zk.getData(ZkCoordinatePath.getStatusPath(cell, user, service, instance), this, this,
+                    new Read(generation, instance));
+        }
+
+        private void readDone() {
+            pendingReads--;
+            if (pendingReads > 0) {
+                return;
+            }
+            if (snapshotsChanged) {
+                rebuildEndpointIndex();
+                snapshotsChanged = false;
+                ZkLastKnownGood lastKnownGood = ZkResolverCache.this.lastKnownGood;
+                if (lastKnownGood != null) {
+                    lastKnownGood.put(SERVICE_KEY_PREFIX + servicePath, encodeSnapshots(snapshotByInstance));
+                }
+            }
+            if (! loaded || stale) {
+                loaded = true;
+                stale = false;
+                loadFuture.set(null);
+            }
+        }
+
+        private void rebuildEndpointIndex() {
+            Map<ServiceState, Map<String, List<Endpoint>>> byStateAndName =
+                    new EnumMap<ServiceState, Map<String, List<Endpoint>>>(ServiceState.class);
+            for (ZkCoordinateData.Snapshot snapshot : snapshotByInstance.values()) {
+                ServiceState state = snapshot.getServiceStatus().getState();
+                Map<String, List<Endpoint>> byName = byStateAndName.get(state);
+                if (byName == null) {
+                    byName = new HashMap<String, List<Endpoint>>();
+                    byStateAndName.put(state, byName);
+                }
+                for (Endpoint endpoint : snapshot.getEndpoints()) {
+                    List<Endpoint> endpoints = byName.get(endpoint.getName());
+                    if (endpoints == null) {
+                        endpoints = new ArrayList<Endpoint>();
+                        byName.put(endpoint.getName(), endpoints);
+                    }
+                    endpoints.add(endpoint);
+                }
+            }
+            endpointsByStateAndName = byStateAndName;
+        }
+
+        /**
+         * Drops the service from the cache. The next read will go to ZooKeeper
+         * and report any problem to the caller. If the connection was lost the
+         * snapshots we have are kept as stale instead, and read again when
+         * the connection is back.
+         */
+        private void fail(Exception e) {
+            if (loaded && isConnectionProblem(e)) {
+                log.info("Lost the connection reading " + servicePath + ", serving it as stale: "
+                        + e.getMessage());
+                markStale();
+                return;
+            }
+            log.info("Problems reading " + servicePath + ", evicting it from cache: " + e.getMessage());
+            if (loadFuture != null) {
+                loadFuture.setException(new CloudnameException(e));
+            }
+            evict();
+        }
+
+        private boolean isConnectionProblem(Exception e) {
+            if (! (e instanceof KeeperException)) {
+                return false;
+            }
+            switch (((KeeperException) e).code()) {
+                case CONNECTIONLOSS:
+                case SESSIONEXPIRED:
+                case SESSIONMOVED:
+                case OPERATIONTIMEOUT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Extracts the instance from a status path of this service.
+         */
+        private int getInstance(String statusPath) throws CloudnameException {
+            int end = statusPath.lastIndexOf('/');
+            try {
+                return Integer.parseInt(statusPath.substring(servicePath.length() + 1, end));
+            } catch (RuntimeException e) {
+                throw new CloudnameException("Unexpected path " + statusPath);
+            }
+        }
+    }
+
+    /**
+     * The context of a read: the load it belongs to and the instance read, or null
+     * for the service itself.
+     */
+    private static final class Read {
+        final int generation;
+        final Integer instance;
+
+        Read(int generation, Integer instance) {
+            this.generation = generation;
+            this.instance = instance;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.cloudname.zk;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the time driven work of Cloudname, like reconnecting to ZooKeeper, retrying a claim or
+ * writing coalesced changes, on one daemon thread. The work is kept ordered by deadline, so
+ * nothing is done until something is due, no matter how many coordinates and configs there are.
+ *
+ * <p> A {@link ZkUserInterface} that needs attention later, e.g. to retry after an error,
+ * asks for a call to its {@link ZkUserInterface#timeEvent()} with
+ * {@link #scheduleTimeEvent(ZkUserInterface, long)}. Nobody is called just to check.
+ */
+final class ZkScheduler {
+    private static final Logger log = Logger.getLogger(ZkScheduler.class.getName());
+
+    /**
+     * Created when first needed.
+     */
+    private static ScheduledExecutorService executor = null;
+
+    /**
+     * Runs the tasks that block, created when first needed.
+     */
+    private static ExecutorService blockingExecutor = null;
+
+    /**
+     * The deadline of the time event scheduled for each user, so that asking again before it
+     * is due does not schedule another one.
+     */
+    private static final ConcurrentMap<ZkUserInterface, Long> deadlineByUser =
+            new ConcurrentHashMap<ZkUserInterface, Long>();
+
+    /**
+     * Runs a task on the scheduler thread after a delay. The task should not block for long
+     * since it holds up everything else that is due.
+     */
+    static void schedule(Runnable task, long delayMs) {
+        getExecutor().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task that blocks, e.g. closing a ZooKeeper instance, on a thread of its own so
+     * the scheduler thread is not held up.
+     */
+    static void runBlocking(final Runnable task) {
+        getBlockingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Blocking task failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Calls user.timeEvent() on the scheduler thread after a delay. If a time event is
+     * already scheduled for the user, only the earliest of the two happens.
+     */
+    static void scheduleTimeEvent(final ZkUserInterface user, long delayMs) {
+        final long deadline = System.currentTimeMillis() + delayMs;
+        while (true) {
+            Long scheduled = deadlineByUser.get(user);
+            if (scheduled != null && scheduled <= deadline) {
+                return;
+            }
+            boolean replaced = scheduled == null
+                    ? deadlineByUser.putIfAbsent(user, deadline) == null
+                    : deadlineByUser.replace(user, scheduled, deadline);
+            if (replaced) {
+                break;
+            }
+        }
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                // A later deadline that was replaced by an earlier one is skipped.
+                if (! deadlineByUser.remove(user, deadline)) {
+                    return;
+                }
+                try {
+                    user.timeEvent();
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Time event failed for " + user.getClass().getName(), e);
+                }
+            }
+        }, delayMs);
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cloudname-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static synchronized ExecutorService getBlockingExecutor() {
+        if (blockingExecutor == null) {
+            blockingExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cloudname-blocking");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return blockingExecutor;
+    }
+
+    // Should not be instantiated.
+    private ZkScheduler() {}
+}
@@ -3,7 +3,9 @@ package org.cloudname.zk;
 import org.cloudname.*;
 
 import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -20,15 +22,24 @@ public class ZkServiceHandle implements ServiceHandle {
     private static final Logger log = Logger.getLogger(ZkServiceHandle.class.getName());
 
     private final Coordinate coordinate;
+
+    private final ZkConfigCache configCache;
+
+    /**
+     * The config listeners of this handle, removed from the cache when the handle is closed.
+     */
+    private final List<ConfigListener> configListeners = new CopyOnWriteArrayList<ConfigListener>();
     
     /**
      * Create a ZkServiceHandle for a given coordinate.
      *
      * @param claimedCoordinate the claimed coordinate for this service handle.
+     * @param configCache the configs of the process, shared by all the service handles.
      */
-    public ZkServiceHandle(ClaimedCoordinate claimedCoordinate, Coordinate coordinate) {
+    ZkServiceHandle(ClaimedCoordinate claimedCoordinate, Coordinate coordinate, ZkConfigCache configCache) {
         this.claimedCoordinate = claimedCoordinate;
         this.coordinate = coordinate;
+        this.configCache = configCache;
     }
 
 
@@ -77,10 +88,15 @@ public class ZkServiceHandle implements ServiceHandle {
         removeEndpoints(names);
     }
 
+    @Override
+    public Future<Void> flush() {
+        return claimedCoordinate.flush();
+    }
+
     @Override
     public void registerConfigListener(ConfigListener listener) {
-        TrackedConfig trackedConfig = new TrackedConfig(ZkCoordinatePath.getConfigPath(coordinate, null), listener);
-        claimedCoordinate.registerTrackedConfig(trackedConfig);
+        configListeners.add(listener);
+        configCache.registerConfigListener(coordinate, listener);
     }
 
     @Override
@@ -92,6 +108,10 @@ public class ZkServiceHandle implements ServiceHandle {
     public void close() throws CloudnameException {
         claimedCoordinate.releaseClaim();
         claimedCoordinate = null;
+        for (ConfigListener listener : configListeners) {
+            configCache.removeConfigListener(coordinate, listener);
+        }
+        configListeners.clear();
     }
 
     @Override
@@ -99,6 +119,16 @@ public class ZkServiceHandle implements ServiceHandle {
         return claimedCoordinate.getCloudnameLock(scope, lockName);
     }
 
+    @Override
+    public CloudnameReadWriteLock getCloudnameReadWriteLock(CloudnameLock.Scope scope, String lockName) {
+        return claimedCoordinate.getCloudnameReadWriteLock(scope, lockName);
+    }
+
+    @Override
+    public CloudnameLock getCloudnameSemaphore(CloudnameLock.Scope scope, String lockName, int permits) {
+        return claimedCoordinate.getCloudnameSemaphore(scope, lockName, permits);
+    }
+
     @Override
     public String toString() {
         return "Claimed coordinate instance: "+ claimedCoordinate.toString();
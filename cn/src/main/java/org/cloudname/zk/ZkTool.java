@@ -45,6 +45,10 @@ public final class ZkTool {
     @Flag(name = "config",
         description = "New config if setting new config.")
     private static String configFlag = "";
+
+    @Flag(name = "max-in-flight",
+        description = "The most coordinates from the setup file to wait for ZooKeeper at a time.")
+    private static int maxInFlightFlag = 1000;
     
     /**
      *   The possible operations to do on a coordinate.
@@ -143,16 +147,20 @@ public final class ZkTool {
                 System.err.println("File not found: " + filePath);
                 return;
             }
-            String line;
             try {
-                while ((line = br.readLine()) != null) {
-                    try {
-                        cloudname.createCoordinate(Coordinate.parse(line));
-                        System.out.println("Created " + line);
-                    } catch (Exception e) {
-                        System.err.println("Could not create: " + line + "Got error: " + e.getMessage());
+                List<ZkCoordinateProvisioner.Result> results = cloudname.provisionCoordinates(br, maxInFlightFlag);
+                int created = 0;
+                for (ZkCoordinateProvisioner.Result result : results) {
+                    if (result.isCreated()) {
+                        created++;
+                        System.out.println(result);
+                    } else {
+                        System.err.println(result);
                     }
                 }
+                System.err.println("Created " + created + " of " + results.size() + " coordinates.");
+            } catch (CloudnameException e) {
+                System.err.println("Got error: " + e.getMessage());
             } catch (IOException e) {
                 System.err.println("Failed to read coordinate from file. " + e.getMessage());
                 try {
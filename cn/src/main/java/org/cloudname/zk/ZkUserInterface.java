@@ -21,8 +21,9 @@ public interface ZkUserInterface {
     public void newZooKeeperInstance(ZooKeeper zk);
 
     /**
-     * This is an event sent about every second as long as the connection to ZooKeeper is up. The clients can
-     * do verification of state etc. It is just intended to make things simple.
+     * Called on the ZkScheduler thread when a time event asked for with
+     * ZkScheduler.scheduleTimeEvent() is due, e.g. to retry something that failed. It is only
+     * called when asked for.
      */
     public void timeEvent();
 }
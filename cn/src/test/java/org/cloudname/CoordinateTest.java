@@ -71,4 +71,28 @@ public class CoordinateTest {
     public void testIllegalArgumentsConstructor() throws Exception {
         new Coordinate(1, "service", "_user", "cell");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testParseAgreesWithPattern() throws Exception {
+        String[] coordinates = {
+            "0.service.user.cell", "12.s1.u-2.c_3", "007.a.b.c",
+            "", "0", "0.service.user", "0.service.user.cell.extra",
+            "0.service..cell", "0.service.user.cell.", ".0.service.user.cell",
+            "a.service.user.cell", "-1.service.user.cell", "0.1service.user.cell",
+            "0.Service.user.cell", "0.ser vice.user.cell", "99999999999.service.user.cell"
+        };
+        for (String s : coordinates) {
+            boolean parsed = true;
+            try {
+                Coordinate.parse(s);
+            } catch (IllegalArgumentException e) {
+                parsed = false;
+            }
+            // The pattern does not know the instance is too large for an int.
+            boolean matched = Coordinate.coordinatePattern.matcher(s).matches()
+                && ! s.startsWith("99999999999");
+            assertEquals(s, matched, parsed);
+        }
+        assertEquals("7.a.b.c", Coordinate.parse("007.a.b.c").asString());
+    }
+}
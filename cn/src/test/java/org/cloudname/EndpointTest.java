@@ -28,4 +28,22 @@ public class EndpointTest {
 
         System.out.println(json);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEqualsAndHashCode() throws Exception {
+        Endpoint endpoint = new Endpoint(Coordinate.parse("1.foo.bar.zot"),
+                                         "rest-api", "somehost", 4711, "http", null);
+        Endpoint same = Endpoint.fromJson(endpoint.toJson());
+        assertEquals(endpoint, same);
+        assertEquals(endpoint.hashCode(), same.hashCode());
+        assertTrue(endpoint.equalsEndpoint(same));
+
+        assertFalse(endpoint.equals(new Endpoint(Coordinate.parse("1.foo.bar.zot"),
+                                                 "rest-api", "somehost", 4712, "http", null)));
+        assertFalse(endpoint.equals(new Endpoint(Coordinate.parse("2.foo.bar.zot"),
+                                                 "rest-api", "somehost", 4711, "http", null)));
+        assertFalse(endpoint.equals(new Endpoint(Coordinate.parse("1.foo.bar.zot"),
+                                                 "rest-api", "somehost", 4711, "http", "data")));
+        assertFalse(endpoint.equals(null));
+    }
+}
@@ -0,0 +1,82 @@
+package org.cloudname;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Micro benchmark comparing JSON round trips of the model classes with
+ * a new ObjectMapper per call, as the classes used to do, against the
+ * shared JsonCodecs.  Not run as part of the test suite; run it by hand
+ * with the test classpath.
+ */
+public class JsonCodecBenchmark {
+    private static final int ROUNDS = 5000;
+
+    private static final Coordinate COORDINATE = Coordinate.parse("1.service.user.cell");
+    private static final Endpoint ENDPOINT = new Endpoint(COORDINATE, "http", "host.example.com", 8080, "http", null);
+    private static final ServiceStatus STATUS = new ServiceStatus(ServiceState.RUNNING, "Up and running");
+
+    private static volatile Object sink;
+
+    private static <T> long runNewMapper(String name, T value, Class<T> type) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            String json = new ObjectMapper().writeValueAsString(value);
+            sink = new ObjectMapper().readValue(json, type);
+        }
+        return report(name + "/new", System.nanoTime() - start);
+    }
+
+    private static <T> long runCodec(String name, T value, Class<T> type) throws Exception {
+        JsonCodec<T> codec = JsonCodec.forType(type);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = codec.fromJson(codec.toJson(value));
+        }
+        return report(name + "/codec", System.nanoTime() - start);
+    }
+
+    private static <T> long runBuffer(String name, T value, Class<T> type) throws Exception {
+        JsonCodec<T> codec = JsonCodec.forType(type);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            buffer.reset();
+            codec.write(value, buffer);
+            sink = codec.fromJson(buffer.toByteArray());
+        }
+        return report(name + "/buffer", System.nanoTime() - start);
+    }
+
+    private static long report(String name, long elapsedNanos) {
+        System.out.printf("%-22s %8d round trips %6d ms %8.1f ns/round trip%n",
+                          name,
+                          ROUNDS,
+                          elapsedNanos / 1000000L,
+                          (double) elapsedNanos / ROUNDS);
+        return elapsedNanos;
+    }
+
+    private static <T> void run(String name, T value, Class<T> type, boolean print) throws Exception {
+        long newMapper = runNewMapper(name, value, type);
+        long codec = runCodec(name, value, type);
+        runBuffer(name, value, type);
+        if (print) {
+            System.out.printf("%s speedup: %.2fx%n", name, (double) newMapper / codec);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Warm up, then measure.
+        for (int i = 0; i < 3; i++) {
+            run("Coordinate", COORDINATE, Coordinate.class, false);
+            run("Endpoint", ENDPOINT, Endpoint.class, false);
+            run("ServiceStatus", STATUS, ServiceStatus.class, false);
+        }
+        System.out.println("--");
+        run("Coordinate", COORDINATE, Coordinate.class, true);
+        run("Endpoint", ENDPOINT, Endpoint.class, true);
+        run("ServiceStatus", STATUS, ServiceStatus.class, true);
+    }
+}
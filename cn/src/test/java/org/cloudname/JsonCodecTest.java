@@ -0,0 +1,60 @@
+package org.cloudname;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.type.TypeReference;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for JsonCodec.
+ */
+public class JsonCodecTest {
+
+    @Test
+    public void testCodecsAreShared() {
+        assertSame(JsonCodec.forType(Coordinate.class), JsonCodec.forType(Coordinate.class));
+        assertSame(JsonCodec.forType(new TypeReference<Map<String, Endpoint>>() {}),
+                   JsonCodec.forType(new TypeReference<Map<String, Endpoint>>() {}));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        JsonCodec<Endpoint> codec = JsonCodec.forType(Endpoint.class);
+        Endpoint endpoint = new Endpoint(Coordinate.parse("1.service.user.cell"),
+                "http", "host", 80, "http", null);
+        assertEquals(endpoint, codec.fromJson(codec.toJson(endpoint)));
+        assertEquals(endpoint, Endpoint.fromJson(endpoint.toJson()));
+
+        Map<String, Endpoint> endpointsByName = new HashMap<String, Endpoint>();
+        endpointsByName.put("http", endpoint);
+        JsonCodec<Map<String, Endpoint>> mapCodec =
+                JsonCodec.forType(new TypeReference<Map<String, Endpoint>>() {});
+        assertEquals(endpointsByName, mapCodec.fromJson(mapCodec.toJson(endpointsByName)));
+    }
+
+    @Test
+    public void testWriteToReusedBuffer() throws Exception {
+        JsonCodec<Coordinate> codec = JsonCodec.forType(Coordinate.class);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int i = 0; i < 3; i++) {
+            buffer.reset();
+            Coordinate coordinate = new Coordinate(i, "service", "user", "cell");
+            codec.write(coordinate, buffer);
+            assertEquals(coordinate, codec.fromJson(buffer.toByteArray()));
+        }
+
+        // Several values in a row in the same buffer.
+        buffer.reset();
+        codec.write(Coordinate.parse("1.a.b.c"), buffer);
+        codec.write(Coordinate.parse("2.a.b.c"), buffer);
+        JsonParser parser = JsonCodec.getJsonFactory().createJsonParser(buffer.toByteArray());
+        assertEquals(Coordinate.parse("1.a.b.c"), codec.read(parser));
+        assertEquals(Coordinate.parse("2.a.b.c"), codec.read(parser));
+    }
+}
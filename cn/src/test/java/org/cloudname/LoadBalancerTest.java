@@ -0,0 +1,144 @@
+package org.cloudname;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for LoadBalancer.
+ */
+public class LoadBalancerTest {
+
+    /**
+     * Only keeps track of the listener.
+     */
+    private static class ListenerResolver implements Resolver {
+        private ResolverListener listener;
+
+        @Override
+        public List<Endpoint> resolve(String expression) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Future<List<Endpoint>> resolveAsync(String expression) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void addResolverListener(String expression, ResolverListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void removeResolverListener(ResolverListener listener) {
+            if (this.listener == listener) {
+                this.listener = null;
+            }
+        }
+
+        @Override
+        public Set<Endpoint> getEndpoints(CoordinateDataFilter filter) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private ListenerResolver resolver;
+    private List<Endpoint> endpoints;
+
+    @Before
+    public void setUp() {
+        resolver = new ListenerResolver();
+        endpoints = StrategyRoundRobinTest.makeEndpoints(4, "zot");
+    }
+
+    private void addEndpoints() {
+        for (Endpoint endpoint : endpoints) {
+            resolver.listener.endpointEvent(Resolver.ResolverListener.Event.NEW_ENDPOINT, endpoint);
+        }
+    }
+
+    @Test
+    public void testEndpointsFollowResolver() throws Exception {
+        LoadBalancer loadBalancer = new LoadBalancer.Builder(resolver, "rest-api.all.bar.foo.zot").build();
+        assertSame(loadBalancer, resolver.listener);
+        assertNull(loadBalancer.pick());
+
+        addEndpoints();
+        addEndpoints();
+        assertEquals(4, loadBalancer.getEndpointCount());
+
+        resolver.listener.endpointEvent(Resolver.ResolverListener.Event.REMOVED_ENDPOINT, endpoints.get(0));
+        assertEquals(3, loadBalancer.getEndpointCount());
+        for (int i = 0; i < 100; i++) {
+            Endpoint endpoint = loadBalancer.pick();
+            assertFalse(endpoint.equals(endpoints.get(0)));
+            loadBalancer.report(endpoint, 1, true);
+        }
+        // Reports on removed endpoints are ignored.
+        loadBalancer.report(endpoints.get(0), 1, true);
+        assertEquals(-1.0, loadBalancer.getLatencyMs(endpoints.get(0)), 0.0);
+
+        loadBalancer.close();
+        assertNull(resolver.listener);
+    }
+
+    @Test
+    public void testPrefersLowLatency() throws Exception {
+        LoadBalancer loadBalancer = new LoadBalancer.Builder(resolver, "rest-api.all.bar.foo.zot").build();
+        addEndpoints();
+        Endpoint slow = endpoints.get(0);
+        Map<Endpoint, Integer> countByEndpoint = new HashMap<Endpoint, Integer>();
+        for (int i = 0; i < 2000; i++) {
+            Endpoint endpoint = loadBalancer.pick();
+            Integer count = countByEndpoint.get(endpoint);
+            countByEndpoint.put(endpoint, count == null ? 1 : count + 1);
+            loadBalancer.report(endpoint, endpoint.equals(slow) ? 100 : 10, true);
+        }
+        assertEquals(100.0, loadBalancer.getLatencyMs(slow), 0.001);
+        assertEquals(10.0, loadBalancer.getLatencyMs(endpoints.get(1)), 0.001);
+        // The slow endpoint only wins before it has a latency.
+        assertTrue(countByEndpoint.get(slow) < 20);
+    }
+
+    @Test
+    public void testEjection() throws Exception {
+        LoadBalancer loadBalancer = new LoadBalancer.Builder(resolver, "rest-api.all.bar.foo.zot")
+                .setFailuresBeforeEjection(3)
+                .setEjectionTimeMs(1000)
+                .setMaxEjectedPercent(25)
+                .build();
+        addEndpoints();
+        Endpoint failing = endpoints.get(0);
+        for (int i = 0; i < 3; i++) {
+            loadBalancer.report(failing, 1, false);
+        }
+        assertTrue(loadBalancer.isEjected(failing));
+        for (int i = 0; i < 100; i++) {
+            Endpoint endpoint = loadBalancer.pick();
+            assertFalse(endpoint.equals(failing));
+            loadBalancer.report(endpoint, 1, true);
+        }
+
+        // Only a quarter of the endpoints can be ejected.
+        Endpoint alsoFailing = endpoints.get(1);
+        for (int i = 0; i < 3; i++) {
+            loadBalancer.report(alsoFailing, 1, false);
+        }
+        assertFalse(loadBalancer.isEjected(alsoFailing));
+
+        Thread.sleep(1100);
+        assertFalse(loadBalancer.isEjected(failing));
+    }
+}
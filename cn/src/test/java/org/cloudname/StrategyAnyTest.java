@@ -86,4 +86,15 @@ public class StrategyAnyTest {
         // that more than 10 front elements are changed should be close to zero.
         assertThat(newFrontEndpoint, is(lessThan(10)));
     }
+
+    /**
+     * filter() keeps one endpoint, which order() leaves as it is.
+     */
+    @Test
+    public void testFilterKeepsOne() {
+        StrategyAny strategyAny = new StrategyAny();
+        List<Endpoint> selected = strategyAny.order(strategyAny.filter(endpoints));
+        assertThat(selected.size(), is(1));
+        assertThat(selected.get(0), is(endpoints.get(0)));
+    }
 }
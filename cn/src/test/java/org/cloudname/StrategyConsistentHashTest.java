@@ -0,0 +1,52 @@
+package org.cloudname;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.number.OrderingComparisons.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for StrategyConsistentHash.
+ */
+public class StrategyConsistentHashTest {
+
+    @Test
+    public void testSameKeySameEndpoint() {
+        StrategyConsistentHash strategy = new StrategyConsistentHash();
+        strategy.update(StrategyRoundRobinTest.makeEndpoints(10, "zot"));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(strategy.select("key" + i), strategy.select("key" + i));
+        }
+        // Without a key, the strategy sticks to one endpoint.
+        assertEquals(strategy.select(null), strategy.select(null));
+    }
+
+    @Test
+    public void testFewKeysMoveOnRemoval() {
+        List<Endpoint> endpoints = StrategyRoundRobinTest.makeEndpoints(10, "zot");
+        StrategyConsistentHash strategy = new StrategyConsistentHash();
+        strategy.update(endpoints);
+        Endpoint[] before = new Endpoint[1000];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = strategy.select("key" + i);
+        }
+
+        Endpoint removed = endpoints.remove(3);
+        strategy.update(endpoints);
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            Endpoint after = strategy.select("key" + i);
+            assertTrue(! after.equals(removed));
+            if (! after.equals(before[i])) {
+                moved++;
+            }
+        }
+        // About a tenth of the keys were on the removed endpoint, few others should move.
+        assertThat(moved, is(lessThan(200)));
+    }
+}
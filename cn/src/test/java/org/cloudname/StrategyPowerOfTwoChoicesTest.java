@@ -0,0 +1,85 @@
+package org.cloudname;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for StrategyPowerOfTwoChoices and StrategyCellAffinity.
+ */
+public class StrategyPowerOfTwoChoicesTest {
+
+    @Test
+    public void testAvoidsLoadedEndpoint() {
+        List<Endpoint> endpoints = StrategyRoundRobinTest.makeEndpoints(2, "zot");
+        StrategyPowerOfTwoChoices strategy = new StrategyPowerOfTwoChoices();
+        strategy.update(endpoints);
+        strategy.reportLoad(endpoints.get(0), 10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(endpoints.get(1), strategy.select(null));
+        }
+    }
+
+    @Test
+    public void testCellAffinity() {
+        List<Endpoint> endpoints = StrategyRoundRobinTest.makeEndpoints(3, "zot");
+        List<Endpoint> otherCell = StrategyRoundRobinTest.makeEndpoints(3, "other");
+        endpoints.addAll(otherCell);
+
+        StrategyPowerOfTwoChoices strategy = new StrategyPowerOfTwoChoices();
+        StrategyCellAffinity affinity = new StrategyCellAffinity("other", strategy);
+        affinity.update(endpoints);
+        strategy.reportLoad(otherCell.get(0), 10);
+        for (int i = 0; i < 100; i++) {
+            Endpoint endpoint = affinity.select(null);
+            assertEquals("other", endpoint.getCoordinate().getCell());
+            assertTrue(! endpoint.equals(otherCell.get(0)));
+        }
+
+        endpoints.removeAll(otherCell);
+        affinity.update(endpoints);
+        assertEquals("zot", affinity.select(null).getCoordinate().getCell());
+    }
+
+    @Test
+    public void testServicesKeepTheirLoads() {
+        List<Endpoint> zot = StrategyRoundRobinTest.makeEndpoints(2, "zot");
+        List<Endpoint> other = StrategyRoundRobinTest.makeEndpoints(2, "other");
+        StrategyPowerOfTwoChoices strategy = new StrategyPowerOfTwoChoices();
+        strategy.filter(zot);
+        strategy.reportLoad(zot.get(0), 10);
+        // Another service in the same strategy, as in a resolver.
+        strategy.filter(other);
+        strategy.reportLoad(other.get(1), 10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(zot.get(1), strategy.filter(zot).get(0));
+            assertEquals(other.get(0), strategy.filter(other).get(0));
+        }
+    }
+
+    @Test
+    public void testDroppedTablesForgetLoads() {
+        List<Endpoint> zot = StrategyRoundRobinTest.makeEndpoints(2, "zot");
+        List<Endpoint> other = StrategyRoundRobinTest.makeEndpoints(3, "other");
+        StrategyPowerOfTwoChoices strategy = new StrategyPowerOfTwoChoices();
+        strategy.filter(zot);
+        strategy.filter(other);
+        assertEquals(5, strategy.getLoadCount());
+
+        // A replaced table forgets the endpoints that are gone.
+        strategy.filter(other.subList(0, 1));
+        assertEquals(3, strategy.getLoadCount());
+
+        strategy.dropIdleTables(System.currentTimeMillis() + TableStrategy.TABLE_IDLE_MS + 1);
+        assertEquals(0, strategy.getLoadCount());
+
+        StrategyCellAffinity affinity = new StrategyCellAffinity("zot", strategy);
+        affinity.filter(zot);
+        assertEquals(2, strategy.getLoadCount());
+        affinity.dropIdleTables(System.currentTimeMillis() + TableStrategy.TABLE_IDLE_MS + 1);
+        assertEquals(0, strategy.getLoadCount());
+    }
+}
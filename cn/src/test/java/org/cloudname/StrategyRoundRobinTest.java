@@ -0,0 +1,119 @@
+package org.cloudname;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for StrategyRoundRobin.
+ */
+public class StrategyRoundRobinTest {
+
+    static List<Endpoint> makeEndpoints(int count, String cell) {
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        for (int i = 0; i < count; i++) {
+            endpoints.add(new Endpoint(Coordinate.parse(i + ".foo.bar." + cell),
+                    "rest-api", "host" + i, 4711, "http", null));
+        }
+        return endpoints;
+    }
+
+    @Test
+    public void testEvenSpread() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        assertNull(strategy.select(null));
+
+        strategy.update(makeEndpoints(5, "zot"));
+        Map<Endpoint, Integer> countByEndpoint = new HashMap<Endpoint, Integer>();
+        for (int i = 0; i < 500; i++) {
+            Endpoint endpoint = strategy.select(null);
+            Integer count = countByEndpoint.get(endpoint);
+            countByEndpoint.put(endpoint, count == null ? 1 : count + 1);
+        }
+        assertEquals(5, countByEndpoint.size());
+        for (int count : countByEndpoint.values()) {
+            assertEquals(100, count);
+        }
+    }
+
+    @Test
+    public void testTableOnlyRebuiltOnChange() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        List<Endpoint> endpoints = makeEndpoints(3, "zot");
+        TableStrategy.Table table = strategy.getTable(endpoints);
+
+        // Same endpoints in another order.
+        List<Endpoint> reversed = new ArrayList<Endpoint>(endpoints);
+        Collections.reverse(reversed);
+        assertEquals(table, strategy.getTable(reversed));
+
+        endpoints.remove(0);
+        assertEquals(2, strategy.getTable(endpoints).endpoints.length);
+        assertEquals(1, strategy.filter(endpoints).size());
+        assertEquals(0, strategy.filter(new ArrayList<Endpoint>()).size());
+    }
+
+    @Test
+    public void testTablePerService() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        List<Endpoint> zot = makeEndpoints(3, "zot");
+        List<Endpoint> other = makeEndpoints(2, "other");
+        TableStrategy.Table zotTable = strategy.getTable(TableStrategy.getServiceKey(zot.get(0)), zot);
+        assertEquals("other", strategy.filter(other).get(0).getCoordinate().getCell());
+        assertSame(zotTable, strategy.getTable(TableStrategy.getServiceKey(zot.get(0)), zot));
+    }
+
+    @Test
+    public void testChangedEndpointRebuildsTable() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        List<Endpoint> endpoints = makeEndpoints(2, "zot");
+        TableStrategy.Table table = strategy.getTable(endpoints);
+
+        // Same coordinate and name, new port.
+        Endpoint moved = endpoints.get(0);
+        endpoints.set(0, new Endpoint(moved.getCoordinate(), moved.getName(), moved.getHost(),
+                moved.getPort() + 1, moved.getProtocol(), null));
+        assertNotSame(table, strategy.getTable(endpoints));
+        assertTrue(strategy.getTable(endpoints).isBuiltFrom(endpoints));
+    }
+
+    @Test
+    public void testSnapshotReusesTable() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        List<Endpoint> snapshot = makeEndpoints(3, "zot");
+        String serviceKey = TableStrategy.getServiceKey(snapshot.get(0));
+        strategy.filterSnapshot(snapshot);
+        TableStrategy.Table table = strategy.getTable(serviceKey, snapshot);
+
+        // A new snapshot with the same endpoints keeps the table.
+        List<Endpoint> sameEndpoints = new ArrayList<Endpoint>(snapshot);
+        strategy.filterSnapshot(sameEndpoints);
+        assertSame(table, strategy.getTable(serviceKey, sameEndpoints));
+
+        List<Endpoint> fewer = new ArrayList<Endpoint>(snapshot.subList(0, 2));
+        strategy.filterSnapshot(fewer);
+        assertEquals(2, strategy.getTable(serviceKey, fewer).endpoints.length);
+    }
+
+    @Test
+    public void testIdleTablesAreDropped() {
+        StrategyRoundRobin strategy = new StrategyRoundRobin();
+        strategy.filter(makeEndpoints(3, "zot"));
+        strategy.filter(makeEndpoints(2, "other"));
+        assertEquals(2, strategy.getTableCount());
+        strategy.dropIdleTables(System.currentTimeMillis());
+        assertEquals(2, strategy.getTableCount());
+        strategy.dropIdleTables(System.currentTimeMillis() + TableStrategy.TABLE_IDLE_MS + 1);
+        assertEquals(0, strategy.getTableCount());
+    }
+}
@@ -0,0 +1,122 @@
+package org.cloudname.zk;
+
+import org.cloudname.Coordinate;
+
+import java.util.regex.Matcher;
+
+/**
+ * Micro benchmark comparing parsing resolver expressions and coordinates
+ * with the regex patterns against ExpressionTokenizer, with and without
+ * the cache of ZkResolver.Parameters.  Not run as part of the test suite;
+ * run it by hand with the test classpath.
+ */
+public class ExpressionParserBenchmark {
+    private static final int ROUNDS = 200000;
+
+    private static final String[] EXPRESSIONS = {
+        "http.1.service.user.cell",
+        "all.service.user.cell",
+        "0.service.user.cell",
+        "thrift.any.service.user.cell",
+    };
+
+    private static final String[] COORDINATES = {
+        "0.service.user.cell",
+        "17.some-service.some_user.cell",
+    };
+
+    private static volatile Object sink;
+
+    /**
+     * Tries the patterns in the order ZkResolver.Parameters used to.
+     */
+    private static Matcher matchWithPatterns(String expression) {
+        Matcher m = ZkResolver.endpointPattern.matcher(expression);
+        if (m.matches()) {
+            return m;
+        }
+        m = ZkResolver.strategyPattern.matcher(expression);
+        if (m.matches()) {
+            return m;
+        }
+        m = ZkResolver.instancePattern.matcher(expression);
+        if (m.matches()) {
+            return m;
+        }
+        m = ZkResolver.endpointStrategyPattern.matcher(expression);
+        m.matches();
+        return m;
+    }
+
+    private static long runPatterns() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = matchWithPatterns(EXPRESSIONS[i % EXPRESSIONS.length]);
+        }
+        return report("patterns", System.nanoTime() - start);
+    }
+
+    private static long runTokenizer() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = new ZkResolver.Parameters(EXPRESSIONS[i % EXPRESSIONS.length]);
+        }
+        return report("tokenizer", System.nanoTime() - start);
+    }
+
+    private static long runCached() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = ZkResolver.Parameters.parse(EXPRESSIONS[i % EXPRESSIONS.length]);
+        }
+        return report("cached", System.nanoTime() - start);
+    }
+
+    private static long runCoordinatePattern() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Matcher m = Coordinate.coordinatePattern.matcher(COORDINATES[i % COORDINATES.length]);
+            m.matches();
+            sink = m;
+        }
+        return report("coord-pat", System.nanoTime() - start);
+    }
+
+    private static long runCoordinateParse() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink = Coordinate.parse(COORDINATES[i % COORDINATES.length]);
+        }
+        return report("coord-tok", System.nanoTime() - start);
+    }
+
+    private static long report(String name, long elapsedNanos) {
+        System.out.printf("%-10s %10d parses %8d ms %8.1f ns/parse%n",
+                          name,
+                          ROUNDS,
+                          elapsedNanos / 1000000L,
+                          (double) elapsedNanos / ROUNDS);
+        return elapsedNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Warm up, then measure.
+        for (int i = 0; i < 3; i++) {
+            runPatterns();
+            runTokenizer();
+            runCached();
+            runCoordinatePattern();
+            runCoordinateParse();
+        }
+        System.out.println("--");
+        long patterns = runPatterns();
+        long tokenizer = runTokenizer();
+        long cached = runCached();
+        long coordinatePattern = runCoordinatePattern();
+        long coordinateParse = runCoordinateParse();
+        System.out.printf("tokenizer speedup: %.2fx, cached: %.2fx, coordinates: %.2fx%n",
+                          (double) patterns / tokenizer,
+                          (double) patterns / cached,
+                          (double) coordinatePattern / coordinateParse);
+    }
+}
@@ -0,0 +1,145 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.cloudname.CloudnameException;
+import org.cloudname.Coordinate;
+import org.cloudname.testtools.Net;
+import org.cloudname.testtools.zookeeper.EmbeddedZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for ZkChunkedConfig.
+ */
+public class ZkChunkedConfigTest {
+    private ZooKeeper zk;
+    private ZkCloudname cn;
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File rootDir = temp.newFolder("zk-test");
+        int zkport = Net.getFreePort();
+        EmbeddedZooKeeper ezk = new EmbeddedZooKeeper(rootDir, zkport);
+        ezk.init();
+
+        final CountDownLatch connectedLatch = new CountDownLatch(1);
+        zk = new ZooKeeper("localhost:" + zkport, 1000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connectedLatch.countDown();
+                }
+            }
+        });
+        connectedLatch.await();
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cn.close();
+        zk.close();
+    }
+
+    /**
+     * Text that does not compress to nothing.
+     */
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testLargeConfig() throws Exception {
+        Coordinate c = Coordinate.parse("1.service.user.cell");
+        String configPath = ZkCoordinatePath.getConfigPath(c, null);
+        cn.createCoordinate(c);
+
+        // Larger than ZooKeeper takes in one node.
+        Random random = new Random(1);
+        String config = randomText(random, 8 * ZkChunkedConfig.MAX_CHUNK_SIZE);
+        cn.setConfig(c, config, null);
+        assertTrue(ZkChunkedConfig.isManifest(zk.getData(configPath, false, null)));
+        List<String> chunks = zk.getChildren(configPath, false);
+        assertTrue(chunks.size() >= 8);
+        assertEquals(config, cn.getConfig(c));
+
+        // Inserting text only replaces the chunks around it, the later chunks are not shifted.
+        int middle = config.length() / 2;
+        String changed = config.substring(0, middle) + "inserted" + config.substring(middle);
+        cn.setConfig(c, changed, config);
+        List<String> changedChunks = zk.getChildren(configPath, false);
+        Set<String> kept = new HashSet<String>(chunks);
+        kept.retainAll(changedChunks);
+        assertTrue(kept.size() >= chunks.size() - 2);
+        assertTrue(changedChunks.size() <= chunks.size() + 1);
+        assertEquals(changed, ZkChunkedConfig.read(zk, configPath, null));
+
+        // A small config is written to the config node, and the chunks are deleted.
+        cn.setConfig(c, "small", changed);
+        assertEquals("small", new String(zk.getData(configPath, false, null), Util.CHARSET_NAME));
+        assertTrue(zk.getChildren(configPath, false).isEmpty());
+
+        // A small config that looks like a manifest is chunked.
+        String lookalike = "cloudname-chunked-config 1\n3\n";
+        cn.setConfig(c, lookalike, null);
+        assertEquals(1, zk.getChildren(configPath, false).size());
+        assertEquals(lookalike, ZkChunkedConfig.read(zk, configPath, null));
+
+        // The chunks are deleted with the coordinate.
+        cn.destroyCoordinate(c);
+        assertFalse(Util.exist(zk, configPath));
+    }
+
+    /**
+     * A writer that lost the race for the manifest leaves the config and its chunks as they are,
+     * and deletes the chunks it created.
+     */
+    @Test
+    public void testStaleWriteDeletesItsChunks() throws Exception {
+        Coordinate c = Coordinate.parse("1.service.user.cell");
+        String configPath = ZkCoordinatePath.getConfigPath(c, null);
+        cn.createCoordinate(c);
+        Random random = new Random(2);
+        String first = randomText(random, 2 * ZkChunkedConfig.MAX_CHUNK_SIZE);
+        cn.setConfig(c, first, null);
+        int version = zk.exists(configPath, false).getVersion();
+
+        String second = randomText(random, 2 * ZkChunkedConfig.MAX_CHUNK_SIZE);
+        ZkChunkedConfig.write(zk, configPath, second, version);
+        List<String> chunks = zk.getChildren(configPath, false);
+        try {
+            ZkChunkedConfig.write(zk, configPath, randomText(random, 2 * ZkChunkedConfig.MAX_CHUNK_SIZE), version);
+            fail("Wrote on top of a manifest that was replaced.");
+        } catch (CloudnameException e) {
+            // Expected.
+        }
+        assertEquals(new HashSet<String>(chunks), new HashSet<String>(zk.getChildren(configPath, false)));
+        assertEquals(second, ZkChunkedConfig.read(zk, configPath, null));
+
+        // Without a version it is written on top of whatever is there.
+        cn.setConfig(c, first, null);
+        assertEquals(first, ZkChunkedConfig.read(zk, configPath, null));
+    }
+}
@@ -1,10 +1,14 @@
 package org.cloudname.zk;
 
 import junit.framework.TestCase;
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.cloudname.CloudnameLock;
+import org.cloudname.CloudnameLockListener;
+import org.cloudname.CloudnameReadWriteLock;
 import org.cloudname.Coordinate;
 import org.cloudname.CoordinateException;
 import org.cloudname.ServiceHandle;
@@ -24,6 +28,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -287,6 +292,212 @@ public class ZkCloudnameLockTest {
 
     }
 
+    /**
+     * Test that readers share the lock, and that a waiting writer is not passed by new readers.
+     */
+    @Test
+    public void testReadWriteLock() throws Exception {
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+
+        final Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        final ServiceHandle serviceHandle = cn.claim(coordinate);
+        final CloudnameLock.Scope scope = CloudnameLock.Scope.SERVICE;
+        final String lockName = "testReadWriteLock";
+
+        final CloudnameReadWriteLock lock1 = serviceHandle.getCloudnameReadWriteLock(scope, lockName);
+        final CloudnameReadWriteLock lock2 = serviceHandle.getCloudnameReadWriteLock(scope, lockName);
+        final CloudnameReadWriteLock lock3 = serviceHandle.getCloudnameReadWriteLock(scope, lockName);
+
+        assertTrue("Unable to read lock.", lock1.readLock().tryLock());
+        assertTrue("Readers do not share the lock.", lock2.readLock().tryLock());
+        assertFalse("Got write lock while read locked.", lock3.writeLock().tryLock());
+        // The exclusive lock of the same name is the write lock.
+        assertFalse("Got lock while read locked.", serviceHandle.getCloudnameLock(scope, lockName).tryLock());
+        lock2.readLock().release();
+
+        final CountDownLatch writeLocked = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                if (lock3.writeLock().tryLock(10000)) {
+                    writeLocked.countDown();
+                }
+            }
+        };
+        writer.start();
+
+        // Wait for the writer to queue up, a reader asking after it has to wait.
+        final String lockDirectory = "/" + CloudnameLock.LOCK_FOLDER_NAME + "/cell/user/service/"
+                + CloudnameLock.LOCK_FOLDER_NAME;
+        while (zk.getChildren(lockDirectory, false).size() < 2) {
+            Thread.sleep(10);
+        }
+        assertFalse("Reader passed a waiting writer.", lock2.readLock().tryLock());
+        assertFalse(writeLocked.await(200, TimeUnit.MILLISECONDS));
+
+        lock1.readLock().release();
+        assertTrue("Writer did not get the lock.", writeLocked.await(10, TimeUnit.SECONDS));
+        assertFalse("Got read lock while write locked.", lock1.readLock().tryLock());
+        lock3.writeLock().release();
+        assertTrue("Unable to read lock.", lock1.readLock().tryLock());
+        lock1.readLock().release();
+    }
+
+    /**
+     * Test that a semaphore is held by up to its number of permits, and that a waiter gets the
+     * permit that is released.
+     */
+    @Test
+    public void testSemaphore() throws Exception {
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+
+        final Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        final ServiceHandle serviceHandle = cn.claim(coordinate);
+        final CloudnameLock.Scope scope = CloudnameLock.Scope.SERVICE;
+        final String lockName = "testSemaphore";
+        final int permits = 3;
+        final int waiters = 3;
+
+        final List<CloudnameLock> holders = new ArrayList<CloudnameLock>();
+        for (int i = 0; i < permits; i++) {
+            holders.add(serviceHandle.getCloudnameSemaphore(scope, lockName, permits));
+            assertTrue("Unable to get a permit.", holders.get(i).tryLock());
+        }
+        assertFalse("Got more permits than there are.",
+                serviceHandle.getCloudnameSemaphore(scope, lockName, permits).tryLock());
+
+        final java.util.concurrent.Semaphore acquired = new java.util.concurrent.Semaphore(0);
+        for (int i = 0; i < waiters; i++) {
+            final CloudnameLock lock = serviceHandle.getCloudnameSemaphore(scope, lockName, permits);
+            new Thread() {
+                @Override
+                public void run() {
+                    if (lock.tryLock(20000)) {
+                        acquired.release();
+                    }
+                }
+            }.start();
+        }
+        assertFalse(acquired.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        // The first waiter gets the permit, and the next waiter takes its place as the first, so
+        // the permits released after that are not missed.
+        holders.get(2).release();
+        assertTrue("No waiter got the released permit.", acquired.tryAcquire(10, TimeUnit.SECONDS));
+        assertFalse(acquired.tryAcquire(200, TimeUnit.MILLISECONDS));
+        holders.get(0).release();
+        holders.get(1).release();
+        assertTrue("The waiters did not get the released permits.", acquired.tryAcquire(2, 10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that locks exclude the nodes of older clients, which are named lockName followed by
+     * the sequence number, and that no node is left behind.
+     */
+    @Test
+    public void testOldClientLock() throws Exception {
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+
+        final Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        final ServiceHandle serviceHandle = cn.claim(coordinate);
+        final CloudnameLock.Scope scope = CloudnameLock.Scope.SERVICE;
+        final String lockName = "testOldClientLock";
+        final String lockDirectory = "/" + CloudnameLock.LOCK_FOLDER_NAME + "/cell/user/service/"
+                + CloudnameLock.LOCK_FOLDER_NAME;
+
+        final CloudnameLock lock = serviceHandle.getCloudnameLock(scope, lockName);
+        final CloudnameReadWriteLock readWriteLock = serviceHandle.getCloudnameReadWriteLock(scope, lockName);
+        // A lock whose name starts with ours is another lock.
+        final CloudnameLock otherLock = serviceHandle.getCloudnameLock(scope, lockName + "2");
+        assertTrue("Unable to lock.", otherLock.tryLock());
+
+        final String oldNode = zk.create(lockDirectory + "/" + lockName, null,
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        assertFalse("Got lock while an old client holds it.", lock.tryLock());
+        assertFalse("Got read lock while an old client holds the lock.", readWriteLock.readLock().tryLock());
+        zk.delete(oldNode, -1);
+
+        assertTrue("Unable to lock.", lock.tryLock());
+        final List<String> children = zk.getChildren(lockDirectory, false);
+        assertEquals(2, children.size());
+        for (final String child : children) {
+            // Parsed as by older clients.
+            if (child.startsWith(lockName) && !child.startsWith(lockName + "2")) {
+                Integer.parseInt(child.substring(lockName.length()));
+            }
+        }
+        lock.release();
+        otherLock.release();
+        assertTrue("Lock nodes were left behind.", zk.getChildren(lockDirectory, false).isEmpty());
+    }
+
+    /**
+     * Test that a semaphore and a lock with the same name do not share nodes.
+     */
+    @Test
+    public void testSemaphoreAndLockWithSameName() throws Exception {
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+
+        final Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        final ServiceHandle serviceHandle = cn.claim(coordinate);
+        final CloudnameLock.Scope scope = CloudnameLock.Scope.SERVICE;
+        final String lockName = "testSemaphoreAndLockWithSameName";
+
+        final CloudnameLock semaphore = serviceHandle.getCloudnameSemaphore(scope, lockName, 1);
+        final CloudnameLock lock = serviceHandle.getCloudnameLock(scope, lockName);
+        assertTrue("Unable to get a permit.", semaphore.tryLock());
+        assertTrue("Semaphore kept out the lock.", lock.tryLock());
+        assertFalse("Got more permits than there are.",
+                serviceHandle.getCloudnameSemaphore(scope, lockName, 1).tryLock());
+        semaphore.release();
+        lock.release();
+
+        try {
+            serviceHandle.getCloudnameLock(scope, "read-" + lockName + "-");
+            fail("Got a lock named as the read nodes of another lock.");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Test that the listeners are told when the lock node is deleted behind our back.
+     */
+    @Test
+    public void testLockLost() throws Exception {
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+
+        final Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        final ServiceHandle serviceHandle = cn.claim(coordinate);
+        final String lockName = "testLockLost";
+
+        final CloudnameLock lock = serviceHandle.getCloudnameLock(CloudnameLock.Scope.SERVICE, lockName);
+        final CountDownLatch lost = new CountDownLatch(1);
+        lock.addListener(new CloudnameLockListener() {
+            @Override
+            public void lost() {
+                lost.countDown();
+            }
+        });
+        assertTrue("Unable to lock.", lock.tryLock());
+
+        final String lockDirectory = "/" + CloudnameLock.LOCK_FOLDER_NAME + "/cell/user/service/"
+                + CloudnameLock.LOCK_FOLDER_NAME;
+        for (final String child : zk.getChildren(lockDirectory, false)) {
+            zk.delete(lockDirectory + "/" + child, -1);
+        }
+        assertTrue("Listener was not told that the lock was lost.", lost.await(10, TimeUnit.SECONDS));
+
+        // The lock object can be used again.
+        assertTrue("Unable to lock again.", lock.tryLock());
+        lock.release();
+    }
+
     /**
      * Class simulates a shared resource that can not be used by more than one at a time.
      */
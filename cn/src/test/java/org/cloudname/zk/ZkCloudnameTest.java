@@ -1,5 +1,6 @@
 package org.cloudname.zk;
 
+import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.ZooDefs;
 import org.cloudname.*;
 
@@ -9,6 +10,7 @@ import org.apache.zookeeper.ZooKeeper;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
 
@@ -156,6 +158,7 @@ public class ZkCloudnameTest {
         // Try to set the status to something else
         String msg = "Hamster getting quite eager now";
         handle.setStatus(new ServiceStatus(ServiceState.STARTING,msg));
+        handle.flush().get();
         ServiceStatus status = cn.getStatus(c);
         assertEquals(msg, status.getMessage());
         assertSame(ServiceState.STARTING, status.getState());
@@ -168,6 +171,7 @@ public class ZkCloudnameTest {
 
         // Remove one of them
         handle.removeEndpoint("bar");
+        handle.flush().get();
 
         List<Endpoint> endpointList = cn.getResolver().resolve("bar.1.service.user.cell");
         assertEquals(0, endpointList.size());
@@ -202,6 +206,222 @@ public class ZkCloudnameTest {
         assertTrue(pathExists("/cn/cell/user/service/1/config"));
     }
 
+    /**
+     * Changes made in a row go out in a few writes, not one each.
+     */
+    @Test
+    public void testWritesAreCoalesced() throws Exception {
+        for (long writeDelayMs : new long[] { 0, 50 }) {
+            Coordinate c = Coordinate.parse(writeDelayMs + ".coalesce.user.cell");
+            ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport)
+                    .setWriteDelayMs(writeDelayMs).build().connect();
+            cn.createCoordinate(c);
+            ServiceHandle handle = cn.claim(c);
+            assertTrue(handle.waitForCoordinateOkSeconds(30));
+
+            for (int i = 0; i < 20; i++) {
+                handle.putEndpoint(new Endpoint(c, "endpoint" + i, "localhost", 1000 + i, "http", null));
+            }
+            handle.setStatus(new ServiceStatus(ServiceState.RUNNING, "coalesced"));
+            handle.flush().get(10, TimeUnit.SECONDS);
+
+            // The claim creates version 0, then at most three writes with no delay and two with.
+            org.apache.zookeeper.data.Stat stat = zk.exists(ZkCoordinatePath.getStatusPath(c), false);
+            assertTrue("Version " + stat.getVersion(), stat.getVersion() <= (writeDelayMs == 0 ? 3 : 2));
+            assertEquals("coalesced", cn.getStatus(c).getMessage());
+            assertEquals(20, cn.getResolver().resolve("all." + c.getService() + ".user.cell").size());
+
+            // Nothing to write.
+            assertTrue(handle.flush().isDone());
+            handle.close();
+            cn.close();
+        }
+    }
+
+    /**
+     * A change made while the claim is on its way is written after the claim succeeds, and its
+     * flush completes when that write is acknowledged.
+     */
+    @Test
+    public void testChangeDuringClaimIsWritten() throws Exception {
+        Coordinate c = Coordinate.parse("1.duringclaim.user.cell");
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        cn.createCoordinate(c);
+        ServiceHandle handle = cn.claim(c);
+        try {
+            handle.setStatus(new ServiceStatus(ServiceState.RUNNING, "during claim"));
+        } catch (CloudnameException e) {
+            // Not claimed yet, the change is written once it is.
+        }
+        handle.flush().get(10, TimeUnit.SECONDS);
+        assertTrue(handle.waitForCoordinateOkSeconds(30));
+        assertEquals("during claim", cn.getStatus(c).getMessage());
+        handle.close();
+        cn.close();
+    }
+
+    /**
+     * The nodes created before a create fails are deleted again.
+     */
+    @Test
+    public void testFailedCreateIsRolledBack() throws Exception {
+        List<String> paths = Arrays.asList("/rollback", "/rollback/a", "/missing/b");
+        try {
+            Util.createPipelined(zk, paths, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+            fail("Created a node without its parent.");
+        } catch (CloudnameException e) {
+            // Expected.
+        }
+        assertFalse(pathExists("/rollback"));
+
+        // Nodes that were there before are kept.
+        zk.create("/rollback", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        try {
+            Util.createPipelined(zk, paths, ZooDefs.Ids.OPEN_ACL_UNSAFE);
+            fail("Created a node without its parent.");
+        } catch (CloudnameException e) {
+            // Expected.
+        }
+        assertTrue(pathExists("/rollback"));
+        assertFalse(pathExists("/rollback/a"));
+    }
+
+    /**
+     * Coordinates claimed as a group are claimed, and reclaimed, like coordinates claimed alone.
+     */
+    @Test
+    public void testGroupClaim() throws Exception {
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        List<Coordinate> coordinates = new ArrayList<Coordinate>();
+        for (int i = 0; i < 20; i++) {
+            coordinates.add(new Coordinate(i, "shard", "user", "cell"));
+        }
+        assertTrue(cn.createCoordinates(coordinates).isEmpty());
+
+        List<ServiceHandle> handles = cn.claim(coordinates);
+        assertEquals(coordinates.size(), handles.size());
+        for (ServiceHandle handle : handles) {
+            assertTrue(handle.waitForCoordinateOkSeconds(10));
+        }
+        for (Coordinate c : coordinates) {
+            assertTrue(pathExists(ZkCoordinatePath.getStatusPath(c)));
+        }
+
+        handles.get(3).setStatus(new ServiceStatus(ServiceState.RUNNING, "shard 3"));
+        handles.get(3).flush().get(10, TimeUnit.SECONDS);
+        assertEquals("shard 3", cn.getStatus(coordinates.get(3)).getMessage());
+
+        // A coordinate that loses its status node is reclaimed by the group, with its data.
+        final CountDownLatch reclaimed = new CountDownLatch(1);
+        handles.get(3).registerCoordinateListener(new CoordinateListener() {
+            private boolean lost = false;
+
+            @Override
+            public void onCoordinateEvent(Event event, String message) {
+                if (event == Event.NOT_OWNER) {
+                    lost = true;
+                } else if (event == Event.COORDINATE_OK && lost) {
+                    reclaimed.countDown();
+                }
+            }
+        });
+        zk.delete(ZkCoordinatePath.getStatusPath(coordinates.get(3)), -1);
+        assertTrue(reclaimed.await(10, TimeUnit.SECONDS));
+        assertEquals("shard 3", cn.getStatus(coordinates.get(3)).getMessage());
+
+        handles.get(0).close();
+        assertFalse(pathExists(ZkCoordinatePath.getStatusPath(coordinates.get(0))));
+        assertTrue(pathExists(ZkCoordinatePath.getStatusPath(coordinates.get(1))));
+        cn.close();
+    }
+
+    /**
+     * The config is read from memory and kept up to date by the watch, which is shared by all
+     * the listeners.
+     */
+    @Test
+    public void testConfigCache() throws Exception {
+        final Coordinate c = Coordinate.parse("1.service.user.cell");
+        final String configPath = ZkCoordinatePath.getConfigPath(c, null);
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        cn.createCoordinate(c);
+        assertNull(cn.getConfig(c));
+
+        ServiceHandle handle = cn.claim(c);
+        final BlockingQueue<String> events1 = new LinkedBlockingQueue<String>();
+        final BlockingQueue<String> events2 = new LinkedBlockingQueue<String>();
+        handle.registerConfigListener(new ConfigListener() {
+            @Override
+            public void onConfigEvent(Event event, String data) {
+                events1.add(event + " " + data);
+            }
+        });
+        handle.registerConfigListener(new ConfigListener() {
+            @Override
+            public void onConfigEvent(Event event, String data) {
+                events2.add(event + " " + data);
+            }
+        });
+        assertEquals("UPDATED ", events1.poll(5, TimeUnit.SECONDS));
+        assertEquals("UPDATED ", events2.poll(5, TimeUnit.SECONDS));
+
+        zk.setData(configPath, "hello".getBytes(Util.CHARSET_NAME), -1);
+        assertEquals("UPDATED hello", events1.poll(5, TimeUnit.SECONDS));
+        assertEquals("UPDATED hello", events2.poll(5, TimeUnit.SECONDS));
+        assertEquals("hello", cn.getConfig(c));
+
+        zk.delete(configPath, -1);
+        assertEquals("DELETED ", events1.poll(5, TimeUnit.SECONDS));
+        assertEquals("DELETED ", events2.poll(5, TimeUnit.SECONDS));
+        try {
+            cn.getConfig(c);
+            fail("Expected exception for missing config.");
+        } catch (CloudnameException e) {
+            // Expected.
+        }
+
+        // The config is picked up again when it is created.
+        zk.create(configPath, "again".getBytes(Util.CHARSET_NAME), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.PERSISTENT);
+        assertEquals("UPDATED again", events1.poll(5, TimeUnit.SECONDS));
+        assertEquals("UPDATED again", events2.poll(5, TimeUnit.SECONDS));
+        assertEquals("again", cn.getConfig(c));
+        assertNull(events1.poll(200, TimeUnit.MILLISECONDS));
+        cn.close();
+    }
+
+    /**
+     * A config is only kept while it has listeners, or until the session changes.
+     */
+    @Test
+    public void testConfigCacheEviction() throws Exception {
+        Coordinate c = Coordinate.parse("1.service.user.cell");
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        cn.createCoordinate(c);
+        cn.close();
+
+        ZkConfigCache cache = new ZkConfigCache();
+        cache.newZooKeeperInstance(zk);
+        ConfigListener listener = new ConfigListener() {
+            @Override
+            public void onConfigEvent(Event event, String data) {
+            }
+        };
+        cache.registerConfigListener(c, listener);
+        assertNull(cache.getConfig(c));
+        cache.newZooKeeperInstance(zk);
+        assertTrue(cache.isTracked(c));
+
+        cache.removeConfigListener(c, listener);
+        assertFalse(cache.isTracked(c));
+
+        // Read without listeners, kept until the next session.
+        assertNull(cache.getConfig(c));
+        assertTrue(cache.isTracked(c));
+        cache.newZooKeeperInstance(zk);
+        assertFalse(cache.isTracked(c));
+    }
+
     /**
      * Try to claim coordinate twice
      */
@@ -615,6 +835,34 @@ public class ZkCloudnameTest {
         }
     }
 
+    @Test
+    public void testCreateCoordinates() throws Exception {
+        Coordinate c1 = Coordinate.parse("1.service.user.cell");
+        Coordinate c2 = Coordinate.parse("2.service.user.cell");
+        Coordinate c3 = Coordinate.parse("1.other.user.cell");
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        cn.createCoordinate(c1);
+        try {
+            cn.createCoordinate(c1);
+            fail("Expected exception to happen");
+        } catch (CoordinateExistsException e) {
+        }
+
+        // The second c2 finds the node the first one created.
+        List<Coordinate> existing = cn.createCoordinates(Arrays.asList(c1, c2, c3, c2));
+        assertEquals(Arrays.asList(c1, c2), existing);
+        assertTrue(pathExists("/cn/cell/user/service/2/config"));
+        assertTrue(pathExists("/cn/cell/user/other/1/config"));
+
+        cn.destroyCoordinate(c3);
+        assertFalse(pathExists("/cn/cell/user/other"));
+        try {
+            cn.destroyCoordinate(c3);
+            fail("Expected exception to happen");
+        } catch (CoordinateMissingException e) {
+        }
+    }
+
     /**
      * Tests that one process claims a coordinate, then another process tries to claim the same coordinate.
      * The first coordinate looses connection to ZooKeeper and the other process gets the coordinate.
@@ -651,6 +899,7 @@ public class ZkCloudnameTest {
 
         ServiceStatus status = new ServiceStatus(ServiceState.RUNNING, "updated status");
         handle2.setStatus(status);
+        handle2.flush().get();
 
         Cloudname cn3 = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
         ServiceStatus statusRetrieved = cn3.getStatus(c);
@@ -0,0 +1,83 @@
+package org.cloudname.zk;
+
+import org.cloudname.Coordinate;
+import org.cloudname.Endpoint;
+import org.cloudname.ServiceState;
+import org.cloudname.ServiceStatus;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for ZkCoordinateData.
+ */
+public class ZkCoordinateDataTest {
+
+    private static ZkCoordinateData.Snapshot makeSnapshot() {
+        Coordinate coordinate = Coordinate.parse("1.service.user.cell");
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        endpoints.add(new Endpoint(coordinate, "http", "host.example.com", 8080, "http", null));
+        endpoints.add(new Endpoint(coordinate, "admin", "host.example.com", 65535, null, "data æøå"));
+        return new ZkCoordinateData()
+                .setStatus(new ServiceStatus(ServiceState.RUNNING, "Up and running"))
+                .putEndpoints(endpoints)
+                .snapshot();
+    }
+
+    private static void assertSameData(ZkCoordinateData.Snapshot expected, ZkCoordinateData.Snapshot actual) {
+        assertEquals(expected.getServiceStatus().getState(), actual.getServiceStatus().getState());
+        assertEquals(expected.getServiceStatus().getMessage(), actual.getServiceStatus().getMessage());
+        assertEquals(expected.getEndpoints(), actual.getEndpoints());
+    }
+
+    @Test
+    public void testBothFormatsCanBeRead() throws Exception {
+        ZkCoordinateData.Snapshot snapshot = makeSnapshot();
+        byte[] json = snapshot.serialize(ZkCoordinateData.Format.JSON);
+        byte[] binary = snapshot.serialize(ZkCoordinateData.Format.BINARY);
+        assertEquals(snapshot.serialize(), new String(json, Util.CHARSET_NAME));
+        assertTrue(binary.length * 2 < json.length);
+
+        // The same instance reads one format after the other.
+        ZkCoordinateData data = new ZkCoordinateData();
+        assertSameData(snapshot, data.deserialize(binary).snapshot());
+        assertSameData(snapshot, data.deserialize(json).snapshot());
+        assertSameData(snapshot, data.deserialize(binary).snapshot());
+        assertNull(data.snapshot().getEndpoint("admin").getProtocol());
+    }
+
+    @Test
+    public void testEmptyBinary() throws Exception {
+        ZkCoordinateData.Snapshot snapshot = new ZkCoordinateData()
+                .setStatus(new ServiceStatus(ServiceState.DRAINING, null))
+                .snapshot();
+        ZkCoordinateData.Snapshot read = new ZkCoordinateData()
+                .deserialize(snapshot.serialize(ZkCoordinateData.Format.BINARY)).snapshot();
+        assertSameData(snapshot, read);
+        assertTrue(read.getEndpoints().isEmpty());
+    }
+
+    @Test
+    public void testInvalidBinary() throws Exception {
+        byte[] binary = makeSnapshot().serialize(ZkCoordinateData.Format.BINARY);
+        byte[] unknownVersion = binary.clone();
+        unknownVersion[0] = 2;
+        for (byte[] data : new byte[][] {
+                unknownVersion, Arrays.copyOf(binary, binary.length - 1), Arrays.copyOf(binary, binary.length + 1) }) {
+            try {
+                new ZkCoordinateData().deserialize(data);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+}
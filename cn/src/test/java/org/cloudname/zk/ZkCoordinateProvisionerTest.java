@@ -0,0 +1,99 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.cloudname.Coordinate;
+import org.cloudname.testtools.Net;
+import org.cloudname.testtools.zookeeper.EmbeddedZooKeeper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for ZkCoordinateProvisioner.
+ */
+public class ZkCoordinateProvisionerTest {
+    private ZooKeeper zk;
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File rootDir = temp.newFolder("zk-test");
+        int zkport = Net.getFreePort();
+        EmbeddedZooKeeper ezk = new EmbeddedZooKeeper(rootDir, zkport);
+        ezk.init();
+
+        final CountDownLatch connectedLatch = new CountDownLatch(1);
+        zk = new ZooKeeper("localhost:" + zkport, 1000, new Watcher() {
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connectedLatch.countDown();
+                }
+            }
+        });
+        connectedLatch.await();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zk.close();
+    }
+
+    @Test
+    public void testProvision() throws Exception {
+        Util.mkdir(zk, "/cn/cell/user/service/1/config", ZooDefs.Ids.OPEN_ACL_UNSAFE);
+
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            input.append(i).append(".service.user.cell\n");
+        }
+        input.append("\n");
+        input.append("not a coordinate\n");
+        input.append("1.other.user.othercell\n");
+        input.append("2.service.user.cell\n");
+
+        // A window of 3 makes the reader wait for replies many times.
+        List<ZkCoordinateProvisioner.Result> results = new ZkCoordinateProvisioner(zk, 3)
+                .provision(new BufferedReader(new StringReader(input.toString())));
+        assertEquals(53, results.size());
+
+        for (int i = 0; i < 50; i++) {
+            ZkCoordinateProvisioner.Result result = results.get(i);
+            assertEquals(i + 1, result.getLineNumber());
+            assertEquals(Coordinate.parse(i + ".service.user.cell"), result.getCoordinate());
+            assertEquals(i != 1, result.isCreated());
+            assertNotNull(zk.exists("/cn/cell/user/service/" + i + "/config", false));
+        }
+        assertEquals("Coordinate already created", results.get(1).getError());
+
+        // The blank line is skipped but counted.
+        ZkCoordinateProvisioner.Result invalid = results.get(50);
+        assertEquals(52, invalid.getLineNumber());
+        assertNull(invalid.getCoordinate());
+        assertFalse(invalid.isCreated());
+
+        assertTrue(results.get(51).isCreated());
+        assertNotNull(zk.exists("/cn/othercell/user/other/1/config", false));
+
+        ZkCoordinateProvisioner.Result duplicate = results.get(52);
+        assertEquals("2.service.user.cell", duplicate.getLine());
+        assertFalse(duplicate.isCreated());
+    }
+}
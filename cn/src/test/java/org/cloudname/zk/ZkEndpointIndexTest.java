@@ -0,0 +1,102 @@
+package org.cloudname.zk;
+
+import java.io.File;
+import java.util.Set;
+
+import org.cloudname.*;
+import org.cloudname.testtools.Net;
+import org.cloudname.testtools.zookeeper.EmbeddedZooKeeper;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the watch driven endpoint index behind Resolver.getEndpoints().
+ */
+public class ZkEndpointIndexTest {
+    private EmbeddedZooKeeper ezk;
+    private ZkCloudname cn;
+    private ZkResolver resolver;
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File rootDir = temp.newFolder("zk-test");
+        int zkport = Net.getFreePort();
+        ezk = new EmbeddedZooKeeper(rootDir, zkport);
+        ezk.init();
+
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        resolver = (ZkResolver) cn.getResolver();
+        claim("1.service.user.cell", "foo", 1234, ServiceState.RUNNING);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cn.close();
+    }
+
+    private ServiceHandle claim(String coordinateString, String endpointName, int port, ServiceState state)
+            throws Exception {
+        Coordinate coordinate = Coordinate.parse(coordinateString);
+        cn.createCoordinate(coordinate);
+        ServiceHandle handle = cn.claim(coordinate);
+        assertTrue(handle.waitForCoordinateOkSeconds(30));
+        handle.putEndpoint(new Endpoint(coordinate, endpointName, "localhost", port, "http", null));
+        handle.setStatus(new ServiceStatus(state, state.name()));
+        handle.flush().get();
+        return handle;
+    }
+
+    @Test
+    public void testIndexFollowsChanges() throws Exception {
+        Resolver.CoordinateDataFilter all = new Resolver.CoordinateDataFilter();
+        assertEquals(1, resolver.getEndpoints(all).size());
+        long misses = resolver.getCache().getMissCount();
+
+        // New cell, user and service.
+        claim("1.other.someone.anothercell", "bar", 2234, ServiceState.RUNNING);
+        assertTrue(waitForEndpoints(all, 2));
+
+        // New instance of known service.
+        ServiceHandle handle = claim("2.service.user.cell", "foo", 3234, ServiceState.STARTING);
+        assertTrue(waitForEndpoints(all, 3));
+
+        handle.removeEndpoint("foo");
+        assertTrue(waitForEndpoints(all, 2));
+
+        // Everything after the initial load came from watches.
+        assertEquals(misses + 1, resolver.getCache().getMissCount());
+    }
+
+    @Test
+    public void testFilterOnStateAndName() throws Exception {
+        claim("2.service.user.cell", "bar", 2234, ServiceState.DRAINING);
+        claim("3.service.user.cell", "foo", 3234, ServiceState.DRAINING);
+
+        Set<Endpoint> endpoints = resolver.getEndpoints(new Resolver.CoordinateDataFilter() {
+            @Override
+            public boolean includeEndpointname(String endpointName) {
+                return endpointName.equals("foo");
+            }
+            @Override
+            public boolean includeServiceState(ServiceState state) {
+                return state == ServiceState.DRAINING;
+            }
+        });
+        assertEquals(1, endpoints.size());
+        assertEquals(3234, endpoints.iterator().next().getPort());
+    }
+
+    private boolean waitForEndpoints(Resolver.CoordinateDataFilter filter, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (resolver.getEndpoints(filter).size() == count) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+}
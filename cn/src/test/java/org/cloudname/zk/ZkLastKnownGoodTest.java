@@ -0,0 +1,153 @@
+package org.cloudname.zk;
+
+import org.cloudname.Coordinate;
+import org.cloudname.Endpoint;
+import org.cloudname.ServiceHandle;
+import org.cloudname.ServiceState;
+import org.cloudname.ServiceStatus;
+import org.cloudname.testtools.Net;
+import org.cloudname.testtools.zookeeper.EmbeddedZooKeeper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for ZkLastKnownGood.
+ */
+public class ZkLastKnownGoodTest {
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testPutAndReopen() throws Exception {
+        File file = new File(temp.getRoot(), "lkg");
+        ZkLastKnownGood lastKnownGood = ZkLastKnownGood.open(file);
+        lastKnownGood.put("a", new byte[] { 1, 2, 3 });
+        lastKnownGood.put("b", new byte[] { 4 });
+        lastKnownGood.put("a", new byte[] { 5 });
+        lastKnownGood.remove("b");
+        lastKnownGood.close();
+
+        lastKnownGood = ZkLastKnownGood.open(file);
+        assertEquals(1, lastKnownGood.getAll().size());
+        assertArrayEquals(new byte[] { 5 }, lastKnownGood.get("a"));
+        assertNull(lastKnownGood.get("b"));
+        lastKnownGood.close();
+    }
+
+    @Test
+    public void testOnlyOneWriter() throws Exception {
+        File file = new File(temp.getRoot(), "lkg");
+        ZkLastKnownGood writer = ZkLastKnownGood.open(file);
+        writer.put("a", new byte[] { 1 });
+        assertTrue(writer.isWritable());
+
+        ZkLastKnownGood reader = ZkLastKnownGood.open(file);
+        assertFalse(reader.isWritable());
+        assertArrayEquals(new byte[] { 1 }, reader.get("a"));
+        reader.put("b", new byte[] { 2 });
+        reader.close();
+        writer.close();
+
+        writer = ZkLastKnownGood.open(file);
+        assertTrue(writer.isWritable());
+        assertEquals(1, writer.getAll().size());
+        writer.close();
+    }
+
+    @Test
+    public void testBrokenRecordIsDropped() throws Exception {
+        File file = new File(temp.getRoot(), "lkg");
+        ZkLastKnownGood lastKnownGood = ZkLastKnownGood.open(file);
+        lastKnownGood.put("a", new byte[] { 1 });
+        lastKnownGood.put("b", new byte[] { 2, 2, 2, 2 });
+        lastKnownGood.close();
+
+        // Flip the last byte of the value of b.
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(16 + 14 + 8 + 1 + 3);
+        randomAccessFile.write(7);
+        randomAccessFile.close();
+
+        lastKnownGood = ZkLastKnownGood.open(file);
+        assertArrayEquals(new byte[] { 1 }, lastKnownGood.get("a"));
+        assertNull(lastKnownGood.get("b"));
+        // The file is written to after the last good record.
+        lastKnownGood.put("c", new byte[] { 3 });
+        lastKnownGood.close();
+        lastKnownGood = ZkLastKnownGood.open(file);
+        assertEquals(2, lastKnownGood.getAll().size());
+        lastKnownGood.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File file = new File(temp.getRoot(), "lkg");
+        ZkLastKnownGood lastKnownGood = ZkLastKnownGood.open(file);
+        byte[] value = new byte[10000];
+        for (int i = 0; i < 1000; i++) {
+            value[0] = (byte) i;
+            lastKnownGood.put("key" + (i % 10), value.clone());
+        }
+        lastKnownGood.close();
+        // Without compaction the file would hold all 1000 values.
+        assertTrue(file.length() < 1000 * value.length);
+
+        lastKnownGood = ZkLastKnownGood.open(file);
+        assertEquals(10, lastKnownGood.getAll().size());
+        assertEquals((byte) 999, lastKnownGood.get("key9")[0]);
+        lastKnownGood.close();
+    }
+
+    /**
+     * A new process with the file resolves services and reads configs before it has a
+     * connection to ZooKeeper.
+     */
+    @Test
+    public void testServedBeforeConnecting() throws Exception {
+        File rootDir = temp.newFolder("zk-test");
+        int zkport = Net.getFreePort();
+        EmbeddedZooKeeper ezk = new EmbeddedZooKeeper(rootDir, zkport);
+        ezk.init();
+
+        File file = new File(temp.getRoot(), "lkg");
+        Coordinate c = Coordinate.parse("1.service.user.cell");
+        ZkCloudname cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport)
+                .setLastKnownGoodFile(file).build().connect();
+        cn.createCoordinate(c);
+        cn.setConfig(c, "config", null);
+        ServiceHandle handle = cn.claim(c);
+        assertTrue(handle.waitForCoordinateOkSeconds(10));
+        handle.putEndpoint(new Endpoint(c, "foo", "localhost", 1234, "http", null));
+        handle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+        handle.flush().get(10, TimeUnit.SECONDS);
+
+        // Wait for the watches to bring the changes to the caches.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cn.getResolver().resolve("foo.1.service.user.cell").isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("config", cn.getConfig(c));
+        cn.close();
+
+        ZkCloudname offline = new ZkCloudname.Builder().setConnectString("localhost:" + Net.getFreePort())
+                .setLastKnownGoodFile(file).build();
+        List<Endpoint> endpoints = offline.getResolver().resolve("foo.1.service.user.cell");
+        assertEquals(1, endpoints.size());
+        assertEquals(1234, endpoints.get(0).getPort());
+        assertEquals("config", offline.getConfig(c));
+        ZkResolverCache cache = ((ZkResolver) offline.getResolver()).getCache();
+        assertEquals(1, cache.getStaleHitCount());
+    }
+}
@@ -0,0 +1,300 @@
+package org.cloudname.zk;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.cloudname.*;
+import org.cloudname.testtools.Net;
+import org.cloudname.testtools.zookeeper.EmbeddedZooKeeper;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the watch driven resolver cache.
+ */
+public class ZkResolverCacheTest {
+    private EmbeddedZooKeeper ezk;
+    private ZkCloudname cn;
+    private ZkResolver resolver;
+    private ServiceHandle handle;
+    private Coordinate coordinate;
+    private int zkport;
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Before
+    public void setup() throws Exception {
+        File rootDir = temp.newFolder("zk-test");
+        zkport = Net.getFreePort();
+        ezk = new EmbeddedZooKeeper(rootDir, zkport);
+        ezk.init();
+
+        cn = new ZkCloudname.Builder().setConnectString("localhost:" + zkport).build().connect();
+        resolver = (ZkResolver) cn.getResolver();
+
+        coordinate = Coordinate.parse("1.service.user.cell");
+        cn.createCoordinate(coordinate);
+        handle = cn.claim(coordinate);
+        assertTrue(handle.waitForCoordinateOkSeconds(30));
+        handle.putEndpoint(new Endpoint(coordinate, "foo", "localhost", 1234, "http", null));
+        handle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+        handle.flush().get();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cn.close();
+    }
+
+    @Test
+    public void testHitAfterMiss() throws Exception {
+        ZkResolverCache cache = resolver.getCache();
+        assertEquals(1, resolver.resolve("foo.1.service.user.cell").size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+
+        assertEquals(1, resolver.resolve("foo.all.service.user.cell").size());
+        assertEquals(1, resolver.resolve("all.service.user.cell").size());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testWatchesKeepCacheCurrent() throws Exception {
+        assertEquals(1, resolver.resolve("all.service.user.cell").size());
+
+        handle.putEndpoint(new Endpoint(coordinate, "bar", "localhost", 1235, "http", null));
+        assertTrue(waitForEndpoints("all.service.user.cell", 2));
+
+        Coordinate other = Coordinate.parse("2.service.user.cell");
+        cn.createCoordinate(other);
+        ServiceHandle otherHandle = cn.claim(other);
+        assertTrue(otherHandle.waitForCoordinateOkSeconds(30));
+        otherHandle.putEndpoint(new Endpoint(other, "foo", "localhost", 2234, "http", null));
+        otherHandle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+        assertTrue(waitForEndpoints("foo.all.service.user.cell", 2));
+
+        handle.setStatus(new ServiceStatus(ServiceState.DRAINING, "draining"));
+        assertTrue(waitForEndpoints("all.service.user.cell", 1));
+        assertEquals(2234, resolver.resolve("all.service.user.cell").get(0).getPort());
+
+        assertEquals(1, resolver.getCache().getMissCount());
+    }
+
+    /**
+     * Table strategies select from the cached endpoint lists, and see new endpoints when
+     * the lists are replaced.
+     */
+    @Test
+    public void testTableStrategyFollowsCache() throws Exception {
+        assertEquals(1234, resolver.resolve("foo.roundrobin.service.user.cell").get(0).getPort());
+
+        Coordinate other = Coordinate.parse("2.service.user.cell");
+        cn.createCoordinate(other);
+        ServiceHandle otherHandle = cn.claim(other);
+        assertTrue(otherHandle.waitForCoordinateOkSeconds(30));
+        otherHandle.putEndpoint(new Endpoint(other, "foo", "localhost", 2234, "http", null));
+        otherHandle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+        assertTrue(waitForEndpoints("foo.all.service.user.cell", 2));
+
+        Set<Integer> ports = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++) {
+            List<Endpoint> endpoints = resolver.resolve("foo.roundrobin.service.user.cell");
+            assertEquals(1, endpoints.size());
+            ports.add(endpoints.get(0).getPort());
+        }
+        assertEquals(2, ports.size());
+        assertEquals(0, resolver.resolve("bar.roundrobin.service.user.cell").size());
+    }
+
+    @Test
+    public void testIdleServicesAreEvicted() throws Exception {
+        ZkResolverCache cache = resolver.getCache();
+        assertEquals(1, resolver.resolve("foo.1.service.user.cell").size());
+        assertEquals(0, resolver.resolve("foo.1.other.user.cell").size());
+        long now = System.currentTimeMillis();
+        assertTrue(cache.evictIdleServices(now) > now);
+        assertEquals(2, cache.size());
+
+        assertEquals(1, resolver.resolve("foo.1.service.user.cell").size());
+        assertEquals(-1, cache.evictIdleServices(now + ZkResolverCache.SERVICE_IDLE_MS + 60000));
+        assertEquals(0, cache.size());
+
+        assertEquals(1, resolver.resolve("foo.1.service.user.cell").size());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testServicesOfEndpointIndexAreKept() throws Exception {
+        ZkResolverCache cache = resolver.getCache();
+        assertEquals(0, resolver.resolve("foo.1.other.user.cell").size());
+        assertEquals(1, resolver.getEndpoints(new Resolver.CoordinateDataFilter()).size());
+        assertEquals(2, cache.size());
+
+        long later = System.currentTimeMillis() + ZkResolverCache.SERVICE_IDLE_MS + 60000;
+        assertTrue(cache.evictIdleServices(later) > later);
+        assertEquals(1, cache.size());
+        long misses = cache.getMissCount();
+        assertEquals(1, resolver.resolve("foo.1.service.user.cell").size());
+        assertEquals(misses, cache.getMissCount());
+    }
+
+    @Test
+    public void testUnknownServiceIsCachedAsEmpty() throws Exception {
+        assertEquals(0, resolver.resolve("all.other.user.cell").size());
+
+        Coordinate other = Coordinate.parse("1.other.user.cell");
+        cn.createCoordinate(other);
+        ServiceHandle otherHandle = cn.claim(other);
+        assertTrue(otherHandle.waitForCoordinateOkSeconds(30));
+        otherHandle.putEndpoint(new Endpoint(other, "foo", "localhost", 2234, "http", null));
+        otherHandle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+
+        assertTrue(waitForEndpoints("all.other.user.cell", 1));
+        assertEquals(1, resolver.getCache().getMissCount());
+    }
+
+    @Test
+    public void testStaleHitsWhileDisconnected() throws Exception {
+        ZkResolverCache cache = resolver.getCache();
+        assertEquals(1, resolver.resolve("all.service.user.cell").size());
+
+        cache.zooKeeperDown();
+        assertEquals(1, resolver.resolve("all.service.user.cell").size());
+        assertEquals(1, cache.getStaleHitCount());
+
+        // Not cached and no connection.
+        try {
+            resolver.resolve("all.other.user.cell");
+            fail("Resolved uncached service while disconnected.");
+        } catch (CloudnameException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Losing the connection while reading a service again on a new session keeps
+     * the snapshots we had.
+     */
+    @Test
+    public void testConnectionLossKeepsSnapshots() throws Exception {
+        ZkResolverCache cache = resolver.getCache();
+        assertEquals(1, resolver.resolve("all.service.user.cell").size());
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper other = new ZooKeeper("localhost:" + zkport, 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                }
+            }
+        });
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        cache.newZooKeeperInstance(other);
+        other.close();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, resolver.resolve("all.service.user.cell").size());
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testResolveAsync() throws Exception {
+        Future<List<Endpoint>> future = resolver.resolveAsync("foo.all.service.user.cell");
+        List<Endpoint> endpoints = future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, endpoints.size());
+        assertEquals(1234, endpoints.get(0).getPort());
+        assertEquals(1, resolver.getCache().getMissCount());
+
+        // Now cached, so it completes right away.
+        future = resolver.resolveAsync("foo.1.service.user.cell");
+        assertTrue(future.isDone());
+        assertEquals(1, future.get().size());
+        assertEquals(1, resolver.getCache().getHitCount());
+    }
+
+    @Test
+    public void testResolveAsyncFailsWhenDisconnected() throws Exception {
+        resolver.getCache().zooKeeperDown();
+        Future<List<Endpoint>> future = resolver.resolveAsync("all.service.user.cell");
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Resolved uncached service while disconnected.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CloudnameException);
+        }
+    }
+
+    /**
+     * Listeners are called from the ZooKeeper event thread, resolving an uncached
+     * service from there must not wait for callbacks on that same thread.
+     */
+    @Test
+    public void testResolveFromZooKeeperEventThread() throws Exception {
+        Coordinate other = Coordinate.parse("1.other.user.cell");
+        cn.createCoordinate(other);
+        ServiceHandle otherHandle = cn.claim(other);
+        assertTrue(otherHandle.waitForCoordinateOkSeconds(30));
+        otherHandle.putEndpoint(new Endpoint(other, "foo", "localhost", 2234, "http", null));
+        otherHandle.setStatus(new ServiceStatus(ServiceState.RUNNING, "running"));
+
+        final CountDownLatch tracking = new CountDownLatch(1);
+        final CountDownLatch resolved = new CountDownLatch(1);
+        final AtomicReference<List<Endpoint>> result = new AtomicReference<List<Endpoint>>();
+        resolver.addResolverListener("foo.all.service.user.cell", new Resolver.ResolverListener() {
+            @Override
+            public void endpointEvent(Event event, Endpoint endpoint) {
+                if (event != Event.NEW_ENDPOINT) {
+                    return;
+                }
+                if (endpoint.getPort() == 1234) {
+                    tracking.countDown();
+                    return;
+                }
+                if (! Util.isZooKeeperEventThread()) {
+                    return;
+                }
+                try {
+                    result.set(resolver.resolve("all.other.user.cell"));
+                } catch (CloudnameException e) {
+                    return;
+                }
+                resolved.countDown();
+            }
+        });
+        assertTrue(tracking.await(5, TimeUnit.SECONDS));
+
+        handle.removeEndpoint("foo");
+        handle.putEndpoint(new Endpoint(coordinate, "foo", "localhost", 1235, "http", null));
+
+        assertTrue(resolved.await(5, TimeUnit.SECONDS));
+        assertEquals(1, result.get().size());
+        assertEquals(2234, result.get().get(0).getPort());
+    }
+
+    private boolean waitForEndpoints(String expression, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            List<Endpoint> endpoints = resolver.resolve(expression);
+            if (endpoints.size() == count) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+}
@@ -47,9 +47,6 @@ public class ZkResolverTest {
      */
     @Before
     public void setup() throws Exception {
-        // Speed up tests waiting for this event to happen.
-        DynamicExpression.TIME_BETWEEN_NODE_SCANNING_MS = 200;
-
         File rootDir = temp.newFolder("zk-test");
         zkport = Net.getFreePort();
 
@@ -77,6 +74,7 @@ public class ZkResolverTest {
         handleRunning.putEndpoint(new Endpoint(coordinateRunning, "bar", "localhost", 1235, "http", null));
         ServiceStatus statusRunning = new ServiceStatus(ServiceState.RUNNING, "Running message");
         handleRunning.setStatus(statusRunning);
+        handleRunning.flush().get();
 
         coordinateDraining = Coordinate.parse("0.service.user.cell");
         cn.createCoordinate(coordinateDraining);
@@ -87,6 +85,7 @@ public class ZkResolverTest {
 
         ServiceStatus statusDraining = new ServiceStatus(ServiceState.DRAINING, "Draining message");
         handleDraining.setStatus(statusDraining);
+        handleDraining.flush().get();
     }
 
     public void undrain() throws CoordinateMissingException, CloudnameException {
@@ -350,6 +349,114 @@ public class ZkResolverTest {
         assertFalse(latchWrapper.latch.await(2000, TimeUnit.MILLISECONDS));
     }
 
+    /**
+     * Instances created and destroyed after the listener is added are picked up by
+     * watches, there is no periodic scan.
+     */
+    @Test
+    public void testAsyncResolvingNewAndDestroyedInstance() throws Exception {
+        Resolver resolver = cn.getResolver();
+
+        final List<Endpoint> endpointListNew = new ArrayList<Endpoint>();
+        final List<Endpoint> endpointListRemoved = new ArrayList<Endpoint>();
+
+        class LatchWrapper {
+            public CountDownLatch latch;
+        }
+        final LatchWrapper latchWrapper = new LatchWrapper();
+        latchWrapper.latch = new CountDownLatch(1);
+
+        resolver.addResolverListener("foo.all.service.user.cell", new Resolver.ResolverListener() {
+            @Override
+            public void endpointEvent(Event event, Endpoint endpoint) {
+                switch (event) {
+                    case NEW_ENDPOINT:
+                        endpointListNew.add(endpoint);
+                        latchWrapper.latch.countDown();
+                        break;
+                    case REMOVED_ENDPOINT:
+                        endpointListRemoved.add(endpoint);
+                        latchWrapper.latch.countDown();
+                        break;
+                }
+            }
+        });
+        assertTrue(latchWrapper.latch.await(5000, TimeUnit.MILLISECONDS));
+        endpointListNew.clear();
+
+        latchWrapper.latch = new CountDownLatch(1);
+        Coordinate coordinateNew = Coordinate.parse("2.service.user.cell");
+        cn.createCoordinate(coordinateNew);
+        ServiceHandle handleNew = cn.claim(coordinateNew);
+        assertTrue(handleNew.waitForCoordinateOkSeconds(10));
+        handleNew.putEndpoint(new Endpoint(coordinateNew, "foo", "localhost", 6666, "http", null));
+        handleNew.setStatus(new ServiceStatus(ServiceState.RUNNING, "alive"));
+
+        assertTrue(latchWrapper.latch.await(5000, TimeUnit.MILLISECONDS));
+        assertEquals(1, endpointListNew.size());
+        assertEquals("2.service.user.cell", endpointListNew.get(0).getCoordinate().toString());
+        assertEquals(6666, endpointListNew.get(0).getPort());
+
+        latchWrapper.latch = new CountDownLatch(1);
+        handleNew.close();
+        cn.destroyCoordinate(coordinateNew);
+
+        assertTrue(latchWrapper.latch.await(5000, TimeUnit.MILLISECONDS));
+        assertEquals(1, endpointListRemoved.size());
+        assertEquals("2.service.user.cell", endpointListRemoved.get(0).getCoordinate().toString());
+    }
+
+    /**
+     * Listeners on the same service share the tracking, which is stopped when the last
+     * listener is removed.
+     */
+    @Test
+    public void testListenersShareTrackedService() throws Exception {
+        ZkResolver resolver = (ZkResolver) cn.getResolver();
+
+        // Two endpoints of each instance.
+        final CountDownLatch allLatch = new CountDownLatch(4);
+        Resolver.ResolverListener allListener = new Resolver.ResolverListener() {
+            @Override
+            public void endpointEvent(Event event, Endpoint endpoint) {
+                if (event == Event.NEW_ENDPOINT) {
+                    allLatch.countDown();
+                }
+            }
+        };
+        final List<Endpoint> instanceEndpoints = new ArrayList<Endpoint>();
+        final CountDownLatch instanceLatch = new CountDownLatch(2);
+        Resolver.ResolverListener instanceListener = new Resolver.ResolverListener() {
+            @Override
+            public void endpointEvent(Event event, Endpoint endpoint) {
+                if (event == Event.NEW_ENDPOINT) {
+                    instanceEndpoints.add(endpoint);
+                    instanceLatch.countDown();
+                }
+            }
+        };
+
+        resolver.addResolverListener("all.service.user.cell", allListener);
+        resolver.addResolverListener("0.service.user.cell", instanceListener);
+        assertEquals(1, resolver.getTrackedServiceCount());
+
+        // Instance 1 is running, instance 0 is draining.
+        assertFalse(allLatch.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, instanceEndpoints.size());
+
+        undrain();
+        assertTrue(allLatch.await(5000, TimeUnit.MILLISECONDS));
+        assertTrue(instanceLatch.await(5000, TimeUnit.MILLISECONDS));
+        for (Endpoint endpoint : instanceEndpoints) {
+            assertEquals("0.service.user.cell", endpoint.getCoordinate().toString());
+        }
+
+        resolver.removeResolverListener(allListener);
+        assertEquals(1, resolver.getTrackedServiceCount());
+        resolver.removeResolverListener(instanceListener);
+        assertEquals(0, resolver.getTrackedServiceCount());
+    }
+
     @Test(expected=IllegalArgumentException.class)
     public void testRegisterSameListenerTwice() throws Exception {
         Resolver resolver = cn.getResolver();
@@ -502,4 +609,63 @@ public class ZkResolverTest {
                         ZkResolver.endpointStrategyPattern.matcher(s).matches());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Describes an expression the way the patterns parse it, or returns null if none of
+     * them do.
+     */
+    private static String describeWithPatterns(String s) {
+        java.util.regex.Matcher m = ZkResolver.endpointPattern.matcher(s);
+        if (m.matches()) {
+            return m.group(1) + "|" + m.group(2) + "||" + m.group(3) + "|" + m.group(4) + "|" + m.group(5);
+        }
+        m = ZkResolver.strategyPattern.matcher(s);
+        if (m.matches()) {
+            return "|-1|" + m.group(1) + "|" + m.group(2) + "|" + m.group(3) + "|" + m.group(4);
+        }
+        m = ZkResolver.instancePattern.matcher(s);
+        if (m.matches()) {
+            if (! m.group(1).matches("\\d+")) {
+                return null;
+            }
+            return "|" + Integer.parseInt(m.group(1)) + "||" + m.group(2) + "|" + m.group(3) + "|" + m.group(4);
+        }
+        m = ZkResolver.endpointStrategyPattern.matcher(s);
+        if (m.matches()) {
+            return m.group(1) + "|-1|" + m.group(2) + "|" + m.group(3) + "|" + m.group(4) + "|" + m.group(5);
+        }
+        return null;
+    }
+
+    @Test
+    public void testParametersAgreeWithPatterns() throws Exception {
+        List<String> expressions = new ArrayList<String>();
+        for (String[] valid : new String[][] {
+                validEndpointPatterns, validStrategyPatterns, validEndpointStrategyPatterns }) {
+            for (String s : valid) {
+                expressions.add(s);
+            }
+        }
+        for (String s : new String[] {
+                "0.service.user.cell", "http.1.service.user.cell2", "http.any.service.user.cell2",
+                "1http.any.service.user.cell", "any.service.user", "a.b.c.d.e.f", "",
+                "-1.service.user.cell", "1-2.service.user.cell", ".service.user.cell",
+                "http..service.user.cell", "http.1.service.user.", "Any.service.user.cell",
+                "http.1a.service.user.cell", "http._any.service.user.cell" }) {
+            expressions.add(s);
+        }
+        for (String s : expressions) {
+            String described;
+            try {
+                ZkResolver.Parameters parameters = ZkResolver.Parameters.parse(s);
+                described = parameters.getEndpointName() + "|" + parameters.getInstance() + "|"
+                        + parameters.getStrategy() + "|" + parameters.getService() + "|"
+                        + parameters.getUser() + "|" + parameters.getCell();
+                assertSame(parameters, ZkResolver.Parameters.parse(s));
+            } catch (IllegalStateException e) {
+                described = null;
+            }
+            assertEquals(s, describeWithPatterns(s), described);
+        }
+    }
+}
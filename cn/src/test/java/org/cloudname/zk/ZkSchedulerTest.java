@@ -0,0 +1,65 @@
+package org.cloudname.zk;
+
+import org.apache.zookeeper.ZooKeeper;
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for ZkScheduler.
+ */
+public class ZkSchedulerTest {
+
+    private static class CountingUser implements ZkUserInterface {
+        final Semaphore timeEvents = new Semaphore(0);
+
+        @Override
+        public void zooKeeperDown() {
+        }
+
+        @Override
+        public void newZooKeeperInstance(ZooKeeper zk) {
+        }
+
+        @Override
+        public void timeEvent() {
+            timeEvents.release();
+        }
+    }
+
+    @Test
+    public void testTimeEventsAreCoalesced() throws Exception {
+        CountingUser user = new CountingUser();
+        ZkScheduler.scheduleTimeEvent(user, 300);
+        ZkScheduler.scheduleTimeEvent(user, 50);
+        ZkScheduler.scheduleTimeEvent(user, 200);
+
+        // Only the earliest one happens. The scheduler is shared with the other tests, so
+        // this does not depend on when it happens.
+        assertTrue(user.timeEvents.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(user.timeEvents.tryAcquire(500, TimeUnit.MILLISECONDS));
+
+        // Once it has happened the user can ask again.
+        ZkScheduler.scheduleTimeEvent(user, 0);
+        assertTrue(user.timeEvents.tryAcquire(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBlockingTasksDoNotHoldUpTimeEvents() throws Exception {
+        final Semaphore release = new Semaphore(0);
+        ZkScheduler.runBlocking(new Runnable() {
+            @Override
+            public void run() {
+                release.acquireUninterruptibly();
+            }
+        });
+        CountingUser user = new CountingUser();
+        ZkScheduler.scheduleTimeEvent(user, 0);
+        assertTrue(user.timeEvents.tryAcquire(5, TimeUnit.SECONDS));
+        release.release();
+    }
+}
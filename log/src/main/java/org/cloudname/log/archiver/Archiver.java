@@ -32,6 +32,12 @@ public class Archiver {
 
     private boolean closed = false;
 
+    // Write statistics.  Only updated by the thread calling handle(),
+    // but volatile so they can be read from other threads.
+    private volatile long eventCount = 0;
+    private volatile long byteCount = 0;
+    private volatile int currentSlotWriteCount = 0;
+
     /**
      * The directory
      */
@@ -69,7 +75,10 @@ public class Archiver {
         }
 
         try {
-            getSlot(logEvent).write(logEvent);
+            Slot slot = getSlot(logEvent);
+            byteCount += slot.write(logEvent);
+            eventCount++;
+            currentSlotWriteCount = slot.getWriteCount();
         } catch (IOException e) {
             throw new ArchiverException("Got IOException while handling logEvent", e);
         }
@@ -115,6 +124,28 @@ public class Archiver {
         closed = true;
     }
 
+    /**
+     * @return the number of LogEvents written by this archiver.
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return the number of bytes written by this archiver.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of LogEvents written to the slot file that
+     *   was last written to.
+     */
+    public int getCurrentSlotWriteCount() {
+        return currentSlotWriteCount;
+    }
+
     /**
      * @return the slot a Timber.LogEvent belongs in.
      */
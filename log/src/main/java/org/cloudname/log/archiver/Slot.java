@@ -135,8 +135,10 @@ public class Slot {
 
     /**
      * Write LogEvent to slot file.
+     *
+     * @return the number of bytes written.
      */
-    public void write(Timber.LogEvent event) throws IOException {
+    public long write(Timber.LogEvent event) throws IOException {
         // Ensure that we have a RecordWriter
         if (null == currentWriter) {
 
@@ -159,13 +161,25 @@ public class Slot {
         }
 
         // Invariant: we have a currentWriter
-        numBytesInFile += currentWriter.write(event);
+        final long numBytes = currentWriter.write(event);
+        numBytesInFile += numBytes;
         writeCount++;
 
         // Check if it is time to finish this file
         if (numBytesInFile > maxSize) {
             closeInternal();
         }
+        return numBytes;
+    }
+
+    /**
+     * Get the number of LogEvents written to the current slot file
+     * by this Slot instance.
+     *
+     * @return number of writes to the current slot file so far.
+     */
+    public int getWriteCount() {
+        return writeCount;
     }
 
     /**
@@ -63,7 +63,10 @@ public class SlotTest {
     {
          String prefix = temp.newFolder("test1").getAbsolutePath();
          Slot slot = new Slot(prefix, (10 * 1024 * 1024));
-         slot.write(makeLogEvent(0));
+         long numBytes = slot.write(makeLogEvent(0));
+         assertTrue(numBytes > 0);
+         assertEquals(numBytes, slot.getNumBytesInFile());
+         assertEquals(1, slot.getWriteCount());
     }
 
     @Test
@@ -1,13 +1,12 @@
 package org.cloudname.timber.client;
 
 import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.common.ProtobufVarint32Decoder;
 
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
 import org.jboss.netty.handler.codec.protobuf.ProtobufEncoder;
-import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 
@@ -34,8 +33,7 @@ public class TimberClientPipelineFactory  implements ChannelPipelineFactory {
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline p = Channels.pipeline();
 
-        p.addLast("frameDecoder", new ProtobufVarint32FrameDecoder());
-        p.addLast("protobufDecoder", new ProtobufDecoder(Timber.AckEvent.getDefaultInstance()));
+        p.addLast("protobufDecoder", new ProtobufVarint32Decoder(Timber.AckEvent.getDefaultInstance()));
 
         p.addLast("frameEncoder", new ProtobufVarint32LengthFieldPrepender());
         p.addLast("protobufEncoder", new ProtobufEncoder());
@@ -27,4 +27,21 @@ public class Constants {
     public static final int DEFAULT_DISPATCHER_QUEUE_LENGTH = 2048;
 
     public static final int DEFAULT_MAX_ARCHIVER_FILESIZE = (100 * 1024 * 1024);
+
+    /**
+     * The default address the metrics and subscription ports are
+     * bound to.  Neither is authenticated, so they are only
+     * reachable from the host itself unless asked for.
+     */
+    public static final String DEFAULT_ADMIN_BIND_ADDRESS = "127.0.0.1";
+
+    /**
+     * The default port the server exposes metrics over HTTP on.
+     */
+    public static final int DEFAULT_METRICS_PORT = 9203;
+
+    /**
+     * The default port subscribers connect to for live log events.
+     */
+    public static final int DEFAULT_SUBSCRIPTION_PORT = 9204;
 }
@@ -0,0 +1,129 @@
+package org.cloudname.timber.common;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.MessageLite;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import java.io.IOException;
+
+/**
+ * Decoder for varint32 length prefixed protobuf messages.  This
+ * replaces the combination of Netty's ProtobufVarint32FrameDecoder
+ * and ProtobufDecoder.
+ *
+ * <p> The Netty pair first copies every frame out of the cumulation
+ * buffer into a freshly allocated ChannelBuffer and then hands that
+ * copy to the protobuf parser.  This decoder reads the length prefix
+ * in place and parses the message straight out of the cumulation
+ * buffer, so the only copies made are the ones protobuf itself makes
+ * when it builds the message.
+ *
+ * <p> The cumulation buffer is managed by {@link FrameDecoder}: there
+ * is one per channel and it is compacted and reused for the lifetime
+ * of the channel rather than reallocated per frame.  Since a
+ * FrameDecoder keeps per channel state, an instance of this class
+ * must not be shared between pipelines.
+ */
+public class ProtobufVarint32Decoder extends FrameDecoder {
+    // A varint32 never occupies more than this many bytes.
+    private static final int MAX_VARINT32_SIZE = 5;
+
+    // Returned by readRawVarint32 if the buffer does not yet contain
+    // the complete length prefix.
+    private static final int INCOMPLETE = -1;
+
+    private final MessageLite prototype;
+
+    /**
+     * Create a decoder for a given message type.
+     *
+     * @param prototype the default instance of the message type we
+     *   wish to decode, eg. {@code Timber.LogEvent.getDefaultInstance()}.
+     */
+    public ProtobufVarint32Decoder(MessageLite prototype) {
+        if (null == prototype) {
+            throw new NullPointerException("prototype cannot be null");
+        }
+        this.prototype = prototype;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer)
+        throws Exception
+    {
+        final int start = buffer.readerIndex();
+        final int length = readRawVarint32(buffer);
+        if (INCOMPLETE == length) {
+            buffer.readerIndex(start);
+            return null;
+        }
+
+        if (buffer.readableBytes() < length) {
+            buffer.readerIndex(start);
+            return null;
+        }
+
+        final int offset = buffer.readerIndex();
+        final MessageLite message = parse(buffer, offset, length);
+        buffer.readerIndex(offset + length);
+        return message;
+    }
+
+    /**
+     * Parse a message from a region of a ChannelBuffer without
+     * copying the region first.  Does not move the reader index.
+     *
+     * @param buffer the buffer holding the serialized message.
+     * @param offset the index of the first byte of the message.
+     * @param length the length of the serialized message.
+     * @return the parsed message.
+     * @throws IOException if the message could not be parsed.
+     */
+    private MessageLite parse(ChannelBuffer buffer, int offset, int length) throws IOException {
+        final CodedInputStream in;
+        if (buffer.hasArray()) {
+            in = CodedInputStream.newInstance(buffer.array(), buffer.arrayOffset() + offset, length);
+        } else {
+            // Direct and composite buffers have no backing array so
+            // we stream from a slice.  Slicing does not copy.
+            in = CodedInputStream.newInstance(new ChannelBufferInputStream(buffer.slice(offset, length)));
+        }
+        return prototype.newBuilderForType().mergeFrom(in).build();
+    }
+
+    /**
+     * Read a varint32 from the buffer, advancing the reader index
+     * past it.
+     *
+     * @return the decoded value or {@code INCOMPLETE} if the buffer
+     *   ran out before the end of the varint.
+     * @throws CorruptedFrameException if the value is negative or
+     *   wider than 32 bits.
+     */
+    private static int readRawVarint32(ChannelBuffer buffer) throws CorruptedFrameException {
+        int result = 0;
+        for (int i = 0; i < MAX_VARINT32_SIZE; i++) {
+            if (! buffer.readable()) {
+                return INCOMPLETE;
+            }
+
+            final byte b = buffer.readByte();
+            result |= (b & 0x7f) << (7 * i);
+            if (b >= 0) {
+                if (result < 0) {
+                    throw new CorruptedFrameException("negative length: " + result);
+                }
+                return result;
+            }
+        }
+
+        // Couldn't find the byte whose MSB is off.
+        throw new CorruptedFrameException("length wider than 32-bit");
+    }
+}
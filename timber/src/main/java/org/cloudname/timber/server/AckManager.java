@@ -1,6 +1,10 @@
 package org.cloudname.timber.server;
 
 import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.LatencyHistogram;
+import org.cloudname.timber.server.metrics.MetricRegistry;
 
 import org.jboss.netty.channel.Channel;
 
@@ -49,16 +53,26 @@ public class AckManager {
     // Map from channel to AckQueue
     private Map<Channel, AckQueue> channelQueueMap = new HashMap<Channel, AckQueue>();
 
+    // Number of entries in channelQueueMap.  Kept separately so it
+    // can be read by other threads.
+    private volatile int channelCount = 0;
+
     private Thread consumerThread;
 
+    // Metrics
+    private final Counter ackCount;
+    private final LatencyHistogram ackLatency;
+
     // Acknowledgement queue entry.
     private static class AckEntry {
         private final Channel channel;
         private final Timber.LogEvent event;
+        private final long receivedTime;
 
-        public AckEntry(final Channel channel, final Timber.LogEvent event) {
+        public AckEntry(final Channel channel, final Timber.LogEvent event, final long receivedTime) {
             this.channel = channel;
             this.event = event;
+            this.receivedTime = receivedTime;
         }
 
         public Channel getChannel() {
@@ -68,6 +82,40 @@ public class AckManager {
         public Timber.LogEvent getEvent() {
             return event;
         }
+
+        public long getReceivedTime() {
+            return receivedTime;
+        }
+    }
+
+    /**
+     * Create an AckManager that records metrics in a registry of
+     * its own.
+     */
+    public AckManager() {
+        this(new MetricRegistry());
+    }
+
+    /**
+     * Create an AckManager.
+     *
+     * @param metrics the registry to record metrics in.
+     */
+    public AckManager(MetricRegistry metrics) {
+        ackCount = metrics.counter("ack.events");
+        ackLatency = metrics.histogram("ack.latency");
+        metrics.gauge("ack.queue.depth", new Gauge() {
+                @Override
+                public long getValue() {
+                    return incomingQueue.size();
+                }
+            });
+        metrics.gauge("ack.channels", new Gauge() {
+                @Override
+                public long getValue() {
+                    return channelCount;
+                }
+            });
     }
 
     /**
@@ -107,6 +155,20 @@ public class AckManager {
      * @param event the LogEvent we want to acknowledge.
      */
     public void ack(Channel channel, Timber.LogEvent event) {
+        ack(channel, event, System.nanoTime());
+    }
+
+    /**
+     * Enqueue an acknowledgement on a given channel.  Note that this
+     * method will block if the acknowledgement queue is full.
+     *
+     * @param channel the channel we want to send the acknowledgement on.
+     * @param event the LogEvent we want to acknowledge.
+     * @param receivedTime the value of System.nanoTime() when the
+     *   event was received.  The ack latency is measured from this
+     *   point until the acknowledgement has been written.
+     */
+    public void ack(Channel channel, Timber.LogEvent event, long receivedTime) {
         if (isShutdown.get()) {
             throw new IllegalStateException("Cannot enqueue ack after AckManager has shut down");
         }
@@ -114,7 +176,7 @@ public class AckManager {
         while (true) {
             try {
                 // put() waits if the queue is full.
-                incomingQueue.put(new AckEntry(channel, event));
+                incomingQueue.put(new AckEntry(channel, event, receivedTime));
                 return;
             } catch (InterruptedException e) {
                 // NOP
@@ -209,11 +271,13 @@ public class AckManager {
         Channel channel = entry.getChannel();
         AckQueue queue = channelQueueMap.get(channel);
         if (null == queue) {
-            queue = new AckQueue(channel, ACKNOWLEDGE_QUEUE_SIZE);
+            queue = new AckQueue(channel, ACKNOWLEDGE_QUEUE_SIZE, ackLatency);
             channelQueueMap.put(channel, queue);
+            channelCount = channelQueueMap.size();
         }
 
-        queue.enqueueAck(entry.getEvent());
+        ackCount.increment();
+        queue.enqueueAck(entry.getEvent(), entry.getReceivedTime());
     }
 
     /**
@@ -246,6 +310,7 @@ public class AckManager {
             AckQueue queue = channelQueueMap.remove(channel);
             log.info("Disposed channels " + channel.toString() + " with " + queue.size() + " ids still in it");
         }
+        channelCount = channelQueueMap.size();
     }
 
     /**
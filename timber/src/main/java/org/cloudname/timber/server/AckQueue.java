@@ -1,12 +1,14 @@
 package org.cloudname.timber.server;
 
 import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.metrics.LatencyHistogram;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -34,6 +36,11 @@ public class AckQueue {
     private final List<String> ids;
     private final Set<ChannelFuture> pendingWrites = new HashSet<ChannelFuture>();
 
+    // When each of the queued ids was received, if we are recording
+    // ack latency.  Parallel to ids.
+    private final LatencyHistogram ackLatency;
+    private long[] receivedTimes;
+
     /**
      * Create an AckQueue.
      *
@@ -41,9 +48,26 @@ public class AckQueue {
      * @param queueSize how many acknowledgements the queue should hold.
      */
     public AckQueue(Channel channel, int queueSize) {
+        this(channel, queueSize, null);
+    }
+
+    /**
+     * Create an AckQueue which records ack latency.
+     *
+     * @param channel the channel we wish to send the acknowledgements to.
+     * @param queueSize how many acknowledgements the queue should hold.
+     * @param ackLatency histogram to record the time from an event
+     *   was received until its acknowledgement was written.  May be
+     *   {@code null}.
+     */
+    public AckQueue(Channel channel, int queueSize, LatencyHistogram ackLatency) {
         this.channel = channel;
         this.queueSize = queueSize;
+        this.ackLatency = ackLatency;
         ids = new ArrayList<String>(queueSize);
+        if (null != ackLatency) {
+            receivedTimes = new long[queueSize];
+        }
     }
 
     /**
@@ -55,6 +79,26 @@ public class AckQueue {
      * channel.
      */
     public void enqueueAck(final Timber.LogEvent event) {
+        enqueueAck(event, System.nanoTime());
+    }
+
+    /**
+     * Enqueue an ack id.  Same as {@link #enqueueAck(Timber.LogEvent)}
+     * but with the time the event was received for measuring ack
+     * latency.
+     *
+     * @param event the acknowledgement event we wish to send to the
+     * channel.
+     * @param receivedTime the value of System.nanoTime() when the
+     *   event was received.
+     */
+    public void enqueueAck(final Timber.LogEvent event, final long receivedTime) {
+        if (null != receivedTimes) {
+            if (ids.size() == receivedTimes.length) {
+                receivedTimes = Arrays.copyOf(receivedTimes, receivedTimes.length * 2 + 1);
+            }
+            receivedTimes[ids.size()] = receivedTime;
+        }
         ids.add(event.getId());
 
         if (ids.size() >= queueSize || event.getConsistencyLevel() != Timber.ConsistencyLevel.BESTEFFORT) {
@@ -85,6 +129,8 @@ public class AckQueue {
             builder.addId(id);
         }
 
+        final long[] times = (null == receivedTimes) ? null : Arrays.copyOf(receivedTimes, ids.size());
+
         // Important, clear out the id queue.
         ids.clear();
 
@@ -105,6 +151,13 @@ public class AckQueue {
                         pendingWrites.remove(future);
                     }
 
+                    if (null != times && future.isSuccess()) {
+                        final long now = System.nanoTime();
+                        for (long t : times) {
+                            ackLatency.record(now - t);
+                        }
+                    }
+
                     // If something went wrong we log it.
                     if (! future.isSuccess()) {
                         log.log(Level.INFO,
@@ -2,18 +2,28 @@ package org.cloudname.timber.server;
 
 import org.cloudname.log.pb.Timber;
 
+import org.cloudname.timber.server.handler.DeferredAckLogEventHandler;
 import org.cloudname.timber.server.handler.LogEventHandler;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.LatencyHistogram;
+import org.cloudname.timber.server.metrics.MetricRegistry;
+import org.cloudname.timber.server.ratelimit.RateLimiter;
 
 import org.jboss.netty.channel.Channel;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,21 +47,153 @@ public class Dispatcher {
     // Queue for incoming log events and channels
     private final BlockingQueue<LogEventQueueEntry> incomingQueue;
 
-    private final List<LogEventHandler> handlers;
+    // The registered handlers.  Never modified, addHandler replaces
+    // the list so that each event sees one consistent set of handlers.
+    private volatile List<HandlerEntry> handlers = Collections.emptyList();
     private final AtomicBoolean isShutdown = new AtomicBoolean(false);
     private Thread consumerThread;
     private final CountDownLatch shutdownComplete = new CountDownLatch(1);
 
     // The acknowledgement manager
-    private final AckManager ackManager = new AckManager();
+    private final AckManager ackManager;
+
+    // Runs deferred acks, which may block on the AckManager queue,
+    // off the threads of the deferred ack handlers (eg. Netty IO
+    // threads).
+    private ExecutorService deferredAckExecutor;
+
+    // Optional admission stage, null if not rate limiting.
+    private volatile RateLimiter rateLimiter = null;
+
+    // Metrics
+    private final MetricRegistry metrics;
+    private final Counter eventCount;
+    private final Counter deferredAckCount;
+    private final LatencyHistogram queueLatency;
+
+    /**
+     * A registered handler along with its metrics.
+     */
+    private static class HandlerEntry {
+        private final LogEventHandler handler;
+        private final LatencyHistogram handleTime;
+        private final LatencyHistogram flushTime;
+        private final Counter errorCount;
+
+        public HandlerEntry(LogEventHandler handler, MetricRegistry metrics) {
+            this.handler = handler;
+            final String prefix = "handler." + MetricRegistry.sanitize(handler.getName());
+            handleTime = metrics.histogram(prefix + ".handle");
+            flushTime = metrics.histogram(prefix + ".flush");
+            errorCount = metrics.counter(prefix + ".errors");
+        }
+    }
+
+    /**
+     * Sends the acknowledgement for an event once every
+     * DeferredAckLogEventHandler has run it.  The ack itself is
+     * enqueued on the deferred ack executor since the handlers may
+     * run us on threads that must not block.
+     */
+    private class DeferredAck implements Runnable {
+        private final LogEventQueueEntry entry;
+        private final AtomicInteger remaining;
+
+        public DeferredAck(LogEventQueueEntry entry, int numHandlers) {
+            this.entry = entry;
+            remaining = new AtomicInteger(numHandlers);
+        }
+
+        /**
+         * @return a callback for one handler, which counts only the
+         *   first time it is run.
+         */
+        public Runnable forHandler() {
+            final AtomicBoolean done = new AtomicBoolean(false);
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (done.compareAndSet(false, true)) {
+                        DeferredAck.this.run();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            if (remaining.decrementAndGet() != 0) {
+                return;
+            }
+
+            try {
+                deferredAckExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                ackManager.ack(entry.getChannel(), entry.getLogEvent(), entry.getEnqueueTime());
+                            } catch (IllegalStateException e) {
+                                log.log(Level.INFO, "Dropped deferred ack for " + entry.getLogEvent().getId(), e);
+                            }
+                        }
+                    });
+            } catch (RejectedExecutionException e) {
+                log.log(Level.INFO, "Dropped deferred ack for " + entry.getLogEvent().getId(), e);
+            }
+        }
+    }
 
     /**
      * @param incomingQueueLength the length of the input queue to the dispatcher.
      */
     public Dispatcher(int incomingQueueLength) {
+        this(incomingQueueLength, new MetricRegistry());
+    }
+
+    /**
+     * @param incomingQueueLength the length of the input queue to the dispatcher.
+     * @param metrics the registry the dispatcher and its AckManager
+     *   should record metrics in.
+     */
+    public Dispatcher(int incomingQueueLength, MetricRegistry metrics) {
         this.incomingQueueLength = incomingQueueLength;
+        this.metrics = metrics;
         incomingQueue = new ArrayBlockingQueue<LogEventQueueEntry>(incomingQueueLength, true);
-        handlers = new CopyOnWriteArrayList<LogEventHandler>();
+        ackManager = new AckManager(metrics);
+
+        eventCount = metrics.counter("dispatcher.events");
+        deferredAckCount = metrics.counter("dispatcher.acks.deferred");
+        queueLatency = metrics.histogram("dispatcher.queue.latency");
+        metrics.gauge("dispatcher.queue.depth", new Gauge() {
+                @Override
+                public long getValue() {
+                    return incomingQueue.size();
+                }
+            });
+    }
+
+    /**
+     * Install a RateLimiter in front of the incoming queue.  Events
+     * it does not admit are dropped in {@link #dispatch} and the
+     * summaries it produces are dispatched to the handlers.
+     *
+     * @param rateLimiter the rate limiter, or {@code null} to admit
+     *   everything.
+     * @return this reference for chaining.
+     */
+    public Dispatcher setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        if (null != rateLimiter) {
+            rateLimiter.addMetrics(metrics);
+        }
+        return this;
+    }
+
+    /**
+     * @return the registry this dispatcher records metrics in.
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
     }
 
     /**
@@ -60,6 +202,7 @@ public class Dispatcher {
     public void init() {
         // Fire up the ackManager
         ackManager.init();
+        deferredAckExecutor = Executors.newSingleThreadExecutor();
 
         // Fire up the consumer thread
         consumerThread = new Thread(new Runnable() {
@@ -92,6 +235,15 @@ public class Dispatcher {
             Thread.currentThread().interrupt();
         }
 
+        // Let the deferred acks already run make it to the ackManager
+        // before shutting it down.
+        deferredAckExecutor.shutdown();
+        try {
+            deferredAckExecutor.awaitTermination(POLL_TIME, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
         // Shut down the ackManager.
         ackManager.shutdown();
     }
@@ -136,6 +288,14 @@ public class Dispatcher {
 
             }
 
+            // Feed summaries of dropped events back into the stream.
+            final RateLimiter limiter = rateLimiter;
+            if (null != limiter) {
+                for (Timber.LogEvent summary : limiter.summaries()) {
+                    processEvent(new LogEventQueueEntry(summary, null));
+                }
+            }
+
             // Invariant: If we end up here it was because the queue
             //   was empty.  This is a good time to check if we have
             //   been shut down.
@@ -155,9 +315,9 @@ public class Dispatcher {
                 // that the queue has been drained. It is now safe to
                 // shut down the handlers and exit.
                 assert incomingQueue.isEmpty();
-                for (LogEventHandler handler : handlers) {
-                    log.info("Closing handler " + handler.getName());
-                    handler.close();
+                for (HandlerEntry ent : handlers) {
+                    log.info("Closing handler " + ent.handler.getName());
+                    ent.handler.close();
                 }
                 log.info("exiting consumer loop");
                 return;
@@ -170,6 +330,14 @@ public class Dispatcher {
      * registered handlers.  Will also determine if we can send back
      * an ACK to the client.
      *
+     * Events with consistency level REPLICATED are acknowledged
+     * once all DeferredAckLogEventHandlers have signalled that they
+     * are done with the event, rather than right away.  If there are
+     * no such handlers REPLICATED is treated like SYNC.  A deferred
+     * ack handler that throws is counted as done with the event, the
+     * same way a failing handler does not hold back the ack of a SYNC
+     * event.
+     *
      * The exception handling is a bit naive.  More thought needs to
      * go into what to do.  I guess we need some practical examples
      * first though.  For instance we might want to disable
@@ -178,30 +346,68 @@ public class Dispatcher {
     private void processEvent(LogEventQueueEntry entry) {
         // Loop through the registered handlers and offer the event to them.
         Timber.LogEvent event = entry.getLogEvent();
-        for (LogEventHandler handler : handlers) {
+        long start = System.nanoTime();
+        queueLatency.record(start - entry.getEnqueueTime());
+        eventCount.increment();
+
+        // The deferred ack must count the same handlers we run.
+        List<HandlerEntry> currentHandlers = handlers;
+
+        // Only set if the ack is to be sent by the deferred ack handlers.
+        DeferredAck deferredAck = null;
+        if (event.getConsistencyLevel() == Timber.ConsistencyLevel.REPLICATED
+            && event.hasId()
+            && null != entry.getChannel()) {
+            int numDeferredAckHandlers = 0;
+            for (HandlerEntry ent : currentHandlers) {
+                if (ent.handler instanceof DeferredAckLogEventHandler) {
+                    numDeferredAckHandlers++;
+                }
+            }
+            if (numDeferredAckHandlers > 0) {
+                deferredAck = new DeferredAck(entry, numDeferredAckHandlers);
+                deferredAckCount.increment();
+            }
+        }
+
+        for (HandlerEntry ent : currentHandlers) {
+            Runnable acknowledge = null;
             try {
-                handler.handle(event);
+                if (null != deferredAck && ent.handler instanceof DeferredAckLogEventHandler) {
+                    acknowledge = deferredAck.forHandler();
+                    ((DeferredAckLogEventHandler) ent.handler).handle(event, acknowledge);
+                } else {
+                    ent.handler.handle(event);
+                }
+                start = ent.handleTime.recordAndRestart(start);
 
                 // Anything other than consistency level BESTEFFORT
                 // means we are at a higher consistency level so we
                 // have to flush.
                 if (event.getConsistencyLevel() != Timber.ConsistencyLevel.BESTEFFORT) {
-                    handler.flush();
+                    ent.handler.flush();
+                    start = ent.flushTime.recordAndRestart(start);
                 }
             } catch (Exception e) {
-                log.log(Level.WARNING, "Got exception while dispatching to " + handler.getName(), e);
+                ent.errorCount.increment();
+                start = System.nanoTime();
+                log.log(Level.WARNING, "Got exception while dispatching to " + ent.handler.getName(), e);
+                if (null != acknowledge) {
+                    acknowledge.run();
+                }
             }
         }
 
-        // Enqueue ack message if the message had an id
-        if (event.hasId()) {
+        // Enqueue ack message if the message had an id and the
+        // deferred ack handlers are not going to do it.
+        if (event.hasId() && null == deferredAck) {
             // If dispatched from within process then channel might be
             // null and so it wouldn't make sense to send an ack.
             if (null == entry.getChannel()) {
                 return;
             }
 
-            ackManager.ack(entry.getChannel(), event);
+            ackManager.ack(entry.getChannel(), event, entry.getEnqueueTime());
         }
     }
 
@@ -214,24 +420,29 @@ public class Dispatcher {
      * @throws NullPointerException if handler is null.
      * @throws IllegalStateException if handler was already added.
      */
-    public Dispatcher addHandler(LogEventHandler handler)
+    public synchronized Dispatcher addHandler(LogEventHandler handler)
     {
         if (null == handler) {
             throw new NullPointerException("handler cannot be null");
         }
 
-        if (handlers.contains(handler)) {
-            throw new IllegalStateException("handler was already added");
+        for (HandlerEntry ent : handlers) {
+            if (ent.handler.equals(handler)) {
+                throw new IllegalStateException("handler was already added");
+            }
         }
 
-        handlers.add(handler);
+        List<HandlerEntry> newHandlers = new ArrayList<HandlerEntry>(handlers);
+        newHandlers.add(new HandlerEntry(handler, metrics));
+        handlers = Collections.unmodifiableList(newHandlers);
         log.info("Added handler " + handler.getName());
         return this;
     }
 
     /**
      * Dispatch incoming log message.  This operation will block if
-     * the input queue of the dispatcher is full.
+     * the input queue of the dispatcher is full.  If a RateLimiter
+     * is installed the message may be dropped instead.
      *
      * @param logEvent the log event we wish to enqueue.
      * @param channel the channel the event came from.  This is
@@ -243,6 +454,10 @@ public class Dispatcher {
         if (isShutdown.get()) {
             throw new IllegalStateException("dispatcher was shut down");
         }
+        final RateLimiter limiter = rateLimiter;
+        if (null != limiter && ! limiter.admit(logEvent)) {
+            return;
+        }
         try {
             incomingQueue.put(new LogEventQueueEntry(logEvent, channel));
         } catch (InterruptedException e) {
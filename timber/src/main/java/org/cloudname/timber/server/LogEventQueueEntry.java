@@ -13,6 +13,7 @@ import org.jboss.netty.channel.Channel;
 public class LogEventQueueEntry {
     private final Timber.LogEvent event;
     private final Channel channel;
+    private final long enqueueTime = System.nanoTime();
 
     /**
      * Create LogEventQueueEntry.
@@ -47,4 +48,14 @@ public class LogEventQueueEntry {
     public Channel getChannel() {
         return channel;
     }
+
+    /**
+     * Get the time this entry was created, which is when it was
+     * handed to the Dispatcher.
+     *
+     * @return the value of System.nanoTime() at creation.
+     */
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
 }
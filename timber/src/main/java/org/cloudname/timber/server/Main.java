@@ -1,10 +1,19 @@
 package org.cloudname.timber.server;
 
 import org.cloudname.timber.server.handler.archiver.SimpleArchiver;
+import org.cloudname.timber.server.handler.replication.ReplicatingHandler;
+import org.cloudname.timber.server.handler.subscription.SubscriptionHandler;
 import org.cloudname.timber.common.Constants;
+import org.cloudname.timber.server.metrics.MetricsHttpServer;
+import org.cloudname.timber.server.metrics.MetricsMBean;
+import org.cloudname.timber.server.ratelimit.RateLimiter;
 
+import org.cloudname.Cloudname;
 import org.cloudname.flags.Flag;
 import org.cloudname.flags.Flags;
+import org.cloudname.zk.ZkCloudname;
+
+import java.util.logging.Level;
 
 /**
  * Main entry point for Timber server.
@@ -24,6 +33,36 @@ public class Main {
     @Flag (name="port", description="The port the logserver listens to", required=false)
     public static int port = Constants.DEFAULT_TIMBER_PORT;
 
+    @Flag (name="metrics-port", description="The port metrics are served over HTTP on, 0 to disable", required=false)
+    public static int metricsPort = Constants.DEFAULT_METRICS_PORT;
+
+    @Flag (name="metrics-bind", description="The address metrics are served on, loopback unless set", required=false)
+    public static String metricsBind = Constants.DEFAULT_ADMIN_BIND_ADDRESS;
+
+    @Flag (name="subscription-port", description="The port subscribers connect to for live log events, 0 to disable", required=false)
+    public static int subscriptionPort = Constants.DEFAULT_SUBSCRIPTION_PORT;
+
+    @Flag (name="subscription-bind", description="The address subscribers connect to, loopback unless set", required=false)
+    public static String subscriptionBind = Constants.DEFAULT_ADMIN_BIND_ADDRESS;
+
+    @Flag (name="rate-limit-service", description="Max BESTEFFORT events per second per service below WARNING, 0 for no limit", required=false)
+    public static int rateLimitService = 0;
+
+    @Flag (name="rate-limit-host", description="Max BESTEFFORT events per second per host below WARNING, 0 for no limit", required=false)
+    public static int rateLimitHost = 0;
+
+    @Flag (name="sample-fine", description="Keep one in this many BESTEFFORT events below INFO, 1 to keep all", required=false)
+    public static int sampleFine = 1;
+
+    @Flag (name="zookeeper", description="ZooKeeper connect string, needed for replication", required=false)
+    public static String zookeeper = "";
+
+    @Flag (name="replication-peers", description="Resolver expression for replication peers, empty to disable", required=false)
+    public static String replicationPeers = "";
+
+    @Flag (name="replication-acks", description="Number of peers that must acknowledge REPLICATED events, -1 for a majority of the peers", required=false)
+    public static int replicationAcks = ReplicatingHandler.QUORUM;
+
     /**
      * Start the timber server.
      */
@@ -49,9 +88,46 @@ public class Main {
         if (enableArchiver) {
             SimpleArchiver simpleArchiver = new SimpleArchiver(logdir, maxSlotSize);
             simpleArchiver.init();
+            simpleArchiver.addMetrics(server.getMetrics());
             server.addHandler(simpleArchiver);
         }
 
+        // Protect ourselves from floods if asked to
+        if (rateLimitService > 0 || rateLimitHost > 0 || sampleFine > 1) {
+            server.setRateLimiter(new RateLimiter.Builder()
+                                  .setServiceRate(rateLimitService, Math.max(1, rateLimitService))
+                                  .setHostRate(rateLimitHost, Math.max(1, rateLimitHost))
+                                  .setSampling(Level.INFO, sampleFine)
+                                  .build());
+        }
+
+        // Stream live events to subscribers
+        if (subscriptionPort > 0) {
+            SubscriptionHandler subscriptionHandler = new SubscriptionHandler(subscriptionBind, subscriptionPort, SubscriptionHandler.DEFAULT_STALL_LIMIT_MS);
+            subscriptionHandler.init();
+            subscriptionHandler.addMetrics(server.getMetrics());
+            server.addHandler(subscriptionHandler);
+        }
+
+        // Replicate REPLICATED events to peers if we know who they are
+        if (! replicationPeers.isEmpty()) {
+            Cloudname cloudname = new ZkCloudname.Builder()
+                .setConnectString(zookeeper)
+                .build()
+                .connect();
+            ReplicatingHandler replicatingHandler
+                = new ReplicatingHandler(cloudname.getResolver(), replicationPeers, replicationAcks, port);
+            replicatingHandler.init();
+            replicatingHandler.addMetrics(server.getMetrics());
+            server.addHandler(replicatingHandler);
+        }
+
+        // Expose metrics over JMX and, if enabled, HTTP
+        MetricsMBean.register(server.getMetrics(), MetricsMBean.DEFAULT_OBJECT_NAME);
+        if (metricsPort > 0) {
+            new MetricsHttpServer(server.getMetrics(), metricsBind, metricsPort).start();
+        }
+
         // Fire up the server
         server.start();
     }
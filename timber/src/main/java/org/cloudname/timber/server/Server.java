@@ -3,6 +3,8 @@ package org.cloudname.timber.server;
 import org.cloudname.log.pb.Timber;
 import org.cloudname.timber.common.Constants;
 import org.cloudname.timber.server.handler.LogEventHandler;
+import org.cloudname.timber.server.metrics.MetricRegistry;
+import org.cloudname.timber.server.ratelimit.RateLimiter;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.group.ChannelGroup;
@@ -29,6 +31,7 @@ public class Server {
 
     private int listenPort;
     private int dispatcherQueueLen = Constants.DEFAULT_DISPATCHER_QUEUE_LENGTH;
+    private final MetricRegistry metrics = new MetricRegistry();
     private Dispatcher dispatcher;
     private ServerBootstrap bootstrap;
     private AtomicBoolean hasStarted = new AtomicBoolean(false);
@@ -48,7 +51,14 @@ public class Server {
      */
     public Server(int listenPort) {
         this.listenPort = listenPort;
-        dispatcher = new Dispatcher(dispatcherQueueLen);
+        dispatcher = new Dispatcher(dispatcherQueueLen, metrics);
+    }
+
+    /**
+     * @return the registry the server records its metrics in.
+     */
+    public MetricRegistry getMetrics() {
+        return metrics;
     }
 
     /**
@@ -66,6 +76,20 @@ public class Server {
         return this;
     }
 
+    /**
+     * Install a RateLimiter in front of the dispatcher.  This can
+     * only be done before the server is started.
+     *
+     * @param rateLimiter the RateLimiter to use.
+     */
+    public Server setRateLimiter(RateLimiter rateLimiter) {
+        if (hasStarted.get()) {
+            throw new IllegalStateException("Cannot set RateLimiter after server started");
+        }
+        dispatcher.setRateLimiter(rateLimiter);
+        return this;
+    }
+
     /**
      * Dispatch log message to log server.
      *
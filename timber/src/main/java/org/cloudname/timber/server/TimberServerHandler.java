@@ -1,6 +1,9 @@
 package org.cloudname.timber.server;
 
 import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.MetricRegistry;
 
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -23,6 +26,11 @@ public class TimberServerHandler
     private static final Logger log = Logger.getLogger(TimberServerHandler.class.getName());
     private final Dispatcher dispatcher;
 
+    // Per connection metrics.  There is one handler per channel so
+    // these are only set up once we are connected.
+    private String metricPrefix = null;
+    private Counter eventCount = null;
+
     public TimberServerHandler(Dispatcher dispatcher)
     {
         this.dispatcher = dispatcher;
@@ -33,6 +41,37 @@ public class TimberServerHandler
         Server.allChannels.add(e.getChannel());
     }
 
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+        final MetricRegistry metrics = dispatcher.getMetrics();
+        final long connectTime = System.nanoTime();
+
+        metrics.counter("server.connections.accepted").increment();
+
+        metricPrefix = "connection." + MetricRegistry.sanitize(String.valueOf(e.getChannel().getRemoteAddress()));
+        eventCount = metrics.counter(metricPrefix + ".events");
+        final Counter events = eventCount;
+        metrics.gauge(metricPrefix + ".events_per_sec", new Gauge() {
+                @Override
+                public long getValue() {
+                    final long elapsed = System.nanoTime() - connectTime;
+                    if (elapsed <= 0) {
+                        return 0;
+                    }
+                    return (long) (events.getCount() * 1e9 / elapsed);
+                }
+            });
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+        if (null != metricPrefix) {
+            dispatcher.getMetrics()
+                .remove(metricPrefix + ".events")
+                .remove(metricPrefix + ".events_per_sec");
+        }
+    }
+
     @Override
     public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent event)
         throws Exception
@@ -47,6 +86,9 @@ public class TimberServerHandler
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent event)
     {
         Timber.LogEvent logEvent = (Timber.LogEvent) event.getMessage();
+        if (null != eventCount) {
+            eventCount.increment();
+        }
         dispatcher.dispatch(logEvent, ctx.getChannel());
     }
 
@@ -0,0 +1,29 @@
+package org.cloudname.timber.server.handler;
+
+import org.cloudname.log.pb.Timber;
+
+/**
+ * A LogEventHandler which may need to delay the acknowledgement of
+ * a LogEvent until some asynchronous work has completed, for
+ * instance until the event has been replicated to other servers.
+ *
+ * <p> The Dispatcher calls {@link #handle(Timber.LogEvent, Runnable)}
+ * for events with consistency level REPLICATED that are to be
+ * acknowledged, and the plain {@link #handle(Timber.LogEvent)} for
+ * all other events.  The acknowledgement is only sent once every
+ * DeferredAckLogEventHandler has run its callback.
+ */
+public interface DeferredAckLogEventHandler extends LogEventHandler
+{
+    /**
+     * Deliver a log event which must not be acknowledged to the
+     * client until {@code acknowledge} has been run.
+     *
+     * @param logEvent an incoming log event.
+     * @param acknowledge callback to run, exactly once and from any
+     *   thread, when the event may be acknowledged.  If the event
+     *   can never be acknowledged the callback is not run.
+     */
+    public void handle(Timber.LogEvent logEvent, Runnable acknowledge)
+        throws LogEventHandlerException;
+}
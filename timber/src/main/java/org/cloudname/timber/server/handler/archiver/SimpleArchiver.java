@@ -8,6 +8,8 @@ import org.cloudname.log.archiver.SlotLruCache;
 
 import org.cloudname.timber.server.handler.LogEventHandler;
 import org.cloudname.timber.server.handler.LogEventHandlerException;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.MetricRegistry;
 
 import java.io.File;
 import java.io.IOException;
@@ -33,6 +35,33 @@ public class SimpleArchiver implements LogEventHandler {
         archiver.init();
     }
 
+    /**
+     * Register gauges for the archiver's write statistics.  Flush
+     * times are recorded per handler by the Dispatcher.
+     *
+     * @param metrics the registry to register the gauges in.
+     */
+    public void addMetrics(MetricRegistry metrics) {
+        metrics.gauge("archiver.events", new Gauge() {
+                @Override
+                public long getValue() {
+                    return archiver.getEventCount();
+                }
+            });
+        metrics.gauge("archiver.bytes", new Gauge() {
+                @Override
+                public long getValue() {
+                    return archiver.getByteCount();
+                }
+            });
+        metrics.gauge("archiver.slot.writes", new Gauge() {
+                @Override
+                public long getValue() {
+                    return archiver.getCurrentSlotWriteCount();
+                }
+            });
+    }
+
     @Override
     public void handle(Timber.LogEvent logEvent) {
         archiver.handle(logEvent);
@@ -0,0 +1,256 @@
+package org.cloudname.timber.server.handler.replication;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.client.ReconnectDelayManager;
+import org.cloudname.timber.common.ProtobufVarint32Decoder;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connection to a single peer timber server.  Sends pre-encoded
+ * batches of LogEvents and matches the AckEvents coming back against
+ * the events that were sent.
+ *
+ * <p> The peer processes the events sent on a connection in order
+ * and acknowledges them in that same order, so the events awaiting
+ * acknowledgement are kept in a simple FIFO.  Only events that carry
+ * an id are acknowledged by the peer, so only those may be passed as
+ * pending in {@link #send}.
+ *
+ * <p> If the connection is lost the events awaiting acknowledgement
+ * from this peer are forgotten and we reconnect with backoff.
+ * Events are not resent to a peer after reconnecting.
+ */
+class PeerConnection {
+    private static final Logger log = Logger.getLogger(PeerConnection.class.getName());
+
+    private final InetSocketAddress address;
+    private final ClientBootstrap bootstrap;
+    private final Timer timer;
+    private final ReconnectDelayManager reconnectDelayManager;
+
+    // Guards channel, unacked and closed.
+    private final Object lock = new Object();
+    private Channel channel = null;
+    private final Queue<PendingAck> unacked = new LinkedList<PendingAck>();
+    private boolean closed = false;
+
+    /**
+     * @param address the address of the peer.
+     * @param channelFactory the factory to create client channels with.
+     * @param timer timer used for scheduling reconnects.
+     * @param reconnectDelayManager decides how long to wait before reconnecting.
+     */
+    public PeerConnection(InetSocketAddress address,
+                          ChannelFactory channelFactory,
+                          Timer timer,
+                          ReconnectDelayManager reconnectDelayManager)
+    {
+        this.address = address;
+        this.timer = timer;
+        this.reconnectDelayManager = reconnectDelayManager;
+
+        bootstrap = new ClientBootstrap(channelFactory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    ChannelPipeline p = Channels.pipeline();
+                    p.addLast("protobufDecoder", new ProtobufVarint32Decoder(Timber.AckEvent.getDefaultInstance()));
+                    p.addLast("handler", new PeerHandler());
+                    return p;
+                }
+            });
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("remoteAddress", address);
+    }
+
+    /**
+     * Start connecting to the peer.  Does not wait for the
+     * connection to be established.
+     */
+    public void connect() {
+        bootstrap.connect();
+    }
+
+    /**
+     * @return {@code true} if we are connected to the peer.
+     */
+    public boolean isConnected() {
+        synchronized (lock) {
+            return null != channel && channel.isConnected();
+        }
+    }
+
+    /**
+     * Send a batch of length-prefixed LogEvents to the peer.
+     *
+     * @param batch the encoded events.  The buffer is not modified.
+     * @param pending the events in the batch that the peer will
+     *   acknowledge, in the order they appear in the batch.
+     * @return {@code true} if the batch was written, {@code false}
+     *   if we are not connected.
+     */
+    public boolean send(ChannelBuffer batch, List<PendingAck> pending) {
+        synchronized (lock) {
+            if (closed || null == channel || ! channel.isConnected()) {
+                return false;
+            }
+            // Register before writing so that an ack can never
+            // arrive for an event we do not know about.
+            unacked.addAll(pending);
+            channel.write(batch.duplicate());
+            return true;
+        }
+    }
+
+    /**
+     * Close the connection and stop reconnecting.
+     */
+    public void close() {
+        final Channel ch;
+        synchronized (lock) {
+            closed = true;
+            ch = channel;
+        }
+        if (null != ch) {
+            ch.close().awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Match the ids of an AckEvent against the events we are waiting
+     * for acknowledgements of.
+     */
+    private void onAckEvent(Timber.AckEvent ackEvent) {
+        for (String id : ackEvent.getIdList()) {
+            final PendingAck ack;
+            synchronized (lock) {
+                ack = pollUntil(id);
+            }
+            if (null != ack) {
+                ack.peerAcked();
+            }
+        }
+    }
+
+    /**
+     * Remove events from the FIFO up to and including the one with
+     * the given id.  Should the peer skip any events, which it does
+     * not do as long as it processes events in order, those are
+     * dropped so that they time out.  An id that is not pending, eg.
+     * a duplicate ack, leaves the FIFO as it is.
+     *
+     * @return the event with the given id or {@code null} if it was
+     *   not found.
+     */
+    private PendingAck pollUntil(String id) {
+        if (! isPending(id)) {
+            log.warning("Got ack from " + address + " for unknown id " + id);
+            return null;
+        }
+        PendingAck ack;
+        while ((ack = unacked.poll()) != null) {
+            if (ack.getId().equals(id)) {
+                return ack;
+            }
+            log.warning("Peer " + address + " did not acknowledge " + ack.getId());
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code true} if an event with the given id awaits
+     *   acknowledgement.  Acks come in order, so this is usually the
+     *   head of the FIFO.
+     */
+    private boolean isPending(String id) {
+        for (PendingAck ack : unacked) {
+            if (ack.getId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerConnection " + address;
+    }
+
+    private class PeerHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            log.info("Connected to replication peer " + address);
+            synchronized (lock) {
+                if (closed) {
+                    e.getChannel().close();
+                    return;
+                }
+                channel = e.getChannel();
+            }
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            onAckEvent((Timber.AckEvent) e.getMessage());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            log.log(Level.INFO, "Exception on connection to replication peer " + address, e.getCause());
+            e.getChannel().close();
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            synchronized (lock) {
+                if (channel == e.getChannel()) {
+                    channel = null;
+                }
+                if (! unacked.isEmpty()) {
+                    log.info("Lost connection to " + address + " with "
+                             + unacked.size() + " events awaiting acknowledgement");
+                    unacked.clear();
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            final int delay = reconnectDelayManager.getReconnectDelayMs(address);
+            timer.newTimeout(new TimerTask() {
+                    @Override
+                    public void run(Timeout timeout) {
+                        synchronized (lock) {
+                            if (closed) {
+                                return;
+                            }
+                        }
+                        bootstrap.connect();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
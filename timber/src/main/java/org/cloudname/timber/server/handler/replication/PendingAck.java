@@ -0,0 +1,73 @@
+package org.cloudname.timber.server.handler.replication;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the peer acknowledgements of one replicated LogEvent and
+ * runs the acknowledgement callback once a quorum has been reached.
+ *
+ * This class is thread safe.
+ */
+class PendingAck {
+    private final String id;
+    private final long createdTime = System.nanoTime();
+    private final AtomicInteger acksNeeded;
+    private final Runnable acknowledge;
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    /**
+     * @param id the id of the LogEvent.
+     * @param acksNeeded the number of peer acknowledgements needed.
+     * @param acknowledge the callback to run once enough peers have
+     *   acknowledged the event.
+     */
+    public PendingAck(String id, int acksNeeded, Runnable acknowledge) {
+        this.id = id;
+        this.acksNeeded = new AtomicInteger(acksNeeded);
+        this.acknowledge = acknowledge;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * Register an acknowledgement from a peer.
+     *
+     * @return {@code true} if this acknowledgement completed the
+     *   quorum and the callback was run.
+     */
+    public boolean peerAcked() {
+        if (acksNeeded.decrementAndGet() != 0) {
+            return false;
+        }
+        if (done.compareAndSet(false, true)) {
+            acknowledge.run();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Give up on this event.  The callback will not be run after
+     * this.
+     *
+     * @return {@code true} if the event had not already completed.
+     */
+    public boolean expire() {
+        return done.compareAndSet(false, true);
+    }
+
+    /**
+     * @return {@code true} if the quorum was reached or the event
+     *   was expired.
+     */
+    public boolean isDone() {
+        return done.get();
+    }
+}
@@ -0,0 +1,503 @@
+package org.cloudname.timber.server.handler.replication;
+
+import org.cloudname.CloudnameException;
+import org.cloudname.Endpoint;
+import org.cloudname.Resolver;
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.client.ReconnectDelayManager;
+import org.cloudname.timber.server.handler.DeferredAckLogEventHandler;
+import org.cloudname.timber.server.handler.LogEventHandlerException;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.MetricRegistry;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LogEventHandler which implements consistency level REPLICATED by
+ * forwarding events to peer timber servers and deferring the
+ * acknowledgement to the client until a quorum of peers have
+ * acknowledged the event.
+ *
+ * <p> The peers are the endpoints a Cloudname resolver expression
+ * resolves to, eg. {@code timber.all.timber.prod.xx}, and are
+ * tracked as they come and go.  An endpoint that is this server
+ * itself is ignored.
+ *
+ * <p> Only events with consistency level REPLICATED are forwarded.
+ * They are forwarded with consistency level SYNC so that the peers
+ * flush them before acknowledging them and so that the peers do not
+ * forward them any further.
+ *
+ * <p> Forwarding is pipelined: a sender thread drains the incoming
+ * queue, encodes whatever has accumulated into a single buffer and
+ * writes that same buffer to every connected peer without waiting
+ * for earlier batches to be acknowledged.  Under load the batches
+ * grow, so the cost per event goes down as the rate goes up.
+ *
+ * <p> Unless a fixed number of acknowledgements is given, the
+ * quorum is a majority of the cluster known when the event is
+ * handled.  This server counts as one of the majority, so an event
+ * needs {@code (peers+1)/2} acknowledgements from peers: one of two
+ * peers, two of three or four.  With no peers known, eg. on a
+ * single node or before the resolver has listed the peers, this
+ * server alone is the majority and the event is acknowledged right
+ * away.
+ *
+ * <p> Events that do not reach a quorum within the ack timeout are
+ * given up on and never acknowledged, leaving it to the client to
+ * decide what to do.  Peers that are not connected when a batch is
+ * sent do not get that batch, not even after reconnecting.
+ */
+public class ReplicatingHandler implements DeferredAckLogEventHandler {
+    private static final Logger log = Logger.getLogger(ReplicatingHandler.class.getName());
+
+    /**
+     * The default time to wait for a quorum of peers to acknowledge
+     * an event.
+     */
+    public static final int DEFAULT_ACK_TIMEOUT_MS = 5000;
+
+    /**
+     * Use as requiredAcks to require a majority of the cluster,
+     * this server included.
+     */
+    public static final int QUORUM = -1;
+
+    // Length of the queue between the Dispatcher and the sender thread.
+    private static final int OUTGOING_QUEUE_LENGTH = 10000;
+
+    // Max number of events per batch
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    // How long the sender waits for events before checking for
+    // timeouts and shutdown.
+    private static final int POLL_TIME_MS = 100;
+
+    private final Resolver resolver;
+    private final String expression;
+    private final int requiredAcks;
+    private final int localPort;
+    private final long ackTimeoutNanos;
+
+    private final BlockingQueue<OutgoingEvent> outgoingQueue
+        = new ArrayBlockingQueue<OutgoingEvent>(OUTGOING_QUEUE_LENGTH);
+    private final ConcurrentMap<InetSocketAddress, PeerConnection> peers
+        = new ConcurrentHashMap<InetSocketAddress, PeerConnection>();
+
+    // Events awaiting a quorum, oldest first.  Only touched by the
+    // sender thread.
+    private final LinkedList<PendingAck> pending = new LinkedList<PendingAck>();
+
+    private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+    private final ReconnectDelayManager reconnectDelayManager = new ReconnectDelayManager();
+    private ChannelFactory channelFactory;
+    private HashedWheelTimer timer;
+    private Thread senderThread;
+
+    // Metrics
+    private final Counter eventCount = new Counter();
+    private final Counter batchCount = new Counter();
+    private final Counter quorumCount = new Counter();
+    private final Counter expiredCount = new Counter();
+
+    private final Resolver.ResolverListener resolverListener = new Resolver.ResolverListener() {
+            @Override
+            public void endpointEvent(Event event, Endpoint endpoint) {
+                switch (event) {
+                    case NEW_ENDPOINT:
+                        addPeer(endpoint);
+                        break;
+                    case REMOVED_ENDPOINT:
+                        removePeer(endpoint);
+                        break;
+                    default:
+                        log.info("Resolver event " + event + " for " + expression);
+                }
+            }
+        };
+
+    /**
+     * An event on its way to the sender thread.
+     */
+    private static class OutgoingEvent {
+        private final Timber.LogEvent event;
+        private final PendingAck pendingAck;
+
+        public OutgoingEvent(Timber.LogEvent event, PendingAck pendingAck) {
+            this.event = event;
+            this.pendingAck = pendingAck;
+        }
+    }
+
+    /**
+     * Create a ReplicatingHandler with the default ack timeout.
+     *
+     * @param resolver the resolver used to find peers.
+     * @param expression the resolver expression for the peers.
+     * @param requiredAcks the number of peers that must acknowledge
+     *   an event before it is acknowledged to the client, or
+     *   {@link #QUORUM} for a majority of the cluster.
+     * @param localPort the port this server listens to, used to
+     *   recognize ourselves among the peers.  Use -1 if unknown.
+     */
+    public ReplicatingHandler(Resolver resolver, String expression, int requiredAcks, int localPort) {
+        this(resolver, expression, requiredAcks, localPort, DEFAULT_ACK_TIMEOUT_MS);
+    }
+
+    /**
+     * Create a ReplicatingHandler.
+     *
+     * @param resolver the resolver used to find peers.
+     * @param expression the resolver expression for the peers.
+     * @param requiredAcks the number of peers that must acknowledge
+     *   an event before it is acknowledged to the client, or
+     *   {@link #QUORUM} for a majority of the cluster.
+     * @param localPort the port this server listens to, used to
+     *   recognize ourselves among the peers.  Use -1 if unknown.
+     * @param ackTimeoutMs how long to wait for the required number
+     *   of acknowledgements.
+     */
+    public ReplicatingHandler(Resolver resolver,
+                              String expression,
+                              int requiredAcks,
+                              int localPort,
+                              int ackTimeoutMs)
+    {
+        if (null == resolver) {
+            throw new NullPointerException("resolver cannot be null");
+        }
+        if (null == expression) {
+            throw new NullPointerException("expression cannot be null");
+        }
+        if (requiredAcks < 0 && requiredAcks != QUORUM) {
+            throw new IllegalArgumentException("requiredAcks cannot be negative");
+        }
+        this.resolver = resolver;
+        this.expression = expression;
+        this.requiredAcks = requiredAcks;
+        this.localPort = localPort;
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMs);
+    }
+
+    /**
+     * Start the sender thread and start tracking peers.
+     *
+     * @throws CloudnameException if the resolver expression could
+     *   not be registered.
+     */
+    public void init() throws CloudnameException {
+        channelFactory = new NioClientSocketChannelFactory(
+            Executors.newCachedThreadPool(),
+            Executors.newCachedThreadPool());
+        timer = new HashedWheelTimer();
+
+        senderThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    log.fine("Starting replication sender");
+                    senderLoop();
+                    log.fine("Replication sender shut down");
+                }
+            });
+        senderThread.start();
+
+        resolver.addResolverListener(expression, resolverListener);
+    }
+
+    /**
+     * Register metrics for replication.
+     *
+     * @param metrics the registry to register them in.
+     */
+    public void addMetrics(MetricRegistry metrics) {
+        metrics.gauge("replication.events", counterGauge(eventCount));
+        metrics.gauge("replication.batches", counterGauge(batchCount));
+        metrics.gauge("replication.acks.quorum", counterGauge(quorumCount));
+        metrics.gauge("replication.acks.expired", counterGauge(expiredCount));
+        metrics.gauge("replication.queue.depth", new Gauge() {
+                @Override
+                public long getValue() {
+                    return outgoingQueue.size();
+                }
+            });
+        metrics.gauge("replication.peers.connected", new Gauge() {
+                @Override
+                public long getValue() {
+                    return getConnectedPeerCount();
+                }
+            });
+    }
+
+    /**
+     * @return the number of peer acknowledgements an event needs
+     *   right now.  Zero means the event is acknowledged without
+     *   waiting for any peer.
+     */
+    public int getRequiredAcks() {
+        if (QUORUM == requiredAcks) {
+            // A majority of peers.size() + 1 nodes, less ourselves.
+            return (peers.size() + 1) / 2;
+        }
+        return requiredAcks;
+    }
+
+    /**
+     * @return the number of peers we are currently connected to.
+     */
+    public int getConnectedPeerCount() {
+        int n = 0;
+        for (PeerConnection peer : peers.values()) {
+            if (peer.isConnected()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Forward a REPLICATED event without waiting for it to be
+     * acknowledged.  Events with other consistency levels are
+     * ignored.
+     */
+    @Override
+    public void handle(Timber.LogEvent logEvent) {
+        if (logEvent.getConsistencyLevel() != Timber.ConsistencyLevel.REPLICATED) {
+            return;
+        }
+        // Strip the id so that peers do not acknowledge it.
+        enqueue(new OutgoingEvent(forwardedEvent(logEvent).clearId().build(), null));
+    }
+
+    @Override
+    public void handle(Timber.LogEvent logEvent, Runnable acknowledge) {
+        final int acksNeeded = getRequiredAcks();
+        if (0 == acksNeeded) {
+            handle(logEvent);
+            acknowledge.run();
+            return;
+        }
+
+        PendingAck pendingAck = new PendingAck(logEvent.getId(), acksNeeded, acknowledge);
+        enqueue(new OutgoingEvent(forwardedEvent(logEvent).build(), pendingAck));
+    }
+
+    /**
+     * Forwarding is asynchronous and its completion is signalled by
+     * acknowledgements rather than by flushing, so this does nothing.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Send whatever is queued, wait up to the ack timeout for
+     * outstanding acknowledgements and close all peer connections.
+     */
+    @Override
+    public void close() {
+        if (! isShutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        resolver.removeResolverListener(resolverListener);
+
+        try {
+            senderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (PeerConnection peer : peers.values()) {
+            peer.close();
+        }
+        peers.clear();
+        timer.stop();
+        channelFactory.releaseExternalResources();
+    }
+
+    @Override
+    public String getName() {
+        return ReplicatingHandler.class.getName();
+    }
+
+    private static Gauge counterGauge(final Counter counter) {
+        return new Gauge() {
+            @Override
+            public long getValue() {
+                return counter.getCount();
+            }
+        };
+    }
+
+    private static Timber.LogEvent.Builder forwardedEvent(Timber.LogEvent logEvent) {
+        return logEvent.toBuilder().setConsistencyLevel(Timber.ConsistencyLevel.SYNC);
+    }
+
+    private void enqueue(OutgoingEvent outgoing) {
+        if (isShutdown.get()) {
+            throw new LogEventHandlerException("ReplicatingHandler was closed");
+        }
+        try {
+            outgoingQueue.put(outgoing);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LogEventHandlerException("Interrupted while queueing event for replication", e);
+        }
+    }
+
+    /**
+     * Drain the outgoing queue in batches and send them to the peers.
+     */
+    private void senderLoop() {
+        List<OutgoingEvent> batch = new ArrayList<OutgoingEvent>(MAX_BATCH_SIZE);
+
+        while (true) {
+            OutgoingEvent first = null;
+            try {
+                first = outgoingQueue.poll(POLL_TIME_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Ignore, we check for shutdown below.
+            }
+
+            if (null != first) {
+                batch.add(first);
+                outgoingQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                try {
+                    sendBatch(batch);
+                } catch (Exception e) {
+                    log.log(Level.WARNING, "Failed to replicate batch of " + batch.size() + " events", e);
+                }
+                batch.clear();
+            }
+
+            expirePending();
+
+            if (isShutdown.get() && outgoingQueue.isEmpty()) {
+                // Give outstanding events a chance to complete.
+                while (! pending.isEmpty()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    expirePending();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encode a batch once and write it to all connected peers.
+     */
+    private void sendBatch(List<OutgoingEvent> batch) throws IOException {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(batch.size() * 256);
+        ChannelBufferOutputStream out = new ChannelBufferOutputStream(buffer);
+        List<PendingAck> acks = new ArrayList<PendingAck>(batch.size());
+        for (OutgoingEvent outgoing : batch) {
+            outgoing.event.writeDelimitedTo(out);
+            if (null != outgoing.pendingAck) {
+                acks.add(outgoing.pendingAck);
+                pending.add(outgoing.pendingAck);
+            }
+        }
+
+        for (PeerConnection peer : peers.values()) {
+            peer.send(buffer, acks);
+        }
+        eventCount.add(batch.size());
+        batchCount.increment();
+    }
+
+    /**
+     * Drop completed events from the head of the pending list and
+     * expire those that have waited too long.  Since events are
+     * added in order, we can stop at the first one that is neither
+     * completed nor too old.
+     */
+    private void expirePending() {
+        final long now = System.nanoTime();
+        while (! pending.isEmpty()) {
+            PendingAck ack = pending.getFirst();
+            if (ack.isDone()) {
+                quorumCount.increment();
+            } else if ((now - ack.getCreatedTime()) > ackTimeoutNanos) {
+                if (ack.expire()) {
+                    expiredCount.increment();
+                    log.warning("Replication of " + ack.getId() + " timed out");
+                } else {
+                    quorumCount.increment();
+                }
+            } else {
+                return;
+            }
+            pending.removeFirst();
+        }
+    }
+
+    private void addPeer(Endpoint endpoint) {
+        InetSocketAddress address = new InetSocketAddress(endpoint.getHost(), endpoint.getPort());
+        if (isLocal(address)) {
+            log.fine("Not replicating to ourselves at " + address);
+            return;
+        }
+
+        PeerConnection peer = new PeerConnection(address, channelFactory, timer, reconnectDelayManager);
+        if (null == peers.putIfAbsent(address, peer)) {
+            log.info("Adding replication peer " + address);
+            peer.connect();
+        }
+    }
+
+    private void removePeer(Endpoint endpoint) {
+        InetSocketAddress address = new InetSocketAddress(endpoint.getHost(), endpoint.getPort());
+        PeerConnection peer = peers.remove(address);
+        if (null != peer) {
+            log.info("Removing replication peer " + address);
+            peer.close();
+        }
+    }
+
+    /**
+     * @return {@code true} if the address is an address of this
+     *   server.
+     */
+    private boolean isLocal(InetSocketAddress address) {
+        if (address.getPort() != localPort || address.isUnresolved()) {
+            return false;
+        }
+        InetAddress inetAddress = address.getAddress();
+        if (inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return null != NetworkInterface.getByInetAddress(inetAddress);
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+}
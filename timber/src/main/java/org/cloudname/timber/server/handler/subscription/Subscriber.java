@@ -0,0 +1,93 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+/**
+ * A connected subscriber and its filter.
+ *
+ * <p> Events are only written to the subscriber's channel while the
+ * channel is writable, ie. while Netty's outbound buffer for it is
+ * below the high water mark.  When a subscriber cannot keep up the
+ * events it cannot take are dropped, so it effectively receives a
+ * sample of the matching events, and it is told how many it missed
+ * once it catches up.  A subscriber that stays unwritable for longer
+ * than the stall limit is disconnected.
+ *
+ * <p> {@link #send} is only called from the Dispatcher thread.
+ */
+class Subscriber {
+    private static final Logger log = Logger.getLogger(Subscriber.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Channel channel;
+    private final SubscriptionFilter filter;
+    private final long stallLimitMs;
+
+    private long dropped = 0;
+    private long stalledSince = 0;
+
+    /**
+     * @param channel the channel to the subscriber.
+     * @param filter the subscriber's filter.
+     * @param stallLimitMs how long the subscriber may go without
+     *   being able to receive before it is disconnected.
+     */
+    public Subscriber(Channel channel, SubscriptionFilter filter, long stallLimitMs) {
+        this.channel = channel;
+        this.filter = filter;
+        this.stallLimitMs = stallLimitMs;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public SubscriptionFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Create a Subscriber for the same channel with a new filter.
+     * Drop statistics are not carried over.
+     */
+    public Subscriber withFilter(SubscriptionFilter newFilter) {
+        return new Subscriber(channel, newFilter, stallLimitMs);
+    }
+
+    /**
+     * Send a formatted event to the subscriber, or drop it if the
+     * subscriber is not keeping up.
+     *
+     * @param line the formatted event.  The buffer is not modified.
+     * @return {@code true} if the event was written, {@code false}
+     *   if it was dropped.
+     */
+    public boolean send(ChannelBuffer line) {
+        if (! channel.isWritable()) {
+            final long now = System.currentTimeMillis();
+            if (0 == dropped) {
+                stalledSince = now;
+            }
+            dropped++;
+
+            if ((now - stalledSince) > stallLimitMs && channel.isOpen()) {
+                log.info("Disconnecting subscriber " + channel.getRemoteAddress()
+                         + " after dropping " + dropped + " events");
+                channel.close();
+            }
+            return false;
+        }
+
+        if (dropped > 0) {
+            channel.write(ChannelBuffers.copiedBuffer("# dropped " + dropped + " events\n", UTF8));
+            dropped = 0;
+        }
+        channel.write(line.duplicate());
+        return true;
+    }
+}
@@ -0,0 +1,127 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import java.util.logging.Level;
+
+/**
+ * A filter on LogEvents as given by a subscriber.  A filter is a
+ * line of whitespace separated {@code key=value} terms, all of which
+ * must match:
+ *
+ * <ul>
+ *   <li> {@code service=NAME} the service name equals NAME.
+ *   <li> {@code host=NAME} the host equals NAME.
+ *   <li> {@code type=NAME} the type equals NAME.
+ *   <li> {@code level=LEVEL} the level is at least LEVEL, which is
+ *        a java.util.logging level name or an integer.
+ *   <li> {@code payload=TEXT} one of the payloads contains TEXT.
+ * </ul>
+ *
+ * An empty line matches everything.  Instances of this class are
+ * immutable.
+ */
+public class SubscriptionFilter {
+    private final String service;
+    private final String host;
+    private final String type;
+    private final int minLevel;
+    private final String payloadSubstring;
+
+    /**
+     * Create a filter.  Any of the string criteria may be {@code null},
+     * meaning that they match anything.
+     */
+    public SubscriptionFilter(String service, String host, String type, int minLevel, String payloadSubstring) {
+        this.service = service;
+        this.host = host;
+        this.type = type;
+        this.minLevel = minLevel;
+        this.payloadSubstring = payloadSubstring;
+    }
+
+    /**
+     * Parse a filter.
+     *
+     * @param line the filter as described in the class documentation.
+     * @return the parsed filter.
+     * @throws IllegalArgumentException if the line could not be parsed.
+     */
+    public static SubscriptionFilter parse(String line) {
+        String service = null;
+        String host = null;
+        String type = null;
+        int minLevel = Integer.MIN_VALUE;
+        String payload = null;
+
+        for (String term : line.trim().split("\\s+")) {
+            if (term.isEmpty()) {
+                continue;
+            }
+
+            final int eq = term.indexOf('=');
+            if (eq <= 0 || eq == term.length() - 1) {
+                throw new IllegalArgumentException("Expected key=value, got '" + term + "'");
+            }
+
+            final String key = term.substring(0, eq);
+            final String value = term.substring(eq + 1);
+            if ("service".equals(key)) {
+                service = value;
+            } else if ("host".equals(key)) {
+                host = value;
+            } else if ("type".equals(key)) {
+                type = value;
+            } else if ("level".equals(key)) {
+                minLevel = Level.parse(value.toUpperCase()).intValue();
+            } else if ("payload".equals(key)) {
+                payload = value;
+            } else {
+                throw new IllegalArgumentException("Unknown filter key '" + key + "'");
+            }
+        }
+        return new SubscriptionFilter(service, host, type, minLevel, payload);
+    }
+
+    /**
+     * @return the service name to match or {@code null} for any.
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return the host to match or {@code null} for any.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the type to match or {@code null} for any.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return the minimum level to match.
+     */
+    public int getMinLevel() {
+        return minLevel;
+    }
+
+    /**
+     * @return the payload substring to match or {@code null} for any.
+     */
+    public String getPayloadSubstring() {
+        return payloadSubstring;
+    }
+
+    @Override
+    public String toString() {
+        return "service=" + service
+            + ", host=" + host
+            + ", type=" + type
+            + ", minLevel=" + minLevel
+            + ", payload=" + payloadSubstring;
+    }
+}
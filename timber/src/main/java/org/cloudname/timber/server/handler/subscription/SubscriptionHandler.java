@@ -0,0 +1,286 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.cloudname.log.format.LogEventFormatter;
+import org.cloudname.log.format.SingleLineFormatter;
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.common.Constants;
+import org.cloudname.timber.server.handler.LogEventHandler;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.MetricRegistry;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LogEventHandler which streams live log events to subscribers.
+ *
+ * <p> Subscribers connect to a TCP port and send a filter line (see
+ * {@link SubscriptionFilter}); an empty line subscribes to
+ * everything.  Matching events are then sent back one per line,
+ * formatted by {@link SingleLineFormatter}.  Sending another filter
+ * line replaces the filter.  A line starting with {@code #} is a
+ * message from the server, eg. the number of events dropped because
+ * the subscriber could not keep up.
+ *
+ * <p> Events are matched against all subscribers at once using a
+ * {@link SubscriptionIndex} and formatted at most once, however many
+ * subscribers match.  Writes never block the Dispatcher; see
+ * {@link Subscriber} for how slow subscribers are handled.
+ *
+ * <p> This handler does not honor consistency levels; events are
+ * never held back waiting for subscribers.
+ */
+public class SubscriptionHandler implements LogEventHandler {
+    private static final Logger log = Logger.getLogger(SubscriptionHandler.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The default time a subscriber may be unable to receive events
+     * before it is disconnected.
+     */
+    public static final int DEFAULT_STALL_LIMIT_MS = 10000;
+
+    // Longest filter line we accept.
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final String bindAddress;
+    private final int port;
+    private final int stallLimitMs;
+    private final LogEventFormatter formatter = new SingleLineFormatter();
+
+    // Guards subscribers.  The index is rebuilt from subscribers
+    // whenever it changes and then published through the volatile.
+    private final Object lock = new Object();
+    private final Map<Channel, Subscriber> subscribers = new LinkedHashMap<Channel, Subscriber>();
+    private volatile SubscriptionIndex index = SubscriptionIndex.EMPTY;
+
+    private final ChannelGroup allChannels = new DefaultChannelGroup("timber-subscriptions");
+    private ServerBootstrap bootstrap;
+    private Channel serverChannel;
+
+    // Metrics
+    private final Counter sentCount = new Counter();
+    private final Counter droppedCount = new Counter();
+
+    /**
+     * Create a SubscriptionHandler with the default stall limit
+     * which only accepts subscribers on the loopback interface.
+     *
+     * @param port the port subscribers connect to.  Zero picks a
+     *   free port.
+     */
+    public SubscriptionHandler(int port) {
+        this(Constants.DEFAULT_ADMIN_BIND_ADDRESS, port, DEFAULT_STALL_LIMIT_MS);
+    }
+
+    /**
+     * Create a SubscriptionHandler.
+     *
+     * @param bindAddress the address to accept subscribers on.
+     *   Subscribers are not authenticated and see every event, so
+     *   only use a public address on a trusted network.
+     * @param port the port subscribers connect to.  Zero picks a
+     *   free port.
+     * @param stallLimitMs how long a subscriber may be unable to
+     *   receive events before it is disconnected.
+     */
+    public SubscriptionHandler(String bindAddress, int port, int stallLimitMs) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.stallLimitMs = stallLimitMs;
+    }
+
+    /**
+     * Start accepting subscribers.
+     */
+    public void init() {
+        bootstrap = new ServerBootstrap(
+            new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool()));
+
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    ChannelPipeline p = Channels.pipeline();
+                    p.addLast("frameDecoder", new DelimiterBasedFrameDecoder(MAX_LINE_LENGTH, Delimiters.lineDelimiter()));
+                    p.addLast("stringDecoder", new StringDecoder(UTF8));
+                    p.addLast("handler", new SubscriberChannelHandler());
+                    return p;
+                }
+            });
+        bootstrap.setOption("reuseAddress", true);
+
+        serverChannel = bootstrap.bind(new InetSocketAddress(bindAddress, port));
+        allChannels.add(serverChannel);
+        log.info("Accepting subscribers on " + bindAddress + ":" + getPort());
+    }
+
+    /**
+     * @return the port subscribers connect to.
+     */
+    public int getPort() {
+        if (null == serverChannel) {
+            return port;
+        }
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * @return the number of subscribers that have sent a filter.
+     */
+    public int getSubscriberCount() {
+        return index.size();
+    }
+
+    /**
+     * Register metrics for subscriptions.
+     *
+     * @param metrics the registry to register them in.
+     */
+    public void addMetrics(MetricRegistry metrics) {
+        metrics.gauge("subscription.subscribers", new Gauge() {
+                @Override
+                public long getValue() {
+                    return getSubscriberCount();
+                }
+            });
+        metrics.gauge("subscription.events.sent", new Gauge() {
+                @Override
+                public long getValue() {
+                    return sentCount.getCount();
+                }
+            });
+        metrics.gauge("subscription.events.dropped", new Gauge() {
+                @Override
+                public long getValue() {
+                    return droppedCount.getCount();
+                }
+            });
+    }
+
+    @Override
+    public void handle(Timber.LogEvent logEvent) {
+        List<Subscriber> matches = index.match(logEvent);
+        if (matches.isEmpty()) {
+            return;
+        }
+
+        ChannelBuffer line = ChannelBuffers.copiedBuffer(formatter.format(logEvent) + "\n", UTF8);
+        for (Subscriber subscriber : matches) {
+            if (subscriber.send(line)) {
+                sentCount.increment();
+            } else {
+                droppedCount.increment();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Disconnect all subscribers and stop accepting new ones.
+     */
+    @Override
+    public void close() {
+        if (null == bootstrap) {
+            return;
+        }
+        allChannels.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+        bootstrap = null;
+    }
+
+    @Override
+    public String getName() {
+        return SubscriptionHandler.class.getName();
+    }
+
+    /**
+     * Set or replace the filter of a subscriber and rebuild the index.
+     */
+    private void subscribe(Channel channel, SubscriptionFilter filter) {
+        synchronized (lock) {
+            Subscriber existing = subscribers.get(channel);
+            Subscriber subscriber = (null == existing)
+                ? new Subscriber(channel, filter, stallLimitMs)
+                : existing.withFilter(filter);
+            subscribers.put(channel, subscriber);
+            rebuildIndex();
+        }
+    }
+
+    private void unsubscribe(Channel channel) {
+        synchronized (lock) {
+            if (null != subscribers.remove(channel)) {
+                rebuildIndex();
+            }
+        }
+    }
+
+    /**
+     * <b>Must be called with lock held.</b>
+     */
+    private void rebuildIndex() {
+        index = new SubscriptionIndex(new ArrayList<Subscriber>(subscribers.values()));
+    }
+
+    private class SubscriberChannelHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            allChannels.add(e.getChannel());
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            final String line = (String) e.getMessage();
+            try {
+                SubscriptionFilter filter = SubscriptionFilter.parse(line);
+                subscribe(e.getChannel(), filter);
+                e.getChannel().write(ChannelBuffers.copiedBuffer("# subscribed: " + filter + "\n", UTF8));
+            } catch (IllegalArgumentException ex) {
+                e.getChannel().write(ChannelBuffers.copiedBuffer("# error: " + ex.getMessage() + "\n", UTF8));
+            }
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            unsubscribe(e.getChannel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            log.log(Level.FINE, "Exception from subscriber", e.getCause());
+            e.getChannel().close();
+        }
+    }
+}
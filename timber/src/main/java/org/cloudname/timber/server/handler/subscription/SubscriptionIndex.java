@@ -0,0 +1,162 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.cloudname.log.pb.Timber;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled index over the filters of a set of subscribers.  Each
+ * subscriber is assigned a bit, and for each criterion the index
+ * keeps a bit set of the subscribers that accept a given value.
+ * Matching an event is then a handful of map lookups and bit set
+ * intersections, independent of the number of subscribers.  Only the
+ * payload substring criterion is evaluated per subscriber, and then
+ * only for the subscribers that survived the other criteria.
+ *
+ * <p> Instances are immutable; a new index is built whenever the set
+ * of subscribers or one of their filters changes.
+ */
+class SubscriptionIndex {
+    static final SubscriptionIndex EMPTY = new SubscriptionIndex(Collections.<Subscriber>emptyList());
+
+    private final Subscriber[] subscribers;
+
+    private final Map<String, BitSet> byService = new HashMap<String, BitSet>();
+    private final BitSet anyService = new BitSet();
+    private final Map<String, BitSet> byHost = new HashMap<String, BitSet>();
+    private final BitSet anyHost = new BitSet();
+    private final Map<String, BitSet> byType = new HashMap<String, BitSet>();
+    private final BitSet anyType = new BitSet();
+
+    // Maps each distinct minimum level to the subscribers whose
+    // minimum level is at or below it.
+    private final TreeMap<Integer, BitSet> byMinLevel = new TreeMap<Integer, BitSet>();
+
+    // Subscribers that have a payload criterion.
+    private final BitSet payloadFiltered = new BitSet();
+
+    /**
+     * Build an index.
+     *
+     * @param subscriberList the subscribers to index.
+     */
+    public SubscriptionIndex(List<Subscriber> subscriberList) {
+        subscribers = subscriberList.toArray(new Subscriber[subscriberList.size()]);
+
+        for (int i = 0; i < subscribers.length; i++) {
+            final SubscriptionFilter filter = subscribers[i].getFilter();
+            index(byService, anyService, filter.getService(), i);
+            index(byHost, anyHost, filter.getHost(), i);
+            index(byType, anyType, filter.getType(), i);
+
+            if (! byMinLevel.containsKey(filter.getMinLevel())) {
+                byMinLevel.put(filter.getMinLevel(), new BitSet());
+            }
+            byMinLevel.get(filter.getMinLevel()).set(i);
+
+            if (null != filter.getPayloadSubstring()) {
+                payloadFiltered.set(i);
+            }
+        }
+
+        // Make the level sets cumulative.
+        BitSet cumulative = new BitSet();
+        for (BitSet bits : byMinLevel.values()) {
+            cumulative.or(bits);
+            bits.or(cumulative);
+        }
+    }
+
+    private static void index(Map<String, BitSet> byValue, BitSet any, String value, int bit) {
+        if (null == value) {
+            any.set(bit);
+            return;
+        }
+        BitSet bits = byValue.get(value);
+        if (null == bits) {
+            bits = new BitSet();
+            byValue.put(value, bits);
+        }
+        bits.set(bit);
+    }
+
+    /**
+     * @return the number of subscribers in this index.
+     */
+    public int size() {
+        return subscribers.length;
+    }
+
+    /**
+     * Find the subscribers whose filters match a LogEvent.
+     *
+     * @param event the event to match.
+     * @return the matching subscribers, possibly empty.
+     */
+    public List<Subscriber> match(Timber.LogEvent event) {
+        if (0 == subscribers.length) {
+            return Collections.emptyList();
+        }
+
+        Map.Entry<Integer, BitSet> levelEntry = byMinLevel.floorEntry(event.getLevel());
+        if (null == levelEntry) {
+            return Collections.emptyList();
+        }
+
+        BitSet bits = (BitSet) levelEntry.getValue().clone();
+        and(bits, byService, anyService, event.getServiceName());
+        and(bits, byHost, anyHost, event.getHost());
+        and(bits, byType, anyType, event.getType());
+        if (bits.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Subscriber> matches = new ArrayList<Subscriber>(bits.cardinality());
+        List<String> payloads = null;
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            if (payloadFiltered.get(i)) {
+                // Decode the payloads at most once per event.
+                if (null == payloads) {
+                    payloads = new ArrayList<String>(event.getPayloadCount());
+                    for (Timber.Payload payload : event.getPayloadList()) {
+                        payloads.add(payload.getPayload().toStringUtf8());
+                    }
+                }
+                if (! containsSubstring(payloads, subscribers[i].getFilter().getPayloadSubstring())) {
+                    continue;
+                }
+            }
+            matches.add(subscribers[i]);
+        }
+        return matches;
+    }
+
+    private static void and(BitSet bits, Map<String, BitSet> byValue, BitSet any, String value) {
+        BitSet accepting = byValue.get(value);
+        if (null == accepting) {
+            bits.and(any);
+            return;
+        }
+        // bits &= (accepting | any), without allocating
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            if (! accepting.get(i) && ! any.get(i)) {
+                bits.clear(i);
+            }
+        }
+    }
+
+    private static boolean containsSubstring(List<String> payloads, String substring) {
+        for (String payload : payloads) {
+            if (payload.contains(substring)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,74 @@
+package org.cloudname.timber.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A striped counter for values that are updated often from several
+ * threads and read rarely.  Updates go to one of a number of cells
+ * chosen by the updating thread so that threads do not contend on
+ * the same cache line.  Reading the count sums the cells.
+ *
+ * <p> The sum is not an atomic snapshot: updates made while
+ * {@link #getCount()} runs may or may not be included.
+ */
+public class Counter {
+    // Number of longs per cell.  Spreads the cells out so that each
+    // sits on its own 64 byte cache line.
+    private static final int PADDING = 8;
+
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Increment the counter by one.
+     */
+    public void increment() {
+        add(1L);
+    }
+
+    /**
+     * Add a value to the counter.
+     *
+     * @param value the value to add.  May be negative.
+     */
+    public void add(long value) {
+        cells.getAndAdd(cellIndex(), value);
+    }
+
+    /**
+     * @return the sum of all values added so far.
+     */
+    public long getCount() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the index of the cell the current thread updates.
+     */
+    private static int cellIndex() {
+        final long id = Thread.currentThread().getId();
+        // Thread ids are sequential so we scramble them a bit
+        // before picking a stripe.
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        h ^= (h >>> 16);
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * @return the number of stripes; the smallest power of two at
+     *   least twice the number of processors, capped at 64.
+     */
+    private static int stripes() {
+        final int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        int n = 1;
+        while (n < target) {
+            n <<= 1;
+        }
+        return n;
+    }
+}
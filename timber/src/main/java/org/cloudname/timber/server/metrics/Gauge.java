@@ -0,0 +1,12 @@
+package org.cloudname.timber.server.metrics;
+
+/**
+ * A metric whose value is computed when it is read, typically
+ * the size of a queue or the number of open connections.
+ */
+public interface Gauge {
+    /**
+     * @return the current value of the gauge.
+     */
+    public long getValue();
+}
@@ -0,0 +1,180 @@
+package org.cloudname.timber.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, log-linear histogram of latencies in the spirit of
+ * HdrHistogram.  Values are recorded in nanoseconds.  Each power of
+ * two range is split into {@code SUB_BUCKETS} linear buckets, which
+ * bounds the relative error of reported percentiles to
+ * {@code 1/SUB_BUCKETS} across the whole range of a long while
+ * keeping recording to a few shifts and one atomic increment.
+ *
+ * <p> Recording is thread safe and lock free.  Reading percentiles
+ * copies the buckets, so it is safe but not an atomic snapshot.
+ */
+public class LatencyHistogram {
+    // log2 of the number of linear buckets per power of two range.
+    private static final int SUB_BUCKET_BITS = 4;
+
+    // Number of linear buckets per power of two range.  Gives a
+    // worst case relative error of 1/16 (6.25%).
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below this are counted exactly, one bucket per value.
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    // Enough buckets to cover every non-negative long.
+    private static final int NUM_BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.  Negative values, which may result from
+     * comparing System.nanoTime() values across threads on some
+     * platforms, are recorded as zero.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets.getAndIncrement(bucketIndex(value));
+        count.getAndIncrement();
+        sum.getAndAdd(value);
+
+        long currentMax = max.get();
+        while (value > currentMax) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since a given System.nanoTime() value.
+     *
+     * @param startNanos the value of System.nanoTime() when the
+     *   operation started.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record the time elapsed since a given System.nanoTime() value
+     * and return the current time.  Lets back to back operations be
+     * timed with one call to System.nanoTime() each.
+     *
+     * @param startNanos the value of System.nanoTime() when the
+     *   operation started.
+     * @return the value of System.nanoTime() used as the end time.
+     */
+    public long recordAndRestart(long startNanos) {
+        final long now = System.nanoTime();
+        record(now - startNanos);
+        return now;
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest value recorded, in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, in nanoseconds, or
+     *   zero if nothing was recorded.
+     */
+    public double getMean() {
+        final long n = count.get();
+        if (0 == n) {
+            return 0.0;
+        }
+        return ((double) sum.get()) / n;
+    }
+
+    /**
+     * Get the value at a given percentile.  The value returned is the
+     * upper bound of the bucket the percentile falls in, but never
+     * more than the largest value recorded.
+     *
+     * @param percentile a percentile between 0 and 100.
+     * @return the value at the given percentile in nanoseconds, or
+     *   zero if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+
+        final long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (0 == total) {
+            return 0L;
+        }
+
+        final long target = Math.max(1L, (long) Math.ceil((percentile / 100.0) * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Convenience method for reporting.
+     *
+     * @return the value at the given percentile in the given unit.
+     */
+    public long getValueAtPercentile(double percentile, TimeUnit unit) {
+        return unit.convert(getValueAtPercentile(percentile), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the index of the bucket a value falls in.
+     */
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // Shift the value so that its top SUB_BUCKET_BITS + 1 bits
+        // remain, ie. the shifted value is in [SUB_BUCKETS, LINEAR_LIMIT).
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int top = (int) (value >>> shift);
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the largest value that maps to a given bucket.
+     */
+    static long highestValueInBucket(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        final int k = index - LINEAR_LIMIT;
+        final int shift = (k / SUB_BUCKETS) + 1;
+        final long top = (k % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,161 @@
+package org.cloudname.timber.server.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named collection of counters, latency histograms and gauges.
+ *
+ * <p> Metrics are meant to be looked up once, when the component
+ * that updates them is created, and then updated directly.  The
+ * registry itself is only consulted again when metrics are read by
+ * one of the exporters.
+ *
+ * <p> Names are dot separated, eg. {@code dispatcher.queue.depth}.
+ * A histogram named {@code x} is flattened to {@code x.count},
+ * {@code x.mean_us}, {@code x.p50_us}, {@code x.p99_us},
+ * {@code x.p999_us} and {@code x.max_us} when read.
+ *
+ * <p> This class is thread safe.
+ */
+public class MetricRegistry {
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Get or create the counter with the given name.
+     *
+     * @throws IllegalStateException if the name is taken by a
+     *   metric of a different type.
+     */
+    public Counter counter(String name) {
+        return getOrCreate(name, Counter.class);
+    }
+
+    /**
+     * Get or create the latency histogram with the given name.
+     *
+     * @throws IllegalStateException if the name is taken by a
+     *   metric of a different type.
+     */
+    public LatencyHistogram histogram(String name) {
+        return getOrCreate(name, LatencyHistogram.class);
+    }
+
+    /**
+     * Register a gauge, replacing any existing metric of that name.
+     *
+     * @return this reference for chaining.
+     */
+    public MetricRegistry gauge(String name, Gauge gauge) {
+        if (null == gauge) {
+            throw new NullPointerException("gauge cannot be null");
+        }
+        metrics.put(name, gauge);
+        return this;
+    }
+
+    /**
+     * Remove a metric.  Used for metrics that belong to things that
+     * come and go, such as connections.
+     *
+     * @return this reference for chaining.
+     */
+    public MetricRegistry remove(String name) {
+        metrics.remove(name);
+        return this;
+    }
+
+    /**
+     * Take a flattened, sorted snapshot of all metrics.  Counters
+     * and gauges map to a Long, histograms to a number of entries
+     * as described in the class documentation.
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<String, Number>();
+        for (Map.Entry<String, Object> ent : metrics.entrySet()) {
+            final String name = ent.getKey();
+            final Object metric = ent.getValue();
+
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).getCount());
+            } else if (metric instanceof Gauge) {
+                values.put(name, ((Gauge) metric).getValue());
+            } else if (metric instanceof LatencyHistogram) {
+                LatencyHistogram h = (LatencyHistogram) metric;
+                values.put(name + ".count", h.getCount());
+                values.put(name + ".mean_us", h.getMean() / 1000.0);
+                values.put(name + ".p50_us", h.getValueAtPercentile(50.0, TimeUnit.MICROSECONDS));
+                values.put(name + ".p99_us", h.getValueAtPercentile(99.0, TimeUnit.MICROSECONDS));
+                values.put(name + ".p999_us", h.getValueAtPercentile(99.9, TimeUnit.MICROSECONDS));
+                values.put(name + ".max_us", TimeUnit.NANOSECONDS.toMicros(h.getMax()));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write a snapshot as plain text, one {@code name value} pair
+     * per line.
+     */
+    public void writeText(Appendable out) throws IOException {
+        for (Map.Entry<String, Number> ent : snapshot().entrySet()) {
+            final Number value = ent.getValue();
+            out.append(ent.getKey()).append(' ');
+            if (value instanceof Double) {
+                out.append(String.format("%.3f", value.doubleValue()));
+            } else {
+                out.append(value.toString());
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Turn an arbitrary string, such as a handler name or a remote
+     * address, into something that can be used as part of a metric
+     * name.
+     */
+    public static String sanitize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    private <T> T getOrCreate(String name, Class<T> type) {
+        if (null == name) {
+            throw new NullPointerException("name cannot be null");
+        }
+
+        Object metric = metrics.get(name);
+        if (null == metric) {
+            try {
+                Object created = type.newInstance();
+                metric = metrics.putIfAbsent(name, created);
+                if (null == metric) {
+                    metric = created;
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to create metric " + name, e);
+            }
+        }
+
+        if (! type.isInstance(metric)) {
+            throw new IllegalStateException("Metric " + name + " is a "
+                                            + metric.getClass().getSimpleName()
+                                            + ", not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+}
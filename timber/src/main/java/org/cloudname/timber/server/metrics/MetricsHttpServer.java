@@ -0,0 +1,147 @@
+package org.cloudname.timber.server.metrics;
+
+import org.cloudname.timber.common.Constants;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Minimal HTTP server that serves a plain text snapshot of a
+ * MetricRegistry on any GET request.  The output is the same as
+ * that of {@link MetricRegistry#writeText}.
+ */
+public class MetricsHttpServer {
+    private static final Logger log = Logger.getLogger(MetricsHttpServer.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MetricRegistry registry;
+    private final String bindAddress;
+    private final int port;
+    private ServerBootstrap bootstrap;
+    private Channel serverChannel;
+
+    /**
+     * Create a server which only listens on the loopback interface.
+     *
+     * @param registry the registry to serve.
+     * @param port the port to listen to.  Zero picks a free port.
+     */
+    public MetricsHttpServer(MetricRegistry registry, int port) {
+        this(registry, Constants.DEFAULT_ADMIN_BIND_ADDRESS, port);
+    }
+
+    /**
+     * @param registry the registry to serve.
+     * @param bindAddress the address to listen on.  Requests are not
+     *   authenticated.
+     * @param port the port to listen to.  Zero picks a free port.
+     */
+    public MetricsHttpServer(MetricRegistry registry, String bindAddress, int port) {
+        this.registry = registry;
+        this.bindAddress = bindAddress;
+        this.port = port;
+    }
+
+    /**
+     * Start listening.
+     */
+    public void start() {
+        if (null != bootstrap) {
+            throw new IllegalStateException("MetricsHttpServer already started");
+        }
+
+        bootstrap = new ServerBootstrap(
+            new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool()));
+
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() {
+                    ChannelPipeline p = Channels.pipeline();
+                    p.addLast("decoder", new HttpRequestDecoder());
+                    p.addLast("encoder", new HttpResponseEncoder());
+                    p.addLast("handler", new MetricsHandler());
+                    return p;
+                }
+            });
+        bootstrap.setOption("reuseAddress", true);
+
+        serverChannel = bootstrap.bind(new InetSocketAddress(bindAddress, port));
+        log.info("Metrics available over HTTP on " + bindAddress + ":" + getPort());
+    }
+
+    /**
+     * @return the port we are listening to.
+     */
+    public int getPort() {
+        if (null == serverChannel) {
+            return port;
+        }
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stop listening and release resources.
+     */
+    public void shutdown() {
+        if (null == bootstrap) {
+            throw new IllegalStateException("MetricsHttpServer was not started");
+        }
+        serverChannel.close().awaitUninterruptibly();
+        bootstrap.releaseExternalResources();
+    }
+
+    private class MetricsHandler extends SimpleChannelUpstreamHandler {
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent event) throws Exception {
+            HttpRequest request = (HttpRequest) event.getMessage();
+
+            final HttpResponse response;
+            if (request.getMethod() == HttpMethod.GET) {
+                StringBuilder sb = new StringBuilder();
+                registry.writeText(sb);
+                response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+                response.setContent(ChannelBuffers.copiedBuffer(sb, UTF8));
+            } else {
+                response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            }
+            response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, response.getContent().readableBytes());
+
+            // Keep it simple: one request per connection.
+            event.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent event) {
+            log.log(Level.FINE, "Exception in metrics handler", event.getCause());
+            event.getChannel().close();
+        }
+    }
+}
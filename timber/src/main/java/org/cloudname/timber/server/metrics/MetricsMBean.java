@@ -0,0 +1,111 @@
+package org.cloudname.timber.server.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes a MetricRegistry over JMX as a single read-only MBean
+ * with one attribute per flattened metric.  Since metrics can come
+ * and go (eg. per connection metrics) the set of attributes is
+ * computed each time the MBean info is requested.
+ */
+public class MetricsMBean implements DynamicMBean {
+    /**
+     * The default object name for the timber server metrics.
+     */
+    public static final String DEFAULT_OBJECT_NAME = "org.cloudname.timber:type=Metrics";
+
+    private final MetricRegistry registry;
+
+    public MetricsMBean(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Register an MBean for a MetricRegistry with the platform
+     * MBean server.
+     *
+     * @param registry the registry to expose.
+     * @param name the object name to register it under.
+     * @throws JMException if registration failed.
+     */
+    public static ObjectName register(MetricRegistry registry, String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(new MetricsMBean(registry), objectName);
+        return objectName;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = registry.snapshot().get(attribute);
+        if (null == value) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Number> snapshot = registry.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if (null != value) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Number> ent : registry.snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(ent.getKey(),
+                                                  ent.getValue().getClass().getName(),
+                                                  ent.getKey(),
+                                                  true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(),
+                             "Timber server metrics",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                             null, null, null);
+    }
+
+    /**
+     * All the attributes are read-only, so setting one fails the
+     * same way it does for a read-only attribute of a standard MBean.
+     */
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+        throws ReflectionException
+    {
+        throw new ReflectionException(new NoSuchMethodException(actionName),
+                                      "Metrics have no operations");
+    }
+}
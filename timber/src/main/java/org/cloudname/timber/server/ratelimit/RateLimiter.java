@@ -0,0 +1,356 @@
+package org.cloudname.timber.server.ratelimit;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.metrics.Counter;
+import org.cloudname.timber.server.metrics.Gauge;
+import org.cloudname.timber.server.metrics.MetricRegistry;
+
+import com.google.protobuf.ByteString;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Admission stage in front of the Dispatcher queue that protects the
+ * server from services or hosts flooding it with log events.
+ *
+ * <p> Only BESTEFFORT events are ever dropped; events with a higher
+ * consistency level have been promised an acknowledgement.  Of the
+ * BESTEFFORT events:
+ *
+ * <ul>
+ *   <li> events at or above the keep level (default WARNING) are
+ *        always admitted,
+ *   <li> events below the sample level (default INFO) are sampled,
+ *        keeping one in every {@code sampleRate} per service,
+ *   <li> the rest must get a token from both the bucket of their
+ *        service and the bucket of their host.
+ * </ul>
+ *
+ * <p> Services and hosts that have sent nothing for a summary
+ * interval are forgotten, and at most {@code maxKeys} of each are
+ * tracked at a time.  Beyond that, new names share the state of
+ * {@link #OVERFLOW_KEY}, so a flood of distinct names cannot grow
+ * memory without bound.
+ *
+ * <p> Dropped events are counted per service and per host, and
+ * {@link #summaries} turns the counts into summary LogEvents that
+ * the Dispatcher feeds back into the stream so that the drops show
+ * up in the logs themselves.
+ *
+ * <p> {@link #admit} is called concurrently from the IO threads.
+ * Per key state lives in ConcurrentHashMaps, which do not lock or
+ * allocate on lookups of existing keys, and is updated with single
+ * atomic operations.
+ */
+public class RateLimiter {
+    /**
+     * Service name used for the summary events.
+     */
+    public static final String SUMMARY_SERVICE_NAME = "timber";
+
+    /**
+     * The key services and hosts share once maxKeys are tracked.
+     */
+    public static final String OVERFLOW_KEY = "(other)";
+
+    private final double serviceRate;
+    private final int serviceBurst;
+    private final double hostRate;
+    private final int hostBurst;
+    private final int keepLevel;
+    private final int sampleLevel;
+    private final int sampleRate;
+    private final long summaryIntervalNanos;
+    private final int maxKeys;
+
+    private final ConcurrentMap<String, KeyState> services = new ConcurrentHashMap<String, KeyState>();
+    private final ConcurrentMap<String, KeyState> hosts = new ConcurrentHashMap<String, KeyState>();
+
+    private final String localHost;
+    private long lastSummaryTime = System.nanoTime();
+
+    // Metrics
+    private final Counter rateLimitedCount = new Counter();
+    private final Counter sampledOutCount = new Counter();
+
+    /**
+     * Rate limiting state for one service or host.
+     */
+    private static class KeyState {
+        // null if this kind of key is not rate limited.
+        private final TokenBucket bucket;
+        private final AtomicLong sampleCounter = new AtomicLong();
+        private final AtomicLong rateLimited = new AtomicLong();
+        private final AtomicLong sampledOut = new AtomicLong();
+        // Set by admit, cleared by summaries.  Keys not used between
+        // two summaries are evicted.
+        private volatile boolean used = true;
+
+        public KeyState(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private RateLimiter(Builder builder) {
+        serviceRate = builder.serviceRate;
+        serviceBurst = builder.serviceBurst;
+        hostRate = builder.hostRate;
+        hostBurst = builder.hostBurst;
+        keepLevel = builder.keepLevel;
+        sampleLevel = builder.sampleLevel;
+        sampleRate = builder.sampleRate;
+        summaryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(builder.summaryIntervalMs);
+        maxKeys = builder.maxKeys;
+
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        localHost = host;
+    }
+
+    /**
+     * Decide whether to admit an event.
+     *
+     * @param event the event.
+     * @return {@code true} if the event should be dispatched.
+     */
+    public boolean admit(Timber.LogEvent event) {
+        if (event.getConsistencyLevel() != Timber.ConsistencyLevel.BESTEFFORT
+            || event.getLevel() >= keepLevel) {
+            return true;
+        }
+
+        final KeyState service = state(services, event.getServiceName(), serviceRate, serviceBurst);
+        final KeyState host = (hostRate > 0.0) ? state(hosts, event.getHost(), hostRate, hostBurst) : null;
+
+        if (event.getLevel() < sampleLevel
+            && (service.sampleCounter.getAndIncrement() % sampleRate) != 0) {
+            service.sampledOut.incrementAndGet();
+            sampledOutCount.increment();
+            return false;
+        }
+
+        if (null != service.bucket && ! service.bucket.tryAcquire()) {
+            service.rateLimited.incrementAndGet();
+            rateLimitedCount.increment();
+            return false;
+        }
+
+        if (null != host && ! host.bucket.tryAcquire()) {
+            // The event is not admitted, so the service should not
+            // pay for it.
+            if (null != service.bucket) {
+                service.bucket.refund();
+            }
+            host.rateLimited.incrementAndGet();
+            rateLimitedCount.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Produce summary events for the drops since the last summary,
+     * if the summary interval has passed.  Must only be called from
+     * one thread at a time.
+     *
+     * @return summary events, one per service or host that had
+     *   events dropped, or an empty list.
+     */
+    public List<Timber.LogEvent> summaries() {
+        final long now = System.nanoTime();
+        if ((now - lastSummaryTime) < summaryIntervalNanos) {
+            return Collections.emptyList();
+        }
+        lastSummaryTime = now;
+
+        List<Timber.LogEvent> events = new ArrayList<Timber.LogEvent>();
+        addSummaries(events, "service", services);
+        addSummaries(events, "host", hosts);
+        evictUnused(services, now);
+        evictUnused(hosts, now);
+        return events;
+    }
+
+    /**
+     * Register gauges for the drop counts.
+     *
+     * @param metrics the registry to register them in.
+     */
+    public void addMetrics(MetricRegistry metrics) {
+        metrics.gauge("ratelimit.dropped.ratelimited", new Gauge() {
+                @Override
+                public long getValue() {
+                    return rateLimitedCount.getCount();
+                }
+            });
+        metrics.gauge("ratelimit.dropped.sampled", new Gauge() {
+                @Override
+                public long getValue() {
+                    return sampledOutCount.getCount();
+                }
+            });
+    }
+
+    private void addSummaries(List<Timber.LogEvent> events, String kind, Map<String, KeyState> states) {
+        for (Map.Entry<String, KeyState> ent : states.entrySet()) {
+            final long rateLimited = ent.getValue().rateLimited.getAndSet(0);
+            final long sampledOut = ent.getValue().sampledOut.getAndSet(0);
+            if (0 == rateLimited && 0 == sampledOut) {
+                continue;
+            }
+
+            final String message = "Dropped events from " + kind + " " + ent.getKey()
+                + ": rate limited=" + rateLimited
+                + ", sampled out=" + sampledOut;
+            events.add(Timber.LogEvent.newBuilder()
+                       .setTimestamp(System.currentTimeMillis())
+                       .setConsistencyLevel(Timber.ConsistencyLevel.BESTEFFORT)
+                       .setLevel(Level.WARNING.intValue())
+                       .setHost(localHost)
+                       .setServiceName(SUMMARY_SERVICE_NAME)
+                       .setSource(RateLimiter.class.getName())
+                       .setType("T")
+                       .addPayload(Timber.Payload.newBuilder()
+                                   .setName("msg")
+                                   .setPayload(ByteString.copyFromUtf8(message)))
+                       .build());
+        }
+    }
+
+    /**
+     * Forget the keys that have not been used since the last call,
+     * unless their bucket still holds back events.
+     */
+    private static void evictUnused(Map<String, KeyState> states, long now) {
+        for (Iterator<KeyState> it = states.values().iterator(); it.hasNext(); ) {
+            final KeyState state = it.next();
+            if (state.used) {
+                state.used = false;
+            } else if (null == state.bucket || state.bucket.isIdle(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private KeyState state(ConcurrentMap<String, KeyState> states, String key, double rate, int burst) {
+        KeyState state = states.get(key);
+        if (null == state && states.size() >= maxKeys) {
+            key = OVERFLOW_KEY;
+            state = states.get(key);
+        }
+        if (null != state) {
+            // Avoid writing the shared field on every event.
+            if (! state.used) {
+                state.used = true;
+            }
+        } else {
+            KeyState created = new KeyState((rate > 0.0) ? new TokenBucket(rate, burst) : null);
+            state = states.putIfAbsent(key, created);
+            if (null == state) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Builder for RateLimiter.  By default nothing is rate limited
+     * and everything below INFO is sampled one in ten.
+     */
+    public static class Builder {
+        private double serviceRate = 0.0;
+        private int serviceBurst = 1;
+        private double hostRate = 0.0;
+        private int hostBurst = 1;
+        private int keepLevel = Level.WARNING.intValue();
+        private int sampleLevel = Level.INFO.intValue();
+        private int sampleRate = 10;
+        private long summaryIntervalMs = 10000;
+        private int maxKeys = 10000;
+
+        /**
+         * Limit each service to a rate, in events per second, with
+         * a given burst size.  A rate of zero disables the limit.
+         */
+        public Builder setServiceRate(double rate, int burst) {
+            if (rate > 0.0 && burst < 1) {
+                throw new IllegalArgumentException("burst must be at least 1");
+            }
+            this.serviceRate = rate;
+            this.serviceBurst = burst;
+            return this;
+        }
+
+        /**
+         * Limit each host to a rate, in events per second, with a
+         * given burst size.  A rate of zero disables the limit.
+         */
+        public Builder setHostRate(double rate, int burst) {
+            if (rate > 0.0 && burst < 1) {
+                throw new IllegalArgumentException("burst must be at least 1");
+            }
+            this.hostRate = rate;
+            this.hostBurst = burst;
+            return this;
+        }
+
+        /**
+         * Events at or above this level are never dropped.
+         */
+        public Builder setKeepLevel(Level level) {
+            this.keepLevel = level.intValue();
+            return this;
+        }
+
+        /**
+         * Keep one in {@code rate} events below {@code level}.  A rate
+         * of 1 disables sampling.
+         */
+        public Builder setSampling(Level level, int rate) {
+            if (rate < 1) {
+                throw new IllegalArgumentException("sample rate must be at least 1");
+            }
+            this.sampleLevel = level.intValue();
+            this.sampleRate = rate;
+            return this;
+        }
+
+        /**
+         * How often to produce summary events.
+         */
+        public Builder setSummaryInterval(long intervalMs) {
+            this.summaryIntervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * The most services, and the most hosts, to track at a time.
+         */
+        public Builder setMaxKeys(int maxKeys) {
+            if (maxKeys < 1) {
+                throw new IllegalArgumentException("maxKeys must be at least 1");
+            }
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public RateLimiter build() {
+            return new RateLimiter(this);
+        }
+    }
+}
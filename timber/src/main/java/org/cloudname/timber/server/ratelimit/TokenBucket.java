@@ -0,0 +1,87 @@
+package org.cloudname.timber.server.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket.  Rather than a token count and a refill
+ * timestamp, which would need a lock or two atomics to update
+ * consistently, this keeps a single "theoretical arrival time"
+ * (the generic cell rate algorithm), which behaves exactly like a
+ * token bucket: an event is admitted if the bucket would hold at
+ * least one token, and a burst of up to {@code burst} events is
+ * admitted after an idle period.  Admitting an event is one CAS.
+ *
+ * This class is thread safe.
+ */
+public class TokenBucket {
+    // Nanoseconds between tokens.
+    private final long interval;
+
+    // How far ahead of now the theoretical arrival time may run.
+    private final long tolerance;
+
+    private final AtomicLong theoreticalArrivalTime;
+
+    /**
+     * @param ratePerSecond the sustained rate, in events per second.
+     * @param burst the number of events that may be admitted at once
+     *   after an idle period.
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0.0) {
+            throw new IllegalArgumentException("ratePerSecond must be positive");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        interval = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        tolerance = interval * (burst - 1);
+        theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Try to take a token.
+     *
+     * @return {@code true} if a token was available.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Try to take a token at a given time.  Exposed for testing.
+     *
+     * @param now the current value of System.nanoTime().
+     * @return {@code true} if a token was available.
+     */
+    boolean tryAcquire(long now) {
+        while (true) {
+            final long tat = theoreticalArrivalTime.get();
+            // An idle bucket is full; it does not bank more than that.
+            final long start = Math.max(tat, now);
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (theoreticalArrivalTime.compareAndSet(tat, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a token taken by {@link #tryAcquire}, eg. when the
+     * event was rejected by another bucket after all.
+     */
+    public void refund() {
+        theoreticalArrivalTime.addAndGet(-interval);
+    }
+
+    /**
+     * @return {@code true} if the bucket is full, ie. no tokens have
+     *   been taken for as long as it takes to refill it.
+     */
+    boolean isIdle(long now) {
+        return theoreticalArrivalTime.get() <= now;
+    }
+}
@@ -0,0 +1,113 @@
+package org.cloudname.timber.common;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.DispatcherTest;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.protobuf.ProtobufDecoder;
+import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Micro benchmark comparing the decode path of Netty's
+ * ProtobufVarint32FrameDecoder + ProtobufDecoder pair with
+ * ProtobufVarint32Decoder.  Not run as part of the test suite; run
+ * it by hand with the test classpath.
+ */
+public class ProtobufVarint32DecoderBenchmark {
+    private static final int FRAMES_PER_BUFFER = 1000;
+    private static final int ROUNDS = 2000;
+
+    /**
+     * Exposes the protected decode methods of the Netty decoders.
+     */
+    private static class NettyFrameDecoder extends ProtobufVarint32FrameDecoder {
+        public Object decodeFrame(ChannelBuffer buffer) throws Exception {
+            return decode(null, null, buffer);
+        }
+    }
+
+    private static class NettyMessageDecoder extends ProtobufDecoder {
+        public NettyMessageDecoder() {
+            super(Timber.LogEvent.getDefaultInstance());
+        }
+
+        public Object decodeMessage(Object frame) throws Exception {
+            return decode(null, null, frame);
+        }
+    }
+
+    private static class InPlaceDecoder extends ProtobufVarint32Decoder {
+        public InPlaceDecoder() {
+            super(Timber.LogEvent.getDefaultInstance());
+        }
+
+        public Object decodeFrame(ChannelBuffer buffer) throws Exception {
+            return decode(null, null, buffer);
+        }
+    }
+
+    private static long runNetty(ChannelBuffer buffer) throws Exception {
+        NettyFrameDecoder frameDecoder = new NettyFrameDecoder();
+        NettyMessageDecoder messageDecoder = new NettyMessageDecoder();
+        long count = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            buffer.readerIndex(0);
+            Object frame;
+            while ((frame = frameDecoder.decodeFrame(buffer)) != null) {
+                if (messageDecoder.decodeMessage(frame) != null) {
+                    count++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        report("netty", count, elapsed);
+        return elapsed;
+    }
+
+    private static long runInPlace(ChannelBuffer buffer) throws Exception {
+        InPlaceDecoder decoder = new InPlaceDecoder();
+        long count = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            buffer.readerIndex(0);
+            while (decoder.decodeFrame(buffer) != null) {
+                count++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        report("in-place", count, elapsed);
+        return elapsed;
+    }
+
+    private static void report(String name, long count, long elapsedNanos) {
+        System.out.printf("%-10s %10d msgs %8d ms %8.1f ns/msg%n",
+                          name,
+                          count,
+                          elapsedNanos / 1000000L,
+                          (double) elapsedNanos / count);
+    }
+
+    public static void main(String[] args) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES_PER_BUFFER; i++) {
+            DispatcherTest.createMessage("This is log message number " + i).writeDelimitedTo(out);
+        }
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(out.toByteArray());
+
+        // Warm up, then measure.
+        for (int i = 0; i < 3; i++) {
+            runNetty(buffer);
+            runInPlace(buffer);
+        }
+        System.out.println("--");
+        long netty = runNetty(buffer);
+        long inPlace = runInPlace(buffer);
+        System.out.printf("speedup: %.2fx%n", (double) netty / inPlace);
+    }
+}
@@ -0,0 +1,108 @@
+package org.cloudname.timber.common;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.DispatcherTest;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ProtobufVarint32Decoder.
+ */
+public class ProtobufVarint32DecoderTest {
+    private DecoderEmbedder<Timber.LogEvent> embedder;
+
+    @Before
+    public void setUp() {
+        embedder = new DecoderEmbedder<Timber.LogEvent>(
+            new ProtobufVarint32Decoder(Timber.LogEvent.getDefaultInstance()));
+    }
+
+    /**
+     * @return the given events serialized with varint32 length prefixes.
+     */
+    private static byte[] frames(Timber.LogEvent... events) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Timber.LogEvent event : events) {
+            event.writeDelimitedTo(out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Several complete frames arriving in one buffer.
+     */
+    @Test
+    public void testMultipleFramesInOneBuffer() throws Exception {
+        Timber.LogEvent e1 = DispatcherTest.createMessage("first");
+        Timber.LogEvent e2 = DispatcherTest.createMessage("second");
+        Timber.LogEvent e3 = DispatcherTest.createMessage("third");
+
+        assertTrue(embedder.offer(ChannelBuffers.wrappedBuffer(frames(e1, e2, e3))));
+        assertEquals(e1, embedder.poll());
+        assertEquals(e2, embedder.poll());
+        assertEquals(e3, embedder.poll());
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * Frames split at every byte boundary, including inside the
+     * length prefix.
+     */
+    @Test
+    public void testFramesSplitAcrossBuffers() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("long message ");
+        }
+        // Long enough to need a two byte length prefix
+        Timber.LogEvent e1 = DispatcherTest.createMessage(sb.toString());
+        Timber.LogEvent e2 = DispatcherTest.createMessage("short");
+        byte[] data = frames(e1, e2);
+
+        for (int i = 0; i < data.length; i++) {
+            embedder.offer(ChannelBuffers.wrappedBuffer(data, i, 1));
+        }
+        assertEquals(e1, embedder.poll());
+        assertEquals(e2, embedder.poll());
+        assertNull(embedder.poll());
+    }
+
+    /**
+     * Frames held in a direct buffer, which has no backing array.
+     */
+    @Test
+    public void testDirectBuffer() throws Exception {
+        Timber.LogEvent e1 = DispatcherTest.createMessage("direct");
+        byte[] data = frames(e1);
+        ChannelBuffer buffer = ChannelBuffers.directBuffer(data.length);
+        buffer.writeBytes(data);
+
+        embedder.offer(buffer);
+        assertEquals(e1, embedder.poll());
+    }
+
+    /**
+     * A length prefix that does not terminate within five bytes.
+     */
+    @Test
+    public void testCorruptedLength() throws Exception {
+        byte[] data = new byte[] {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01
+        };
+        try {
+            embedder.offer(ChannelBuffers.wrappedBuffer(data));
+            fail("Expected CorruptedFrameException");
+        } catch (CodecEmbedderException e) {
+            assertTrue(e.getCause() instanceof CorruptedFrameException);
+        }
+    }
+}
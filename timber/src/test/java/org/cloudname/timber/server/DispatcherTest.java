@@ -3,9 +3,13 @@ package org.cloudname.timber.server;
 import org.cloudname.log.pb.Timber;
 import static org.cloudname.log.pb.Timber.ConsistencyLevel;
 
+import org.cloudname.timber.server.handler.DeferredAckLogEventHandler;
 import org.cloudname.timber.server.handler.LogEventHandlerException;
 
 import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import com.google.protobuf.ByteString;
 
 import org.junit.*;
@@ -39,6 +43,23 @@ public class DispatcherTest {
         }
     }
 
+    /**
+     * LogEventHandler which holds on to the acknowledgement callbacks
+     * so the test can decide when to run them.
+     */
+    private static class DeferringHandler extends DummyHandler implements DeferredAckLogEventHandler {
+        private final BlockingQueue<Runnable> callbacks = new LinkedBlockingQueue<Runnable>();
+
+        public DeferringHandler(String name) {
+            super(name);
+        }
+
+        public void handle(Timber.LogEvent logEvent, Runnable acknowledge) {
+            super.handle(logEvent);
+            callbacks.add(acknowledge);
+        }
+    }
+
     /**
      * Utility method for creating a log message.
      * @return a Timber.LogEvent with a given text message.
@@ -86,6 +107,11 @@ public class DispatcherTest {
         assertEquals(50, handler2.getHandleCalled());
         assertEquals(1, handler1.getCloseCalled());
         assertEquals(1, handler2.getCloseCalled());
+
+        // And that they were measured
+        assertEquals(50, disp.getMetrics().counter("dispatcher.events").getCount());
+        assertEquals(50, disp.getMetrics().histogram("dispatcher.queue.latency").getCount());
+        assertEquals(50, disp.getMetrics().histogram("handler.DummyHandler_2.handle").getCount());
     }
 
     /**
@@ -182,4 +208,117 @@ public class DispatcherTest {
         expected.set(0,1000);
         assertEquals(expected, bits);
     }
+
+    /**
+     * REPLICATED events should only be acknowledged once the
+     * deferred ack handlers say so.
+     */
+    @Test
+    public void testDeferredAcknowledge() throws Exception {
+        MockChannel channel = new MockChannel();
+        DummyHandler handler = new DummyHandler("dummy handler");
+        DeferringHandler deferring = new DeferringHandler("deferring handler");
+        Dispatcher disp = new Dispatcher(10);
+        disp.addHandler(handler);
+        disp.addHandler(deferring);
+        disp.init();
+
+        disp.dispatch(Timber.LogEvent.newBuilder(createMessage("meh"))
+                      .setConsistencyLevel(ConsistencyLevel.REPLICATED)
+                      .setId("deferred")
+                      .build(),
+                      channel);
+
+        Runnable acknowledge = deferring.callbacks.poll(5, TimeUnit.SECONDS);
+        assertNotNull(acknowledge);
+        assertEquals(1, handler.getHandleCalled());
+
+        // Give the AckManager a chance to misbehave
+        Thread.sleep(250);
+        assertEquals(0, channel.getWriteCount());
+
+        acknowledge.run();
+        disp.shutdown();
+
+        assertEquals(1, channel.getWriteCount());
+        Timber.AckEvent ackEvent = (Timber.AckEvent) channel.getWrittenObject();
+        assertEquals("deferred", ackEvent.getId(0));
+    }
+
+    /**
+     * A deferred ack handler that throws does not hold back the ack.
+     */
+    @Test
+    public void testFailingDeferredAckHandler() throws Exception {
+        MockChannel channel = new MockChannel();
+        DeferringHandler failing = new DeferringHandler("failing handler") {
+                @Override
+                public void handle(Timber.LogEvent logEvent, Runnable acknowledge) {
+                    throw new RuntimeException("failing on purpose");
+                }
+            };
+        Dispatcher disp = new Dispatcher(10);
+        disp.addHandler(failing);
+        disp.init();
+
+        disp.dispatch(Timber.LogEvent.newBuilder(createMessage("meh"))
+                      .setConsistencyLevel(ConsistencyLevel.REPLICATED)
+                      .setId("failed")
+                      .build(),
+                      channel);
+        disp.shutdown();
+
+        assertEquals(1, channel.getWriteCount());
+        Timber.AckEvent ackEvent = (Timber.AckEvent) channel.getWrittenObject();
+        assertEquals("failed", ackEvent.getId(0));
+    }
+
+    /**
+     * A deferred ack handler added while events are flowing only
+     * holds back the acks of the events it runs.
+     */
+    @Test
+    public void testDeferredAckHandlerAddedWhileDispatching() throws Exception {
+        MockChannel channel = new MockChannel();
+        final DeferringHandler added = new DeferringHandler("added handler");
+        final Dispatcher disp = new Dispatcher(10);
+        DeferringHandler first = new DeferringHandler("first handler") {
+                @Override
+                public void handle(Timber.LogEvent logEvent, Runnable acknowledge) {
+                    super.handle(logEvent, acknowledge);
+                    if (getHandleCalled() == 1) {
+                        disp.addHandler(added);
+                    }
+                }
+            };
+        disp.addHandler(first);
+        disp.init();
+
+        for (String id : new String[] {"before", "after"}) {
+            disp.dispatch(Timber.LogEvent.newBuilder(createMessage("meh"))
+                          .setConsistencyLevel(ConsistencyLevel.REPLICATED)
+                          .setId(id)
+                          .build(),
+                          channel);
+        }
+
+        Runnable acknowledgeBefore = first.callbacks.poll(5, TimeUnit.SECONDS);
+        Runnable acknowledgeAfter = first.callbacks.poll(5, TimeUnit.SECONDS);
+        assertNotNull(acknowledgeAfter);
+        Runnable acknowledgeAdded = added.callbacks.poll(5, TimeUnit.SECONDS);
+        assertNotNull(acknowledgeAdded);
+        assertEquals(1, added.getHandleCalled());
+
+        acknowledgeBefore.run();
+        acknowledgeAfter.run();
+        Thread.sleep(250);
+        assertEquals(1, channel.getWriteCount());
+        assertEquals("before", ((Timber.AckEvent) channel.getWrittenObject()).getId(0));
+
+        acknowledgeAdded.run();
+        disp.shutdown();
+
+        assertEquals(2, channel.getWriteCount());
+        assertEquals("after", ((Timber.AckEvent) channel.getWrittenObject()).getId(0));
+    }
 }
@@ -0,0 +1,181 @@
+package org.cloudname.timber.server.handler.replication;
+
+import org.cloudname.CloudnameException;
+import org.cloudname.Endpoint;
+import org.cloudname.Resolver;
+import org.cloudname.log.pb.Timber;
+import org.cloudname.testtools.Net;
+import org.cloudname.timber.server.DispatcherTest;
+import org.cloudname.timber.server.DummyHandler;
+import org.cloudname.timber.server.Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ReplicatingHandler.  Runs a real timber server as
+ * the peer.
+ */
+public class ReplicatingHandlerTest {
+    private Server peer;
+    private DummyHandler peerHandler;
+    private int peerPort;
+
+    /**
+     * Resolver which resolves any expression to a fixed list of
+     * endpoints.
+     */
+    private static class StaticResolver implements Resolver {
+        private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+
+        public StaticResolver(int... ports) {
+            for (int port : ports) {
+                endpoints.add(new Endpoint(null, "timber", "127.0.0.1", port, "tcp", null));
+            }
+        }
+
+        public List<Endpoint> resolve(String expression) {
+            return endpoints;
+        }
+
+        public Future<List<Endpoint>> resolveAsync(String expression) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void addResolverListener(String expression, ResolverListener listener) {
+            for (Endpoint endpoint : endpoints) {
+                listener.endpointEvent(ResolverListener.Event.NEW_ENDPOINT, endpoint);
+            }
+        }
+
+        public void removeResolverListener(ResolverListener listener) {
+        }
+
+        public Set<Endpoint> getEndpoints(CoordinateDataFilter filter) throws CloudnameException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peerPort = Net.getFreePort();
+        peerHandler = new DummyHandler("peer");
+        peer = new Server(peerPort);
+        peer.addHandler(peerHandler);
+        peer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        peer.shutdown();
+    }
+
+    private static Timber.LogEvent replicatedEvent(String id) {
+        return Timber.LogEvent.newBuilder(DispatcherTest.createMessage("replicate me"))
+            .setConsistencyLevel(Timber.ConsistencyLevel.REPLICATED)
+            .setId(id)
+            .build();
+    }
+
+    private static void waitForPeers(ReplicatingHandler handler, int numPeers) throws Exception {
+        for (int i = 0; i < 100 && handler.getConnectedPeerCount() < numPeers; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(numPeers, handler.getConnectedPeerCount());
+    }
+
+    @Test (timeout = 20000)
+    public void testQuorumAcknowledge() throws Exception {
+        ReplicatingHandler handler = new ReplicatingHandler(new StaticResolver(peerPort), "timber", 1, -1);
+        handler.init();
+        waitForPeers(handler, 1);
+
+        int numEvents = 500;
+        final CountDownLatch acked = new CountDownLatch(numEvents);
+        for (int i = 0; i < numEvents; i++) {
+            handler.handle(replicatedEvent("id" + i), new Runnable() {
+                    public void run() {
+                        acked.countDown();
+                    }
+                });
+        }
+
+        assertTrue(acked.await(10, TimeUnit.SECONDS));
+        handler.close();
+        assertEquals(numEvents, peerHandler.getHandleCalled());
+    }
+
+    @Test (timeout = 20000)
+    public void testNoQuorum() throws Exception {
+        // We require two acks but there is only one peer
+        ReplicatingHandler handler = new ReplicatingHandler(new StaticResolver(peerPort), "timber", 2, -1, 200);
+        handler.init();
+        waitForPeers(handler, 1);
+
+        final CountDownLatch acked = new CountDownLatch(1);
+        handler.handle(replicatedEvent("lonely"), new Runnable() {
+                public void run() {
+                    acked.countDown();
+                }
+            });
+
+        assertFalse(acked.await(1, TimeUnit.SECONDS));
+        handler.close();
+    }
+
+    @Test (timeout = 20000)
+    public void testIgnoresSelfAndOtherLevels() throws Exception {
+        ReplicatingHandler handler = new ReplicatingHandler(new StaticResolver(peerPort), "timber", 1, peerPort);
+        handler.init();
+        Thread.sleep(200);
+        assertEquals(0, handler.getConnectedPeerCount());
+
+        // Not REPLICATED, so silently ignored
+        handler.handle(DispatcherTest.createMessage("not replicated"));
+        handler.close();
+        assertEquals(0, peerHandler.getHandleCalled());
+    }
+
+    @Test (timeout = 20000)
+    public void testRequiredAcksIsMajorityOfCluster() throws Exception {
+        // Three peers and ourselves, a majority is three nodes.
+        int[] ports = { peerPort, Net.getFreePort(), Net.getFreePort() };
+        ReplicatingHandler handler
+            = new ReplicatingHandler(new StaticResolver(ports), "timber", ReplicatingHandler.QUORUM, -1);
+        assertEquals(0, handler.getRequiredAcks());
+        handler.init();
+        assertEquals(2, handler.getRequiredAcks());
+        handler.close();
+
+        // Two peers and ourselves, a majority is two nodes.
+        handler = new ReplicatingHandler(
+            new StaticResolver(peerPort, Net.getFreePort()), "timber", ReplicatingHandler.QUORUM, -1);
+        handler.init();
+        assertEquals(1, handler.getRequiredAcks());
+        handler.close();
+    }
+
+    @Test (timeout = 20000)
+    public void testNoPeersAcknowledgesLocally() throws Exception {
+        ReplicatingHandler handler
+            = new ReplicatingHandler(new StaticResolver(), "timber", ReplicatingHandler.QUORUM, -1, 200);
+        handler.init();
+        assertEquals(0, handler.getRequiredAcks());
+
+        final CountDownLatch acked = new CountDownLatch(1);
+        handler.handle(replicatedEvent("alone"), new Runnable() {
+                public void run() {
+                    acked.countDown();
+                }
+            });
+        assertTrue(acked.await(1, TimeUnit.SECONDS));
+        handler.close();
+    }
+}
@@ -0,0 +1,56 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.cloudname.timber.server.MockChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.nio.charset.Charset;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for Subscriber.
+ */
+public class SubscriberTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * MockChannel whose writability can be switched.
+     */
+    private static class ThrottledChannel extends MockChannel {
+        private volatile boolean writable = true;
+
+        public ThrottledChannel() throws Exception {
+            super();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return writable;
+        }
+    }
+
+    @Test
+    public void testDropsWhileNotWritable() throws Exception {
+        ThrottledChannel channel = new ThrottledChannel();
+        Subscriber subscriber = new Subscriber(channel, SubscriptionFilter.parse(""), 60000);
+        ChannelBuffer line = ChannelBuffers.copiedBuffer("event\n", UTF8);
+
+        assertTrue(subscriber.send(line));
+        assertEquals(1, channel.getWriteCount());
+
+        channel.writable = false;
+        assertFalse(subscriber.send(line));
+        assertFalse(subscriber.send(line));
+        assertEquals(1, channel.getWriteCount());
+
+        // Once writable again the subscriber is told what it missed
+        channel.writable = true;
+        assertTrue(subscriber.send(line));
+        assertEquals(3, channel.getWriteCount());
+        String notice = ((ChannelBuffer) channel.getObjects().get(1)).toString(UTF8);
+        assertEquals("# dropped 2 events\n", notice);
+    }
+}
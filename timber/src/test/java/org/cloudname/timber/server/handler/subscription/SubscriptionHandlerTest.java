@@ -0,0 +1,69 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.DispatcherTest;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SubscriptionHandler.
+ */
+public class SubscriptionHandlerTest {
+    private SubscriptionHandler handler;
+
+    @Before
+    public void setUp() {
+        handler = new SubscriptionHandler(0);
+        handler.init();
+    }
+
+    @After
+    public void tearDown() {
+        handler.close();
+    }
+
+    private void waitForSubscribers(int n) throws Exception {
+        for (int i = 0; i < 100 && handler.getSubscriberCount() != n; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(n, handler.getSubscriberCount());
+    }
+
+    @Test (timeout = 10000)
+    public void testSubscribe() throws Exception {
+        Socket socket = new Socket("127.0.0.1", handler.getPort());
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        OutputStream out = socket.getOutputStream();
+
+        out.write("service=wanted\n".getBytes("UTF-8"));
+        out.flush();
+        assertTrue(in.readLine().startsWith("# subscribed"));
+        waitForSubscribers(1);
+
+        handler.handle(Timber.LogEvent.newBuilder(DispatcherTest.createMessage("not this one"))
+                       .setServiceName("unwanted")
+                       .build());
+        handler.handle(Timber.LogEvent.newBuilder(DispatcherTest.createMessage("this one"))
+                       .setServiceName("wanted")
+                       .build());
+
+        String line = in.readLine();
+        assertTrue(line, line.contains("this one"));
+        assertFalse(line, line.contains("not this one"));
+
+        // Bad filters are reported and leave the subscription alone
+        out.write("colour=blue\n".getBytes("UTF-8"));
+        out.flush();
+        assertTrue(in.readLine().startsWith("# error"));
+        assertEquals(1, handler.getSubscriberCount());
+
+        socket.close();
+        waitForSubscribers(0);
+    }
+}
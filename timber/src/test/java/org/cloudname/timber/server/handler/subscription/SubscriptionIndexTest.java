@@ -0,0 +1,93 @@
+package org.cloudname.timber.server.handler.subscription;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.DispatcherTest;
+import org.cloudname.timber.server.MockChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SubscriptionFilter and SubscriptionIndex.
+ */
+public class SubscriptionIndexTest {
+
+    private static Subscriber subscriber(String filter) throws Exception {
+        return new Subscriber(new MockChannel(), SubscriptionFilter.parse(filter), 1000);
+    }
+
+    private static Timber.LogEvent event(String service, String host, Level level, String message) {
+        return Timber.LogEvent.newBuilder(DispatcherTest.createMessage(message))
+            .setServiceName(service)
+            .setHost(host)
+            .setLevel(level.intValue())
+            .build();
+    }
+
+    @Test
+    public void testParse() {
+        SubscriptionFilter filter = SubscriptionFilter.parse(" service=foo  level=warning payload=oops ");
+        assertEquals("foo", filter.getService());
+        assertNull(filter.getHost());
+        assertNull(filter.getType());
+        assertEquals(Level.WARNING.intValue(), filter.getMinLevel());
+        assertEquals("oops", filter.getPayloadSubstring());
+
+        assertEquals(800, SubscriptionFilter.parse("level=800").getMinLevel());
+        assertNull(SubscriptionFilter.parse("").getService());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testParseUnknownKey() {
+        SubscriptionFilter.parse("colour=blue");
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testParseMissingValue() {
+        SubscriptionFilter.parse("service=");
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        Subscriber all = subscriber("");
+        Subscriber foo = subscriber("service=foo");
+        Subscriber fooWarnings = subscriber("service=foo level=WARNING");
+        Subscriber barHost = subscriber("host=bar");
+        Subscriber oops = subscriber("payload=oops");
+
+        List<Subscriber> subscribers = new ArrayList<Subscriber>();
+        subscribers.add(all);
+        subscribers.add(foo);
+        subscribers.add(fooWarnings);
+        subscribers.add(barHost);
+        subscribers.add(oops);
+        SubscriptionIndex index = new SubscriptionIndex(subscribers);
+        assertEquals(5, index.size());
+
+        List<Subscriber> m = index.match(event("foo", "baz", Level.INFO, "hello"));
+        assertEquals(2, m.size());
+        assertTrue(m.contains(all));
+        assertTrue(m.contains(foo));
+
+        m = index.match(event("foo", "bar", Level.SEVERE, "oops"));
+        assertEquals(5, m.size());
+
+        m = index.match(event("other", "bar", Level.FINE, "nothing to see"));
+        assertEquals(2, m.size());
+        assertTrue(m.contains(all));
+        assertTrue(m.contains(barHost));
+
+        m = index.match(event("other", "baz", Level.FINE, "well oops"));
+        assertEquals(2, m.size());
+        assertTrue(m.contains(oops));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(SubscriptionIndex.EMPTY.match(DispatcherTest.createMessage("x")).isEmpty());
+    }
+}
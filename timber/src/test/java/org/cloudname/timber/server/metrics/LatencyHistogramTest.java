@@ -0,0 +1,72 @@
+package org.cloudname.timber.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Every value must fall in a bucket whose upper bound is at
+     * least the value and within 1/16 of it.
+     */
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long v : values) {
+            int index = LatencyHistogram.bucketIndex(v);
+            long high = LatencyHistogram.highestValueInBucket(index);
+            assertTrue("value " + v + " above bucket bound " + high, v <= high);
+            assertTrue("bucket bound " + high + " too far from " + v, (high - v) <= v / 16);
+            if (index > 0) {
+                assertTrue(LatencyHistogram.highestValueInBucket(index - 1) < v);
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0L, h.getValueAtPercentile(99.0));
+        assertEquals(0.0, h.getMean(), 0.0);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        // 1..1000 microseconds
+        for (int i = 1; i <= 1000; i++) {
+            h.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        assertEquals(1000, h.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), h.getMax());
+        assertEquals(500.5, h.getMean() / 1000.0, 0.001);
+
+        long p50 = h.getValueAtPercentile(50.0, TimeUnit.MICROSECONDS);
+        assertTrue("p50 was " + p50, p50 >= 500 && p50 <= 500 + 500 / 16);
+
+        long p99 = h.getValueAtPercentile(99.0, TimeUnit.MICROSECONDS);
+        assertTrue("p99 was " + p99, p99 >= 990 && p99 <= 1000);
+
+        assertEquals(1000, h.getValueAtPercentile(100.0, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testNegativeRecordedAsZero() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(-10);
+        assertEquals(1, h.getCount());
+        assertEquals(0L, h.getMax());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidPercentile() {
+        new LatencyHistogram().getValueAtPercentile(101.0);
+    }
+}
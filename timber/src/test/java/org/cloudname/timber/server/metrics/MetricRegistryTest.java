@@ -0,0 +1,98 @@
+package org.cloudname.timber.server.metrics;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MetricRegistry, Counter and the exporters.
+ */
+public class MetricRegistryTest {
+
+    @Test
+    public void testCounterFromManyThreads() throws Exception {
+        final Counter counter = new Counter();
+        final int numThreads = 8;
+        final int numIncrements = 10000;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            new Thread(new Runnable() {
+                    public void run() {
+                        for (int j = 0; j < numIncrements; j++) {
+                            counter.increment();
+                        }
+                        done.countDown();
+                    }
+                }).start();
+        }
+        done.await();
+        assertEquals(numThreads * numIncrements, counter.getCount());
+    }
+
+    @Test
+    public void testGetOrCreate() {
+        MetricRegistry registry = new MetricRegistry();
+        assertSame(registry.counter("a"), registry.counter("a"));
+        assertSame(registry.histogram("b"), registry.histogram("b"));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void testTypeClash() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("a");
+        registry.histogram("a");
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("events").add(3);
+        registry.histogram("latency").record(2000);
+        registry.gauge("depth", new Gauge() {
+                public long getValue() {
+                    return 42;
+                }
+            });
+
+        SortedMap<String, Number> snapshot = registry.snapshot();
+        assertEquals(3L, snapshot.get("events"));
+        assertEquals(42L, snapshot.get("depth"));
+        assertEquals(1L, snapshot.get("latency.count"));
+        assertEquals(2L, snapshot.get("latency.max_us"));
+
+        registry.remove("depth");
+        assertFalse(registry.snapshot().containsKey("depth"));
+
+        StringBuilder sb = new StringBuilder();
+        registry.writeText(sb);
+        assertTrue(sb.toString().contains("events 3\n"));
+    }
+
+    @Test
+    public void testSanitize() {
+        assertEquals("_127_0_0_1_9202", MetricRegistry.sanitize("/127.0.0.1:9202"));
+    }
+
+    @Test
+    public void testHttpServer() throws Exception {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("events").add(7);
+
+        MetricsHttpServer server = new MetricsHttpServer(registry, 0);
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getPort() + "/");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+            assertEquals("events 7", reader.readLine());
+            reader.close();
+        } finally {
+            server.shutdown();
+        }
+    }
+}
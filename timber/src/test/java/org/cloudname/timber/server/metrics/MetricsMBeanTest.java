@@ -0,0 +1,24 @@
+package org.cloudname.timber.server.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeNotFoundException;
+import javax.management.ReflectionException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for MetricsMBean.
+ */
+public class MetricsMBeanTest {
+    @Test (expected = AttributeNotFoundException.class)
+    public void testSetAttributeIsRejected() throws Exception {
+        new MetricsMBean(new MetricRegistry()).setAttribute(new Attribute("foo", 1));
+    }
+
+    @Test (expected = ReflectionException.class)
+    public void testInvokeIsRejected() throws Exception {
+        new MetricsMBean(new MetricRegistry()).invoke("reset", new Object[0], new String[0]);
+    }
+}
@@ -0,0 +1,132 @@
+package org.cloudname.timber.server.ratelimit;
+
+import org.cloudname.log.pb.Timber;
+import org.cloudname.timber.server.DispatcherTest;
+
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for RateLimiter.
+ */
+public class RateLimiterTest {
+
+    private static Timber.LogEvent event(String service, Level level) {
+        return Timber.LogEvent.newBuilder(DispatcherTest.createMessage("flood"))
+            .setServiceName(service)
+            .setLevel(level.intValue())
+            .build();
+    }
+
+    private static int admitted(RateLimiter limiter, Timber.LogEvent event, int n) {
+        int admitted = 0;
+        for (int i = 0; i < n; i++) {
+            if (limiter.admit(event)) {
+                admitted++;
+            }
+        }
+        return admitted;
+    }
+
+    @Test
+    public void testServiceRateLimit() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setServiceRate(1.0, 10)
+            .build();
+
+        // Only the burst gets through, and only for the flooding service
+        assertEquals(10, admitted(limiter, event("flooder", Level.INFO), 100));
+        assertEquals(10, admitted(limiter, event("quiet", Level.INFO), 10));
+
+        // Warnings and events with higher consistency always get through
+        assertEquals(100, admitted(limiter, event("flooder", Level.WARNING), 100));
+        Timber.LogEvent sync = Timber.LogEvent.newBuilder(event("flooder", Level.INFO))
+            .setConsistencyLevel(Timber.ConsistencyLevel.SYNC)
+            .setId("x")
+            .build();
+        assertEquals(100, admitted(limiter, sync, 100));
+    }
+
+    @Test
+    public void testHostRateLimit() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setHostRate(1.0, 5)
+            .build();
+        // Both services live on the same host
+        assertEquals(5, admitted(limiter, event("a", Level.INFO), 5));
+        assertEquals(0, admitted(limiter, event("b", Level.INFO), 5));
+    }
+
+    @Test
+    public void testSampling() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setSampling(Level.INFO, 10)
+            .build();
+        assertEquals(10, admitted(limiter, event("chatty", Level.FINE), 100));
+        assertEquals(100, admitted(limiter, event("chatty", Level.INFO), 100));
+    }
+
+    @Test
+    public void testSummaries() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setServiceRate(1.0, 1)
+            .setSampling(Level.INFO, 2)
+            .setSummaryInterval(0)
+            .build();
+        admitted(limiter, event("flooder", Level.INFO), 5);
+        admitted(limiter, event("flooder", Level.FINE), 4);
+
+        List<Timber.LogEvent> summaries = limiter.summaries();
+        assertEquals(1, summaries.size());
+        Timber.LogEvent summary = summaries.get(0);
+        assertEquals(RateLimiter.SUMMARY_SERVICE_NAME, summary.getServiceName());
+        assertEquals(Level.WARNING.intValue(), summary.getLevel());
+        String message = summary.getPayload(0).getPayload().toStringUtf8();
+        assertTrue(message, message.contains("service flooder"));
+        assertTrue(message, message.contains("sampled out=2"));
+
+        // Counts are reset after each summary
+        assertTrue(limiter.summaries().isEmpty());
+    }
+
+    @Test
+    public void testHostRejectionRefundsServiceToken() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setServiceRate(1.0, 5)
+            .setHostRate(1.0, 5)
+            .build();
+        // Another service on the same host uses up the host bucket
+        assertEquals(5, admitted(limiter, event("a", Level.INFO), 5));
+        assertEquals(0, admitted(limiter, event("b", Level.INFO), 5));
+
+        // The rejected events did not cost b its own tokens
+        Timber.LogEvent otherHost = Timber.LogEvent.newBuilder(event("b", Level.INFO))
+            .setHost("other.example.com")
+            .build();
+        assertEquals(5, admitted(limiter, otherHost, 10));
+    }
+
+    @Test
+    public void testKeysAreBounded() {
+        RateLimiter limiter = new RateLimiter.Builder()
+            .setServiceRate(1.0, 1)
+            .setMaxKeys(10)
+            .setSummaryInterval(0)
+            .build();
+
+        // Names beyond the cap share one bucket
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            admitted += admitted(limiter, event("service" + i, Level.INFO), 1);
+        }
+        assertEquals(11, admitted);
+
+        List<Timber.LogEvent> summaries = limiter.summaries();
+        assertEquals(1, summaries.size());
+        String message = summaries.get(0).getPayload(0).getPayload().toStringUtf8();
+        assertTrue(message, message.contains(RateLimiter.OVERFLOW_KEY));
+    }
+}
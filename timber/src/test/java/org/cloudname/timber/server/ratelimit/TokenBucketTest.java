@@ -0,0 +1,44 @@
+package org.cloudname.timber.server.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for TokenBucket.
+ */
+public class TokenBucketTest {
+
+    @Test
+    public void testBurstThenRate() {
+        // 10 per second, burst of 5
+        TokenBucket bucket = new TokenBucket(10.0, 5);
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue("token " + i, bucket.tryAcquire(now));
+        }
+        assertFalse(bucket.tryAcquire(now));
+
+        // One token every 100ms
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    public void testIdleBucketDoesNotOverfill() {
+        TokenBucket bucket = new TokenBucket(10.0, 2);
+        long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new TokenBucket(0.0, 1);
+    }
+}